@@ -0,0 +1,271 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BooleanSupplier;
+import io.nayuki.png.chunk.Ihdr;
+import io.nayuki.png.image.GrayImage;
+import io.nayuki.png.image.PaletteImage;
+import io.nayuki.png.image.RgbaImage;
+
+
+/**
+ * Runs reading, decoding, encoding, and writing asynchronously, returning {@code CompletableFuture} objects.
+ * File I/O runs on virtual threads, so that any number of reads and writes can wait at once, while parsing,
+ * decoding, and encoding run on a fixed number of platform threads, so that a burst of requests does not
+ * oversubscribe the processors. (Decoding and encoding may still use the common fork-join pool internally,
+ * according to their options.)
+ * <p>Completing a returned future early stops its work at the next row: calling {@code cancel()}, or setting
+ * a deadline with {@code orTimeout()}, makes the decoder or encoder throw {@code CancellationException} on
+ * its thread, which frees the thread for other tasks. Work that has not started yet is skipped.</p>
+ * <p>Instances are thread-safe. Closing an instance lets its threads finish the tasks already
+ * submitted and then end; new tasks are rejected with {@code RejectedExecutionException}.</p>
+ */
+public final class AsyncCodec implements AutoCloseable {
+	
+	/*---- Fields ----*/
+	
+	private final ExecutorService ioExecutor;
+	private final ExecutorService cpuExecutor;
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	/**
+	 * Constructs an asynchronous codec whose processing threads number the same as the available processors.
+	 */
+	public AsyncCodec() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	
+	/**
+	 * Constructs an asynchronous codec with the specified number of processing threads.
+	 * @param cpuThreads the number of threads that parse, decode, and encode, a positive number
+	 * @throws IllegalArgumentException if {@code cpuThreads} is not positive
+	 */
+	public AsyncCodec(int cpuThreads) {
+		if (cpuThreads <= 0)
+			throw new IllegalArgumentException("Non-positive number of threads");
+		ioExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("PNG async I/O ", 0).factory());
+		cpuExecutor = Executors.newFixedThreadPool(cpuThreads, Thread.ofPlatform().name("PNG async worker ", 0).daemon().factory());
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	/**
+	 * Asynchronously reads and parses the specified PNG file. The file is read on a virtual
+	 * thread, and parsed on a processing thread. Failures are reported through the future:
+	 * an {@code UncheckedIOException} for I/O errors, or an {@code IllegalArgumentException}
+	 * for malformed data.
+	 * @param file the file to read (not {@code null})
+	 * @return a future of the parsed PNG image (not {@code null})
+	 * @throws NullPointerException if {@code file} is {@code null}
+	 */
+	public CompletableFuture<PngImage> readAsync(Path file) {
+		Objects.requireNonNull(file);
+		return onCpu(readBytes(file), (data, stop) -> parse(data));
+	}
+	
+	
+	/**
+	 * Asynchronously decodes the specified PNG image on a processing thread, with the same result
+	 * as {@link ImageDecoder#toImage(PngImage, DecodeOptions)}. The image must not be modified until
+	 * the future completes.
+	 * @param png the PNG image to decode (not {@code null})
+	 * @param options the settings for decoding (not {@code null})
+	 * @return a future of the decoded image (not {@code null})
+	 * @throws NullPointerException if {@code png} or {@code options} is {@code null}
+	 */
+	public CompletableFuture<Object> decodeAsync(PngImage png, DecodeOptions options) {
+		Objects.requireNonNull(png);
+		Objects.requireNonNull(options);
+		return onCpu(NO_INPUT, (v, stop) -> ImageDecoder.toImage(png, options.withCancellation(either(stop, options.cancellation))));
+	}
+	
+	
+	/**
+	 * Asynchronously reads, parses, and decodes the specified PNG file, like {@link #readAsync(Path)}
+	 * followed by {@link #decodeAsync(PngImage, DecodeOptions)}, as one future.
+	 * @param file the file to read (not {@code null})
+	 * @param options the settings for decoding (not {@code null})
+	 * @return a future of the decoded image (not {@code null})
+	 * @throws NullPointerException if {@code file} or {@code options} is {@code null}
+	 */
+	public CompletableFuture<Object> decodeAsync(Path file, DecodeOptions options) {
+		Objects.requireNonNull(file);
+		Objects.requireNonNull(options);
+		return onCpu(readBytes(file), (data, stop) ->
+			ImageDecoder.toImage(parse(data), options.withCancellation(either(stop, options.cancellation))));
+	}
+	
+	
+	/**
+	 * Asynchronously encodes the specified image on a processing thread, with the same result as {@link
+	 * ImageEncoder#toPng(RgbaImage, Ihdr.InterlaceMethod, EncodeOptions)}. The image must not be modified
+	 * until the future completes.
+	 * @param img the image to encode (not {@code null})
+	 * @param interMeth the interlace method (not {@code null})
+	 * @param options the settings for encoding (not {@code null})
+	 * @return a future of the encoded PNG image (not {@code null})
+	 * @throws NullPointerException if any argument is {@code null}
+	 */
+	public CompletableFuture<PngImage> encodeAsync(RgbaImage img, Ihdr.InterlaceMethod interMeth, EncodeOptions options) {
+		Objects.requireNonNull(img);
+		Objects.requireNonNull(interMeth);
+		Objects.requireNonNull(options);
+		return onCpu(NO_INPUT, (v, stop) -> ImageEncoder.toPng(img, interMeth, options.withCancellation(either(stop, options.cancellation))));
+	}
+	
+	
+	/**
+	 * Asynchronously encodes the specified image on a processing thread, with the same result as {@link
+	 * ImageEncoder#toPng(GrayImage, Ihdr.InterlaceMethod, EncodeOptions)}. The image must not be modified
+	 * until the future completes.
+	 * @param img the image to encode (not {@code null})
+	 * @param interMeth the interlace method (not {@code null})
+	 * @param options the settings for encoding (not {@code null})
+	 * @return a future of the encoded PNG image (not {@code null})
+	 * @throws NullPointerException if any argument is {@code null}
+	 */
+	public CompletableFuture<PngImage> encodeAsync(GrayImage img, Ihdr.InterlaceMethod interMeth, EncodeOptions options) {
+		Objects.requireNonNull(img);
+		Objects.requireNonNull(interMeth);
+		Objects.requireNonNull(options);
+		return onCpu(NO_INPUT, (v, stop) -> ImageEncoder.toPng(img, interMeth, options.withCancellation(either(stop, options.cancellation))));
+	}
+	
+	
+	/**
+	 * Asynchronously encodes the specified image on a processing thread, with the same result as {@link
+	 * ImageEncoder#toPng(PaletteImage, Ihdr.InterlaceMethod, EncodeOptions)}. The image must not be modified
+	 * until the future completes.
+	 * @param img the image to encode (not {@code null})
+	 * @param interMeth the interlace method (not {@code null})
+	 * @param options the settings for encoding (not {@code null})
+	 * @return a future of the encoded PNG image (not {@code null})
+	 * @throws NullPointerException if any argument is {@code null}
+	 */
+	public CompletableFuture<PngImage> encodeAsync(PaletteImage img, Ihdr.InterlaceMethod interMeth, EncodeOptions options) {
+		Objects.requireNonNull(img);
+		Objects.requireNonNull(interMeth);
+		Objects.requireNonNull(options);
+		return onCpu(NO_INPUT, (v, stop) -> ImageEncoder.toPng(img, interMeth, options.withCancellation(either(stop, options.cancellation))));
+	}
+	
+	
+	/**
+	 * Asynchronously writes the specified PNG image to the specified file on a virtual thread. I/O
+	 * errors are reported through the future as {@code UncheckedIOException}. The image must not
+	 * be modified until the future completes.
+	 * @param png the PNG image to write (not {@code null})
+	 * @param file the file to write (not {@code null})
+	 * @return a future that completes when the file is written (not {@code null})
+	 * @throws NullPointerException if {@code png} or {@code file} is {@code null}
+	 */
+	public CompletableFuture<Void> writeAsync(PngImage png, Path file) {
+		Objects.requireNonNull(png);
+		Objects.requireNonNull(file);
+		return CompletableFuture.supplyAsync(() -> {
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+				png.write(out);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return null;
+		}, ioExecutor);
+	}
+	
+	
+	/**
+	 * Stops accepting new tasks, and lets the threads end after finishing the tasks already submitted.
+	 */
+	@Override public void close() {
+		ioExecutor.shutdown();
+		cpuExecutor.shutdown();
+	}
+	
+	
+	private CompletableFuture<byte[]> readBytes(Path file) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return Files.readAllBytes(file);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, ioExecutor);
+	}
+	
+	
+	// When the given input is ready, runs the given task with it on a processing thread, unless the returned future
+	// is completed first. The task receives a condition that becomes true when the returned future is completed by
+	// anyone. Unlike with thenCompose(), cancelling the returned future is thus seen by the task.
+	private <A,T> CompletableFuture<T> onCpu(CompletableFuture<A> input, CancellableTask<A,T> task) {
+		var result = new CompletableFuture<T>();
+		input.whenComplete((val, ex) -> {
+			if (ex != null) {
+				result.completeExceptionally(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+				return;
+			}
+			try {
+				cpuExecutor.execute(() -> {
+					if (result.isDone())
+						return;
+					try {
+						result.complete(task.run(val, result::isDone));
+					} catch (Throwable e) {
+						result.completeExceptionally(e);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+	
+	
+	private static final CompletableFuture<Void> NO_INPUT = CompletableFuture.completedFuture(null);
+	
+	
+	private static BooleanSupplier either(BooleanSupplier a, BooleanSupplier b) {
+		return b == null ? a : () -> a.getAsBoolean() || b.getAsBoolean();
+	}
+	
+	
+	private static PngImage parse(byte[] data) {
+		try {
+			return PngImage.read(new ByteArrayInputStream(data));
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);  // Truncated data
+		}
+	}
+	
+	
+	private interface CancellableTask<A,T> {
+		public T run(A input, BooleanSupplier isCancelled);
+	}
+	
+}
@@ -0,0 +1,102 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+
+/**
+ * Decompresses one band of a zlib stream that was divided at full flush points, as described by
+ * an {@link io.nayuki.png.chunk.Rspt} chunk. Each band is checked to really be independent of the
+ * data around it, so that decoding bands in parallel always gives the same result as decoding
+ * the stream serially, or is rejected so that the caller decodes serially instead. Not instantiable.
+ */
+final class BandInflater {
+	
+	// Decompresses the given band of compressed data into all of dest. The first band starts with the zlib
+	// header, the last band ends with the final block and the trailer, and every other band must end at
+	// a full flush point. Returns the Adler-32 of dest in the low 32 bits, and for the last band, the
+	// Adler-32 of the whole stream (as stored in the trailer) in the high 32 bits.
+	public static long inflate(byte[] data, boolean first, boolean last, byte[] dest) {
+		int off = 0;
+		if (first) {
+			if (data.length < 2)
+				throw new IllegalArgumentException("Invalid zlib header");
+			int cmf = data[0] & 0xFF;
+			int flg = data[1] & 0xFF;
+			if ((cmf & 0x0F) != 8 || cmf >>> 4 > 7 || (cmf << 8 | flg) % 31 != 0 || (flg & 0x20) != 0)
+				throw new IllegalArgumentException("Invalid zlib header");
+			off = 2;
+		}
+		
+		long result = 0;
+		var inf = new Inflater(true);
+		try {
+			inf.setInput(data, off, data.length - off);
+			for (int n = 0; n < dest.length; ) {
+				int k = inf.inflate(dest, n, dest.length - n);
+				if (k == 0 && (inf.finished() || inf.needsInput() || inf.needsDictionary()))
+					throw new IllegalArgumentException("Band has too little decompressed data");
+				n += k;
+			}
+			var extra = new byte[1];
+			if (inf.inflate(extra) != 0)
+				throw new IllegalArgumentException("Band has too much decompressed data");
+			
+			if (last) {
+				if (!inf.finished() || inf.getRemaining() < 4)
+					throw new IllegalArgumentException("Incomplete zlib stream");
+				for (int i = data.length - inf.getRemaining(), end = i + 4; i < end; i++)
+					result = result << 8 | (data[i] & 0xFF);
+				result <<= 32;
+			} else {
+				// The band must end with an empty stored block, and leave the decompressor at the
+				// boundary between blocks, which a final empty block with fixed codes will show
+				int n = data.length;
+				if (inf.finished() || inf.getRemaining() != 0 || n - off < 4 || data[n - 4] != 0 || data[n - 3] != 0 || data[n - 2] != -1 || data[n - 1] != -1)
+					throw new IllegalArgumentException("Band does not end at a full flush point");
+				inf.setInput(FINAL_EMPTY_BLOCK);
+				if (inf.inflate(extra) != 0 || !inf.finished() || inf.getRemaining() != 0)
+					throw new IllegalArgumentException("Band does not end at a full flush point");
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Invalid compressed data", e);
+		} finally {
+			inf.end();
+		}
+		
+		var adler = new Adler32();
+		adler.update(dest);
+		return result | adler.getValue();
+	}
+	
+	
+	private static final byte[] FINAL_EMPTY_BLOCK = {0x03, 0x00};
+	
+	
+	// Returns the Adler-32 of the concatenation of two byte sequences, given their separate
+	// Adler-32 values and the length of the second sequence. This is zlib's adler32_combine().
+	public static int combineAdler32(int adler1, int adler2, long len2) {
+		final int MOD = 65521;
+		long rem = len2 % MOD;
+		long sum1 = adler1 & 0xFFFF;
+		long sum2 = rem * sum1 % MOD;
+		sum1 += (adler2 & 0xFFFF) + MOD - 1;
+		sum2 += (adler1 >>> 16) + (adler2 >>> 16) + MOD - rem;
+		sum1 %= MOD;
+		sum2 %= MOD;
+		return (int)(sum2 << 16 | sum1);
+	}
+	
+	
+	private BandInflater() {}
+	
+}
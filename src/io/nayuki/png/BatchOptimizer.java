@@ -0,0 +1,416 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import io.nayuki.png.chunk.Chunk;
+import io.nayuki.png.chunk.Ihdr;
+import io.nayuki.png.chunk.ZlibCodec;
+import io.nayuki.png.image.GrayImage;
+import io.nayuki.png.image.PaletteImage;
+import io.nayuki.png.image.RgbaImage;
+
+
+/**
+ * A command-line program that validates, strips, recompresses, or converts every PNG file in a directory tree,
+ * using all processors. Files are processed as tasks on a work-stealing pool. Each task first tries to reserve its
+ * estimated memory from a global budget. If the memory is not available, the file is set aside without blocking the
+ * worker thread, and it is resubmitted when another file finishes and returns its memory. So many small files run
+ * at once while a huge file waits for room, and a file bigger than the whole budget runs alone.
+ * The program prints a line of statistics for each file and totals at the end. With a journal file, each finished
+ * file is recorded, and a later run with the same journal skips those files, so an interrupted batch can resume.
+ * Output files are written to a temporary name and then renamed, so a partial output never looks finished.
+ * <p>Usage: {@code java io.nayuki.png.BatchOptimizer [options] command inputDir [outputDir]}</p>
+ * <p>Commands:</p>
+ * <ul>
+ *   <li>{@code validate}: Check each file with {@link ImageDecoder#validate(PngImage)}, writing nothing (no output directory)</li>
+ *   <li>{@code strip}: Remove ancillary chunks that do not affect how pixels look</li>
+ *   <li>{@code recompress}: Re-filter and recompress the image data with {@link ImageEncoder#recompress(PngImage, EncodeOptions)},
+ *     keeping the original file if the result is not smaller</li>
+ *   <li>{@code convert}: Decode the pixels and encode them again, such as to change the interlace method</li>
+ * </ul>
+ * <p>Options:</p>
+ * <ul>
+ *   <li>{@code --threads N}: Number of worker threads (default: number of processors)</li>
+ *   <li>{@code --memory MiB}: Total memory that tasks may reserve at once (default: half of the maximum heap)</li>
+ *   <li>{@code --filter none|adaptive|exhaustive|keep}: Filter strategy for encoding, where {@code keep} is only for {@code recompress} (default: adaptive)</li>
+ *   <li>{@code --level N}: Compress with {@code java.util.zip} at level 0 to 9 (default: 9)</li>
+ *   <li>{@code --optimal N}: Compress with {@link ZlibCodec#optimal(int)} with N iterations</li>
+ *   <li>{@code --interlace none|adam7}: Interlace method for {@code convert} (default: none)</li>
+ *   <li>{@code --journal FILE}: Skip the files listed in the file, and append each finished file to it</li>
+ * </ul>
+ * <p>The exit status is 0 if every file succeeded, 1 if any file failed, and 2 for invalid arguments.</p>
+ */
+public final class BatchOptimizer {
+	
+	/*---- Entry points ----*/
+	
+	public static void main(String[] args) {
+		System.exit(run(args, System.out, System.err));
+	}
+	
+	
+	// Runs the program with the given arguments, printing statistics to out and errors
+	// to err, and returns the exit status instead of exiting the JVM.
+	static int run(String[] args, PrintStream out, PrintStream err) {
+		BatchOptimizer opt;
+		try {
+			opt = new BatchOptimizer(args);
+		} catch (IllegalArgumentException e) {
+			err.println("Error: " + e.getMessage());
+			err.println("Usage: java io.nayuki.png.BatchOptimizer [options] validate|strip|recompress|convert inputDir [outputDir]");
+			return 2;
+		}
+		try {
+			return opt.runAll(out, err) ? 0 : 1;
+		} catch (IOException | InterruptedException e) {
+			err.println("Error: " + e);
+			return 1;
+		}
+	}
+	
+	
+	
+	/*---- Settings ----*/
+	
+	private enum Command { VALIDATE, STRIP, RECOMPRESS, CONVERT }
+	
+	private Command command;
+	private Path inputDir;
+	private Path outputDir = null;  // Null for validate
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+	private EncodeOptions encodeOptions = EncodeOptions.DEFAULT
+		.withFilterStrategy(EncodeOptions.FilterStrategy.ADAPTIVE)
+		.withZlibCodec(ZlibCodec.javaUtilZip(9));
+	private Ihdr.InterlaceMethod interlace = Ihdr.InterlaceMethod.NONE;
+	private Path journalFile = null;
+	
+	
+	private BatchOptimizer(String[] args) {
+		List<String> positional = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (!arg.startsWith("--")) {
+				positional.add(arg);
+				continue;
+			}
+			if (i + 1 >= args.length)
+				throw new IllegalArgumentException("Missing value for " + arg);
+			String val = args[++i];
+			switch (arg) {
+				case "--threads" -> threads = parsePositive(arg, val);
+				case "--memory" -> memoryBudget = parsePositive(arg, val) * (1L << 20);
+				case "--filter" -> encodeOptions = encodeOptions.withFilterStrategy(parseEnum(EncodeOptions.FilterStrategy.values(), arg, val));
+				case "--level" -> {
+					if (!val.matches("[0-9]"))
+						throw new IllegalArgumentException("Invalid value for " + arg);
+					encodeOptions = encodeOptions.withZlibCodec(ZlibCodec.javaUtilZip(Integer.parseInt(val)));
+				}
+				case "--optimal" -> encodeOptions = encodeOptions.withZlibCodec(ZlibCodec.optimal(parsePositive(arg, val)));
+				case "--interlace" -> interlace = parseEnum(Ihdr.InterlaceMethod.values(), arg, val);
+				case "--journal" -> journalFile = Path.of(val);
+				default -> throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+		}
+		if (positional.isEmpty())
+			throw new IllegalArgumentException("Missing command");
+		command = parseEnum(Command.values(), "command", positional.get(0));
+		if (positional.size() != (command == Command.VALIDATE ? 2 : 3))
+			throw new IllegalArgumentException("Wrong number of directories");
+		if (command == Command.CONVERT && encodeOptions.filterStrategy == EncodeOptions.FilterStrategy.KEEP)
+			throw new IllegalArgumentException("Invalid value for --filter");
+		inputDir = Path.of(positional.get(1));
+		if (positional.size() == 3)
+			outputDir = Path.of(positional.get(2));
+	}
+	
+	
+	private static int parsePositive(String name, String val) {
+		try {
+			int result = Integer.parseInt(val);
+			if (result > 0)
+				return result;
+		} catch (NumberFormatException e) {}
+		throw new IllegalArgumentException("Invalid value for " + name);
+	}
+	
+	
+	private static <E extends Enum<E>> E parseEnum(E[] values, String name, String val) {
+		for (E e : values) {
+			if (e.name().equalsIgnoreCase(val))
+				return e;
+		}
+		throw new IllegalArgumentException("Invalid value for " + name);
+	}
+	
+	
+	
+	/*---- Batch processing ----*/
+	
+	private final AtomicInteger numSucceeded = new AtomicInteger();
+	private final AtomicInteger numFailed = new AtomicInteger();
+	private final AtomicLong totalInputBytes = new AtomicLong();
+	private final AtomicLong totalOutputBytes = new AtomicLong();
+	private final AtomicLong totalCpuNanos = new AtomicLong();
+	private MemoryBudget budget;
+	private BufferedWriter journal = null;
+	
+	private ForkJoinPool pool;
+	private CountDownLatch remaining;
+	// Files whose memory was not available when tried, in the order they were set aside.
+	// Guarded by itself, which is also held while trying to reserve and while releasing memory.
+	private final List<Job> deferred = new ArrayList<>();
+	
+	
+	// Processes all the files and returns whether all succeeded.
+	private boolean runAll(PrintStream out, PrintStream err) throws IOException, InterruptedException {
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(inputDir)) {
+			files = walk.filter(p -> Files.isRegularFile(p) && p.getFileName().toString().toLowerCase().endsWith(".png")).sorted().toList();
+		}
+		Set<String> done = new HashSet<>();
+		if (journalFile != null) {
+			if (Files.exists(journalFile))
+				done.addAll(Files.readAllLines(journalFile, StandardCharsets.UTF_8));
+			journal = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}
+		budget = new MemoryBudget(Math.max(memoryBudget, 1));
+		
+		List<Job> jobs = new ArrayList<>();
+		int skipped = 0;
+		for (Path file : files) {
+			String rel = inputDir.relativize(file).toString();
+			if (done.contains(rel)) {
+				skipped++;
+				continue;
+			}
+			jobs.add(new Job(file, rel, out, err));
+		}
+		
+		long start = System.nanoTime();
+		pool = new ForkJoinPool(threads);
+		remaining = new CountDownLatch(jobs.size());
+		try {
+			for (Job job : jobs)
+				pool.execute(() -> tryStart(job));
+			remaining.await();
+		} finally {
+			pool.shutdownNow();
+			if (journal != null)
+				journal.close();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		
+		long in = totalInputBytes.get();
+		long outBytes = totalOutputBytes.get();
+		out.printf("Files: %d succeeded, %d failed, %d skipped%n", numSucceeded.get(), numFailed.get(), skipped);
+		out.printf("Bytes: %d in, %d out (%.1f%%)%n", in, outBytes, in > 0 ? outBytes * 100.0 / in : 100.0);
+		out.printf("Time: %.2f s wall, %.2f s in tasks, %.1f MB/s%n", seconds, totalCpuNanos.get() / 1e9, in / 1e6 / Math.max(seconds, 1e-9));
+		return numFailed.get() == 0;
+	}
+	
+	
+	// Processes the given file if its memory can be reserved now, otherwise sets it aside
+	// for a later try. Never blocks, so that a waiting file does not hold a worker thread.
+	private void tryStart(Job job) {
+		if (job.memory == -1) {
+			try {
+				// A file bigger than the whole budget runs alone
+				job.memory = Math.min(estimateMemory(job.file), budget.getCapacity());
+			} catch (IOException | RuntimeException e) {
+				fail(job, e);
+				remaining.countDown();
+				return;
+			}
+		}
+		Optional<MemoryBudget.Reservation> reservation;
+		synchronized (deferred) {
+			reservation = budget.tryAcquire(job.memory);
+			if (reservation.isEmpty()) {
+				// Some other file holds memory, and it will resubmit this one when it finishes
+				deferred.add(job);
+				return;
+			}
+		}
+		try {
+			processFile(job);
+		} finally {
+			synchronized (deferred) {
+				reservation.get().close();
+				long room = budget.getAvailable();
+				for (var iter = deferred.iterator(); iter.hasNext(); ) {
+					Job other = iter.next();
+					if (other.memory <= room) {
+						room -= other.memory;
+						iter.remove();
+						pool.execute(() -> tryStart(other));
+					}
+				}
+			}
+			remaining.countDown();
+		}
+	}
+	
+	
+	private void processFile(Job job) {
+		Path file = job.file;
+		String rel = job.rel;
+		PrintStream out = job.out;
+		try {
+			long start = System.nanoTime();
+			byte[] input = Files.readAllBytes(file);
+			byte[] output = transform(input);
+			if (output != null) {
+				if (command != Command.CONVERT && output.length >= input.length)
+					output = input;
+				Path dest = outputDir.resolve(rel);
+				Files.createDirectories(dest.getParent());
+				Path temp = dest.resolveSibling(dest.getFileName() + ".tmp");
+				Files.write(temp, output);
+				Files.move(temp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			long nanos = System.nanoTime() - start;
+			
+			int outLen = output != null ? output.length : input.length;
+			totalInputBytes.addAndGet(input.length);
+			totalOutputBytes.addAndGet(outLen);
+			totalCpuNanos.addAndGet(nanos);
+			numSucceeded.incrementAndGet();
+			synchronized (this) {
+				out.printf("%s\t%d -> %d bytes\t%.1f ms\t%.1f MB/s%n", rel, input.length, outLen, nanos / 1e6, input.length * 1e3 / Math.max(nanos, 1));
+				if (journal != null) {
+					journal.write(rel);
+					journal.newLine();
+					journal.flush();
+				}
+			}
+		} catch (IOException | RuntimeException | OutOfMemoryError e) {
+			fail(job, e);
+		}
+	}
+	
+	
+	private void fail(Job job, Throwable e) {
+		numFailed.incrementAndGet();
+		synchronized (this) {
+			job.err.println(job.rel + "\tFAILED: " + e);
+		}
+	}
+	
+	
+	// Returns the new contents of the file, or null if the command writes no output.
+	private byte[] transform(byte[] input) throws IOException {
+		PngImage png = PngImage.read(new ByteArrayInputStream(input));
+		PngImage result = switch (command) {
+			case VALIDATE -> {
+				ImageDecoder.validate(png);
+				yield null;
+			}
+			case STRIP -> {
+				png.afterIhdr.removeIf(chk -> !KEPT_CHUNK_TYPES.contains(chk.getType()));
+				png.afterIdats.removeIf(chk -> !KEPT_CHUNK_TYPES.contains(chk.getType()));
+				yield png;
+			}
+			case RECOMPRESS -> ImageEncoder.recompress(png, encodeOptions);
+			case CONVERT -> {
+				Object img = ImageDecoder.toImage(png);
+				PngImage enc;
+				if (img instanceof RgbaImage im)
+					enc = ImageEncoder.toPng(im, interlace, encodeOptions);
+				else if (img instanceof GrayImage im)
+					enc = ImageEncoder.toPng(im, interlace, encodeOptions);
+				else if (img instanceof PaletteImage im)
+					enc = ImageEncoder.toPng(im, interlace, encodeOptions);
+				else
+					throw new AssertionError("Unreachable type");
+				// Keep the metadata that the encoder does not produce from the pixels
+				png.afterIhdr.stream().filter(chk -> !ENCODER_CHUNK_TYPES.contains(chk.getType())).forEach(enc.afterIhdr::add);
+				png.afterIdats.stream().filter(chk -> !ENCODER_CHUNK_TYPES.contains(chk.getType())).forEach(enc.afterIdats::add);
+				yield enc;
+			}
+		};
+		if (result == null)
+			return null;
+		var bout = new ByteArrayOutputStream();
+		result.write(bout);
+		return bout.toByteArray();
+	}
+	
+	
+	// Returns a rough upper bound on the number of bytes of memory needed to process the given file, from its
+	// size and the library's estimates for its IHDR chunk (if it has one where expected), without reading the rest.
+	private long estimateMemory(Path file) throws IOException {
+		long result = Files.size(file) * 3;  // Input bytes, parsed chunks, and output bytes
+		Optional<Chunk> first;
+		try (InputStream in = Files.newInputStream(file)) {
+			if (!Arrays.equals(in.readNBytes(8), XngFile.Type.PNG.getSignature()))
+				return result;
+			first = Chunk.read(in);
+		} catch (IllegalArgumentException e) {
+			return result;  // Reported when the file is processed
+		}
+		if (first.isPresent() && first.get() instanceof Ihdr ihdr) {
+			if (command == Command.CONVERT)
+				result += ImageDecoder.estimateMemory(ihdr, DecodeOptions.DEFAULT) + ImageEncoder.estimateMemory(ihdr, encodeOptions);
+			else if (command == Command.RECOMPRESS)
+				result += ImageEncoder.estimateMemory(ihdr, encodeOptions);
+		}  // Validating and stripping need little more than the file
+		return result;
+	}
+	
+	
+	// A file to process, with where to report its result.
+	private static final class Job {
+		
+		public final Path file;
+		public final String rel;
+		public final PrintStream out;
+		public final PrintStream err;
+		public long memory = -1;  // Estimated bytes to reserve, or -1 if not computed yet
+		
+		
+		public Job(Path file, String rel, PrintStream out, PrintStream err) {
+			this.file = file;
+			this.rel = rel;
+			this.out = out;
+			this.err = err;
+		}
+		
+	}
+	
+	
+	// Ancillary chunks that affect how pixels look, kept by the strip command besides the critical chunks
+	private static final Set<String> KEPT_CHUNK_TYPES = Set.of("cHRM", "gAMA", "iCCP", "sBIT", "sRGB", "tRNS", "PLTE");
+	
+	// Chunks that the encoder creates from the decoded image, rather than copying from the input
+	private static final Set<String> ENCODER_CHUNK_TYPES = Set.of("PLTE", "tRNS", "sBIT", "rsPT");
+	
+}
@@ -0,0 +1,431 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BooleanSupplier;
+import io.nayuki.png.chunk.Idat;
+import io.nayuki.png.chunk.Ihdr;
+import io.nayuki.png.image.GrayImage;
+import io.nayuki.png.image.PaletteImage;
+import io.nayuki.png.image.RgbaImage;
+
+
+/**
+ * Runs decoding and encoding jobs from many clients on a fixed number of threads, choosing the next job by
+ * its estimated cost, so that a few huge images do not hold up thousands of small ones. The cost of a job is
+ * predicted before it starts, from the image dimensions, bit depth, interlacing, and compressed size (see {@link
+ * #estimateDecodeCost(Ihdr, long)}). Two policies are available: shortest job first minimizes the average
+ * waiting time, and weighted fair queuing shares the threads between tenants in proportion to their weights
+ * (each tenant's own jobs run in submission order). A job whose cost reaches the huge threshold is also
+ * switched to the parallel paths of the codec, namely speculative inflation for decoding (restart bands
+ * are always used when present) and pipelining for encoding, unless its options already chose otherwise.
+ * <p>Each job returns a {@code CompletableFuture}; cancelling it removes a waiting job or stops a running job
+ * at the next row, as in {@link AsyncCodec}. Instances are thread-safe. Closing an instance lets its threads
+ * finish the jobs already submitted and then end; later jobs fail with {@code RejectedExecutionException}.</p>
+ */
+public final class CodecScheduler implements AutoCloseable {
+	
+	/*---- Fields ----*/
+	
+	private final Policy policy;
+	private final long hugeCost;
+	
+	// Guarded by this
+	private final PriorityQueue<Job> queue;
+	private final Map<String,Tenant> tenants = new HashMap<>();
+	private double virtualTime = 0;  // For weighted fair queuing, the tag of the job that started last
+	private long nextSequence = 0;
+	private boolean closed = false;
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	/**
+	 * Constructs a scheduler with the specified number of threads and policy, which never
+	 * switches a job to the parallel paths of the codec.
+	 * @param threads the number of jobs that run at once, a positive number
+	 * @param policy the order to run waiting jobs in (not {@code null})
+	 * @throws NullPointerException if {@code policy} is {@code null}
+	 * @throws IllegalArgumentException if {@code threads} is not positive
+	 */
+	public CodecScheduler(int threads, Policy policy) {
+		this(threads, policy, Long.MAX_VALUE);
+	}
+	
+	
+	/**
+	 * Constructs a scheduler with the specified number of threads, policy, and huge job threshold.
+	 * @param threads the number of jobs that run at once, a positive number
+	 * @param policy the order to run waiting jobs in (not {@code null})
+	 * @param hugeCost the smallest estimated cost of a job that uses the parallel paths of the codec,
+	 * a non-negative number, or {@code Long.MAX_VALUE} for never
+	 * @throws NullPointerException if {@code policy} is {@code null}
+	 * @throws IllegalArgumentException if {@code threads} is not positive or {@code hugeCost} is negative
+	 */
+	public CodecScheduler(int threads, Policy policy, long hugeCost) {
+		if (threads <= 0)
+			throw new IllegalArgumentException("Non-positive number of threads");
+		this.policy = Objects.requireNonNull(policy);
+		if (hugeCost < 0)
+			throw new IllegalArgumentException("Negative cost");
+		this.hugeCost = hugeCost;
+		queue = new PriorityQueue<>(Comparator.comparingDouble((Job job) -> job.priority).thenComparingLong(job -> job.sequence));
+		for (int i = 0; i < threads; i++)
+			Thread.ofPlatform().name("PNG scheduler worker " + i).daemon().start(this::work);
+	}
+	
+	
+	
+	/*---- Cost estimation ----*/
+	
+	/**
+	 * Returns the estimated cost of decoding an image with the specified header and total size of
+	 * IDAT data, in arbitrary units that are roughly proportional to the time taken and comparable
+	 * with {@link #estimateEncodeCost(Ihdr, EncodeOptions)}. The cost counts decompressing the data,
+	 * unfiltering the rows, and converting the pixels, which costs more for interlaced images.
+	 * @param ihdr the header of the image (not {@code null})
+	 * @param compressedSize the total length of the data of the IDAT chunks, a non-negative number
+	 * @return the estimated cost, a non-negative number
+	 * @throws NullPointerException if {@code ihdr} is {@code null}
+	 * @throws IllegalArgumentException if {@code compressedSize} is negative
+	 */
+	public static long estimateDecodeCost(Ihdr ihdr, long compressedSize) {
+		Objects.requireNonNull(ihdr);
+		if (compressedSize < 0)
+			throw new IllegalArgumentException("Negative size");
+		long rawSize = rawSize(ihdr.width(), ihdr.height(), bitsPerPixel(ihdr));
+		return compressedSize * 2 + rawSize * 2 + pixelCost(ihdr.width(), ihdr.height(), ihdr.interlaceMethod());
+	}
+	
+	
+	/**
+	 * Returns the estimated cost of decoding the specified image, as given by {@link #estimateDecodeCost(Ihdr,
+	 * long)} with the image's header and IDAT chunks. This does not examine the image data.
+	 * @param png the PNG image (not {@code null})
+	 * @return the estimated cost, a non-negative number
+	 * @throws NullPointerException if {@code png} is {@code null}
+	 * @throws IllegalArgumentException if the IHDR chunk is missing
+	 */
+	public static long estimateDecodeCost(PngImage png) {
+		Ihdr ihdr = png.ihdr.orElseThrow(() -> new IllegalArgumentException("Missing IHDR chunk"));
+		long compressedSize = 0;
+		for (Idat idat : png.idats)
+			compressedSize += idat.data().length;
+		return estimateDecodeCost(ihdr, compressedSize);
+	}
+	
+	
+	/**
+	 * Returns the estimated cost of encoding an image with the specified header and options, in the same
+	 * units as {@link #estimateDecodeCost(Ihdr, long)}. The cost counts converting the pixels, filtering
+	 * the rows with the options' strategy, and compressing them, which is much slower than decompressing.
+	 * @param ihdr the header of the image to produce (not {@code null})
+	 * @param options the settings that the image would be encoded with (not {@code null})
+	 * @return the estimated cost, a non-negative number
+	 * @throws NullPointerException if {@code ihdr} or {@code options} is {@code null}
+	 */
+	public static long estimateEncodeCost(Ihdr ihdr, EncodeOptions options) {
+		Objects.requireNonNull(ihdr);
+		Objects.requireNonNull(options);
+		return encodeCost(ihdr.width(), ihdr.height(), bitsPerPixel(ihdr), ihdr.interlaceMethod(), options);
+	}
+	
+	
+	private static long encodeCost(int width, int height, int bitsPerPixel, Ihdr.InterlaceMethod interMeth, EncodeOptions options) {
+		long rawSize = rawSize(width, height, bitsPerPixel);
+		long filterCost = switch (options.filterStrategy) {
+			case NONE       -> 0;
+			case KEEP       -> rawSize;  // One filter reapplied
+			case ADAPTIVE   -> rawSize * 5;  // Five candidate filters summed
+			case EXHAUSTIVE -> rawSize * 40;  // Five candidate filters compressed
+		};
+		return rawSize * 8 + filterCost + pixelCost(width, height, interMeth);
+	}
+	
+	
+	// Returns the length of the filtered image data, ignoring interlacing.
+	private static long rawSize(int width, int height, int bitsPerPixel) {
+		return height * (Math.ceilDiv((long)width * bitsPerPixel, 8) + 1);
+	}
+	
+	
+	// Returns the cost of converting pixels, where interlacing scatters them.
+	private static long pixelCost(int width, int height, Ihdr.InterlaceMethod interMeth) {
+		return (long)width * height * (interMeth == Ihdr.InterlaceMethod.ADAM7 ? 6 : 3);
+	}
+	
+	
+	private static int bitsPerPixel(Ihdr ihdr) {
+		return ihdr.bitDepth() * switch (ihdr.colorType()) {
+			case GRAYSCALE, INDEXED_COLOR -> 1;
+			case GRAYSCALE_WITH_ALPHA     -> 2;
+			case TRUE_COLOR               -> 3;
+			case TRUE_COLOR_WITH_ALPHA    -> 4;
+		};
+	}
+	
+	
+	// Returns the PNG bit depth that the encoder uses for the given maximum channel bit depth.
+	private static int pngBitDepth(int maxBits) {
+		return maxBits <= 1 ? 1 : maxBits <= 2 ? 2 : maxBits <= 4 ? 4 : maxBits <= 8 ? 8 : 16;
+	}
+	
+	
+	
+	/*---- Job submission ----*/
+	
+	/**
+	 * Sets the weight of the specified tenant for weighted fair queuing, which affects the jobs it submits afterward.
+	 * A tenant with twice the weight of another gets about twice the thread time while both have jobs waiting.
+	 * Tenants that have not been given a weight have weight 1. The weight has no effect with shortest job first.
+	 * @param tenant the name of the tenant (not {@code null})
+	 * @param weight the share of the tenant, a positive finite number
+	 * @throws NullPointerException if {@code tenant} is {@code null}
+	 * @throws IllegalArgumentException if {@code weight} is not positive and finite
+	 */
+	public synchronized void setWeight(String tenant, double weight) {
+		Objects.requireNonNull(tenant);
+		if (!(weight > 0 && Double.isFinite(weight)))
+			throw new IllegalArgumentException("Invalid weight");
+		tenants.computeIfAbsent(tenant, k -> new Tenant()).weight = weight;
+	}
+	
+	
+	/**
+	 * Submits a job that decodes the specified PNG image, with the same result as
+	 * {@link ImageDecoder#toImage(PngImage, DecodeOptions)}. The image must not be
+	 * modified until the future completes.
+	 * @param tenant the name of the tenant that the job belongs to (not {@code null})
+	 * @param png the PNG image to decode (not {@code null})
+	 * @param options the settings for decoding (not {@code null})
+	 * @return a future of the decoded image (not {@code null})
+	 * @throws NullPointerException if any argument is {@code null}
+	 * @throws IllegalArgumentException if the IHDR chunk is missing
+	 */
+	public CompletableFuture<Object> submitDecode(String tenant, PngImage png, DecodeOptions options) {
+		Objects.requireNonNull(options);
+		long cost = estimateDecodeCost(png);
+		return submit(tenant, cost, (stop, huge) -> {
+			DecodeOptions opts = options.withCancellation(either(stop, options.cancellation));
+			if (huge && options.speculativeInflateThreshold == Integer.MAX_VALUE)
+				opts = opts.withSpeculativeInflation(0);
+			return ImageDecoder.toImage(png, opts);
+		});
+	}
+	
+	
+	/**
+	 * Submits a job that encodes the specified image, with the same result as {@link
+	 * ImageEncoder#toPng(RgbaImage, Ihdr.InterlaceMethod, EncodeOptions)}. The image
+	 * must not be modified until the future completes.
+	 * @param tenant the name of the tenant that the job belongs to (not {@code null})
+	 * @param img the image to encode (not {@code null})
+	 * @param interMeth the interlace method (not {@code null})
+	 * @param options the settings for encoding (not {@code null})
+	 * @return a future of the encoded PNG image (not {@code null})
+	 * @throws NullPointerException if any argument is {@code null}
+	 */
+	public CompletableFuture<PngImage> submitEncode(String tenant, RgbaImage img, Ihdr.InterlaceMethod interMeth, EncodeOptions options) {
+		Objects.requireNonNull(interMeth);
+		int[] bitDepths = img.getBitDepths();
+		int bitsPerPixel = (bitDepths[3] > 0 ? 4 : 3) * (Math.max(Math.max(bitDepths[0], bitDepths[1]), Math.max(bitDepths[2], bitDepths[3])) <= 8 ? 8 : 16);
+		long cost = encodeCost(img.getWidth(), img.getHeight(), bitsPerPixel, interMeth, options);
+		return submit(tenant, cost, (stop, huge) -> ImageEncoder.toPng(img, interMeth, encodeOptions(options, stop, huge)));
+	}
+	
+	
+	/**
+	 * Submits a job that encodes the specified image, with the same result as {@link
+	 * ImageEncoder#toPng(GrayImage, Ihdr.InterlaceMethod, EncodeOptions)}. The image
+	 * must not be modified until the future completes.
+	 * @param tenant the name of the tenant that the job belongs to (not {@code null})
+	 * @param img the image to encode (not {@code null})
+	 * @param interMeth the interlace method (not {@code null})
+	 * @param options the settings for encoding (not {@code null})
+	 * @return a future of the encoded PNG image (not {@code null})
+	 * @throws NullPointerException if any argument is {@code null}
+	 */
+	public CompletableFuture<PngImage> submitEncode(String tenant, GrayImage img, Ihdr.InterlaceMethod interMeth, EncodeOptions options) {
+		Objects.requireNonNull(interMeth);
+		int[] bitDepths = img.getBitDepths();
+		int bitsPerPixel = bitDepths[1] > 0 ? 2 * (Math.max(bitDepths[0], bitDepths[1]) <= 8 ? 8 : 16) : pngBitDepth(bitDepths[0]);
+		long cost = encodeCost(img.getWidth(), img.getHeight(), bitsPerPixel, interMeth, options);
+		return submit(tenant, cost, (stop, huge) -> ImageEncoder.toPng(img, interMeth, encodeOptions(options, stop, huge)));
+	}
+	
+	
+	/**
+	 * Submits a job that encodes the specified image, with the same result as {@link
+	 * ImageEncoder#toPng(PaletteImage, Ihdr.InterlaceMethod, EncodeOptions)}. The image
+	 * must not be modified until the future completes.
+	 * @param tenant the name of the tenant that the job belongs to (not {@code null})
+	 * @param img the image to encode (not {@code null})
+	 * @param interMeth the interlace method (not {@code null})
+	 * @param options the settings for encoding (not {@code null})
+	 * @return a future of the encoded PNG image (not {@code null})
+	 * @throws NullPointerException if any argument is {@code null}
+	 */
+	public CompletableFuture<PngImage> submitEncode(String tenant, PaletteImage img, Ihdr.InterlaceMethod interMeth, EncodeOptions options) {
+		Objects.requireNonNull(interMeth);
+		int bitsPerPixel = pngBitDepth(32 - Integer.numberOfLeadingZeros(Math.max(img.getPalette().length - 1, 1)));
+		long cost = encodeCost(img.getWidth(), img.getHeight(), bitsPerPixel, interMeth, options);
+		return submit(tenant, cost, (stop, huge) -> ImageEncoder.toPng(img, interMeth, encodeOptions(options, stop, huge)));
+	}
+	
+	
+	private static EncodeOptions encodeOptions(EncodeOptions options, BooleanSupplier stop, boolean huge) {
+		EncodeOptions result = options.withCancellation(either(stop, options.cancellation));
+		return huge ? result.withPipelining(true) : result;
+	}
+	
+	
+	private static BooleanSupplier either(BooleanSupplier a, BooleanSupplier b) {
+		return b == null ? a : () -> a.getAsBoolean() || b.getAsBoolean();
+	}
+	
+	
+	/**
+	 * Stops accepting new jobs, and lets the threads end after finishing the jobs already submitted.
+	 */
+	@Override public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+	
+	
+	
+	/*---- Scheduling ----*/
+	
+	// Queues a job with the given cost, giving it a priority according to the policy.
+	private <T> CompletableFuture<T> submit(String tenant, long cost, Task<T> task) {
+		Objects.requireNonNull(tenant);
+		var result = new CompletableFuture<T>();
+		synchronized (this) {
+			if (closed) {
+				result.completeExceptionally(new RejectedExecutionException("Scheduler closed"));
+				return result;
+			}
+			double priority = switch (policy) {
+				case SHORTEST_JOB_FIRST -> cost;
+				case WEIGHTED_FAIR -> {
+					// Self-clocked fair queuing: the tag is when the job would finish if the tenant were served alone at its weight
+					Tenant ten = tenants.computeIfAbsent(tenant, k -> new Tenant());
+					ten.lastTag = Math.max(virtualTime, ten.lastTag) + cost / ten.weight;
+					yield ten.lastTag;
+				}
+			};
+			queue.add(new Job(nextSequence, priority, cost >= hugeCost, result, task));
+			nextSequence++;
+			notify();
+		}
+		result.whenComplete((r, e) -> {
+			if (result.isCancelled()) {
+				synchronized (this) {
+					queue.removeIf(job -> job.result == result);
+				}
+			}
+		});
+		return result;
+	}
+	
+	
+	// The loop of each worker thread.
+	private void work() {
+		while (true) {
+			Job job;
+			synchronized (this) {
+				while (queue.isEmpty() && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				job = queue.poll();
+				if (job == null)
+					return;  // Closed and drained
+				if (policy == Policy.WEIGHTED_FAIR)
+					virtualTime = job.priority;
+			}
+			job.run();
+		}
+	}
+	
+	
+	
+	/*---- Helper classes ----*/
+	
+	/**
+	 * The order in which waiting jobs run.
+	 */
+	public enum Policy {
+		/** The waiting job with the smallest estimated cost runs next, ignoring tenants. Expensive jobs can wait
+		 * as long as cheaper ones keep arriving. Jobs of equal cost run in submission order. */
+		SHORTEST_JOB_FIRST,
+		
+		/** Tenants share the threads in proportion to their weights, measured in estimated cost, and each tenant's
+		 * jobs run in submission order. A tenant that submits a huge job or many jobs delays only itself. */
+		WEIGHTED_FAIR,
+	}
+	
+	
+	
+	private interface Task<T> {
+		public T run(BooleanSupplier isCancelled, boolean huge);
+	}
+	
+	
+	
+	private static final class Tenant {
+		public double weight = 1;
+		public double lastTag = 0;  // The tag of the tenant's last submitted job
+	}
+	
+	
+	
+	private static final class Job {
+		
+		public final long sequence;
+		public final double priority;
+		public final boolean huge;
+		private final CompletableFuture<Object> result;
+		private final Task<?> task;
+		
+		
+		@SuppressWarnings("unchecked")
+		public <T> Job(long sequence, double priority, boolean huge, CompletableFuture<T> result, Task<T> task) {
+			this.sequence = sequence;
+			this.priority = priority;
+			this.huge = huge;
+			this.result = (CompletableFuture<Object>)result;
+			this.task = task;
+		}
+		
+		
+		public void run() {
+			if (result.isDone())
+				return;
+			try {
+				result.complete(task.run(result::isDone, huge));
+			} catch (Throwable e) {
+				result.completeExceptionally(e);
+			}
+		}
+		
+	}
+	
+}
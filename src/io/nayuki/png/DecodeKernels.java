@@ -0,0 +1,369 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+
+/**
+ * Specialized loops that convert one unfiltered row of PNG samples into pixel values, used by
+ * {@link ImageDecoder}. A kernel is chosen once per image according to the color type, bit depth,
+ * and presence of tRNS and sBIT, so that the per-pixel loop has no switches and no no-op shifts.
+ * Each kernel reads subimage columns [xStart, xStart + count) of a row that begins with
+ * filter-stride padding bytes, and writes pixels [0, count) of the array. Not instantiable.
+ */
+final class DecodeKernels {
+	
+	/*---- Kernel types ----*/
+	
+	@FunctionalInterface
+	interface RgbaKernel {
+		public void convert(byte[] row, int xStart, long[] pixels, int count);
+	}
+	
+	
+	@FunctionalInterface
+	interface IntKernel {
+		public void convert(byte[] row, int xStart, int[] pixels, int count);
+	}
+	
+	
+	
+	/*---- Kernel selection ----*/
+	
+	// Returns the kernel for a true color image. The transparent color is either -1 or 0xRRRRGGGGBBBB0000.
+	// The shifts are the input bit depth minus the output bit depths (which is the input bit depth for a
+	// missing alpha channel).
+	public static RgbaKernel forRgba(int bitDepth, boolean hasAlpha, long transparentColor, int rShift, int gShift, int bShift, int aShift) {
+		boolean hasTrns = transparentColor != -1;
+		boolean plain = rShift == 0 && gShift == 0 && bShift == 0 && aShift == (hasAlpha || hasTrns ? 0 : bitDepth);
+		if (plain) {
+			return switch (bitDepth * 10 + (hasAlpha ? 1 : hasTrns ? 2 : 0)) {
+				case 8_0 -> DecodeKernels::rgb8;
+				case 8_1 -> DecodeKernels::rgba8;
+				case 8_2 -> (row, xStart, pixels, count) -> rgb8Trns(row, xStart, pixels, count, transparentColor);
+				case 16_0 -> DecodeKernels::rgb16;
+				case 16_1 -> DecodeKernels::rgba16;
+				case 16_2 -> (row, xStart, pixels, count) -> rgb16Trns(row, xStart, pixels, count, transparentColor);
+				default -> throw new AssertionError("Unreachable value");
+			};
+		} else {
+			int opaque = ((1 << bitDepth) - 1) >>> aShift;
+			return switch (bitDepth * 10 + (hasAlpha ? 1 : 0)) {
+				case 8_0 -> (row, xStart, pixels, count) -> rgb8Sbit(row, xStart, pixels, count, transparentColor, opaque, rShift, gShift, bShift);
+				case 8_1 -> (row, xStart, pixels, count) -> rgba8Sbit(row, xStart, pixels, count, rShift, gShift, bShift, aShift);
+				case 16_0 -> (row, xStart, pixels, count) -> rgb16Sbit(row, xStart, pixels, count, transparentColor, opaque, rShift, gShift, bShift);
+				case 16_1 -> (row, xStart, pixels, count) -> rgba16Sbit(row, xStart, pixels, count, rShift, gShift, bShift, aShift);
+				default -> throw new AssertionError("Unreachable value");
+			};
+		}
+	}
+	
+	
+	// Returns the kernel for a grayscale image. The transparent color is either -1 or 0xWWWW0000.
+	// The shifts are the input bit depth minus the output bit depths.
+	public static IntKernel forGray(int bitDepth, boolean hasAlpha, int transparentColor, int wShift, int aShift) {
+		boolean hasTrns = transparentColor != -1;
+		int opaque = ((1 << bitDepth) - 1) >>> aShift;
+		if (bitDepth < 8) {
+			if (wShift == 0 && !hasTrns)
+				return (row, xStart, pixels, count) -> grayLow(row, xStart, pixels, count, bitDepth);
+			else
+				return (row, xStart, pixels, count) -> grayLowSbit(row, xStart, pixels, count, bitDepth, transparentColor, opaque, wShift);
+		}
+		boolean plain = wShift == 0 && aShift == (hasAlpha || hasTrns ? 0 : bitDepth);
+		if (plain) {
+			return switch (bitDepth * 10 + (hasAlpha ? 1 : hasTrns ? 2 : 0)) {
+				case 8_0 -> DecodeKernels::gray8;
+				case 8_1 -> DecodeKernels::grayAlpha8;
+				case 8_2 -> (row, xStart, pixels, count) -> gray8Trns(row, xStart, pixels, count, transparentColor);
+				case 16_0 -> DecodeKernels::gray16;
+				case 16_1 -> DecodeKernels::grayAlpha16;
+				case 16_2 -> (row, xStart, pixels, count) -> gray16Trns(row, xStart, pixels, count, transparentColor);
+				default -> throw new AssertionError("Unreachable value");
+			};
+		} else {
+			return switch (bitDepth * 10 + (hasAlpha ? 1 : 0)) {
+				case 8_0 -> (row, xStart, pixels, count) -> gray8Sbit(row, xStart, pixels, count, transparentColor, opaque, wShift);
+				case 8_1 -> (row, xStart, pixels, count) -> grayAlpha8Sbit(row, xStart, pixels, count, wShift, aShift);
+				case 16_0 -> (row, xStart, pixels, count) -> gray16Sbit(row, xStart, pixels, count, transparentColor, opaque, wShift);
+				case 16_1 -> (row, xStart, pixels, count) -> grayAlpha16Sbit(row, xStart, pixels, count, wShift, aShift);
+				default -> throw new AssertionError("Unreachable value");
+			};
+		}
+	}
+	
+	
+	// Returns the kernel for an indexed-color image, which yields palette indexes.
+	public static IntKernel forPalette(int bitDepth) {
+		if (bitDepth == 8)
+			return DecodeKernels::palette8;
+		else
+			return (row, xStart, pixels, count) -> unpackLow(row, xStart, pixels, count, bitDepth);
+	}
+	
+	
+	
+	/*---- True color kernels ----*/
+	
+	static void rgb8(byte[] row, int xStart, long[] pixels, int count) {
+		for (int x = 0, i = 3 * (xStart + 1); x < count; x++, i += 3)
+			pixels[x] = (row[i + 0] & 0xFFL) << 48 | (row[i + 1] & 0xFFL) << 32 | (row[i + 2] & 0xFFL) << 16;
+	}
+	
+	
+	static void rgb8Trns(byte[] row, int xStart, long[] pixels, int count, long transparentColor) {
+		for (int x = 0, i = 3 * (xStart + 1); x < count; x++, i += 3) {
+			long val = (row[i + 0] & 0xFFL) << 48 | (row[i + 1] & 0xFFL) << 32 | (row[i + 2] & 0xFFL) << 16;
+			pixels[x] = val | (val != transparentColor ? 0xFF : 0x00);
+		}
+	}
+	
+	
+	static void rgba8(byte[] row, int xStart, long[] pixels, int count) {
+		for (int x = 0, i = 4 * (xStart + 1); x < count; x++, i += 4)
+			pixels[x] = (row[i + 0] & 0xFFL) << 48 | (row[i + 1] & 0xFFL) << 32 | (row[i + 2] & 0xFFL) << 16 | (row[i + 3] & 0xFFL);
+	}
+	
+	
+	static void rgb16(byte[] row, int xStart, long[] pixels, int count) {
+		for (int x = 0, i = 6 * (xStart + 1); x < count; x++, i += 6) {
+			long r = (row[i + 0] & 0xFF) << 8 | (row[i + 1] & 0xFF);
+			long g = (row[i + 2] & 0xFF) << 8 | (row[i + 3] & 0xFF);
+			long b = (row[i + 4] & 0xFF) << 8 | (row[i + 5] & 0xFF);
+			pixels[x] = r << 48 | g << 32 | b << 16;
+		}
+	}
+	
+	
+	static void rgb16Trns(byte[] row, int xStart, long[] pixels, int count, long transparentColor) {
+		for (int x = 0, i = 6 * (xStart + 1); x < count; x++, i += 6) {
+			long r = (row[i + 0] & 0xFF) << 8 | (row[i + 1] & 0xFF);
+			long g = (row[i + 2] & 0xFF) << 8 | (row[i + 3] & 0xFF);
+			long b = (row[i + 4] & 0xFF) << 8 | (row[i + 5] & 0xFF);
+			long val = r << 48 | g << 32 | b << 16;
+			pixels[x] = val | (val != transparentColor ? 0xFFFF : 0x0000);
+		}
+	}
+	
+	
+	static void rgba16(byte[] row, int xStart, long[] pixels, int count) {
+		for (int x = 0, i = 8 * (xStart + 1); x < count; x++, i += 8) {
+			long r = (row[i + 0] & 0xFF) << 8 | (row[i + 1] & 0xFF);
+			long g = (row[i + 2] & 0xFF) << 8 | (row[i + 3] & 0xFF);
+			long b = (row[i + 4] & 0xFF) << 8 | (row[i + 5] & 0xFF);
+			long a = (row[i + 6] & 0xFF) << 8 | (row[i + 7] & 0xFF);
+			pixels[x] = r << 48 | g << 32 | b << 16 | a;
+		}
+	}
+	
+	
+	// The transparent color is compared before shifting, and the alpha value is either opaque or 0.
+	static void rgb8Sbit(byte[] row, int xStart, long[] pixels, int count, long transparentColor, int opaque, int rShift, int gShift, int bShift) {
+		for (int x = 0, i = 3 * (xStart + 1); x < count; x++, i += 3) {
+			int r = row[i + 0] & 0xFF;
+			int g = row[i + 1] & 0xFF;
+			int b = row[i + 2] & 0xFF;
+			long val = (long)r << 48 | (long)g << 32 | (long)b << 16;
+			int a = val != transparentColor ? opaque : 0;
+			pixels[x] = (long)(r >>> rShift) << 48 | (long)(g >>> gShift) << 32 | (long)(b >>> bShift) << 16 | a;
+		}
+	}
+	
+	
+	static void rgba8Sbit(byte[] row, int xStart, long[] pixels, int count, int rShift, int gShift, int bShift, int aShift) {
+		for (int x = 0, i = 4 * (xStart + 1); x < count; x++, i += 4) {
+			long r = (row[i + 0] & 0xFF) >>> rShift;
+			long g = (row[i + 1] & 0xFF) >>> gShift;
+			long b = (row[i + 2] & 0xFF) >>> bShift;
+			long a = (row[i + 3] & 0xFF) >>> aShift;
+			pixels[x] = r << 48 | g << 32 | b << 16 | a;
+		}
+	}
+	
+	
+	static void rgb16Sbit(byte[] row, int xStart, long[] pixels, int count, long transparentColor, int opaque, int rShift, int gShift, int bShift) {
+		for (int x = 0, i = 6 * (xStart + 1); x < count; x++, i += 6) {
+			int r = (row[i + 0] & 0xFF) << 8 | (row[i + 1] & 0xFF);
+			int g = (row[i + 2] & 0xFF) << 8 | (row[i + 3] & 0xFF);
+			int b = (row[i + 4] & 0xFF) << 8 | (row[i + 5] & 0xFF);
+			long val = (long)r << 48 | (long)g << 32 | (long)b << 16;
+			int a = val != transparentColor ? opaque : 0;
+			pixels[x] = (long)(r >>> rShift) << 48 | (long)(g >>> gShift) << 32 | (long)(b >>> bShift) << 16 | a;
+		}
+	}
+	
+	
+	static void rgba16Sbit(byte[] row, int xStart, long[] pixels, int count, int rShift, int gShift, int bShift, int aShift) {
+		for (int x = 0, i = 8 * (xStart + 1); x < count; x++, i += 8) {
+			int r = (row[i + 0] & 0xFF) << 8 | (row[i + 1] & 0xFF);
+			int g = (row[i + 2] & 0xFF) << 8 | (row[i + 3] & 0xFF);
+			int b = (row[i + 4] & 0xFF) << 8 | (row[i + 5] & 0xFF);
+			int a = (row[i + 6] & 0xFF) << 8 | (row[i + 7] & 0xFF);
+			pixels[x] = (long)(r >>> rShift) << 48 | (long)(g >>> gShift) << 32 | (long)(b >>> bShift) << 16 | (long)(a >>> aShift);
+		}
+	}
+	
+	
+	
+	/*---- Grayscale and palette kernels ----*/
+	
+	static void gray8(byte[] row, int xStart, int[] pixels, int count) {
+		for (int x = 0, i = xStart + 1; x < count; x++, i++)
+			pixels[x] = (row[i] & 0xFF) << 16;
+	}
+	
+	
+	static void gray8Trns(byte[] row, int xStart, int[] pixels, int count, int transparentColor) {
+		for (int x = 0, i = xStart + 1; x < count; x++, i++) {
+			int val = (row[i] & 0xFF) << 16;
+			pixels[x] = val | (val != transparentColor ? 0xFF : 0x00);
+		}
+	}
+	
+	
+	static void grayAlpha8(byte[] row, int xStart, int[] pixels, int count) {
+		for (int x = 0, i = 2 * (xStart + 1); x < count; x++, i += 2)
+			pixels[x] = (row[i] & 0xFF) << 16 | (row[i + 1] & 0xFF);
+	}
+	
+	
+	static void gray16(byte[] row, int xStart, int[] pixels, int count) {
+		for (int x = 0, i = 2 * (xStart + 1); x < count; x++, i += 2)
+			pixels[x] = (row[i] & 0xFF) << 24 | (row[i + 1] & 0xFF) << 16;
+	}
+	
+	
+	static void gray16Trns(byte[] row, int xStart, int[] pixels, int count, int transparentColor) {
+		for (int x = 0, i = 2 * (xStart + 1); x < count; x++, i += 2) {
+			int val = (row[i] & 0xFF) << 24 | (row[i + 1] & 0xFF) << 16;
+			pixels[x] = val | (val != transparentColor ? 0xFFFF : 0x0000);
+		}
+	}
+	
+	
+	static void grayAlpha16(byte[] row, int xStart, int[] pixels, int count) {
+		for (int x = 0, i = 4 * (xStart + 1); x < count; x++, i += 4)
+			pixels[x] = (row[i + 0] & 0xFF) << 24 | (row[i + 1] & 0xFF) << 16 | (row[i + 2] & 0xFF) << 8 | (row[i + 3] & 0xFF);
+	}
+	
+	
+	static void gray8Sbit(byte[] row, int xStart, int[] pixels, int count, int transparentColor, int opaque, int wShift) {
+		for (int x = 0, i = xStart + 1; x < count; x++, i++) {
+			int w = row[i] & 0xFF;
+			int a = w << 16 != transparentColor ? opaque : 0;
+			pixels[x] = (w >>> wShift) << 16 | a;
+		}
+	}
+	
+	
+	static void grayAlpha8Sbit(byte[] row, int xStart, int[] pixels, int count, int wShift, int aShift) {
+		for (int x = 0, i = 2 * (xStart + 1); x < count; x++, i += 2)
+			pixels[x] = ((row[i] & 0xFF) >>> wShift) << 16 | (row[i + 1] & 0xFF) >>> aShift;
+	}
+	
+	
+	static void gray16Sbit(byte[] row, int xStart, int[] pixels, int count, int transparentColor, int opaque, int wShift) {
+		for (int x = 0, i = 2 * (xStart + 1); x < count; x++, i += 2) {
+			int w = (row[i] & 0xFF) << 8 | (row[i + 1] & 0xFF);
+			int a = w << 16 != transparentColor ? opaque : 0;
+			pixels[x] = (w >>> wShift) << 16 | a;
+		}
+	}
+	
+	
+	static void grayAlpha16Sbit(byte[] row, int xStart, int[] pixels, int count, int wShift, int aShift) {
+		for (int x = 0, i = 4 * (xStart + 1); x < count; x++, i += 4) {
+			int w = (row[i + 0] & 0xFF) << 8 | (row[i + 1] & 0xFF);
+			int a = (row[i + 2] & 0xFF) << 8 | (row[i + 3] & 0xFF);
+			pixels[x] = (w >>> wShift) << 16 | a >>> aShift;
+		}
+	}
+	
+	
+	static void grayLow(byte[] row, int xStart, int[] pixels, int count, int bitDepth) {
+		unpackLow(row, xStart, pixels, count, bitDepth);
+		for (int x = 0; x < count; x++)
+			pixels[x] <<= 16;
+	}
+	
+	
+	static void grayLowSbit(byte[] row, int xStart, int[] pixels, int count, int bitDepth, int transparentColor, int opaque, int wShift) {
+		unpackLow(row, xStart, pixels, count, bitDepth);
+		for (int x = 0; x < count; x++) {
+			int w = pixels[x];
+			int a = w << 16 != transparentColor ? opaque : 0;
+			pixels[x] = (w >>> wShift) << 16 | a;
+		}
+	}
+	
+	
+	// Unpacks 1-, 2-, or 4-bit samples into the low bits of each pixel. Whole bytes are expanded by
+	// an unrolled loop for the bit depth; a partial byte at either end is handled sample by sample.
+	static void unpackLow(byte[] row, int xStart, int[] pixels, int count, int bitDepth) {
+		int perByte = 8 / bitDepth;
+		int mask = (1 << bitDepth) - 1;
+		int x = 0;
+		for (; x < count && (xStart + x) % perByte != 0; x++)
+			pixels[x] = lowSample(row, xStart + x, bitDepth, mask);
+		int i = 1 + (xStart + x) / perByte;
+		int end = x + (count - x) / perByte * perByte;
+		switch (bitDepth) {
+			case 1 -> {
+				for (; x < end; x += 8, i++) {
+					int b = row[i];
+					pixels[x + 0] = (b >>> 7) & 1;
+					pixels[x + 1] = (b >>> 6) & 1;
+					pixels[x + 2] = (b >>> 5) & 1;
+					pixels[x + 3] = (b >>> 4) & 1;
+					pixels[x + 4] = (b >>> 3) & 1;
+					pixels[x + 5] = (b >>> 2) & 1;
+					pixels[x + 6] = (b >>> 1) & 1;
+					pixels[x + 7] = (b >>> 0) & 1;
+				}
+			}
+			case 2 -> {
+				for (; x < end; x += 4, i++) {
+					int b = row[i];
+					pixels[x + 0] = (b >>> 6) & 3;
+					pixels[x + 1] = (b >>> 4) & 3;
+					pixels[x + 2] = (b >>> 2) & 3;
+					pixels[x + 3] = (b >>> 0) & 3;
+				}
+			}
+			case 4 -> {
+				for (; x < end; x += 2, i++) {
+					int b = row[i];
+					pixels[x + 0] = (b >>> 4) & 15;
+					pixels[x + 1] = (b >>> 0) & 15;
+				}
+			}
+			default -> throw new AssertionError("Unreachable value");
+		}
+		for (; x < count; x++)
+			pixels[x] = lowSample(row, xStart + x, bitDepth, mask);
+	}
+	
+	
+	private static int lowSample(byte[] row, int x, int bitDepth, int mask) {
+		int perByte = 8 / bitDepth;
+		return (row[1 + x / perByte] >>> ((perByte - 1 - x % perByte) * bitDepth)) & mask;
+	}
+	
+	
+	static void palette8(byte[] row, int xStart, int[] pixels, int count) {
+		for (int x = 0, i = xStart + 1; x < count; x++, i++)
+			pixels[x] = row[i] & 0xFF;
+	}
+	
+	
+	
+	/*---- Miscellaneous ----*/
+	
+	private DecodeKernels() {}
+	
+}
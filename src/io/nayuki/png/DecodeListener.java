@@ -0,0 +1,48 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+
+/**
+ * Receives progress from {@link ImageDecoder} while it decodes an image, so that
+ * a caller can show an early preview of an interlaced image. Set a listener with
+ * {@link DecodeOptions#withListener(DecodeListener)}.
+ */
+@FunctionalInterface
+public interface DecodeListener {
+	
+	/**
+	 * Called on the decoding thread after each pass that contributed pixels to the result.
+	 * A non-interlaced image has one pass, and an Adam7-interlaced image has passes 1 to 7,
+	 * where passes that are empty or unneeded at a reduced scale are not reported. The preview
+	 * has the result's type and dimensions: each pixel not yet decoded shows the nearest
+	 * decoded pixel above and to the left, so after pass 1 the preview consists of 8&times;8
+	 * blocks. The preview is a read-only view of the result image, which the decoder keeps
+	 * filling in after this method returns; copy it if a stable snapshot is needed. If this
+	 * method throws an exception, then decoding stops and the exception propagates.
+	 * @param pass the number of the pass just completed, in the range [1, {@code numPasses}]
+	 * @param numPasses 1 for a non-interlaced image, or 7 for an interlaced image
+	 * @param preview a full-size view of the partial result, which is an {@link
+	 * io.nayuki.png.image.RgbaImage}, {@link io.nayuki.png.image.GrayImage}, or {@link
+	 * io.nayuki.png.image.PaletteImage} (not {@code null})
+	 */
+	public void passCompleted(int pass, int numPasses, Object preview);
+	
+	
+	/**
+	 * Called on the decoding thread after a row of the result image receives new pixels. In a
+	 * non-interlaced image each row is reported once when it is complete; in an interlaced image
+	 * a row may be reported once in each pass. With a reduced scale, a row is reported when its
+	 * whole block of source rows has been decoded. The default implementation does nothing.
+	 * @param pass the number of the pass that the pixels came from, in the range [1, 7]
+	 * @param y the index of the row in the result image
+	 */
+	public default void rowDecoded(int pass, int y) {}
+	
+}
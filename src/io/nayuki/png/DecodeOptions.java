@@ -0,0 +1,266 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import java.util.Objects;
+import java.util.function.BooleanSupplier;
+import io.nayuki.png.chunk.ZlibCodec;
+import io.nayuki.png.image.ImageAllocator;
+
+
+/**
+ * Settings that control how {@link ImageDecoder} decodes a PNG image. Instances are
+ * immutable; each {@code with...()} method returns a new object with one setting changed.
+ * Start from {@link #DEFAULT}, which decodes the whole image into buffered images.
+ */
+public final class DecodeOptions implements Cloneable {
+	
+	/*---- Constants ----*/
+	
+	/** The default settings: whole image, full scale, buffered images, strict trailing data check. */
+	public static final DecodeOptions DEFAULT = new DecodeOptions();
+	
+	
+	
+	/*---- Fields ----*/
+	
+	ImageAllocator allocator = ImageAllocator.BUFFERED;
+	
+	// The rectangle to decode, or regionWidth = 0 for the whole image
+	int regionX;
+	int regionY;
+	int regionWidth;
+	int regionHeight;
+	
+	// The denominator of the output scale: 1, 2, 4, or 8
+	int scale = 1;
+	
+	boolean strictTrailingData = true;
+	
+	DecodeListener listener = null;  // Can be null
+	
+	int speculativeInflateThreshold = Integer.MAX_VALUE;
+	
+	ZlibCodec zlibCodec = null;  // Null for the default codec at the time of decoding
+	
+	long maxPixels = Long.MAX_VALUE;
+	
+	MemoryBudget memoryBudget = null;  // Can be null
+	boolean waitForMemory;
+	
+	BooleanSupplier cancellation = null;  // Can be null
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	private DecodeOptions() {}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	/**
+	 * Returns options that create the result image using the specified allocator.
+	 * @param alloc the allocator of the result image (not {@code null})
+	 * @return a new options object (not {@code null})
+	 * @throws NullPointerException if {@code alloc} is {@code null}
+	 */
+	public DecodeOptions withAllocator(ImageAllocator alloc) {
+		DecodeOptions result = clone();
+		result.allocator = Objects.requireNonNull(alloc);
+		return result;
+	}
+	
+	
+	/**
+	 * Returns options that decode only the specified rectangle of the image. The result image
+	 * has the rectangle's dimensions, and its pixel (0, 0) comes from pixel (x, y) of the PNG.
+	 * Rows above the rectangle must still be decompressed and unfiltered, but their pixels are
+	 * not converted; likewise columns outside the rectangle are skipped. For a non-interlaced
+	 * image, rows below the rectangle are not decompressed at all unless strict trailing data
+	 * checking is enabled. The rectangle is checked against the image size when decoding.
+	 * @param x the left edge of the rectangle, a non-negative number
+	 * @param y the top edge of the rectangle, a non-negative number
+	 * @param width the width of the rectangle, a positive number
+	 * @param height the height of the rectangle, a positive number
+	 * @return a new options object (not {@code null})
+	 * @throws IllegalArgumentException if a value is out of range
+	 */
+	public DecodeOptions withRegion(int x, int y, int width, int height) {
+		if (x < 0 || y < 0 || width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Invalid region");
+		DecodeOptions result = clone();
+		result.regionX = x;
+		result.regionY = y;
+		result.regionWidth = width;
+		result.regionHeight = height;
+		return result;
+	}
+	
+	
+	/**
+	 * Returns options that decode at a reduced resolution, where each output pixel represents a
+	 * block of {@code denominator} &times; {@code denominator} pixels of the PNG (or of the region,
+	 * if set; blocks at the right and bottom edges may be smaller). The result image has dimensions
+	 * ceil(width / denominator) &times; ceil(height / denominator). No full-resolution image is made.
+	 * <ul>
+	 *   <li>For an Adam7-interlaced image, each output pixel is the pixel at the top left
+	 *     of its block. These pixels are exactly the ones in the first few passes (pass 1
+	 *     for 1/8, passes 1 to 3 for 1/4, passes 1 to 5 for 1/2), so the later passes are
+	 *     not decompressed unless strict trailing data checking is enabled.</li>
+	 *   <li>For a non-interlaced RGB or grayscale image, each channel of an output pixel is the
+	 *     rounded average of the block's values, computed as rows are decompressed. (Color
+	 *     channels are not weighted by alpha.)</li>
+	 *   <li>For a non-interlaced paletted image, each output pixel is the pixel at the top left of its
+	 *     block, because averaging palette indexes is meaningless.</li>
+	 * </ul>
+	 * <p>When combined with a region, the region's left and top edges must be multiples of the
+	 * denominator, otherwise decoding throws {@code IllegalArgumentException}.</p>
+	 * @param denominator the reciprocal of the scale, which is 1, 2, 4, or 8
+	 * @return a new options object (not {@code null})
+	 * @throws IllegalArgumentException if the denominator is not 1, 2, 4, or 8
+	 */
+	public DecodeOptions withScale(int denominator) {
+		if (!(denominator == 1 || denominator == 2 || denominator == 4 || denominator == 8))
+			throw new IllegalArgumentException("Unsupported scale");
+		DecodeOptions result = clone();
+		result.scale = denominator;
+		return result;
+	}
+	
+	
+	/**
+	 * Returns options with the specified strictness of trailing data checking. If enabled (the
+	 * default), then the whole compressed stream is decompressed, and an exception is thrown if there
+	 * is any data after the last row. If disabled, then decoding stops as soon as all pixels needed
+	 * for the result have been read, which saves time when decoding only the top of an image.
+	 * @param strict whether to check for data after the last row
+	 * @return a new options object (not {@code null})
+	 */
+	public DecodeOptions withStrictTrailingData(boolean strict) {
+		DecodeOptions result = clone();
+		result.strictTrailingData = strict;
+		return result;
+	}
+	
+	
+	/**
+	 * Returns options that report each completed pass to the specified listener,
+	 * along with a preview of the partially decoded image.
+	 * @param listener the listener to notify (not {@code null})
+	 * @return a new options object (not {@code null})
+	 * @throws NullPointerException if {@code listener} is {@code null}
+	 */
+	public DecodeOptions withListener(DecodeListener listener) {
+		DecodeOptions result = clone();
+		result.listener = Objects.requireNonNull(listener);
+		return result;
+	}
+	
+	
+	/**
+	 * Returns options that decompress the image data on several threads when its compressed size is at least the
+	 * specified number of bytes, even if the file has no restart points chunk. This is experimental: each thread
+	 * guesses where a DEFLATE block begins in its part of the data, and parts whose guess turns out wrong are
+	 * decompressed again serially. The result is checked, and any problem makes the decoder fall back to the usual
+	 * decompression, so this only affects speed. It holds all the decompressed data in memory at once, and is
+	 * slower than the usual decompression on a single processor.
+	 * @param minSize the minimum total size of the IDAT chunks' data, or {@code Integer.MAX_VALUE} to
+	 * never decompress in parallel this way (the default)
+	 * @return a new options object (not {@code null})
+	 * @throws IllegalArgumentException if {@code minSize} is negative
+	 */
+	public DecodeOptions withSpeculativeInflation(int minSize) {
+		if (minSize < 0)
+			throw new IllegalArgumentException("Negative size");
+		DecodeOptions result = clone();
+		result.speculativeInflateThreshold = minSize;
+		return result;
+	}
+	
+	
+	/**
+	 * Returns options that decompress the image data with the specified codec, instead of the program-wide
+	 * default given by {@link ZlibCodec#getDefault()}. Files with a restart points chunk, and data decompressed
+	 * with {@link #withSpeculativeInflation(int)}, use their own parallel decompressors instead. {@link PushDecoder}
+	 * also ignores this setting and uses {@link java.util.zip.Inflater}, because a codec only offers a decompressor
+	 * that pulls its input from a stream, which would block while waiting for the next piece.
+	 * @param codec the codec to decompress with (not {@code null})
+	 * @return a new options object (not {@code null})
+	 * @throws NullPointerException if {@code codec} is {@code null}
+	 */
+	public DecodeOptions withZlibCodec(ZlibCodec codec) {
+		DecodeOptions result = clone();
+		result.zlibCodec = Objects.requireNonNull(codec);
+		return result;
+	}
+	
+	
+	/**
+	 * Returns options that reject any image whose width times height exceeds the specified number, before
+	 * allocating anything for it. Decoding such an image throws {@code IllegalArgumentException}. This
+	 * also bounds the decompressed image data, whose length is determined by the header.
+	 * @param max the maximum number of pixels, a positive number, or {@code Long.MAX_VALUE} for no limit (the default)
+	 * @return a new options object (not {@code null})
+	 * @throws IllegalArgumentException if {@code max} is not positive
+	 */
+	public DecodeOptions withMaxPixels(long max) {
+		if (max <= 0)
+			throw new IllegalArgumentException("Non-positive limit");
+		DecodeOptions result = clone();
+		result.maxPixels = max;
+		return result;
+	}
+	
+	
+	/**
+	 * Returns options that reserve the decoder's estimated memory use from the specified budget for the duration of
+	 * each call to {@link ImageDecoder#toImage(PngImage, DecodeOptions)}, as predicted by {@link ImageDecoder#estimateMemory(PngImage,
+	 * DecodeOptions)}. If the memory is not available, then decoding either waits for it or throws {@code IllegalStateException}.
+	 * Decoding throws {@code IllegalArgumentException} if the estimate exceeds the budget's capacity. The reservation is
+	 * released when the call returns, even though the caller then holds the result image.
+	 * @param budget the budget to reserve memory from (not {@code null})
+	 * @param wait whether to wait for memory, rather than fail immediately
+	 * @return a new options object (not {@code null})
+	 * @throws NullPointerException if {@code budget} is {@code null}
+	 */
+	public DecodeOptions withMemoryBudget(MemoryBudget budget, boolean wait) {
+		DecodeOptions result = clone();
+		result.memoryBudget = Objects.requireNonNull(budget);
+		result.waitForMemory = wait;
+		return result;
+	}
+	
+	
+	/**
+	 * Returns options that check the specified condition before each row is decoded, and stop
+	 * by throwing {@code CancellationException} once it returns true. The condition is called often,
+	 * possibly from a thread other than the caller's, so it should be fast and thread-safe.
+	 * @param isCancelled the condition that tells whether to stop (not {@code null})
+	 * @return a new options object (not {@code null})
+	 * @throws NullPointerException if {@code isCancelled} is {@code null}
+	 * @see AsyncCodec
+	 */
+	public DecodeOptions withCancellation(BooleanSupplier isCancelled) {
+		DecodeOptions result = clone();
+		result.cancellation = Objects.requireNonNull(isCancelled);
+		return result;
+	}
+	
+	
+	@Override protected DecodeOptions clone() {
+		try {
+			return (DecodeOptions)super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError("Unreachable exception", e);
+		}
+	}
+	
+}
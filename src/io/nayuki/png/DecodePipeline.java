@@ -0,0 +1,521 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+
+/**
+ * Decodes many PNG files in three stages that run concurrently: an I/O stage reads files
+ * on its own threads, a processing stage parses and decodes them on other threads, and
+ * the calling thread receives the results, either in input order or as they finish. So slow
+ * disks and busy processors overlap instead of taking turns on the same threads. Each stage
+ * has its own number of threads, and two limits bound the work in progress: the read-ahead
+ * limits how many files are read but not yet being decoded, and the pending limit
+ * how many files have started but not yet been passed to the caller. Instances are
+ * immutable; each {@code with...()} method returns a new object with one setting changed.
+ * Start from {@link #DEFAULT}.
+ * @see AsyncCodec
+ */
+public final class DecodePipeline implements Cloneable {
+	
+	/*---- Constants ----*/
+	
+	/** The default settings: 4 I/O threads, one processing thread per processor, unordered results, and default decoding. */
+	public static final DecodePipeline DEFAULT = new DecodePipeline();
+	
+	
+	
+	/*---- Fields ----*/
+	
+	int ioThreads = 4;
+	int cpuThreads = Runtime.getRuntime().availableProcessors();
+	int readAhead = cpuThreads * 2;
+	int maxPending = 64;
+	boolean ordered = false;
+	long mapThreshold = 1L << 26;
+	DecodeOptions decodeOptions = DecodeOptions.DEFAULT;
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	private DecodePipeline() {}
+	
+	
+	
+	/*---- Settings ----*/
+	
+	/**
+	 * Returns settings with the specified number of threads in the I/O stage
+	 * and in the processing stage. The I/O threads are virtual threads.
+	 * @param ioThreads the number of threads that read files, a positive number
+	 * @param cpuThreads the number of threads that parse and decode, a positive number
+	 * @return a new settings object (not {@code null})
+	 * @throws IllegalArgumentException if either number is not positive
+	 */
+	public DecodePipeline withThreads(int ioThreads, int cpuThreads) {
+		if (ioThreads <= 0 || cpuThreads <= 0)
+			throw new IllegalArgumentException("Non-positive number of threads");
+		DecodePipeline result = clone();
+		result.ioThreads = ioThreads;
+		result.cpuThreads = cpuThreads;
+		return result;
+	}
+	
+	
+	/**
+	 * Returns settings with the specified queue limits. The read-ahead is the number of files
+	 * that may be held in memory after being read and before a processing thread starts on them;
+	 * an I/O thread waits when it is reached. The pending limit is the number of files that may be
+	 * anywhere between the input stream and the caller, including decoded images waiting to be
+	 * passed on; no more paths are taken from the input stream when it is reached. In ordered mode,
+	 * this is also how far the fastest file can get ahead of a slow one.
+	 * @param readAhead the maximum number of read files waiting to be decoded, a positive number
+	 * @param maxPending the maximum number of files in progress, a positive number
+	 * @return a new settings object (not {@code null})
+	 * @throws IllegalArgumentException if either number is not positive
+	 */
+	public DecodePipeline withQueueLimits(int readAhead, int maxPending) {
+		if (readAhead <= 0 || maxPending <= 0)
+			throw new IllegalArgumentException("Non-positive queue limit");
+		DecodePipeline result = clone();
+		result.readAhead = readAhead;
+		result.maxPending = maxPending;
+		return result;
+	}
+	
+	
+	/**
+	 * Returns settings that pass results to the caller in the order of the input
+	 * paths if {@code ordered} is true, or else in the order they finish.
+	 * @param ordered whether to keep the input order
+	 * @return a new settings object (not {@code null})
+	 */
+	public DecodePipeline withOrderedResults(boolean ordered) {
+		DecodePipeline result = clone();
+		result.ordered = ordered;
+		return result;
+	}
+	
+	
+	/**
+	 * Returns settings that memory-map files of at least the specified size instead of copying
+	 * them into the Java heap. The pages of a mapped file are loaded by the I/O stage, so the
+	 * processing stage still does not wait for the disk. The default threshold is 64 MiB.
+	 * @param minSize the smallest file size in bytes to map, a non-negative number
+	 * @return a new settings object (not {@code null})
+	 * @throws IllegalArgumentException if {@code minSize} is negative
+	 */
+	public DecodePipeline withMapThreshold(long minSize) {
+		if (minSize < 0)
+			throw new IllegalArgumentException("Negative size");
+		DecodePipeline result = clone();
+		result.mapThreshold = minSize;
+		return result;
+	}
+	
+	
+	/**
+	 * Returns settings that decode each image with the specified options.
+	 * A memory budget in the options applies across the processing threads.
+	 * @param options the settings for decoding (not {@code null})
+	 * @return a new settings object (not {@code null})
+	 * @throws NullPointerException if {@code options} is {@code null}
+	 */
+	public DecodePipeline withDecodeOptions(DecodeOptions options) {
+		DecodePipeline result = clone();
+		result.decodeOptions = Objects.requireNonNull(options);
+		return result;
+	}
+	
+	
+	@Override protected DecodePipeline clone() {
+		try {
+			return (DecodePipeline)super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError("Unreachable exception", e);
+		}
+	}
+	
+	
+	
+	/*---- Running ----*/
+	
+	/**
+	 * Reads and decodes every file of the specified stream, and passes each result to the specified consumer
+	 * on the calling thread, then returns the metrics of the run. The stream is consumed on another thread, only
+	 * as fast as the pending limit allows. A file that cannot be read or decoded gives a result with an error
+	 * rather than stopping the run. If the stream or the consumer throws an exception, then the run stops, its
+	 * threads end, and the exception is rethrown. The threads of each run are created and ended by this call.
+	 * @param files the paths of the files to decode (not {@code null})
+	 * @param consumer the receiver of the results (not {@code null})
+	 * @return the measurements of each stage (not {@code null})
+	 * @throws NullPointerException if {@code files} or {@code consumer} is {@code null}
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for results
+	 */
+	public Metrics decodeAll(Stream<Path> files, Consumer<? super Result> consumer) throws InterruptedException {
+		Objects.requireNonNull(files);
+		Objects.requireNonNull(consumer);
+		return new Run(files, consumer).run();
+	}
+	
+	
+	
+	/*---- Helper classes ----*/
+	
+	/**
+	 * The outcome of reading and decoding one file. Exactly one of {@code image} and {@code error} is not {@code null}.
+	 * @param index the position of the file in the input stream, starting at 0
+	 * @param file the path of the file (not {@code null})
+	 * @param image the decoded image as returned by {@link ImageDecoder#toImage(PngImage, DecodeOptions)}, or {@code null}
+	 * @param error the failure, or {@code null}: an {@code UncheckedIOException} if the file could not be read,
+	 * an {@code IllegalArgumentException} if it is malformed, or any other exception thrown by the decoder
+	 */
+	public record Result(
+			long index,
+			Path file,
+			Object image,
+			RuntimeException error) {
+		
+		
+		public Result {
+			Objects.requireNonNull(file);
+			if ((image == null) == (error == null))
+				throw new IllegalArgumentException("Exactly one of image and error must be present");
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * Measurements of one stage of a run.
+	 * @param threads the number of threads of the stage
+	 * @param items the number of files that passed through the stage
+	 * @param busyNanos the total time that the threads of the stage spent working, in nanoseconds
+	 * @param maxQueued the largest number of files that waited at once for a thread of the stage
+	 */
+	public record StageMetrics(
+			int threads,
+			long items,
+			long busyNanos,
+			int maxQueued) {
+		
+		
+		/**
+		 * Returns the fraction of the stage's thread time that was spent working, given the length of
+		 * the run. A stage near 1 is the bottleneck; a stage near 0 is mostly waiting for the others.
+		 * @param elapsedNanos the length of the run in nanoseconds, a positive number
+		 * @return the utilization of the stage, normally in the range [0, 1]
+		 */
+		public double utilization(long elapsedNanos) {
+			return (double)busyNanos / elapsedNanos / threads;
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * Measurements of a whole run.
+	 * @param elapsedNanos the length of the run in nanoseconds
+	 * @param bytesRead the total size of the files that were read
+	 * @param read the measurements of the I/O stage (not {@code null})
+	 * @param decode the measurements of the processing stage (not {@code null})
+	 * @param deliver the measurements of the calling thread's consumer (not {@code null})
+	 */
+	public record Metrics(
+			long elapsedNanos,
+			long bytesRead,
+			StageMetrics read,
+			StageMetrics decode,
+			StageMetrics deliver) {}
+	
+	
+	
+	// Counters of one stage, updated concurrently by its threads.
+	private static final class StageCounter {
+		
+		private final int threads;
+		private final AtomicLong items = new AtomicLong();
+		private final AtomicLong busyNanos = new AtomicLong();
+		private final AtomicInteger queued = new AtomicInteger();
+		private final AtomicInteger maxQueued = new AtomicInteger();
+		
+		
+		public StageCounter(int threads) {
+			this.threads = threads;
+		}
+		
+		
+		public void enqueue() {
+			maxQueued.accumulateAndGet(queued.incrementAndGet(), Math::max);
+		}
+		
+		
+		public void dequeue() {
+			queued.decrementAndGet();
+		}
+		
+		
+		public void finish(long startTime) {
+			busyNanos.addAndGet(System.nanoTime() - startTime);
+			items.incrementAndGet();
+		}
+		
+		
+		public StageMetrics snapshot() {
+			return new StageMetrics(threads, items.get(), busyNanos.get(), maxQueued.get());
+		}
+		
+	}
+	
+	
+	
+	// The state of one call to decodeAll().
+	private final class Run {
+		
+		private final Stream<Path> files;
+		private final Consumer<? super Result> consumer;
+		private final DecodeOptions options;
+		
+		private final ExecutorService ioExecutor;
+		private final ExecutorService cpuExecutor;
+		private final Semaphore pending = new Semaphore(maxPending);
+		private final Semaphore readSlots = new Semaphore(readAhead);
+		private volatile boolean aborted = false;
+		
+		private final StageCounter readCounter = new StageCounter(ioThreads);
+		private final StageCounter decodeCounter = new StageCounter(cpuThreads);
+		private final StageCounter deliverCounter = new StageCounter(1);
+		private final AtomicLong bytesRead = new AtomicLong();
+		
+		// Guarded by this
+		private final Map<Long,Result> results = ordered ? new HashMap<>() : new LinkedHashMap<>();
+		private long total = -1;  // Number of input paths, once the stream is exhausted
+		private Throwable failure = null;  // From the input stream or an unexpected error
+		
+		
+		public Run(Stream<Path> files, Consumer<? super Result> consumer) {
+			this.files = files;
+			this.consumer = consumer;
+			BooleanSupplier other = decodeOptions.cancellation;
+			options = decodeOptions.withCancellation(other == null ? () -> aborted : () -> aborted || other.getAsBoolean());
+			ioExecutor = Executors.newFixedThreadPool(ioThreads, Thread.ofVirtual().name("PNG pipeline I/O ", 0).factory());
+			cpuExecutor = Executors.newFixedThreadPool(cpuThreads, Thread.ofPlatform().name("PNG pipeline decoder ", 0).daemon().factory());
+		}
+		
+		
+		public Metrics run() throws InterruptedException {
+			long startTime = System.nanoTime();
+			Thread feeder = Thread.ofVirtual().name("PNG pipeline input").start(this::feed);
+			try {
+				for (long delivered = 0; ; delivered++) {
+					Result res;
+					synchronized (this) {
+						while (true) {
+							if (failure instanceof RuntimeException e)
+								throw e;
+							else if (failure instanceof Error e)
+								throw e;
+							if (delivered == total)
+								return new Metrics(System.nanoTime() - startTime, bytesRead.get(),
+									readCounter.snapshot(), decodeCounter.snapshot(), deliverCounter.snapshot());
+							res = ordered ? results.remove(delivered) : pollFirst();
+							if (res != null)
+								break;
+							wait();
+						}
+					}
+					deliverCounter.dequeue();
+					long start = System.nanoTime();
+					consumer.accept(res);
+					deliverCounter.finish(start);
+					pending.release();
+				}
+			} finally {
+				aborted = true;
+				feeder.interrupt();
+				ioExecutor.shutdownNow();
+				cpuExecutor.shutdownNow();
+				ioExecutor.awaitTermination(1, TimeUnit.MINUTES);
+				cpuExecutor.awaitTermination(1, TimeUnit.MINUTES);
+			}
+		}
+		
+		
+		private Result pollFirst() {
+			Iterator<Result> iter = results.values().iterator();
+			if (!iter.hasNext())
+				return null;
+			Result res = iter.next();
+			iter.remove();
+			return res;
+		}
+		
+		
+		// Takes paths from the stream as the pending limit allows, and gives them to the I/O stage.
+		private void feed() {
+			long index = 0;
+			try {
+				for (Iterator<Path> iter = files.iterator(); iter.hasNext(); index++) {
+					Path file = Objects.requireNonNull(iter.next());
+					pending.acquire();
+					long idx = index;
+					readCounter.enqueue();
+					ioExecutor.execute(() -> read(idx, file));
+				}
+				synchronized (this) {
+					total = index;
+					notifyAll();
+				}
+			} catch (InterruptedException | RejectedExecutionException e) {
+				// Aborted by the caller
+			} catch (Throwable e) {
+				fail(e);
+			}
+		}
+		
+		
+		// Runs on the I/O stage: waits for room in the read-ahead, then reads the file into memory.
+		private void read(long index, Path file) {
+			readCounter.dequeue();
+			try {
+				readSlots.acquire();
+			} catch (InterruptedException e) {
+				return;  // Aborted
+			}
+			long start = System.nanoTime();
+			ByteBuffer data;
+			try {
+				data = readFile(file);
+			} catch (IOException | RuntimeException e) {
+				readSlots.release();
+				readCounter.finish(start);
+				finish(new Result(index, file, null, e instanceof IOException ex ? new UncheckedIOException(ex) : (RuntimeException)e));
+				return;
+			} catch (Throwable e) {
+				fail(e);
+				return;
+			}
+			bytesRead.addAndGet(data.remaining());
+			readCounter.finish(start);
+			decodeCounter.enqueue();
+			try {
+				cpuExecutor.execute(() -> decode(index, file, data));
+			} catch (RejectedExecutionException e) {}  // Aborted
+		}
+		
+		
+		private ByteBuffer readFile(Path file) throws IOException {
+			try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+				long size = ch.size();
+				if (size >= mapThreshold)
+					return ch.map(FileChannel.MapMode.READ_ONLY, 0, size).load();
+			}
+			return ByteBuffer.wrap(Files.readAllBytes(file));
+		}
+		
+		
+		// Runs on the processing stage: parses and decodes the file.
+		private void decode(long index, Path file, ByteBuffer data) {
+			decodeCounter.dequeue();
+			readSlots.release();
+			long start = System.nanoTime();
+			Result res;
+			try {
+				PngImage png;
+				try {
+					png = PngImage.read(data.hasArray() ? new ByteArrayInputStream(data.array()) : new ByteBufferInputStream(data));
+				} catch (IOException e) {
+					throw new IllegalArgumentException(e);  // Truncated data
+				}
+				res = new Result(index, file, ImageDecoder.toImage(png, options), null);
+			} catch (RuntimeException e) {
+				res = new Result(index, file, null, e);
+			} catch (Throwable e) {
+				fail(e);
+				return;
+			}
+			decodeCounter.finish(start);
+			finish(res);
+		}
+		
+		
+		private synchronized void finish(Result res) {
+			results.put(res.index(), res);
+			deliverCounter.enqueue();
+			notifyAll();
+		}
+		
+		
+		private synchronized void fail(Throwable e) {
+			if (failure == null)
+				failure = e;
+			notifyAll();
+		}
+		
+	}
+	
+	
+	
+	// Reads the remaining bytes of a buffer, such as a mapped file.
+	private static final class ByteBufferInputStream extends InputStream {
+		
+		private final ByteBuffer buffer;
+		
+		
+		public ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		
+		@Override public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+		
+		
+		@Override public int read(byte[] b, int off, int len) {
+			Objects.checkFromIndexSize(off, len, b.length);
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+		
+	}
+	
+}
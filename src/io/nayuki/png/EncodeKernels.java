@@ -0,0 +1,282 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+
+/**
+ * Specialized loops used by {@link ImageEncoder} to pack pixel values into PNG samples and
+ * to apply the forward filters. A packing kernel is chosen once per image, so that the per-pixel
+ * loop has no switches. Each filter loop computes its heuristic
+ * score in the same pass, and stops early once the filter cannot win. Not instantiable.
+ */
+final class EncodeKernels {
+	
+	/*---- Packing kernel types ----*/
+	
+	@FunctionalInterface
+	interface RgbaKernel {
+		// Packs pixels [0, count) into dest starting at index off.
+		public void pack(long[] pixels, int count, byte[] dest, int off);
+	}
+	
+	
+	@FunctionalInterface
+	interface IntKernel {
+		public void pack(int[] pixels, int count, byte[] dest, int off);
+	}
+	
+	
+	
+	/*---- Packing kernel selection ----*/
+	
+	public static RgbaKernel forRgba(int bitDepth, boolean hasAlpha) {
+		return switch (bitDepth * 10 + (hasAlpha ? 1 : 0)) {
+			case 8_0 -> EncodeKernels::packRgb8;
+			case 8_1 -> EncodeKernels::packRgba8;
+			case 16_0 -> EncodeKernels::packRgb16;
+			case 16_1 -> EncodeKernels::packRgba16;
+			default -> throw new AssertionError("Unreachable value");
+		};
+	}
+	
+	
+	public static IntKernel forGray(int bitDepth, boolean hasAlpha) {
+		return switch (bitDepth * 10 + (hasAlpha ? 1 : 0)) {
+			case 1_0, 2_0, 4_0 -> (pixels, count, dest, off) -> packLow(pixels, count, dest, off, bitDepth, 16);
+			case 8_0 -> EncodeKernels::packGray8;
+			case 8_1 -> EncodeKernels::packGrayAlpha8;
+			case 16_0 -> EncodeKernels::packGray16;
+			case 16_1 -> EncodeKernels::packGrayAlpha16;
+			default -> throw new AssertionError("Unreachable value");
+		};
+	}
+	
+	
+	public static IntKernel forPalette(int bitDepth) {
+		return switch (bitDepth) {
+			case 1, 2, 4 -> (pixels, count, dest, off) -> packLow(pixels, count, dest, off, bitDepth, 0);
+			case 8 -> EncodeKernels::packPalette8;
+			default -> throw new AssertionError("Unreachable value");
+		};
+	}
+	
+	
+	
+	/*---- Packing kernels ----*/
+	
+	static void packRgb8(long[] pixels, int count, byte[] dest, int off) {
+		for (int x = 0, i = off; x < count; x++, i += 3) {
+			long val = pixels[x];
+			dest[i + 0] = (byte)(val >>> 48);
+			dest[i + 1] = (byte)(val >>> 32);
+			dest[i + 2] = (byte)(val >>> 16);
+		}
+	}
+	
+	
+	static void packRgba8(long[] pixels, int count, byte[] dest, int off) {
+		for (int x = 0, i = off; x < count; x++, i += 4) {
+			long val = pixels[x];
+			dest[i + 0] = (byte)(val >>> 48);
+			dest[i + 1] = (byte)(val >>> 32);
+			dest[i + 2] = (byte)(val >>> 16);
+			dest[i + 3] = (byte)(val >>>  0);
+		}
+	}
+	
+	
+	static void packRgb16(long[] pixels, int count, byte[] dest, int off) {
+		for (int x = 0, i = off; x < count; x++, i += 6) {
+			long val = pixels[x];
+			dest[i + 0] = (byte)(val >>> 56);
+			dest[i + 1] = (byte)(val >>> 48);
+			dest[i + 2] = (byte)(val >>> 40);
+			dest[i + 3] = (byte)(val >>> 32);
+			dest[i + 4] = (byte)(val >>> 24);
+			dest[i + 5] = (byte)(val >>> 16);
+		}
+	}
+	
+	
+	static void packRgba16(long[] pixels, int count, byte[] dest, int off) {
+		for (int x = 0, i = off; x < count; x++, i += 8) {
+			long val = pixels[x];
+			dest[i + 0] = (byte)(val >>> 56);
+			dest[i + 1] = (byte)(val >>> 48);
+			dest[i + 2] = (byte)(val >>> 40);
+			dest[i + 3] = (byte)(val >>> 32);
+			dest[i + 4] = (byte)(val >>> 24);
+			dest[i + 5] = (byte)(val >>> 16);
+			dest[i + 6] = (byte)(val >>>  8);
+			dest[i + 7] = (byte)(val >>>  0);
+		}
+	}
+	
+	
+	static void packGray8(int[] pixels, int count, byte[] dest, int off) {
+		for (int x = 0; x < count; x++)
+			dest[off + x] = (byte)(pixels[x] >>> 16);
+	}
+	
+	
+	static void packGrayAlpha8(int[] pixels, int count, byte[] dest, int off) {
+		for (int x = 0, i = off; x < count; x++, i += 2) {
+			int val = pixels[x];
+			dest[i + 0] = (byte)(val >>> 16);
+			dest[i + 1] = (byte)(val >>>  0);
+		}
+	}
+	
+	
+	static void packGray16(int[] pixels, int count, byte[] dest, int off) {
+		for (int x = 0, i = off; x < count; x++, i += 2) {
+			int val = pixels[x];
+			dest[i + 0] = (byte)(val >>> 24);
+			dest[i + 1] = (byte)(val >>> 16);
+		}
+	}
+	
+	
+	static void packGrayAlpha16(int[] pixels, int count, byte[] dest, int off) {
+		for (int x = 0, i = off; x < count; x++, i += 4) {
+			int val = pixels[x];
+			dest[i + 0] = (byte)(val >>> 24);
+			dest[i + 1] = (byte)(val >>> 16);
+			dest[i + 2] = (byte)(val >>>  8);
+			dest[i + 3] = (byte)(val >>>  0);
+		}
+	}
+	
+	
+	static void packPalette8(int[] pixels, int count, byte[] dest, int off) {
+		for (int x = 0; x < count; x++)
+			dest[off + x] = (byte)pixels[x];
+	}
+	
+	
+	// Packs 1-, 2-, or 4-bit samples taken from the given right shift of each pixel,
+	// padding the last byte with zeros.
+	static void packLow(int[] pixels, int count, byte[] dest, int off, int bitDepth, int shift) {
+		int perByte = 8 / bitDepth;
+		int x = 0;
+		for (int end = count / perByte * perByte; x < end; off++) {
+			int b = 0;
+			for (int k = 0; k < perByte; k++, x++)
+				b = (b << bitDepth) | (pixels[x] >>> shift);
+			dest[off] = (byte)b;
+		}
+		if (x < count) {
+			int b = 0;
+			for (int k = 0; k < perByte; k++, x++)
+				b = (b << bitDepth) | (x < count ? pixels[x] >>> shift : 0);
+			dest[off] = (byte)b;
+		}
+	}
+	
+	
+	
+	/*---- Forward filters ----*/
+	
+	// Each function below reads the raw current and previous rows, which start with stride bytes of zero
+	// padding, and writes the filtered bytes into out at the same indexes. It returns the sum of absolute
+	// values of the filtered bytes (interpreted as signed), which is the usual heuristic for choosing a filter.
+	// The sum is checked after each block, and the function returns early once it reaches limit, because
+	// then the filter cannot win and the rest of its output is not needed.
+	
+	static long scoreNone(byte[] cur, int stride, long limit) {
+		long sum = 0;
+		for (int start = stride; start < cur.length && sum < limit; start += BLOCK) {
+			int blockSum = 0;
+			for (int i = start, end = Math.min(start + BLOCK, cur.length); i < end; i++)
+				blockSum += Math.abs(cur[i]);
+			sum += blockSum;
+		}
+		return sum;
+	}
+	
+	
+	static long filterSub(byte[] cur, int stride, byte[] out, long limit) {
+		long sum = 0;
+		for (int start = stride; start < cur.length && sum < limit; start += BLOCK) {
+			int blockSum = 0;
+			for (int i = start, end = Math.min(start + BLOCK, cur.length); i < end; i++) {
+				byte d = (byte)(cur[i] - cur[i - stride]);
+				out[i] = d;
+				blockSum += Math.abs(d);
+			}
+			sum += blockSum;
+		}
+		return sum;
+	}
+	
+	
+	static long filterUp(byte[] cur, byte[] prev, int stride, byte[] out, long limit) {
+		long sum = 0;
+		for (int start = stride; start < cur.length && sum < limit; start += BLOCK) {
+			int blockSum = 0;
+			for (int i = start, end = Math.min(start + BLOCK, cur.length); i < end; i++) {
+				byte d = (byte)(cur[i] - prev[i]);
+				out[i] = d;
+				blockSum += Math.abs(d);
+			}
+			sum += blockSum;
+		}
+		return sum;
+	}
+	
+	
+	static long filterAverage(byte[] cur, byte[] prev, int stride, byte[] out, long limit) {
+		long sum = 0;
+		for (int start = stride; start < cur.length && sum < limit; start += BLOCK) {
+			int blockSum = 0;
+			for (int i = start, end = Math.min(start + BLOCK, cur.length); i < end; i++) {
+				byte d = (byte)(cur[i] - (((cur[i - stride] & 0xFF) + (prev[i] & 0xFF)) >>> 1));
+				out[i] = d;
+				blockSum += Math.abs(d);
+			}
+			sum += blockSum;
+		}
+		return sum;
+	}
+	
+	
+	// Selects the predictor with masks instead of branches, because the choice is unpredictable on noisy images.
+	static long filterPaeth(byte[] cur, byte[] prev, int stride, byte[] out, long limit) {
+		long sum = 0;
+		for (int start = stride; start < cur.length && sum < limit; start += BLOCK) {
+			int blockSum = 0;
+			for (int i = start, end = Math.min(start + BLOCK, cur.length); i < end; i++) {
+				int a = cur[i - stride] & 0xFF;  // Left
+				int b = prev[i] & 0xFF;  // Up
+				int c = prev[i - stride] & 0xFF;  // Up left
+				int pa = Math.abs(b - c);
+				int pb = Math.abs(a - c);
+				int pc = Math.abs(a + b - c - c);
+				int useA = (pa - pb - 1 & pa - pc - 1) >> 31;  // All ones if pa <= pb && pa <= pc
+				int useB = ~useA & (pb - pc - 1) >> 31;  // All ones if not useA and pb <= pc
+				int pr = a & useA | b & useB | c & ~(useA | useB);
+				byte d = (byte)(cur[i] - pr);
+				out[i] = d;
+				blockSum += Math.abs(d);
+			}
+			sum += blockSum;
+		}
+		return sum;
+	}
+	
+	
+	private static final int BLOCK = 1024;
+	
+	
+	
+	/*---- Miscellaneous ----*/
+	
+	private EncodeKernels() {}
+	
+}
@@ -0,0 +1,191 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import java.util.Objects;
+import java.util.function.BooleanSupplier;
+import io.nayuki.png.chunk.ZlibCodec;
+
+
+/**
+ * Settings that control how {@link ImageEncoder} encodes an image. Instances are
+ * immutable; each {@code with...()} method returns a new object with one setting changed.
+ * Start from {@link #DEFAULT}, which writes every row unfiltered on the calling thread.
+ */
+public final class EncodeOptions implements Cloneable {
+	
+	/*---- Constants ----*/
+	
+	/** The default settings: no filtering, and all work on the calling thread. */
+	public static final EncodeOptions DEFAULT = new EncodeOptions();
+	
+	
+	
+	/*---- Fields ----*/
+	
+	FilterStrategy filterStrategy = FilterStrategy.NONE;
+	
+	boolean pipelining = false;
+	
+	int restartInterval = 0;
+	
+	ZlibCodec zlibCodec = null;  // Null for the default codec at the time of encoding
+	
+	MemoryBudget memoryBudget = null;  // Can be null
+	boolean waitForMemory;
+	
+	BooleanSupplier cancellation = null;  // Can be null
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	private EncodeOptions() {}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	/**
+	 * Returns options that choose each row's filter type with the specified strategy.
+	 * @param strategy the filter strategy (not {@code null})
+	 * @return a new options object (not {@code null})
+	 * @throws NullPointerException if {@code strategy} is {@code null}
+	 */
+	public EncodeOptions withFilterStrategy(FilterStrategy strategy) {
+		EncodeOptions result = clone();
+		result.filterStrategy = Objects.requireNonNull(strategy);
+		return result;
+	}
+	
+	
+	/**
+	 * Returns options that pack and filter the rows of large images on a separate thread, while the calling
+	 * thread compresses the rows finished earlier. This shortens the time to encode one image on a machine with
+	 * multiple processors, and does not change the output. Small images are always encoded on the calling thread.
+	 * @param enable whether to use a second thread
+	 * @return a new options object (not {@code null})
+	 */
+	public EncodeOptions withPipelining(boolean enable) {
+		EncodeOptions result = clone();
+		result.pipelining = enable;
+		return result;
+	}
+	
+	
+	/**
+	 * Returns options that divide the compressed data of non-interlaced images into bands of the specified
+	 * number of rows, and describe them in a {@link io.nayuki.png.chunk.Rspt} chunk so that {@link ImageDecoder}
+	 * can decode the bands in parallel. Each band costs a little compression. Other decoders ignore the chunk.
+	 * @param rows the number of rows per band, or 0 for no bands (the default)
+	 * @return a new options object (not {@code null})
+	 * @throws IllegalArgumentException if {@code rows} is negative
+	 */
+	public EncodeOptions withRestartInterval(int rows) {
+		if (rows < 0)
+			throw new IllegalArgumentException("Negative interval");
+		EncodeOptions result = clone();
+		result.restartInterval = rows;
+		return result;
+	}
+	
+	
+	/**
+	 * Returns options that compress the image data with the specified codec, instead of the program-wide default
+	 * given by {@link ZlibCodec#getDefault()}. {@link ImageEncoder#recompress(PngImage, EncodeOptions)} also
+	 * decompresses the existing image data with it.
+	 * @param codec the codec to compress and decompress with (not {@code null})
+	 * @return a new options object (not {@code null})
+	 * @throws NullPointerException if {@code codec} is {@code null}
+	 */
+	public EncodeOptions withZlibCodec(ZlibCodec codec) {
+		EncodeOptions result = clone();
+		result.zlibCodec = Objects.requireNonNull(codec);
+		return result;
+	}
+	
+	
+	/**
+	 * Returns options that reserve the encoder's estimated memory use from the specified budget for the duration
+	 * of each call, as predicted by {@link ImageEncoder#estimateMemory(io.nayuki.png.chunk.Ihdr, EncodeOptions)}.
+	 * If the memory is not available, then encoding either waits for it or throws {@code IllegalStateException}.
+	 * Encoding throws {@code IllegalArgumentException} if the estimate exceeds the budget's capacity.
+	 * @param budget the budget to reserve memory from (not {@code null})
+	 * @param wait whether to wait for memory, rather than fail immediately
+	 * @return a new options object (not {@code null})
+	 * @throws NullPointerException if {@code budget} is {@code null}
+	 */
+	public EncodeOptions withMemoryBudget(MemoryBudget budget, boolean wait) {
+		EncodeOptions result = clone();
+		result.memoryBudget = Objects.requireNonNull(budget);
+		result.waitForMemory = wait;
+		return result;
+	}
+	
+	
+	/**
+	 * Returns options that check the specified condition before each row is encoded, and stop
+	 * by throwing {@code CancellationException} once it returns true. The condition is called often,
+	 * possibly from a thread other than the caller's, so it should be fast and thread-safe.
+	 * @param isCancelled the condition that tells whether to stop (not {@code null})
+	 * @return a new options object (not {@code null})
+	 * @throws NullPointerException if {@code isCancelled} is {@code null}
+	 * @see AsyncCodec
+	 */
+	public EncodeOptions withCancellation(BooleanSupplier isCancelled) {
+		EncodeOptions result = clone();
+		result.cancellation = Objects.requireNonNull(isCancelled);
+		return result;
+	}
+	
+	
+	@Override protected EncodeOptions clone() {
+		try {
+			return (EncodeOptions)super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError("Unreachable exception", e);
+		}
+	}
+	
+	
+	
+	/*---- Enumeration ----*/
+	
+	/**
+	 * Ways of choosing the filter type of each row, which affects the compressed size but not the pixels.
+	 */
+	public enum FilterStrategy {
+		/** Every row uses filter type None, which is the fastest. */
+		NONE,
+		
+		/**
+		 * Each row uses the filter type whose output has the smallest sum of absolute values
+		 * (treating bytes as signed), as recommended by the PNG specification. Images that are
+		 * indexed-color or have a bit depth below 8 use filter type None for all rows instead.
+		 */
+		ADAPTIVE,
+		
+		/**
+		 * Each row uses the filter type whose output compresses to the fewest bytes, found by
+		 * compressing every candidate after the preceding rows. This applies to all image types.
+		 * It is several times slower than the other strategies, and is meant for optimizing files
+		 * offline. Bands of rows are processed in parallel on the common fork-join pool.
+		 */
+		EXHAUSTIVE,
+		
+		/**
+		 * Each row keeps the filter type that it already has, so only the compression changes. This is
+		 * accepted only by {@link ImageEncoder#recompress(PngImage, EncodeOptions)}, because other inputs
+		 * have no filter types. A row that starts a band of restart points and uses the previous row
+		 * is given the filter type that {@link #ADAPTIVE} would choose from None and Sub instead.
+		 */
+		KEEP,
+	}
+	
+}
@@ -9,25 +9,39 @@
 package io.nayuki.png;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.SequenceInputStream;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
-import java.util.zip.InflaterInputStream;
+import io.nayuki.png.chunk.Chunk;
 import io.nayuki.png.chunk.Custom;
+import io.nayuki.png.chunk.Idat;
 import io.nayuki.png.chunk.Ihdr;
 import io.nayuki.png.chunk.Plte;
+import io.nayuki.png.chunk.Rspt;
 import io.nayuki.png.chunk.Sbit;
 import io.nayuki.png.chunk.Trns;
+import io.nayuki.png.chunk.ZlibCodec;
 import io.nayuki.png.image.BufferedGrayImage;
 import io.nayuki.png.image.BufferedPaletteImage;
 import io.nayuki.png.image.BufferedRgbaImage;
+import io.nayuki.png.image.ImageAllocator;
+import io.nayuki.png.image.WritableGrayImage;
+import io.nayuki.png.image.WritablePaletteImage;
+import io.nayuki.png.image.WritableRgbaImage;
 
 
 /**
@@ -51,8 +65,48 @@ public final class ImageDecoder {
 	 * @throws IllegalArgumentException if the PNG image is malformed
 	 */
 	public static Object toImage(PngImage png) {
+		return toImage(png, ImageAllocator.BUFFERED);
+	}
+	
+	
+	/**
+	 * Decodes the specified PNG image to a new mutable image created by the specified
+	 * allocator. If the PNG's color type is true color, then a {@link WritableRgbaImage}
+	 * is returned. Else if the PNG's color type is grayscale, then a {@link
+	 * WritableGrayImage} is returned. Else if the PNG's color type is indexed
+	 * color, then a {@link WritablePaletteImage} is returned. This makes it possible
+	 * to decode into storage other than the Java heap, such as a {@link
+	 * io.nayuki.png.image.TiledRgbaImage}.
+	 * @param png the PNG image to decode (not {@code null})
+	 * @param alloc the allocator of the result image (not {@code null})
+	 * @return a new image from the allocator (not {@code null})
+	 * @throws NullPointerException if {@code png} or {@code alloc} is {@code null}
+	 * @throws IllegalArgumentException if the PNG image is malformed
+	 */
+	public static Object toImage(PngImage png, ImageAllocator alloc) {
+		return toImage(png, DecodeOptions.DEFAULT.withAllocator(alloc));
+	}
+	
+	
+	/**
+	 * Decodes the specified PNG image to a new mutable image according to the specified
+	 * options. The type of the result image depends on the PNG's color type in the same way
+	 * as {@link #toImage(PngImage, ImageAllocator)}, and its dimensions are those of the
+	 * region in the options (or the whole image if no region was set) divided by the scale.
+	 * @param png the PNG image to decode (not {@code null})
+	 * @param options the settings for decoding (not {@code null})
+	 * @return a new image from the options' allocator (not {@code null})
+	 * @throws NullPointerException if {@code png} or {@code options} is {@code null}
+	 * @throws IllegalArgumentException if the PNG image is malformed,
+	 * or the options' region is not aligned to the scale
+	 * @throws IndexOutOfBoundsException if the options' region is not inside the image
+	 * @throws IllegalStateException if the options have a memory budget that has
+	 * too little available and not waiting was chosen, or the thread was interrupted
+	 */
+	public static Object toImage(PngImage png, DecodeOptions options) {
 		// Check header chunk
 		Objects.requireNonNull(png);
+		Objects.requireNonNull(options);
 		Ihdr ihdr = png.ihdr.orElseThrow(() -> new IllegalArgumentException("Missing IHDR chunk"));
 		// Force exhaustive matches at compile time
 		int discard0 = switch (ihdr.compressionMethod()) {
@@ -62,31 +116,348 @@ public final class ImageDecoder {
 			case ADAPTIVE -> 0;
 		};
 		assert discard0 + discard1 == 0;
+		return decode(png, options, null);
+	}
+	
+	
+	// Decodes the given PNG within the options' memory budget, either to a new image from the options' allocator
+	// (if sink is null) or by passing every row to the sink (otherwise), and returns the result image or null.
+	static Object decode(PngImage png, DecodeOptions options, RowSink sink) {
+		// Reject an oversized image before waiting for or failing on memory
+		checkPixelLimit(png.ihdr.orElseThrow(() -> new IllegalArgumentException("Missing IHDR chunk")), options);
+		if (sink != null)
+			options = options.withAllocator(ROW_SINK_ALLOCATOR);  // So that the estimate omits the result image
+		MemoryBudget budget = options.memoryBudget;
+		MemoryBudget.Reservation reservation = budget != null ? budget.reserve(estimateMemory(png, options), options.waitForMemory) : null;
+		try {
+			Decoder dec = newDecoder(png, options, sink);
+			try {
+				Object result = dec.decode();
+				return sink == null ? result : null;
+			} catch (RuntimeException | Error e) {
+				// Release a partially decoded image that holds resources, such as a tiled image's scratch file
+				if (sink == null && dec.getResult() instanceof AutoCloseable img) {
+					try {
+						img.close();
+					} catch (Exception f) {
+						e.addSuppressed(f);
+					}
+				}
+				throw e;
+			}
+		} finally {
+			if (reservation != null)
+				reservation.close();
+		}
+	}
+	
+	
+	private static void checkPixelLimit(Ihdr ihdr, DecodeOptions options) {
+		if ((long)ihdr.width() * ihdr.height() > options.maxPixels)
+			throw new IllegalArgumentException("Image exceeds pixel limit");
+	}
+	
+	
+	/**
+	 * Returns a publisher that decodes the specified PNG image and sends its rows from top to bottom in
+	 * batches of the specified height (the last batch may be shorter), with the same pixel values as {@link
+	 * #toImage(PngImage, DecodeOptions)}. Each subscription decodes the image anew on its own virtual thread,
+	 * which waits whenever the subscriber has not requested another batch, so that decompression pauses and
+	 * memory use is bounded by the batches in flight rather than the image size, however slow the subscriber
+	 * is. (An interlaced image is the exception: the rows of passes 1 to 6 are kept until pass 7 completes
+	 * them, which takes memory for about half the image.) Cancelling a subscription stops its decoding at the
+	 * next row, and so does a subscriber method throwing an exception. Malformed data is reported through
+	 * {@code onError()} with an {@code IllegalArgumentException}. The options' allocator is ignored, because
+	 * every batch is a new buffered image. The PNG image must not be modified while a subscription is active.
+	 * @param png the PNG image to decode (not {@code null})
+	 * @param options the settings for decoding, which must not have a listener, or a reduced scale if the image is interlaced (not {@code null})
+	 * @param batchHeight the number of rows in each batch, a positive number
+	 * @return a publisher of row batches (not {@code null})
+	 * @throws NullPointerException if {@code png} or {@code options} is {@code null}
+	 * @throws IllegalArgumentException if the IHDR chunk is missing, {@code batchHeight}
+	 * is not positive, or the options have a listener or an unsupported scale
+	 */
+	public static Flow.Publisher<RowBatch> toRows(PngImage png, DecodeOptions options, int batchHeight) {
+		Objects.requireNonNull(options);
+		checkRowSinkOptions(png.ihdr.orElseThrow(() -> new IllegalArgumentException("Missing IHDR chunk")), options);
+		return new RowPublisher(png, options, batchHeight);
+	}
+	
+	
+	// Throws IllegalArgumentException unless the options make the decoder produce every row whole and in order.
+	private static void checkRowSinkOptions(Ihdr ihdr, DecodeOptions options) {
+		if (options.listener != null)
+			throw new IllegalArgumentException("Listener not supported for row publishing");
+		if (ihdr.interlaceMethod() == Ihdr.InterlaceMethod.ADAM7 && options.scale != 1)
+			throw new IllegalArgumentException("Reduced scale not supported for interlaced row publishing");
+	}
+	
+	
+	/**
+	 * Returns a prediction of the peak number of bytes of memory that {@link #toImage(PngImage, DecodeOptions)}
+	 * allocates while decoding an image with the specified header, including the result image, before reading any
+	 * image data. This is meant for admission control, so it is an upper bound for typical images rather than an exact
+	 * amount. It counts the result image only if the options' allocator is {@link ImageAllocator#BUFFERED}, because other
+	 * allocators may keep pixels outside the Java heap. It assumes that the file has no restart points chunk, and (for
+	 * speculative inflation) that the compressed data is no larger than the decompressed data.
+	 * @param ihdr the header of the image to decode (not {@code null})
+	 * @param options the settings that the image would be decoded with (not {@code null})
+	 * @return the estimated peak memory use in bytes, a non-negative number
+	 * @throws NullPointerException if {@code ihdr} or {@code options} is {@code null}
+	 */
+	public static long estimateMemory(Ihdr ihdr, DecodeOptions options) {
+		Objects.requireNonNull(ihdr);
+		Objects.requireNonNull(options);
+		long rawSize = rawDataSize(ihdr);
+		return estimateMemory(ihdr, options, options.speculativeInflateThreshold <= rawSize ? rawSize : 0, 0);
+	}
+	
+	
+	/**
+	 * Returns a prediction of the peak number of bytes of memory that {@link #toImage(PngImage, DecodeOptions)}
+	 * allocates while decoding the specified image, like {@link #estimateMemory(Ihdr, DecodeOptions)}, but
+	 * also counting the bands that are decoded in parallel if the image has a restart points chunk, and the
+	 * actual size of the compressed data for speculative inflation. This does not examine the image data.
+	 * @param png the PNG image to decode (not {@code null})
+	 * @param options the settings that the image would be decoded with (not {@code null})
+	 * @return the estimated peak memory use in bytes, a non-negative number
+	 * @throws NullPointerException if {@code png} or {@code options} is {@code null}
+	 * @throws IllegalArgumentException if the IHDR chunk is missing
+	 */
+	public static long estimateMemory(PngImage png, DecodeOptions options) {
+		Objects.requireNonNull(options);
+		Ihdr ihdr = png.ihdr.orElseThrow(() -> new IllegalArgumentException("Missing IHDR chunk"));
+		long compressedSize = 0;
+		for (Idat idat : png.idats)
+			compressedSize += idat.data().length;
+		long bandRows = 0;
+		Optional<Rspt> rspt = PngImage.getChunk(Rspt.class, png.afterIhdr);
+		if (rspt.isPresent() && ihdr.interlaceMethod() == Ihdr.InterlaceMethod.NONE) {
+			int[] rows = rspt.get().rows();
+			int maxBand = 0;
+			for (int i = 0; i < rows.length; i++)
+				maxBand = Math.max((i + 1 < rows.length ? rows[i + 1] : ihdr.height()) - rows[i], maxBand);
+			bandRows = Math.min((long)maxBand * ForkJoinPool.getCommonPoolParallelism() * 2, ihdr.height());
+		}
+		return estimateMemory(ihdr, options, options.speculativeInflateThreshold <= compressedSize ? compressedSize : 0, bandRows);
+	}
+	
+	
+	// Returns the estimated memory use, given the compressed size if speculative inflation
+	// is used (otherwise 0), and the number of rows in the largest group of restart bands.
+	private static long estimateMemory(Ihdr ihdr, DecodeOptions options, long speculativeSize, long bandRows) {
+		int bitsPerPixel = bitsPerPixel(ihdr);
+		long rowSize = Math.ceilDiv((long)ihdr.width() * bitsPerPixel, 8);
+		int width = options.regionWidth == 0 ? ihdr.width() : Math.min(options.regionWidth, ihdr.width());
+		int height = options.regionWidth == 0 ? ihdr.height() : Math.min(options.regionHeight, ihdr.height());
+		long outWidth = Math.ceilDiv(width, options.scale);
+		long outHeight = Math.ceilDiv(height, options.scale);
+		int pixelSize = switch (ihdr.colorType()) {  // Bytes per pixel in a buffered image and in a converted row
+			case TRUE_COLOR, TRUE_COLOR_WITH_ALPHA -> 8;
+			case GRAYSCALE , GRAYSCALE_WITH_ALPHA  -> 4;
+			case INDEXED_COLOR                     -> 1;
+		};
+		
+		long result = 1 << 16;  // Decompressor state and small objects
+		result += (rowSize + 8) * 2 + (long)ihdr.width() * 8 * 2;  // Row buffers and converted pixels
+		if (options.allocator == ImageAllocator.BUFFERED)
+			result += outWidth * outHeight * pixelSize;
+		boolean staging = options.allocator == ImageAllocator.BUFFERED || options.allocator == ROW_SINK_ALLOCATOR;
+		if (ihdr.interlaceMethod() == Ihdr.InterlaceMethod.ADAM7 && options.scale == 1 && options.listener == null && staging)
+			result += Math.ceilDiv(outHeight, 2) * outWidth * Math.max(pixelSize, 4) + Math.max(Decoder.MERGE_BAND_SIZE, outWidth * 8);  // Pass buffers and a merged band
+		if (speculativeSize > 0)
+			result += speculativeSize * 2 + rawDataSize(ihdr);  // Joined and split compressed data, and all decompressed data
+		result += bandRows * (rowSize * 2 + 1);  // Filtered and unfiltered rows of restart bands
+		return result;
+	}
+	
+	
+	// Returns the number of bits in each pixel of the image data.
+	private static int bitsPerPixel(Ihdr ihdr) {
+		return ihdr.bitDepth() * switch (ihdr.colorType()) {
+			case GRAYSCALE, INDEXED_COLOR -> 1;
+			case GRAYSCALE_WITH_ALPHA     -> 2;
+			case TRUE_COLOR               -> 3;
+			case TRUE_COLOR_WITH_ALPHA    -> 4;
+		};
+	}
+	
+	
+	// Returns the length of the decompressed image data, including filter type bytes.
+	private static long rawDataSize(Ihdr ihdr) {
+		int bitsPerPixel = bitsPerPixel(ihdr);
+		var result = new long[1];
+		try {
+			new Interlacer(ihdr) {
+				@Override protected void handleSubimage(int xOffset, int yOffset, int xStep, int yStep, int subwidth, int subheight) {
+					result[0] += subheight * (Math.ceilDiv((long)subwidth * bitsPerPixel, 8) + 1);
+				}
+			}.doInterlace();
+		} catch (IOException e) {
+			throw new AssertionError("Unreachable exception", e);
+		}
+		return result[0];
+	}
+	
+	
+	/**
+	 * Checks that the specified PNG image decodes without error, without converting or storing any pixels.
+	 * This performs the same checks as {@link #toImage(PngImage)}: the header and the consistency of the
+	 * sBIT, tRNS, and PLTE chunks with it, the zlib data including its checksum, every filter type byte,
+	 * the exact length of the decompressed data, and for indexed color, that every pixel is in the palette.
+	 * (Chunk ordering and CRCs are checked when a {@code PngImage} is read.) The decompressed data passes
+	 * through a buffer of two rows, so memory use does not depend on the image height, and rows are only
+	 * unfiltered when an indexed-color image has fewer palette entries than its bit depth allows. This is
+	 * much faster than decoding to an image and discarding it.
+	 * @param png the PNG image to check (not {@code null})
+	 * @throws NullPointerException if {@code png} is {@code null}
+	 * @throws IllegalArgumentException if the PNG image is malformed
+	 */
+	public static void validate(PngImage png) {
+		Objects.requireNonNull(png);
+		newDecoder(png, DecodeOptions.DEFAULT.withAllocator(VALIDATING_ALLOCATOR)).decode();
+	}
+	
+	
+	// Makes 1*1 images, so that a decoder's constructor still checks the bit depths and palette through the
+	// image constructors, and the result carries them. Each instance tells the decoder what to do with its rows.
+	private static final class OnePixelAllocator implements ImageAllocator {
+		@Override public WritableRgbaImage newRgbaImage(int width, int height, int[] bitDepths) {
+			return ImageAllocator.super.newRgbaImage(1, 1, bitDepths);
+		}
+		
+		@Override public WritableGrayImage newGrayImage(int width, int height, int[] bitDepths) {
+			return ImageAllocator.super.newGrayImage(1, 1, bitDepths);
+		}
+		
+		@Override public WritablePaletteImage newPaletteImage(int width, int height, int[] bitDepths, long[] palette) {
+			return ImageAllocator.super.newPaletteImage(1, 1, bitDepths, palette);
+		}
+	}
+	
+	
+	private static final ImageAllocator VALIDATING_ALLOCATOR = new OnePixelAllocator();  // Check rows instead of converting them
+	private static final ImageAllocator ROW_SINK_ALLOCATOR = new OnePixelAllocator();  // Pass converted rows to a RowSink
+	
+	
+	// Returns a decoder for the given PNG's color type, which reads pixel
+	// data from either decode() or acceptRow(). The IDATs are not examined.
+	static Decoder newDecoder(PngImage png, DecodeOptions options) {
+		return newDecoder(png, options, null);
+	}
+	
+	
+	private static Decoder newDecoder(PngImage png, DecodeOptions options, RowSink sink) {
+		Ihdr ihdr = png.ihdr.orElseThrow(() -> new IllegalArgumentException("Missing IHDR chunk"));
+		return switch (ihdr.colorType()) {
+			case TRUE_COLOR, TRUE_COLOR_WITH_ALPHA -> new RgbaDecoder   (png, options, sink);
+			case GRAYSCALE , GRAYSCALE_WITH_ALPHA  -> new GrayDecoder   (png, options, sink);
+			case INDEXED_COLOR                     -> new PaletteDecoder(png, options, sink);
+		};
+	}
+	
+	
+	// Receives the rows of a decoded image instead of a result image, each whole and in order from top to bottom.
+	interface RowSink {
+		
+		// Called once before any row, with a 1*1 image of the result's type, bit depths, and
+		// palette (but not its pixels), and the width and height of the decoded image.
+		public void begin(Object format, int width, int height);
+		
+		// Called with a long[] or int[] holding exactly the pixels of the given row, which is only valid during the call.
+		public void acceptRow(int y, Object pixels);
 		
-		// Decode image by color type
-		return (switch (ihdr.colorType()) {
-			case TRUE_COLOR, TRUE_COLOR_WITH_ALPHA -> new RgbaDecoder   (png);
-			case GRAYSCALE , GRAYSCALE_WITH_ALPHA  -> new GrayDecoder   (png);
-			case INDEXED_COLOR                     -> new PaletteDecoder(png);
-		}).decode();
 	}
 	
 	
 	/*---- Decoder instance members ----*/
 	
-	private static abstract class Decoder extends Interlacer {
+	static abstract class Decoder extends Interlacer {
 		
 		protected final PngImage png;
 		protected final int inBitDepth;
 		protected final Optional<Sbit> sbit;
 		protected final Optional<Trns> trns;
+		protected final ImageAllocator alloc;
+		protected final int regionX;
+		protected final int regionY;
+		protected final int regionWidth;
+		protected final int regionHeight;
+		protected final int scale;
+		protected final int outWidth;
+		protected final int outHeight;
+		private final boolean strictTrailingData;
+		private final int speculativeInflateThreshold;
+		private final ZlibCodec codec;
+		private final DecodeListener listener;  // Can be null
+		private final boolean validating;  // Check rows instead of converting them
+		private final BooleanSupplier cancellation;  // Can be null
+		private final RowSink sink;  // Can be null
+		protected final int filterStride;
+		private final int bitsPerPixel;
 		protected DataInputStream din;
+		private BoxDownscaler box = null;
+		private int rowsFromBands = 0;  // Leading rows already converted by decodeBands() before it gave up
 		
+		// For Adam7 in decode() into a buffered image or a row sink, passes 1 to 6 are converted into compact
+		// buffers, one per pass. Just before each pass 7 row, the even rows above it are assembled from the
+		// buffers a band at a time and written to the result in bulk, so that the scattering stays in cache.
+		// Other allocators may keep pixels off the heap, so their images are merged into in place instead.
+		private PassBuffer[] passBuffers = null;  // Indexed by pass - 1, elements can be null
+		private Object[] mergedRows = null;  // The band of long[] or int[] rows being written
+		private boolean[] mergedFilled = null;  // Whether each row of the band received pixels
+		private int mergedStart = 0;  // The result row of mergedRows[0]
+		private int rowsFlushed = 0;
+		private Object scratchRow = null;  // A long[] or int[] reused by storeRow()
 		
-		protected Decoder(PngImage png) {
+		// State of the current subimage
+		private int pass;
+		private int xOffset;
+		private int yOffset;
+		private int xStep;
+		private int yStep;
+		private int subwidth;
+		private int subheight;
+		private int xStart;
+		private int xEnd;
+		private int y;
+		private boolean converting;
+		private RowDecoder rowDecoder;
+		
+		
+		protected Decoder(PngImage png, DecodeOptions options, RowSink sink) {
 			super(png.ihdr.orElseThrow(() -> new IllegalArgumentException("Missing IHDR chunk")));
 			this.png = png;
+			this.sink = sink;
+			if (sink != null)
+				checkRowSinkOptions(ihdr, options);
+			alloc = sink != null ? ROW_SINK_ALLOCATOR : options.allocator;
+			if (options.regionWidth == 0) {
+				regionX = 0;
+				regionY = 0;
+				regionWidth = ihdr.width();
+				regionHeight = ihdr.height();
+			} else {
+				regionX = Objects.checkFromIndexSize(options.regionX, options.regionWidth, ihdr.width());
+				regionY = Objects.checkFromIndexSize(options.regionY, options.regionHeight, ihdr.height());
+				regionWidth = options.regionWidth;
+				regionHeight = options.regionHeight;
+			}
+			scale = options.scale;
+			if (regionX % scale != 0 || regionY % scale != 0)
+				throw new IllegalArgumentException("Region not aligned to scale");
+			outWidth = Math.ceilDiv(regionWidth, scale);
+			outHeight = Math.ceilDiv(regionHeight, scale);
+			strictTrailingData = options.strictTrailingData;
+			speculativeInflateThreshold = options.speculativeInflateThreshold;
+			codec = options.zlibCodec != null ? options.zlibCodec : ZlibCodec.getDefault();
+			listener = options.listener;
+			validating = alloc == VALIDATING_ALLOCATOR;
+			cancellation = options.cancellation;
+			checkPixelLimit(ihdr, options);
 			inBitDepth = ihdr.bitDepth();
+			bitsPerPixel = ImageDecoder.bitsPerPixel(ihdr);
+			filterStride = Math.ceilDiv(bitsPerPixel, 8);
 			sbit = PngImage.getChunk(Sbit.class, png.afterIhdr);
 			trns = PngImage.getChunk(Trns.class, png.afterIhdr);
 			Stream.concat(png.afterIhdr.stream(), png.afterIdats.stream())
@@ -97,17 +468,35 @@ public final class ImageDecoder {
 		
 		
 		public final Object decode() {
-			// Virtually concatenate bytes from all data chunks, then decompress
-			List<InputStream> ins = png.idats.stream()
-				.map(idat -> (InputStream)new ByteArrayInputStream(idat.data()))
-				.toList();
-			var in0 = new SequenceInputStream(Collections.enumeration(ins));
-			var in1 = new InflaterInputStream(in0);
+			if (sink != null)
+				sink.begin(getResult(), outWidth, outHeight);
+			if (ihdr.interlaceMethod() == Ihdr.InterlaceMethod.NONE && !validating && decodeBands())
+				return getResult();
+			
+			InputStream in1;
+			byte[] inflated = inflateSpeculatively();
+			if (inflated != null)
+				in1 = new ByteArrayInputStream(inflated);
+			else {
+				// Virtually concatenate bytes from all data chunks, then decompress
+				List<InputStream> ins = png.idats.stream()
+					.map(idat -> (InputStream)new ByteArrayInputStream(idat.data()))
+					.toList();
+				var in0 = new SequenceInputStream(Collections.enumeration(ins));
+				in1 = codec.newDecompressor(in0);
+			}
+			// With a sink, checkRowSinkOptions() made this true for every interlaced image
+			if (ihdr.interlaceMethod() == Ihdr.InterlaceMethod.ADAM7 && scale == 1 && listener == null
+					&& (alloc == ImageAllocator.BUFFERED || sink != null))
+				passBuffers = new PassBuffer[6];
 			try (var in2 = din = new DataInputStream(in1)) {
 				doInterlace();
 				din = null;
+				flushStagedRows(outHeight);
+				passBuffers = null;
+				mergedRows = null;
 				
-				if (in2.read() != -1)
+				if (strictTrailingData && in2.read() != -1)
 					throw new IllegalArgumentException("Extra decompressed data after all pixels");
 			} catch (IOException e) {
 				throw new IllegalArgumentException(e);
@@ -116,24 +505,561 @@ public final class ImageDecoder {
 		}
 		
 		
+		// If the IDATs are big enough for the speculative inflation option, then returns all the data decompressed
+		// in parallel, with exactly the expected length. Otherwise returns null, including when the data
+		// turns out to be invalid or of a different length, which the serial decompression will report.
+		private byte[] inflateSpeculatively() {
+			long size = 0;
+			for (Idat idat : png.idats)
+				size += idat.data().length;
+			if (size < speculativeInflateThreshold || size > Integer.MAX_VALUE - 8)
+				return null;
+			
+			long expectedSize = rawDataSize(ihdr);
+			if (expectedSize > Integer.MAX_VALUE - 8)
+				return null;
+			
+			var data = new byte[(int)size];
+			int off = 0;
+			for (Idat idat : png.idats) {
+				System.arraycopy(idat.data(), 0, data, off, idat.data().length);
+				off += idat.data().length;
+			}
+			int chunkSize = Math.max(Math.ceilDiv(data.length, ForkJoinPool.getCommonPoolParallelism() * 4), MIN_INFLATE_CHUNK_SIZE);
+			byte[] result = SpeculativeInflater.inflate(data, chunkSize, (int)expectedSize);
+			return result != null && result.length == expectedSize ? result : null;
+		}
+		
+		
+		private static final int MIN_INFLATE_CHUNK_SIZE = 1 << 16;
+		
+		
+		// If the PNG has a restart points chunk that matches its IDATs, then decompresses and unfilters its
+		// bands in parallel, converts the rows in order on this thread, and returns true. Otherwise returns false,
+		// including when a band turns out not to be independent (which a valid PNG file is free to have, because
+		// the chunk is optional); then the serial path decodes the whole stream but skips the rows converted here.
+		private boolean decodeBands() {
+			Optional<Rspt> rspt = PngImage.getChunk(Rspt.class, png.afterIhdr);
+			int[] bandIdats = rspt.isPresent() ? findBandIdats(rspt.get()) : null;
+			if (bandIdats == null)
+				return false;
+			int[] bandRows = Arrays.copyOf(rspt.get().rows(), bandIdats.length);
+			bandRows[bandRows.length - 1] = ihdr.height();
+			int numBands = bandRows.length - 1;
+			int rowSize = Math.toIntExact(Math.ceilDiv((long)ihdr.width() * bitsPerPixel, 8));
+			beginSubimage(0, 0, 1, 1, ihdr.width(), ihdr.height());
+			
+			// Process a group of bands at a time to limit memory usage
+			int groupSize = ForkJoinPool.getCommonPoolParallelism() * 2;
+			int adler = 1;  // Of the decompressed data so far
+			long storedAdler = -1;
+			for (int groupStart = 0; groupStart < numBands && nextRowSize() > 0; groupStart += groupSize) {
+				int start = groupStart;
+				int end = Math.min(start + groupSize, numBands);
+				var rows = new byte[end - start][][];
+				var checks = new long[end - start];
+				try {
+					IntStream.range(start, end).parallel().forEach(b -> {
+						checkCancelled();
+						byte[] compressed;
+						if (bandIdats[b + 1] - bandIdats[b] == 1)
+							compressed = png.idats.get(bandIdats[b]).data();
+						else {
+							var bout = new ByteArrayOutputStream();
+							for (Idat idat : png.idats.subList(bandIdats[b], bandIdats[b + 1]))
+								bout.writeBytes(idat.data());
+							compressed = bout.toByteArray();
+						}
+						int height = bandRows[b + 1] - bandRows[b];
+						var filtered = new byte[Math.multiplyExact(height, rowSize + 1)];
+						checks[b - start] = BandInflater.inflate(compressed, b == 0, b == numBands - 1, filtered);
+						if (b > 0 && (filtered[0] & 0xFF) > 1)
+							throw new IllegalArgumentException("Row at restart point depends on previous row");
+						
+						var rowDecoder = new RowDecoder(filterStride, rowSize);
+						var unfiltered = new byte[height][];
+						for (int i = 0; i < height; i++)
+							unfiltered[i] = rowDecoder.unfilterRow(filtered, i * (rowSize + 1)).clone();
+						rows[b - start] = unfiltered;
+					});
+				} catch (IllegalArgumentException e) {
+					rowsFromBands = y;
+					return false;
+				}
+				
+				for (int i = 0; i < rows.length; i++) {
+					adler = BandInflater.combineAdler32(adler, (int)checks[i], (long)rows[i].length * (rowSize + 1));
+					for (byte[] row : rows[i]) {
+						if (nextRowSize() == 0)
+							break;
+						acceptUnfilteredRow(row);
+					}
+				}
+				if (end == numBands)
+					storedAdler = checks[checks.length - 1] >>> 32;
+			}
+			if (storedAdler != -1 && storedAdler != (adler & 0xFFFF_FFFFL)) {
+				rowsFromBands = y;  // Let the serial decompressor report the error, if there really is one
+				return false;
+			}
+			endSubimage();
+			return true;
+		}
+		
+		
+		// Returns the index of the first IDAT of each band listed in the given chunk, followed by the
+		// number of IDATs, or null if the chunk doesn't match the IDATs as they would be written.
+		private int[] findBandIdats(Rspt rspt) {
+			int[] rows = rspt.rows();
+			int[] offsets = rspt.offsets();
+			if (rows.length < 2 || rows[0] != 0 || rows[rows.length - 1] >= ihdr.height())
+				return null;
+			
+			// Count the bytes from the start of the chunk to the first IDAT
+			long pos = 0;
+			var bout = new ByteArrayOutputStream();
+			try {
+				for (Chunk chk : png.afterIhdr.subList(png.afterIhdr.indexOf(rspt), png.afterIhdr.size())) {
+					bout.reset();
+					chk.writeChunk(bout);
+					pos += bout.size();
+				}
+			} catch (IOException e) {
+				throw new AssertionError("Unreachable exception", e);
+			}
+			
+			var result = new int[rows.length + 1];
+			int k = 0;
+			for (int i = 0; i < png.idats.size() && k < rows.length; i++) {
+				if (offsets[k] < pos)
+					return null;
+				if (offsets[k] == pos) {
+					result[k] = i;
+					k++;
+				}
+				pos += 12L + png.idats.get(i).data().length;
+			}
+			if (k < rows.length || result[0] != 0)
+				return null;
+			result[k] = png.idats.size();
+			return result;
+		}
+		
+		
 		public abstract Object getResult();
 		
+		
+		@Override protected final void handleSubimage(int xOffset, int yOffset, int xStep, int yStep, int subwidth, int subheight) throws IOException {
+			if (!beginSubimage(xOffset, yOffset, xStep, yStep, subwidth, subheight)) {
+				done = true;
+				return;
+			}
+			boolean skip = validating && !checksRows();
+			while (nextRowSize() > 0)
+				acceptUnfilteredRow(skip ? rowDecoder.skipRow(din) : rowDecoder.readRow(din));
+			endSubimage();
+		}
+		
+		
+		/*-- Row-driven decoding --*/
+		
+		// Prepares to receive the rows of the given subimage. Returns false if neither this nor any later
+		// subimage needs to be read (because they fall between the sampled pixels of a reduced scale).
+		final boolean beginSubimage(int xOffset, int yOffset, int xStep, int yStep, int subwidth, int subheight) {
+			converting = !validating && xOffset % scale == 0 && yOffset % scale == 0;
+			if (!converting && !strictTrailingData)
+				return false;
+			if (xOffset > 0)  // Passes 2, 4, 6
+				pass = 6 - Integer.numberOfTrailingZeros(xOffset) * 2;
+			else if (yOffset > 0)  // Passes 3, 5, 7
+				pass = 7 - Integer.numberOfTrailingZeros(yOffset) * 2;
+			else  // Pass 1 or non-interlaced
+				pass = 1;
+			this.xOffset = xOffset;
+			this.yOffset = yOffset;
+			this.xStep = xStep;
+			this.yStep = yStep;
+			this.subwidth = subwidth;
+			this.subheight = subheight;
+			xStart = converting ? regionStartColumn(xOffset, xStep, subwidth) : 0;
+			xEnd = converting ? regionEndColumn(xOffset, xStep, subwidth) : 0;
+			y = 0;
+			rowDecoder = new RowDecoder(filterStride,
+				Math.toIntExact(Math.ceilDiv((long)subwidth * bitsPerPixel, 8)));
+			if (passBuffers != null && converting && xStep > 1) {
+				int rowStart = Math.min(Math.max(Math.ceilDiv(regionY - yOffset, yStep), 0), subheight);
+				int rowEnd = Math.min(Math.max(Math.ceilDiv(regionY + regionHeight - yOffset, yStep), 0), subheight);
+				if (xStart < xEnd && rowStart < rowEnd) {
+					passBuffers[pass - 1] = new PassBuffer(xOffset + xStart * xStep - regionX, yOffset + rowStart * yStep - regionY,
+						xStep, yStep, xEnd - xStart, rowEnd - rowStart);
+				}
+			}
+			return true;
+		}
+		
+		
+		// Returns the number of bytes in the next filtered row of the current subimage
+		// (including the filter type byte), or 0 if no more rows need to be read.
+		final int nextRowSize() {
+			if (y >= subheight || converting && canStopBefore(yOffset + y * yStep - regionY))
+				return 0;
+			return rowDecoder.getRowSize() + 1;
+		}
+		
+		
+		// Unfilters and converts the given row, which starts with its filter type byte.
+		final void acceptRow(byte[] filteredRow) {
+			acceptUnfilteredRow(rowDecoder.unfilterRow(filteredRow));
+		}
+		
+		
+		private void acceptUnfilteredRow(byte[] row) {
+			checkCancelled();
+			int outY = yOffset + y * yStep - regionY;
+			y++;
+			if (y <= rowsFromBands)
+				return;
+			if (converting && 0 <= outY && outY < regionHeight && xStart < xEnd)
+				convertRow(row, xStart, xEnd, xOffset + xStart * xStep - regionX, outY, xStep);
+			else if (validating)
+				checkRow(row, subwidth);
+		}
+		
+		
+		private void checkCancelled() {
+			if (cancellation != null && cancellation.getAsBoolean())
+				throw new CancellationException("Decoding cancelled");
+		}
+		
+		
+		// Finishes the current subimage, reporting the pass to the listener if there is one.
+		final void endSubimage() {
+			rowDecoder = null;
+			if (converting && listener != null)
+				reportPass();
+		}
+		
+		
+		// Converts the subimage columns [xStart, xEnd) of the given unfiltered row (which begins with
+		// filterStride padding bytes) into pixels and sends them to putRow() at the given coordinates.
+		protected abstract void convertRow(byte[] row, int xStart, int xEnd, int outX, int outY, int xStep);
+		
+		
+		// Checks the given unfiltered row of the given number of pixels (which begins with filterStride
+		// padding bytes) without converting it, throwing IllegalArgumentException if any pixel is invalid.
+		protected void checkRow(byte[] row, int width) {}
+		
+		
+		// Returns whether checkRow() needs the unfiltered rows when validating.
+		// If not, then only the filter type bytes of the rows are checked.
+		protected boolean checksRows() {
+			return false;
+		}
+		
+		
+		// Tells the listener which pass just finished, with a preview where every pixel
+		// not yet decoded repeats the nearest decoded pixel above and to the left.
+		private void reportPass() {
+			int numPasses = xStep == 1 && yStep == 1 ? 1 : 7;
+			int xSpacing, ySpacing;  // Spacing of the grid of pixels decoded so far
+			if (xOffset > 0) {
+				xSpacing = xOffset;
+				ySpacing = yStep;
+			} else if (yOffset > 0) {
+				xSpacing = xStep;
+				ySpacing = yOffset;
+			} else {
+				xSpacing = xStep;
+				ySpacing = yStep;
+			}
+			
+			Object preview = getResult();
+			if (xSpacing > scale || ySpacing > scale) {
+				preview = ProgressivePreview.of(preview,
+					ProgressivePreview.nearestDecoded(outWidth , regionX, scale, xSpacing),
+					ProgressivePreview.nearestDecoded(outHeight, regionY, scale, ySpacing));
+			}
+			listener.passCompleted(pass, numPasses, preview);
+		}
+		
+		
+		// Tells the listener that a row of the result image received new pixels.
+		private void reportRow(int outY) {
+			if (listener != null)
+				listener.rowDecoded(pass, outY);
+		}
+		
+		
+		// Returns the index of the first subimage column that lies inside the region.
+		protected final int regionStartColumn(int xOffset, int xStep, int subwidth) {
+			return Math.min(Math.max(Math.ceilDiv(regionX - xOffset, xStep), 0), subwidth);
+		}
+		
+		
+		// Returns one past the index of the last subimage column that lies inside the region.
+		protected final int regionEndColumn(int xOffset, int xStep, int subwidth) {
+			return Math.min(Math.max(Math.ceilDiv(regionX + regionWidth - xOffset, xStep), 0), subwidth);
+		}
+		
+		
+		// Returns whether the given region-relative row is below the region and no later subimage
+		// contributes to the result, so that the remaining compressed data can be left unread.
+		private boolean canStopBefore(int outY) {
+			boolean lastNeeded = xStep == 1 && yStep <= 2
+				|| xStep == scale && yStep == (scale == 8 ? 8 : scale * 2);
+			return outY >= regionHeight && !strictTrailingData && lastNeeded;
+		}
+		
+		
+		// Sends the given converted row, whose pixels are at region-relative coordinates
+		// (x + i * xStep, y), to the result image, downscaling it if necessary.
+		protected final void putRow(WritableRgbaImage img, int x, int y, int xStep, long[] pixels) {
+			if (scale == 1) {
+				storeRow(img, x, y, xStep, pixels);
+				reportRow(y);
+			} else if (xStep > 1) {  // Interlaced pass that lies on the sampling grid
+				storeRow(img, x / scale, y / scale, xStep / scale, pixels);
+				reportRow(y / scale);
+			} else {
+				if (box == null)
+					box = new BoxDownscaler(scale, regionWidth, regionHeight, 4);
+				box.addRow(pixels, 48);
+				if (box.isRowComplete(y)) {
+					var row = new long[outWidth];
+					box.takeRow(y, row, 48);
+					storeRow(img, 0, y / scale, 1, row);
+					reportRow(y / scale);
+				}
+			}
+		}
+		
+		
+		protected final void putRow(WritableGrayImage img, int x, int y, int xStep, int[] pixels) {
+			if (scale == 1) {
+				storeRow(img, x, y, xStep, pixels);
+				reportRow(y);
+			} else if (xStep > 1) {
+				storeRow(img, x / scale, y / scale, xStep / scale, pixels);
+				reportRow(y / scale);
+			} else {
+				if (box == null)
+					box = new BoxDownscaler(scale, regionWidth, regionHeight, 2);
+				var temp = new long[pixels.length];
+				for (int i = 0; i < temp.length; i++)
+					temp[i] = pixels[i] & 0xFFFF_FFFFL;
+				box.addRow(temp, 16);
+				if (box.isRowComplete(y)) {
+					var row = new long[outWidth];
+					box.takeRow(y, row, 16);
+					var outRow = new int[outWidth];
+					for (int i = 0; i < outRow.length; i++)
+						outRow[i] = (int)row[i];
+					storeRow(img, 0, y / scale, 1, outRow);
+					reportRow(y / scale);
+				}
+			}
+		}
+		
+		
+		protected final void putRow(WritablePaletteImage img, int x, int y, int xStep, int[] pixels) {
+			if (scale == 1) {
+				storeRow(img, x, y, xStep, pixels);
+				reportRow(y);
+			} else if (xStep > 1) {
+				storeRow(img, x / scale, y / scale, xStep / scale, pixels);
+				reportRow(y / scale);
+			} else if (y % scale == 0) {  // Sample the top left pixel of each block
+				var row = new int[outWidth];
+				for (int i = 0; i < row.length; i++)
+					row[i] = pixels[i * scale];
+				storeRow(img, 0, y / scale, 1, row);
+				reportRow(y / scale);
+			}
+		}
+		
+		
+		// Writes the given subimage row into the image, spreading pixels apart by xStep. A spread
+		// row is merged with a bulk read and write of its span, or copied into its pass buffer.
+		protected final void storeRow(WritableRgbaImage img, int xOffset, int y, int xStep, long[] pixels) {
+			if (xStep == 1) {
+				flushStagedRows(y);
+				if (sink != null)
+					sink.acceptRow(y, pixels);
+				else
+					img.setRow(xOffset, y, pixels, 0, pixels.length);
+			} else if (passBuffers != null) {
+				PassBuffer buf = passBuffers[pass - 1];
+				if (buf.pixels == null)
+					buf.pixels = new long[Math.multiplyExact(buf.width, buf.height)];
+				System.arraycopy(pixels, 0, buf.pixels, (y - buf.y) / buf.yStep * buf.width, buf.width);
+			} else {
+				int len = (pixels.length - 1) * xStep + 1;
+				if (!(scratchRow instanceof long[] r && r.length >= len))
+					scratchRow = new long[outWidth];
+				var row = (long[])scratchRow;
+				img.getRow(xOffset, y, row, 0, len);
+				for (int x = 0; x < pixels.length; x++)
+					row[x * xStep] = pixels[x];
+				img.setRow(xOffset, y, row, 0, len);
+			}
+		}
+		
+		
+		protected final void storeRow(WritableGrayImage img, int xOffset, int y, int xStep, int[] pixels) {
+			if (xStep == 1) {
+				flushStagedRows(y);
+				if (sink != null)
+					sink.acceptRow(y, pixels);
+				else
+					img.setRow(xOffset, y, pixels, 0, pixels.length);
+			} else if (passBuffers != null) {
+				PassBuffer buf = passBuffers[pass - 1];
+				if (buf.pixels == null)
+					buf.pixels = new int[Math.multiplyExact(buf.width, buf.height)];
+				System.arraycopy(pixels, 0, buf.pixels, (y - buf.y) / buf.yStep * buf.width, buf.width);
+			} else {
+				int len = (pixels.length - 1) * xStep + 1;
+				if (!(scratchRow instanceof int[] r && r.length >= len))
+					scratchRow = new int[outWidth];
+				var row = (int[])scratchRow;
+				img.getRow(xOffset, y, row, 0, len);
+				for (int x = 0; x < pixels.length; x++)
+					row[x * xStep] = pixels[x];
+				img.setRow(xOffset, y, row, 0, len);
+			}
+		}
+		
+		
+		protected final void storeRow(WritablePaletteImage img, int xOffset, int y, int xStep, int[] pixels) {
+			if (xStep == 1) {
+				flushStagedRows(y);
+				if (sink != null)
+					sink.acceptRow(y, pixels);
+				else
+					img.setRow(xOffset, y, pixels, 0, pixels.length);
+			} else if (passBuffers != null) {
+				PassBuffer buf = passBuffers[pass - 1];
+				if (buf.pixels == null)
+					buf.pixels = new int[Math.multiplyExact(buf.width, buf.height)];
+				System.arraycopy(pixels, 0, buf.pixels, (y - buf.y) / buf.yStep * buf.width, buf.width);
+			} else {
+				int len = (pixels.length - 1) * xStep + 1;
+				if (!(scratchRow instanceof int[] r && r.length >= len))
+					scratchRow = new int[outWidth];
+				var row = (int[])scratchRow;
+				img.getRow(xOffset, y, row, 0, len);
+				for (int x = 0; x < pixels.length; x++)
+					row[x * xStep] = pixels[x];
+				img.setRow(xOffset, y, row, 0, len);
+			}
+		}
+		
+		
+		// Writes all rows above the given row that come from the pass buffers to the result image, in top-to-bottom order.
+		private void flushStagedRows(int end) {
+			if (passBuffers == null)
+				return;
+			Object img = getResult();
+			for (; rowsFlushed < end; rowsFlushed++) {
+				if (mergedRows == null || rowsFlushed >= mergedStart + mergedRows.length)
+					mergeBand(rowsFlushed);
+				int i = rowsFlushed - mergedStart;
+				if (!mergedFilled[i])
+					continue;
+				Object row = mergedRows[i];
+				if (sink != null)
+					sink.acceptRow(rowsFlushed, row);
+				else if (img instanceof WritableRgbaImage im)
+					im.setRow(0, rowsFlushed, (long[])row, 0, outWidth);
+				else if (img instanceof WritableGrayImage im)
+					im.setRow(0, rowsFlushed, (int[])row, 0, outWidth);
+				else if (img instanceof WritablePaletteImage im)
+					im.setRow(0, rowsFlushed, (int[])row, 0, outWidth);
+				else
+					throw new AssertionError("Unreachable value");
+			}
+		}
+		
+		
+		// Assembles the band of result rows starting at the given row from the pass buffers. Every pixel of
+		// a row that passes 1 to 6 reach is in exactly one pass, so the reused rows need no clearing.
+		private void mergeBand(int start) {
+			if (mergedRows == null) {
+				boolean isLong = getResult() instanceof WritableRgbaImage;
+				mergedRows = new Object[(int)Math.min(Math.max(MERGE_BAND_SIZE / ((long)outWidth * (isLong ? 8 : 4)), 1), outHeight)];
+				for (int i = 0; i < mergedRows.length; i++)
+					mergedRows[i] = isLong ? new long[outWidth] : new int[outWidth];
+				mergedFilled = new boolean[mergedRows.length];
+			}
+			mergedStart = start;
+			int end = Math.min(start + mergedRows.length, outHeight);
+			Arrays.fill(mergedFilled, false);
+			for (PassBuffer buf : passBuffers) {
+				if (buf == null || buf.pixels == null)
+					continue;
+				int first = Math.max(Math.ceilDiv(start - buf.y, buf.yStep), 0);
+				int last = Math.min(Math.ceilDiv(end - buf.y, buf.yStep), buf.height);
+				for (int r = first; r < last; r++) {
+					int outY = buf.y + r * buf.yStep;
+					mergedFilled[outY - start] = true;
+					int off = r * buf.width;
+					if (buf.pixels instanceof long[] src) {
+						var row = (long[])mergedRows[outY - start];
+						for (int x = 0; x < buf.width; x++)
+							row[buf.x + x * buf.xStep] = src[off + x];
+					} else {
+						var src = (int[])buf.pixels;
+						var row = (int[])mergedRows[outY - start];
+						for (int x = 0; x < buf.width; x++)
+							row[buf.x + x * buf.xStep] = src[off + x];
+					}
+				}
+			}
+		}
+		
+		
+		static final int MERGE_BAND_SIZE = 1 << 17;  // Bytes of assembled rows, small enough to stay in a typical L2 cache
+		
+		
+		// The converted pixels of an Adam7 pass that lie in the region, and where they go in the result.
+		private static final class PassBuffer {
+			
+			public final int x;  // Result column of the first pixel of each row
+			public final int y;  // Result row of the first row
+			public final int xStep;
+			public final int yStep;
+			public final int width;
+			public final int height;
+			public Object pixels = null;  // A long[] or int[] of height rows of width pixels, allocated by storeRow()
+			
+			
+			public PassBuffer(int x, int y, int xStep, int yStep, int width, int height) {
+				this.x = x;
+				this.y = y;
+				this.xStep = xStep;
+				this.yStep = yStep;
+				this.width = width;
+				this.height = height;
+			}
+			
+		}
+		
 	}
 	
 	
 	
 	/*---- Helper class ----*/
 	
-	private static final class RowDecoder {
+	// Also used by ImageEncoder.recompress().
+	static final class RowDecoder {
 		
-		private DataInput input;
 		private int filterStride;
 		private byte[] previousRow;
 		private byte[] currentRow;
+		private int filterType = 0;  // Of the current row
 		
 		
-		public RowDecoder(DataInput in, int filterStride, int rowSizeBytes) {
-			input = Objects.requireNonNull(in);
+		public RowDecoder(int filterStride, int rowSizeBytes) {
 			if (filterStride <= 0)
 				throw new IllegalArgumentException("Non-positive filter stride");
 			this.filterStride = filterStride;
@@ -144,17 +1070,67 @@ public final class ImageDecoder {
 		}
 		
 		
-		public byte[] readRow() throws IOException {
-			// Swap buffers
+		// Returns the number of bytes in a row, excluding the filter type byte.
+		public int getRowSize() {
+			return currentRow.length - filterStride;
+		}
+		
+		
+		// Returns the filter type of the row most recently read or unfiltered.
+		public int getFilterType() {
+			return filterType;
+		}
+		
+		
+		// Reads a filtered row from the given input and returns the unfiltered row,
+		// which begins with filterStride zero bytes and is valid until the next call.
+		public byte[] readRow(DataInput input) throws IOException {
+			swapRows();
+			int filter = input.readUnsignedByte();
+			input.readFully(currentRow, filterStride, currentRow.length - filterStride);
+			unfilter(filter);
+			filterType = filter;
+			return currentRow;
+		}
+		
+		
+		// Like readRow(), but only checks the filter type without unfiltering,
+		// and returns an array whose contents are unspecified.
+		public byte[] skipRow(DataInput input) throws IOException {
+			int filter = input.readUnsignedByte();
+			if (filter > 4)
+				throw new IllegalArgumentException("Unsupported filter type: " + filter);
+			input.readFully(currentRow, filterStride, currentRow.length - filterStride);
+			return currentRow;
+		}
+		
+		
+		// Like readRow(), but takes the filtered row (starting with its filter type byte) from an array.
+		public byte[] unfilterRow(byte[] filteredRow) {
+			if (filteredRow.length != getRowSize() + 1)
+				throw new IllegalArgumentException("Invalid row length");
+			return unfilterRow(filteredRow, 0);
+		}
+		
+		
+		// Like unfilterRow(), but takes the filtered row from the given offset of a larger array.
+		public byte[] unfilterRow(byte[] filteredRows, int off) {
+			swapRows();
+			System.arraycopy(filteredRows, off + 1, currentRow, filterStride, currentRow.length - filterStride);
+			filterType = filteredRows[off] & 0xFF;
+			unfilter(filterType);
+			return currentRow;
+		}
+		
+		
+		private void swapRows() {
 			byte[] temp = currentRow;
 			currentRow = previousRow;
 			previousRow = temp;
-			
-			// Read all the necessary bytes
-			int filter = input.readUnsignedByte();
-			input.readFully(currentRow, filterStride, currentRow.length - filterStride);
-			
-			// Do un-filtering
+		}
+		
+		
+		private void unfilter(int filter) {
 			switch (filter) {
 				case 0 -> {  // None
 				}
@@ -188,7 +1164,62 @@ public final class ImageDecoder {
 				}
 				default -> throw new IllegalArgumentException("Unsupported filter type: " + filter);
 			}
-			return currentRow;
+		}
+		
+	}
+	
+	
+	
+	/*---- Helper class ----*/
+	
+	// Averages blocks of scale * scale pixels as full-resolution rows arrive in order.
+	private static final class BoxDownscaler {
+		
+		private final int scale;
+		private final int width;   // Full resolution
+		private final int height;  // Full resolution
+		private final int channels;
+		private final long[] sums;  // Indexed by output column * channels + channel
+		
+		
+		public BoxDownscaler(int scale, int width, int height, int channels) {
+			this.scale = scale;
+			this.width = width;
+			this.height = height;
+			this.channels = channels;
+			sums = new long[Math.multiplyExact(Math.ceilDiv(width, scale), channels)];
+		}
+		
+		
+		// Adds a row of pixels, each with its channels in 16-bit fields from the given shift downward.
+		public void addRow(long[] pixels, int topShift) {
+			for (int x = 0; x < pixels.length; x++) {
+				long val = pixels[x];
+				int base = x / scale * channels;
+				for (int c = 0; c < channels; c++)
+					sums[base + c] += (val >>> (topShift - c * 16)) & 0xFFFF;
+			}
+		}
+		
+		
+		public boolean isRowComplete(int y) {
+			return (y + 1) % scale == 0 || y + 1 == height;
+		}
+		
+		
+		// Writes the rounded averages of the block row ending at y into dest, and clears the sums.
+		public void takeRow(int y, long[] dest, int topShift) {
+			int blockHeight = y - y / scale * scale + 1;
+			for (int ox = 0; ox < dest.length; ox++) {
+				long count = (long)Math.min(scale, width - ox * scale) * blockHeight;
+				long val = 0;
+				for (int c = 0; c < channels; c++) {
+					int i = ox * channels + c;
+					val |= (sums[i] + count / 2) / count << (topShift - c * 16);
+					sums[i] = 0;
+				}
+				dest[ox] = val;
+			}
 		}
 		
 	}
@@ -200,11 +1231,13 @@ public final class ImageDecoder {
 	private static final class RgbaDecoder extends Decoder {
 		
 		private final long transparentColor;  // Either -1 or 0xRRRRGGGGBBBB0000
-		private BufferedRgbaImage result;
+		private WritableRgbaImage result;
+		private final DecodeKernels.RgbaKernel kernel;
+		private long[] pixels = new long[0];
 		
 		
-		public RgbaDecoder(PngImage png) {
-			super(png);
+		public RgbaDecoder(PngImage png, DecodeOptions options, RowSink sink) {
+			super(png, options, sink);
 			
 			// Handle significant bits
 			int outRBits = inBitDepth, outGBits = inBitDepth, outBBits = inBitDepth,
@@ -241,69 +1274,23 @@ public final class ImageDecoder {
 					outABits = 1;
 			}
 			
-			result = new BufferedRgbaImage(ihdr.width(), ihdr.height(), new int[]{outRBits, outGBits, outBBits, outABits});
+			result = alloc.newRgbaImage(outWidth, outHeight, new int[]{outRBits, outGBits, outBBits, outABits});
+			
+			int[] outBitDepths = result.getBitDepths();
+			kernel = DecodeKernels.forRgba(inBitDepth, ihdr.colorType() == Ihdr.ColorType.TRUE_COLOR_WITH_ALPHA, transparentColor,
+				inBitDepth - outBitDepths[0], inBitDepth - outBitDepths[1], inBitDepth - outBitDepths[2], inBitDepth - outBitDepths[3]);
 		}
 		
 		
-		@Override protected void handleSubimage(int xOffset, int yOffset, int xStep, int yStep, int subwidth, int subheight) throws IOException {
-			int[] outBitDepths = result.getBitDepths();
-			int rShift = inBitDepth - outBitDepths[0];
-			int gShift = inBitDepth - outBitDepths[1];
-			int bShift = inBitDepth - outBitDepths[2];
-			int aShift = inBitDepth - outBitDepths[3];
-			boolean hasAlpha = outBitDepths[3] > 0 && transparentColor == -1;
-			int mode = (inBitDepth / 8 - 1) * 2 + (hasAlpha ? 1 : 0);
-			
-			int filterStride = Math.ceilDiv(inBitDepth * (hasAlpha ? 4 : 3), 8);
-			var dec = new RowDecoder(din, filterStride,
-				Math.toIntExact(Math.ceilDiv((long)subwidth * inBitDepth * (hasAlpha ? 4 : 3), 8)));
-			for (int y = 0; y < subheight; y++) {
-				byte[] row = dec.readRow();
-				
-				for (int x = 0, i = filterStride; x < subwidth; x++, i += filterStride) {
-					int r, g, b, a;
-					long temp;
-					switch (mode) {
-						case 0 -> {
-							r = row[i + 0] & 0xFF;
-							g = row[i + 1] & 0xFF;
-							b = row[i + 2] & 0xFF;
-							temp = (long)r << 48 | (long)g << 32 | (long)b << 16;
-							a = temp != transparentColor ? 0xFF : 0x00;
-						}
-						case 1 -> {
-							r = row[i + 0] & 0xFF;
-							g = row[i + 1] & 0xFF;
-							b = row[i + 2] & 0xFF;
-							a = row[i + 3] & 0xFF;
-						}
-						case 2 -> {
-							r = (row[i + 0] & 0xFF) << 8 | (row[i + 1] & 0xFF) << 0;
-							g = (row[i + 2] & 0xFF) << 8 | (row[i + 3] & 0xFF) << 0;
-							b = (row[i + 4] & 0xFF) << 8 | (row[i + 5] & 0xFF) << 0;
-							temp = (long)r << 48 | (long)g << 32 | (long)b << 16;
-							a = temp != transparentColor ? 0xFFFF : 0x00;
-						}
-						case 3 -> {
-							r = (row[i + 0] & 0xFF) << 8 | (row[i + 1] & 0xFF) << 0;
-							g = (row[i + 2] & 0xFF) << 8 | (row[i + 3] & 0xFF) << 0;
-							b = (row[i + 4] & 0xFF) << 8 | (row[i + 5] & 0xFF) << 0;
-							a = (row[i + 6] & 0xFF) << 8 | (row[i + 7] & 0xFF) << 0;
-						}
-						default -> throw new AssertionError("Unreachable value");
-					}
-					r >>>= rShift;
-					g >>>= gShift;
-					b >>>= bShift;
-					a >>>= aShift;
-					result.setPixel(xOffset + x * xStep, yOffset + y * yStep,
-						(long)r << 48 | (long)g << 32 | (long)b << 16 | (long)a << 0);
-				}
-			}
+		@Override protected void convertRow(byte[] row, int xStart, int xEnd, int outX, int outY, int xStep) {
+			if (pixels.length != xEnd - xStart)
+				pixels = new long[xEnd - xStart];
+			kernel.convert(row, xStart, pixels, pixels.length);
+			putRow(result, outX, outY, xStep, pixels);
 		}
 		
 		
-		@Override public BufferedRgbaImage getResult() {
+		@Override public WritableRgbaImage getResult() {
 			return result;
 		}
 		
@@ -316,11 +1303,13 @@ public final class ImageDecoder {
 	private static final class GrayDecoder extends Decoder {
 		
 		private final int transparentColor;  // Either -1 or 0xWWWW0000
-		private BufferedGrayImage result;
+		private WritableGrayImage result;
+		private final DecodeKernels.IntKernel kernel;
+		private int[] pixels = new int[0];
 		
 		
-		public GrayDecoder(PngImage png) {
-			super(png);
+		public GrayDecoder(PngImage png, DecodeOptions options, RowSink sink) {
+			super(png, options, sink);
 			
 			// Handle significant bits
 			int outWBits = inBitDepth, outABits = ihdr.colorType() == Ihdr.ColorType.GRAYSCALE ? 0 : inBitDepth;
@@ -354,73 +1343,23 @@ public final class ImageDecoder {
 					outABits = 1;
 			}
 			
-			result = new BufferedGrayImage(ihdr.width(), ihdr.height(), new int[]{outWBits, outABits});
+			result = alloc.newGrayImage(outWidth, outHeight, new int[]{outWBits, outABits});
+			
+			int[] outBitDepths = result.getBitDepths();
+			kernel = DecodeKernels.forGray(inBitDepth, ihdr.colorType() == Ihdr.ColorType.GRAYSCALE_WITH_ALPHA, transparentColor,
+				inBitDepth - outBitDepths[0], inBitDepth - outBitDepths[1]);
 		}
 		
 		
-		@Override protected void handleSubimage(int xOffset, int yOffset, int xStep, int yStep, int subwidth, int subheight) throws IOException {
-			int[] outBitDepths = result.getBitDepths();
-			int wShift = inBitDepth - outBitDepths[0];
-			int aShift = inBitDepth - outBitDepths[1];
-			boolean hasAlpha = outBitDepths[1] > 0;
-			int mode = inBitDepth >= 8 ? (inBitDepth / 8 - 1) * 2 + (hasAlpha ? 1 : 0) : 4;
-			
-			int filterStride = Math.ceilDiv(inBitDepth * (hasAlpha ? 2 : 1), 8);
-			var dec = new RowDecoder(din, filterStride,
-				Math.toIntExact(Math.ceilDiv((long)subwidth * inBitDepth * (hasAlpha ? 2 : 1), 8)));
-			for (int y = 0; y < subheight; y++) {
-				byte[] row = dec.readRow();
-				
-				if (mode < 4) {
-					for (int x = 0, i = filterStride; x < subwidth; x++, i += filterStride) {
-						int w, a, temp;
-						switch (mode) {
-							case 0 -> {
-								w = row[i + 0] & 0xFF;
-								temp = w << 16;
-								a = temp != transparentColor ? 0xFF : 0x00;
-							}
-							case 1 -> {
-								w = row[i + 0] & 0xFF;
-								a = row[i + 1] & 0xFF;
-							}
-							case 2 -> {
-								w = (row[i + 0] & 0xFF) << 8 | (row[i + 1] & 0xFF) << 0;
-								temp = w << 16;
-								a = temp != transparentColor ? 0xFFFF : 0x00;
-							}
-							case 3 -> {
-								w = (row[i + 0] & 0xFF) << 8 | (row[i + 1] & 0xFF) << 0;
-								a = (row[i + 2] & 0xFF) << 8 | (row[i + 3] & 0xFF) << 0;
-							}
-							default -> throw new AssertionError("Unreachable value");
-						}
-						w >>>= wShift;
-						a >>>= aShift;
-						result.setPixel(xOffset + x * xStep, yOffset + y * yStep,
-							w << 16 | a << 0);
-					}
-				} else {
-					int xMask = 8 / inBitDepth - 1;
-					int shift = 8 - inBitDepth;
-					int opaque = (1 << inBitDepth) - 1;
-					for (int x = 0, i = filterStride, b = 0; x < subwidth; x++, b = (b << inBitDepth) & 0xFF) {
-						if ((x & xMask) == 0) {
-							b = row[i] & 0xFF;
-							i++;
-						}
-						int w = b >>> shift;
-						int temp = w << 16;
-						int a = (temp != transparentColor ? opaque : 0) >>> aShift;
-						w >>>= wShift;
-						result.setPixel(xOffset + x * xStep, yOffset + y * yStep, w << 16 | a << 0);
-					}
-				}
-			}
+		@Override protected void convertRow(byte[] row, int xStart, int xEnd, int outX, int outY, int xStep) {
+			if (pixels.length != xEnd - xStart)
+				pixels = new int[xEnd - xStart];
+			kernel.convert(row, xStart, pixels, pixels.length);
+			putRow(result, outX, outY, xStep, pixels);
 		}
 		
 		
-		@Override public BufferedGrayImage getResult() {
+		@Override public WritableGrayImage getResult() {
 			return result;
 		}
 		
@@ -432,11 +1371,14 @@ public final class ImageDecoder {
 	
 	private static final class PaletteDecoder extends Decoder {
 		
-		private BufferedPaletteImage result;
+		private WritablePaletteImage result;
+		private final DecodeKernels.IntKernel kernel;
+		private final int paletteLength;
+		private int[] pixels = new int[0];
 		
 		
-		public PaletteDecoder(PngImage png) {
-			super(png);
+		public PaletteDecoder(PngImage png, DecodeOptions options, RowSink sink) {
+			super(png, options, sink);
 			
 			// Handle significant bits
 			int outRBits = 8, outGBits = 8, outBBits = 8;
@@ -470,41 +1412,38 @@ public final class ImageDecoder {
 				palette[i] = (long)r << 48 | (long)g << 32 | (long)b << 16 | (long)a << 0;
 			}
 			
-			result = new BufferedPaletteImage(ihdr.width(), ihdr.height(),
+			result = alloc.newPaletteImage(outWidth, outHeight,
 				new int[]{outRBits, outGBits, outBBits, outABits}, palette);
+			kernel = DecodeKernels.forPalette(inBitDepth);
+			paletteLength = palette.length;
 		}
 		
 		
-		@Override protected void handleSubimage(int xOffset, int yOffset, int xStep, int yStep, int subwidth, int subheight) throws IOException {
-			int filterStride = 1;  // Equal to ceil(inBitDepth / 8)
-			var dec = new RowDecoder(din, filterStride,
-				Math.toIntExact(Math.ceilDiv((long)subwidth * inBitDepth, 8)));
-			for (int y = 0; y < subheight; y++) {
-				byte[] row = dec.readRow();
-				
-				switch (inBitDepth) {
-					case 1, 2, 4 -> {
-						int xMask = 8 / inBitDepth - 1;
-						int shift = 8 - inBitDepth;
-						for (int x = 0, i = filterStride, b = 0; x < subwidth; x++, b = (b << inBitDepth) & 0xFF) {
-							if ((x & xMask) == 0) {
-								b = row[i] & 0xFF;
-								i++;
-							}
-							result.setPixel(xOffset + x * xStep, yOffset + y * yStep, b >>> shift);
-						}
-					}
-					case 8 -> {
-						for (int x = 0, i = filterStride; x < subwidth; x++, i += filterStride)
-							result.setPixel(xOffset + x * xStep, yOffset + y * yStep, row[i] & 0xFF);
-					}
-					default -> throw new AssertionError("Unreachable value");
-				}
+		@Override protected void convertRow(byte[] row, int xStart, int xEnd, int outX, int outY, int xStep) {
+			if (pixels.length != xEnd - xStart)
+				pixels = new int[xEnd - xStart];
+			kernel.convert(row, xStart, pixels, pixels.length);
+			putRow(result, outX, outY, xStep, pixels);
+		}
+		
+		
+		@Override protected boolean checksRows() {
+			return paletteLength < 1 << inBitDepth;  // Otherwise every index is valid
+		}
+		
+		
+		@Override protected void checkRow(byte[] row, int width) {
+			int mask = (1 << inBitDepth) - 1;
+			for (int i = 0; i < width; i++) {
+				int bitIndex = i * inBitDepth;
+				int index = row[filterStride + (bitIndex >>> 3)] >>> (8 - inBitDepth - (bitIndex & 7)) & mask;
+				if (index >= paletteLength)
+					throw new IllegalArgumentException("Invalid sample value");
 			}
 		}
 		
 		
-		@Override public BufferedPaletteImage getResult() {
+		@Override public WritablePaletteImage getResult() {
 			return result;
 		}
 		
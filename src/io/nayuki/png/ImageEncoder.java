@@ -8,18 +8,33 @@
 
 package io.nayuki.png;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
 import java.util.stream.IntStream;
-import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Deflater;
 import io.nayuki.png.chunk.Idat;
 import io.nayuki.png.chunk.Ihdr;
 import io.nayuki.png.chunk.Plte;
+import io.nayuki.png.chunk.Rspt;
 import io.nayuki.png.chunk.Sbit;
 import io.nayuki.png.chunk.Trns;
+import io.nayuki.png.chunk.ZlibCodec;
 import io.nayuki.png.image.GrayImage;
 import io.nayuki.png.image.PaletteImage;
 import io.nayuki.png.image.RgbaImage;
@@ -40,7 +55,26 @@ public final class ImageEncoder {
 	 * @throws NullPointerException if {@code img} is {@code null}
 	 */
 	public static PngImage toPng(RgbaImage img, Ihdr.InterlaceMethod interMeth) {
+		return toPng(img, interMeth, EncodeOptions.DEFAULT);
+	}
+	
+	
+	/**
+	 * Encodes the specified image to a new PNG image according to the specified options. The input image
+	 * can have any bit depth allowed by the {@code RgbaImage} contract.
+	 * @param img the image to encode (not {@code null})
+	 * @param interMeth the interlace method (not {@code null})
+	 * @param options the settings for encoding (not {@code null})
+	 * @return a new PNG image (not {@code null})
+	 * @throws NullPointerException if {@code img} or {@code options} is {@code null}
+	 * @throws IllegalArgumentException if the filter strategy is {@link EncodeOptions.FilterStrategy#KEEP}
+	 * @throws IllegalStateException if the options have a memory budget that has
+	 * too little available and not waiting was chosen, or the thread was interrupted
+	 */
+	public static PngImage toPng(RgbaImage img, Ihdr.InterlaceMethod interMeth, EncodeOptions options) {
 		Objects.requireNonNull(img);
+		Objects.requireNonNull(options);
+		requireNewFilters(options);
 		int[] bitDepths = img.getBitDepths();
 		int bitDepth = bitDepths[0];
 		boolean hasAlpha = bitDepths[3] > 0;
@@ -56,7 +90,7 @@ public final class ImageEncoder {
 				bitDepthsBytes = new byte[]{(byte)bitDepths[0], (byte)bitDepths[1], (byte)bitDepths[2], (byte)bitDepths[3]};
 			sbit = Optional.of(new Sbit(bitDepthsBytes));
 		}
-		return new RgbaEncoder(img, sbit, interMeth).encode();
+		return new RgbaEncoder(img, sbit, interMeth, options).encode();
 	}
 	
 	
@@ -69,7 +103,26 @@ public final class ImageEncoder {
 	 * @throws NullPointerException if {@code img} is {@code null}
 	 */
 	public static PngImage toPng(GrayImage img, Ihdr.InterlaceMethod interMeth) {
+		return toPng(img, interMeth, EncodeOptions.DEFAULT);
+	}
+	
+	
+	/**
+	 * Encodes the specified image to a new PNG image according to the specified options. The input image
+	 * can have any bit depth allowed by the {@code GrayImage} contract.
+	 * @param img the image to encode (not {@code null})
+	 * @param interMeth the interlace method (not {@code null})
+	 * @param options the settings for encoding (not {@code null})
+	 * @return a new PNG image (not {@code null})
+	 * @throws NullPointerException if {@code img} or {@code options} is {@code null}
+	 * @throws IllegalArgumentException if the filter strategy is {@link EncodeOptions.FilterStrategy#KEEP}
+	 * @throws IllegalStateException if the options have a memory budget that has
+	 * too little available and not waiting was chosen, or the thread was interrupted
+	 */
+	public static PngImage toPng(GrayImage img, Ihdr.InterlaceMethod interMeth, EncodeOptions options) {
 		Objects.requireNonNull(img);
+		Objects.requireNonNull(options);
+		requireNewFilters(options);
 		int[] bitDepths = img.getBitDepths();
 		int bitDepth = bitDepths[0];
 		boolean hasAlpha = bitDepths[1] > 0;
@@ -86,7 +139,7 @@ public final class ImageEncoder {
 				bitDepthsBytes = new byte[]{(byte)bitDepths[0], (byte)bitDepths[1]};
 			sbit = Optional.of(new Sbit(bitDepthsBytes));
 		}
-		return new GrayEncoder(img, sbit, interMeth).encode();
+		return new GrayEncoder(img, sbit, interMeth, options).encode();
 	}
 	
 	
@@ -98,7 +151,25 @@ public final class ImageEncoder {
 	 * @throws NullPointerException if {@code img} is {@code null}
 	 */
 	public static PngImage toPng(PaletteImage img, Ihdr.InterlaceMethod interMeth) {
+		return toPng(img, interMeth, EncodeOptions.DEFAULT);
+	}
+	
+	
+	/**
+	 * Encodes the specified image to a new PNG image according to the specified options.
+	 * @param img the image to encode (not {@code null})
+	 * @param interMeth the interlace method (not {@code null})
+	 * @param options the settings for encoding (not {@code null})
+	 * @return a new PNG image (not {@code null})
+	 * @throws NullPointerException if {@code img} or {@code options} is {@code null}
+	 * @throws IllegalArgumentException if the filter strategy is {@link EncodeOptions.FilterStrategy#KEEP}
+	 * @throws IllegalStateException if the options have a memory budget that has
+	 * too little available and not waiting was chosen, or the thread was interrupted
+	 */
+	public static PngImage toPng(PaletteImage img, Ihdr.InterlaceMethod interMeth, EncodeOptions options) {
 		Objects.requireNonNull(img);
+		Objects.requireNonNull(options);
+		requireNewFilters(options);
 		long[] palette = img.getPalette();
 		int bitDepth;  // Equal to 2^ceil(log2(ceil(log2(palette.length))))}
 		if (palette.length <= (1 << 1))
@@ -111,7 +182,86 @@ public final class ImageEncoder {
 			bitDepth = 8;
 		else
 			throw new AssertionError("Unreachable value");
-		return new PaletteEncoder(img, bitDepth, interMeth).encode();
+		return new PaletteEncoder(img, bitDepth, interMeth, options).encode();
+	}
+	
+	
+	/**
+	 * Returns a new PNG image with the same chunks as the specified one, except that its image data is unfiltered,
+	 * then filtered and compressed again according to the options. No pixels are converted, and the rows are
+	 * decompressed, re-filtered, and compressed as a stream, so the uncompressed data is never held in memory all at
+	 * once. Any restart points chunk is removed, and the options may add a new one. The existing image data is
+	 * decompressed with the options' codec. To keep the existing filter types and only recompress the data,
+	 * use the filter strategy {@link EncodeOptions.FilterStrategy#KEEP}.
+	 * @param png the PNG image to recompress (not {@code null})
+	 * @param options the settings for filtering and compression (not {@code null})
+	 * @return a new PNG image (not {@code null})
+	 * @throws NullPointerException if {@code png} or {@code options} is {@code null}
+	 * @throws IllegalArgumentException if the IHDR chunk is missing, or the image data is invalid
+	 * @throws IllegalStateException if the options have a memory budget that has
+	 * too little available and not waiting was chosen, or the thread was interrupted
+	 */
+	public static PngImage recompress(PngImage png, EncodeOptions options) {
+		Objects.requireNonNull(png);
+		Objects.requireNonNull(options);
+		try (var enc = new Recompressor(png, options)) {
+			PngImage result = enc.encode();
+			if (enc.input.read() != -1)
+				throw new IllegalArgumentException("Extra decompressed data after all pixels");
+			return result;
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+	
+	
+	// Only recompress() has existing filter types to keep.
+	private static void requireNewFilters(EncodeOptions options) {
+		if (options.filterStrategy == EncodeOptions.FilterStrategy.KEEP)
+			throw new IllegalArgumentException("Filter strategy KEEP requires existing image data");
+	}
+	
+	
+	/**
+	 * Returns a prediction of the peak number of bytes of memory that encoding an image with the specified
+	 * header allocates, not counting the input image. This is meant for admission control, so it is an upper bound
+	 * rather than an exact amount: it assumes that the image data does not compress at all. It also assumes that
+	 * the zlib codec needs little memory of its own, which is true of {@code java.util.zip} but not of {@link
+	 * ZlibCodec#optimal(int)}. The header can be made with the dimensions, bit depth, and color type that the image
+	 * will be encoded with, or taken from a PNG image that will be recompressed.
+	 * @param ihdr the header of the image to encode (not {@code null})
+	 * @param options the settings that the image would be encoded with (not {@code null})
+	 * @return the estimated peak memory use in bytes, a non-negative number
+	 * @throws NullPointerException if {@code ihdr} or {@code options} is {@code null}
+	 */
+	public static long estimateMemory(Ihdr ihdr, EncodeOptions options) {
+		Objects.requireNonNull(ihdr);
+		Objects.requireNonNull(options);
+		int bitsPerPixel = ihdr.bitDepth() * switch (ihdr.colorType()) {
+			case GRAYSCALE, INDEXED_COLOR -> 1;
+			case GRAYSCALE_WITH_ALPHA     -> 2;
+			case TRUE_COLOR               -> 3;
+			case TRUE_COLOR_WITH_ALPHA    -> 4;
+		};
+		long rowSize = Math.ceilDiv((long)ihdr.width() * bitsPerPixel, 8) + 1;
+		long rawSize = rowSize * ihdr.height();  // Slightly more than the actual amount for interlaced images
+		long bandSize = Math.max(Encoder.BAND_SIZE, rowSize);
+		
+		long result = 1 << 18;  // Compressor state and small objects
+		result += (rowSize + 8) * 2 + (long)ihdr.width() * 8;  // Row buffers and unconverted pixels
+		// Compressed data in a growing buffer, then copied
+		boolean interlaced = ihdr.interlaceMethod() == Ihdr.InterlaceMethod.ADAM7;
+		if (options.restartInterval > 0 && !interlaced)
+			result += rawSize + Math.min(rowSize * options.restartInterval, rawSize) * 2;
+		else
+			result += rawSize * 3;
+		if (options.filterStrategy == EncodeOptions.FilterStrategy.EXHAUSTIVE)
+			result += bandSize * ForkJoinPool.getCommonPoolParallelism() * 2 * 4;  // Packed rows, filtered bands, and trials
+		else if (options.pipelining)
+			result += bandSize * (Encoder.PIPELINE_DEPTH + 2);
+		else
+			result += bandSize;
+		return result;
 	}
 	
 	
@@ -123,26 +273,308 @@ public final class ImageEncoder {
 		
 		protected PngImage result = new PngImage();
 		protected OutputStream dout;
+		private ByteArrayOutputStream bout;
+		private final ZlibCodec codec;
+		private final EncodeOptions.FilterStrategy filterStrategy;
+		private final int bitsPerPixel;
+		private final int filterStride;
+		private final boolean pipelining;
+		private final int restartInterval;  // 0 if not dividing the compressed data into bands
+		private BlockingQueue<byte[]> bands = null;  // Filtered rows waiting to be compressed, when pipelining
+		private Object scratchRow = null;  // A long[] or int[] of at most GATHER_SIZE pixels reused by loadRow()
+		private final MemoryBudget memoryBudget;  // Can be null
+		private final boolean waitForMemory;
+		private final long memoryEstimate;
+		private final BooleanSupplier cancellation;  // Can be null
 		
 		
-		protected Encoder(Ihdr ihdr) {
+		protected Encoder(Ihdr ihdr, EncodeOptions options) {
 			super(ihdr);
 			result.ihdr = Optional.of(ihdr);
+			bitsPerPixel = ihdr.bitDepth() * switch (ihdr.colorType()) {
+				case GRAYSCALE, INDEXED_COLOR -> 1;
+				case GRAYSCALE_WITH_ALPHA     -> 2;
+				case TRUE_COLOR               -> 3;
+				case TRUE_COLOR_WITH_ALPHA    -> 4;
+			};
+			filterStride = Math.ceilDiv(bitsPerPixel, 8);
+			// The PNG specification recommends no filtering for these images, unless trials show otherwise
+			if (options.filterStrategy == EncodeOptions.FilterStrategy.ADAPTIVE && (ihdr.colorType() == Ihdr.ColorType.INDEXED_COLOR || ihdr.bitDepth() < 8))
+				filterStrategy = EncodeOptions.FilterStrategy.NONE;
+			else
+				filterStrategy = options.filterStrategy;
+			long filteredSize = (Math.ceilDiv((long)ihdr.width() * bitsPerPixel, 8) + 1) * ihdr.height();
+			pipelining = options.pipelining && filteredSize >= (long)BAND_SIZE * PIPELINE_DEPTH;
+			restartInterval = ihdr.interlaceMethod() == Ihdr.InterlaceMethod.NONE ? options.restartInterval : 0;
+			codec = options.zlibCodec != null ? options.zlibCodec : ZlibCodec.getDefault();
+			memoryBudget = options.memoryBudget;
+			waitForMemory = options.waitForMemory;
+			memoryEstimate = memoryBudget != null ? estimateMemory(ihdr, options) : 0;
+			cancellation = options.cancellation;
 		}
 		
 		
 		public PngImage encode() {
-			var bout = new ByteArrayOutputStream();
-			try (var out = dout = new DeflaterOutputStream(bout)) {
-				doInterlace();
-			} catch (IOException e) {
-				throw new AssertionError("Unreachable exception", e);
+			MemoryBudget.Reservation reservation = memoryBudget != null ? memoryBudget.reserve(memoryEstimate, waitForMemory) : null;
+			try {
+				bout = new ByteArrayOutputStream();
+				try (var out = dout = codec.newCompressor(bout)) {
+					if (pipelining)
+						encodePipelined();
+					else
+						doInterlace();
+				} catch (IOException e) {
+					throw new AssertionError("Unreachable exception", e);
+				}
+				result.idats.add(new Idat(bout.toByteArray()));
+				bout = null;
+				if (restartInterval > 0)
+					addRestartPoints();
+				return result;
+			} finally {
+				if (reservation != null)
+					reservation.close();
+			}
+		}
+		
+		
+		// Packs and filters the rows on a new thread, which hands each band of rows
+		// to this thread through a bounded queue to be compressed.
+		private void encodePipelined() throws IOException {
+			bands = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+			var failure = new Throwable[1];
+			var producer = new Thread(() -> {
+				try {
+					doInterlace();
+				} catch (InterruptedIOException e) {
+					return;  // The compressing thread has given up
+				} catch (IOException e) {
+					failure[0] = new AssertionError("Unreachable exception", e);
+				} catch (RuntimeException | Error e) {
+					failure[0] = e;
+				}
+				try {
+					bands.put(END_OF_BANDS);
+				} catch (InterruptedException e) {}
+			}, "PNG encoder filter stage");
+			producer.setDaemon(true);
+			producer.start();
+			
+			try {
+				for (byte[] band; (band = bands.take()) != END_OF_BANDS; )
+					compressBand(band);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while encoding", e);
+			} finally {
+				producer.interrupt();  // Unblocks it if this thread is exiting abnormally
+			}
+			if (failure[0] instanceof Error e)
+				throw e;
+			else if (failure[0] != null)
+				throw (RuntimeException)failure[0];
+		}
+		
+		
+		@Override protected final void handleSubimage(int xOffset, int yOffset, int xStep, int yStep, int subwidth, int subheight) throws IOException {
+			int rowSize = Math.toIntExact(Math.ceilDiv((long)subwidth * bitsPerPixel, 8));
+			int bandHeight = Math.max(BAND_SIZE / (rowSize + 1), 1);
+			if (filterStrategy == EncodeOptions.FilterStrategy.EXHAUSTIVE) {
+				handleSubimageExhaustively(xOffset, yOffset, xStep, yStep, subwidth, subheight, rowSize, bandHeight);
+				return;
+			}
+			var filterer = new RowFilterer(filterStride, rowSize, filterStrategy);
+			byte[] band = null;
+			for (int y = 0; y < subheight; ) {
+				int len = Math.multiplyExact(rowSize + 1, Math.min(subheight - y, bandHeight));
+				if (band == null || band.length != len || bands != null)  // The queue takes ownership of each band
+					band = new byte[len];
+				int bandY = y;
+				for (int i = 0; i < len; i += rowSize + 1, y++) {
+					checkCancelled();
+					packRow(xOffset, yOffset + y * yStep, xStep, subwidth, filterer.getCurrentRow(), filterStride);
+					filterer.filterRow(band, i, isRestartRow(y), filterStrategy == EncodeOptions.FilterStrategy.KEEP ? getKeptFilter() : 0);
+				}
+				writeRows(band, bandY, rowSize);
 			}
+		}
+		
+		
+		// Packs a group of bands of rows on this thread (because images need not be thread-safe),
+		// then chooses the filters for the bands of the group in parallel.
+		private void handleSubimageExhaustively(int xOffset, int yOffset, int xStep, int yStep, int subwidth, int subheight, int rowSize, int bandHeight) throws IOException {
+			int groupHeight = (int)Math.min((long)bandHeight * ForkJoinPool.getCommonPoolParallelism() * 2, subheight);
+			var prevRow = new byte[rowSize + filterStride];
+			for (int y = 0; y < subheight; ) {
+				int groupY = y;
+				// rows[0] is the last row of the previous group, or zeros
+				var rows = new byte[Math.min(subheight - y, groupHeight) + 1][];
+				rows[0] = prevRow;
+				for (int i = 1; i < rows.length; i++, y++) {
+					rows[i] = new byte[rowSize + filterStride];
+					checkCancelled();
+					packRow(xOffset, yOffset + y * yStep, xStep, subwidth, rows[i], filterStride);
+				}
+				var filtered = new byte[Math.ceilDiv(rows.length - 1, bandHeight)][];
+				IntStream.range(0, filtered.length).parallel().forEach(i -> {
+					int start = i * bandHeight + 1;
+					int end = Math.min(start + bandHeight, rows.length);
+					filtered[i] = new byte[(end - start) * (rowSize + 1)];
+					TrialFilterer.filterBand(rows, start, end, filterStride, filtered[i], groupY + start - 1, restartInterval);
+				});
+				for (int i = 0; i < filtered.length; i++)
+					writeRows(filtered[i], groupY + i * bandHeight, rowSize);
+				prevRow = rows[rows.length - 1];
+			}
+		}
+		
+		
+		private void checkCancelled() {
+			if (cancellation != null && cancellation.getAsBoolean())
+				throw new CancellationException("Encoding cancelled");
+		}
+		
+		
+		// Returns whether the given row of a non-interlaced image begins a band of compressed data.
+		private boolean isRestartRow(int y) {
+			return restartInterval > 0 && y > 0 && y % restartInterval == 0;
+		}
+		
+		
+		// Passes on the given filtered rows, which begin at the given row, to be compressed.
+		// A band of compressed data is ended before each restart row.
+		private void writeRows(byte[] rows, int y, int rowSize) throws IOException {
+			int start = 0;
+			for (int i = 0; i < rows.length; i += rowSize + 1, y++) {
+				if (isRestartRow(y)) {
+					if (i > start)
+						writeBand(Arrays.copyOfRange(rows, start, i));
+					writeBand(RESTART);
+					start = i;
+				}
+			}
+			writeBand(start == 0 ? rows : Arrays.copyOfRange(rows, start, rows.length));
+		}
+		
+		
+		private void writeBand(byte[] band) throws IOException {
+			if (bands == null)
+				compressBand(band);
+			else {
+				try {
+					bands.put(band);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+		}
+		
+		
+		private void compressBand(byte[] band) throws IOException {
+			if (band != RESTART) {
+				dout.write(band);
+				return;
+			}
+			// Make the data so far a complete IDAT, and let decompression start afresh after it
+			dout.flush();
 			result.idats.add(new Idat(bout.toByteArray()));
-			bout = null;
-			return result;
+			bout.reset();
+		}
+		
+		
+		// Adds a chunk giving the first row of each band and the position of its IDAT,
+		// which is placed last before the IDATs. A single band needs no chunk.
+		private void addRestartPoints() {
+			int n = result.idats.size();
+			if (n < 2)
+				return;
+			var rows = new int[n];
+			var offsets = new int[n];
+			long offset = 12 + 8L * n;  // Length of the chunk itself
+			for (int i = 0; i < n; i++) {
+				rows[i] = i * restartInterval;
+				offsets[i] = Math.toIntExact(offset);
+				offset += 12 + result.idats.get(i).data().length;
+			}
+			result.afterIhdr.add(new Rspt(rows, offsets));
+		}
+		
+		
+		private static final int BAND_SIZE = 1 << 16;  // Bytes of filtered rows handed off at once, unless one row is bigger
+		private static final int PIPELINE_DEPTH = 4;  // Maximum number of bands waiting to be compressed
+		private static final byte[] END_OF_BANDS = {};
+		private static final byte[] RESTART = {};  // Marks the end of a band of compressed data
+		
+		
+		// Reads the given subimage row from the image and packs its samples into dest starting at off.
+		protected abstract void packRow(int xOffset, int y, int xStep, int subwidth, byte[] dest, int off);
+		
+		
+		// Returns the filter type that the row most recently packed had in its source, for FilterStrategy.KEEP.
+		protected int getKeptFilter() {
+			throw new AssertionError("Unreachable value");
 		}
 		
+		
+		// Reads the given subimage row from the image, gathering pixels spaced apart by xStep. For Adam7 passes 1 to 6,
+		// the span of the row is read in pieces of GATHER_SIZE pixels, and each piece is gathered while it is still in
+		// the cache. This works the same for any image, including ones that keep their pixels off the heap.
+		protected final void loadRow(RgbaImage img, int xOffset, int y, int xStep, long[] pixels) {
+			if (xStep == 1) {
+				img.getRow(xOffset, y, pixels, 0, pixels.length);
+				return;
+			}
+			if (!(scratchRow instanceof long[]))
+				scratchRow = new long[Math.min(GATHER_SIZE, img.getWidth())];
+			var row = (long[])scratchRow;
+			int piece = Math.max(row.length / xStep, 1);
+			for (int i = 0; i < pixels.length; i += piece) {
+				int n = Math.min(piece, pixels.length - i);
+				img.getRow(xOffset + i * xStep, y, row, 0, (n - 1) * xStep + 1);
+				for (int j = 0; j < n; j++)
+					pixels[i + j] = row[j * xStep];
+			}
+		}
+		
+		
+		protected final void loadRow(GrayImage img, int xOffset, int y, int xStep, int[] pixels) {
+			if (xStep == 1) {
+				img.getRow(xOffset, y, pixels, 0, pixels.length);
+				return;
+			}
+			if (!(scratchRow instanceof int[]))
+				scratchRow = new int[Math.min(GATHER_SIZE, img.getWidth())];
+			var row = (int[])scratchRow;
+			int piece = Math.max(row.length / xStep, 1);
+			for (int i = 0; i < pixels.length; i += piece) {
+				int n = Math.min(piece, pixels.length - i);
+				img.getRow(xOffset + i * xStep, y, row, 0, (n - 1) * xStep + 1);
+				for (int j = 0; j < n; j++)
+					pixels[i + j] = row[j * xStep];
+			}
+		}
+		
+		
+		protected final void loadRow(PaletteImage img, int xOffset, int y, int xStep, int[] pixels) {
+			if (xStep == 1) {
+				img.getRow(xOffset, y, pixels, 0, pixels.length);
+				return;
+			}
+			if (!(scratchRow instanceof int[]))
+				scratchRow = new int[Math.min(GATHER_SIZE, img.getWidth())];
+			var row = (int[])scratchRow;
+			int piece = Math.max(row.length / xStep, 1);
+			for (int i = 0; i < pixels.length; i += piece) {
+				int n = Math.min(piece, pixels.length - i);
+				img.getRow(xOffset + i * xStep, y, row, 0, (n - 1) * xStep + 1);
+				for (int j = 0; j < n; j++)
+					pixels[i + j] = row[j * xStep];
+			}
+		}
+		
+		
+		private static final int GATHER_SIZE = 1 << 12;  // Pixels of a source row read at once by loadRow()
+		
 	}
 	
 	
@@ -150,76 +582,27 @@ public final class ImageEncoder {
 	private static final class RgbaEncoder extends Encoder {
 		
 		private final RgbaImage image;
-		private final int bitDepth;
-		private final boolean hasAlpha;
+		private final EncodeKernels.RgbaKernel kernel;
+		private long[] pixels = new long[0];
 		
 		
-		public RgbaEncoder(RgbaImage img, Optional<Sbit> sbit, Ihdr.InterlaceMethod interMeth) {
+		public RgbaEncoder(RgbaImage img, Optional<Sbit> sbit, Ihdr.InterlaceMethod interMeth, EncodeOptions options) {
 			super(new Ihdr(img.getWidth(), img.getHeight(), img.getBitDepths()[0],
 				img.getBitDepths()[3] > 0 ? Ihdr.ColorType.TRUE_COLOR_WITH_ALPHA : Ihdr.ColorType.TRUE_COLOR,
 				Ihdr.CompressionMethod.ZLIB_DEFLATE,
 				Ihdr.FilterMethod.ADAPTIVE,
-				interMeth));
+				interMeth), options);
 			image = img;
-			bitDepth = img.getBitDepths()[0];
-			hasAlpha = img.getBitDepths()[3] > 0;
+			kernel = EncodeKernels.forRgba(img.getBitDepths()[0], img.getBitDepths()[3] > 0);
 			sbit.ifPresent(sb -> result.afterIhdr.add(sb));
 		}
 		
 		
-		@Override protected void handleSubimage(int xOffset, int yOffset, int xStep, int yStep, int subwidth, int subheight) throws IOException {
-			int bytesPerRow = Math.toIntExact(Math.ceilDiv((long)subwidth * bitDepth * (hasAlpha ? 4 : 3), 8) + 1);
-			var filtersAndSamples = new byte[Math.multiplyExact(bytesPerRow, subheight)];
-			for (int y = 0, i = 0; y < subheight; y++) {
-				filtersAndSamples[i] = 0;
-				i++;
-				
-				switch (bitDepth * 10 + (hasAlpha ? 1 : 0)) {
-					case 8_0 -> {
-						for (int x = 0; x < subwidth; x++, i += 3) {
-							long val = image.getPixel(xOffset + x * xStep, yOffset + y * yStep);
-							filtersAndSamples[i + 0] = (byte)(val >>> 48);
-							filtersAndSamples[i + 1] = (byte)(val >>> 32);
-							filtersAndSamples[i + 2] = (byte)(val >>> 16);
-						}
-					}
-					case 8_1 -> {
-						for (int x = 0; x < subwidth; x++, i += 4) {
-							long val = image.getPixel(xOffset + x * xStep, yOffset + y * yStep);
-							filtersAndSamples[i + 0] = (byte)(val >>> 48);
-							filtersAndSamples[i + 1] = (byte)(val >>> 32);
-							filtersAndSamples[i + 2] = (byte)(val >>> 16);
-							filtersAndSamples[i + 3] = (byte)(val >>>  0);
-						}
-					}
-					case 16_0 -> {
-						for (int x = 0; x < subwidth; x++, i += 6) {
-							long val = image.getPixel(xOffset + x * xStep, yOffset + y * yStep);
-							filtersAndSamples[i + 0] = (byte)(val >>> 56);
-							filtersAndSamples[i + 1] = (byte)(val >>> 48);
-							filtersAndSamples[i + 2] = (byte)(val >>> 40);
-							filtersAndSamples[i + 3] = (byte)(val >>> 32);
-							filtersAndSamples[i + 4] = (byte)(val >>> 24);
-							filtersAndSamples[i + 5] = (byte)(val >>> 16);
-						}
-					}
-					case 16_1 -> {
-						for (int x = 0; x < subwidth; x++, i += 8) {
-							long val = image.getPixel(xOffset + x * xStep, yOffset + y * yStep);
-							filtersAndSamples[i + 0] = (byte)(val >>> 56);
-							filtersAndSamples[i + 1] = (byte)(val >>> 48);
-							filtersAndSamples[i + 2] = (byte)(val >>> 40);
-							filtersAndSamples[i + 3] = (byte)(val >>> 32);
-							filtersAndSamples[i + 4] = (byte)(val >>> 24);
-							filtersAndSamples[i + 5] = (byte)(val >>> 16);
-							filtersAndSamples[i + 6] = (byte)(val >>>  8);
-							filtersAndSamples[i + 7] = (byte)(val >>>  0);
-						}
-					}
-					default -> throw new AssertionError("Unreachable value");
-				}
-			}
-			dout.write(filtersAndSamples);
+		@Override protected void packRow(int xOffset, int y, int xStep, int subwidth, byte[] dest, int off) {
+			if (pixels.length != subwidth)
+				pixels = new long[subwidth];
+			loadRow(image, xOffset, y, xStep, pixels);
+			kernel.pack(pixels, subwidth, dest, off);
 		}
 		
 	}
@@ -229,80 +612,27 @@ public final class ImageEncoder {
 	private static final class GrayEncoder extends Encoder {
 		
 		private final GrayImage image;
-		private final int bitDepth;
-		private final boolean hasAlpha;
+		private final EncodeKernels.IntKernel kernel;
+		private int[] pixels = new int[0];
 		
 		
-		public GrayEncoder(GrayImage img, Optional<Sbit> sbit, Ihdr.InterlaceMethod interMeth) {
+		public GrayEncoder(GrayImage img, Optional<Sbit> sbit, Ihdr.InterlaceMethod interMeth, EncodeOptions options) {
 			super(new Ihdr(img.getWidth(), img.getHeight(), img.getBitDepths()[0],
 				img.getBitDepths()[1] > 0 ? Ihdr.ColorType.GRAYSCALE_WITH_ALPHA : Ihdr.ColorType.GRAYSCALE,
 				Ihdr.CompressionMethod.ZLIB_DEFLATE,
 				Ihdr.FilterMethod.ADAPTIVE,
-				interMeth));
+				interMeth), options);
 			image = img;
-			bitDepth = img.getBitDepths()[0];
-			hasAlpha = img.getBitDepths()[1] > 0;
+			kernel = EncodeKernels.forGray(img.getBitDepths()[0], img.getBitDepths()[1] > 0);
 			sbit.ifPresent(sb -> result.afterIhdr.add(sb));
 		}
 		
 		
-		@Override protected void handleSubimage(int xOffset, int yOffset, int xStep, int yStep, int subwidth, int subheight) throws IOException {
-			int bytesPerRow = Math.toIntExact(Math.ceilDiv((long)subwidth * bitDepth * (hasAlpha ? 2 : 1), 8) + 1);
-			var filtersAndSamples = new byte[Math.multiplyExact(bytesPerRow, subheight)];
-			for (int y = 0, i = 0; y < subheight; y++) {
-				filtersAndSamples[i] = 0;
-				i++;
-				
-				switch (bitDepth * 10 + (hasAlpha ? 1 : 0)) {
-					case 1_0, 2_0, 4_0 -> {
-						int xMask = 8 / bitDepth - 1;
-						int b = 0;
-						for (int x = 0; x < subwidth; x++) {
-							int val = image.getPixel(xOffset + x * xStep, yOffset + y * yStep);
-							b = (b << bitDepth) | (val >>> 16);
-							if ((x & xMask) == xMask) {
-								filtersAndSamples[i] = (byte)b;
-								i++;
-							}
-						}
-						if ((subwidth & xMask) != 0) {
-							filtersAndSamples[i] = (byte)(b << (8 - (subwidth & xMask) * bitDepth));
-							i++;
-						}
-					}
-					case 8_0 -> {
-						for (int x = 0; x < subwidth; x++, i += 1) {
-							int val = image.getPixel(xOffset + x * xStep, yOffset + y * yStep);
-							filtersAndSamples[i + 0] = (byte)(val >>> 16);
-						}
-					}
-					case 8_1 -> {
-						for (int x = 0; x < subwidth; x++, i += 2) {
-							int val = image.getPixel(xOffset + x * xStep, yOffset + y * yStep);
-							filtersAndSamples[i + 0] = (byte)(val >>> 16);
-							filtersAndSamples[i + 1] = (byte)(val >>>  0);
-						}
-					}
-					case 16_0 -> {
-						for (int x = 0; x < subwidth; x++, i += 2) {
-							int val = image.getPixel(xOffset + x * xStep, yOffset + y * yStep);
-							filtersAndSamples[i + 0] = (byte)(val >>> 24);
-							filtersAndSamples[i + 1] = (byte)(val >>> 16);
-						}
-					}
-					case 16_1 -> {
-						for (int x = 0; x < subwidth; x++, i += 4) {
-							int val = image.getPixel(xOffset + x * xStep, yOffset + y * yStep);
-							filtersAndSamples[i + 0] = (byte)(val >>> 24);
-							filtersAndSamples[i + 1] = (byte)(val >>> 16);
-							filtersAndSamples[i + 2] = (byte)(val >>>  8);
-							filtersAndSamples[i + 3] = (byte)(val >>>  0);
-						}
-					}
-					default -> throw new AssertionError("Unreachable value");
-				}
-			}
-			dout.write(filtersAndSamples);
+		@Override protected void packRow(int xOffset, int y, int xStep, int subwidth, byte[] dest, int off) {
+			if (pixels.length != subwidth)
+				pixels = new int[subwidth];
+			loadRow(image, xOffset, y, xStep, pixels);
+			kernel.pack(pixels, subwidth, dest, off);
 		}
 		
 	}
@@ -312,17 +642,18 @@ public final class ImageEncoder {
 	private static final class PaletteEncoder extends Encoder {
 		
 		private final PaletteImage image;
-		private final int bitDepth;
+		private final EncodeKernels.IntKernel kernel;
+		private int[] pixels = new int[0];
 		
 		
-		public PaletteEncoder(PaletteImage img, int bitDepth, Ihdr.InterlaceMethod interMeth) {
+		public PaletteEncoder(PaletteImage img, int bitDepth, Ihdr.InterlaceMethod interMeth, EncodeOptions options) {
 			super(new Ihdr(img.getWidth(), img.getHeight(), bitDepth,
 				Ihdr.ColorType.INDEXED_COLOR,
 				Ihdr.CompressionMethod.ZLIB_DEFLATE,
 				Ihdr.FilterMethod.ADAPTIVE,
-				interMeth));
+				interMeth), options);
 			image = img;
-			this.bitDepth = bitDepth;
+			kernel = EncodeKernels.forPalette(bitDepth);
 			
 			long[] palette = img.getPalette();
 			var paletteBytes = new byte[Math.multiplyExact(palette.length, 3)];
@@ -361,39 +692,228 @@ public final class ImageEncoder {
 		}
 		
 		
-		@Override protected void handleSubimage(int xOffset, int yOffset, int xStep, int yStep, int subwidth, int subheight) throws IOException {
-			int bytesPerRow = Math.toIntExact(Math.ceilDiv((long)subwidth * bitDepth, 8) + 1);
-			var filtersAndSamples = new byte[Math.multiplyExact(bytesPerRow, subheight)];
-			for (int y = 0, i = 0; y < subheight; y++) {
-				filtersAndSamples[i] = 0;
-				i++;
-				
-				switch (bitDepth) {
-					case 1, 2, 4 -> {
-						int xMask = 8 / bitDepth - 1;
-						int b = 0;
-						for (int x = 0; x < subwidth; x++) {
-							b = (b << bitDepth) | image.getPixel(xOffset + x * xStep, yOffset + y * yStep);
-							if ((x & xMask) == xMask) {
-								filtersAndSamples[i] = (byte)b;
-								i++;
-							}
-						}
-						if ((subwidth & xMask) != 0) {
-							filtersAndSamples[i] = (byte)(b << (8 - (subwidth & xMask) * bitDepth));
-							i++;
+		@Override protected void packRow(int xOffset, int y, int xStep, int subwidth, byte[] dest, int off) {
+			if (pixels.length != subwidth)
+				pixels = new int[subwidth];
+			loadRow(image, xOffset, y, xStep, pixels);
+			kernel.pack(pixels, subwidth, dest, off);
+		}
+		
+	}
+	
+	
+	
+	// Takes the rows from the decompressed image data of an existing PNG image, unfiltering each one.
+	private static final class Recompressor extends Encoder implements AutoCloseable {
+		
+		public final DataInputStream input;
+		private final int bitsPerPixel;
+		private final int filterStride;
+		private ImageDecoder.RowDecoder rowDecoder = null;
+		private int lastXOffset = -1;
+		private int lastXStep = -1;
+		
+		
+		public Recompressor(PngImage png, EncodeOptions options) {
+			super(png.ihdr.orElseThrow(() -> new IllegalArgumentException("Missing IHDR chunk")), options);
+			png.afterIhdr.stream().filter(chk -> !chk.getType().equals("rsPT")).forEach(result.afterIhdr::add);
+			png.afterIdats.stream().filter(chk -> !chk.getType().equals("rsPT")).forEach(result.afterIdats::add);
+			bitsPerPixel = ihdr.bitDepth() * switch (ihdr.colorType()) {
+				case GRAYSCALE, INDEXED_COLOR -> 1;
+				case GRAYSCALE_WITH_ALPHA     -> 2;
+				case TRUE_COLOR               -> 3;
+				case TRUE_COLOR_WITH_ALPHA    -> 4;
+			};
+			filterStride = Math.ceilDiv(bitsPerPixel, 8);
+			List<InputStream> ins = png.idats.stream()
+				.map(idat -> (InputStream)new ByteArrayInputStream(idat.data()))
+				.toList();
+			ZlibCodec codec = options.zlibCodec != null ? options.zlibCodec : ZlibCodec.getDefault();
+			input = new DataInputStream(codec.newDecompressor(new SequenceInputStream(Collections.enumeration(ins))));
+		}
+		
+		
+		@Override protected void packRow(int xOffset, int y, int xStep, int subwidth, byte[] dest, int off) {
+			if (xOffset != lastXOffset || xStep != lastXStep) {  // Each Adam7 pass differs from the previous one in these
+				rowDecoder = new ImageDecoder.RowDecoder(filterStride, Math.toIntExact(Math.ceilDiv((long)subwidth * bitsPerPixel, 8)));
+				lastXOffset = xOffset;
+				lastXStep = xStep;
+			}
+			try {
+				byte[] row = rowDecoder.readRow(input);
+				System.arraycopy(row, filterStride, dest, off, row.length - filterStride);
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+		
+		
+		@Override protected int getKeptFilter() {
+			return rowDecoder.getFilterType();
+		}
+		
+		
+		@Override public void close() throws IOException {
+			input.close();
+		}
+		
+	}
+	
+	
+	
+	/*---- Helper classes ----*/
+	
+	private static final class RowFilterer {
+		
+		private final int filterStride;
+		private final EncodeOptions.FilterStrategy strategy;
+		private byte[] previousRow;
+		private byte[] currentRow;
+		private byte[][] candidates;  // Filtered rows indexed by filter type, for ADAPTIVE and KEEP
+		private int lastFilter = 0;
+		
+		
+		public RowFilterer(int filterStride, int rowSize, EncodeOptions.FilterStrategy strategy) {
+			this.filterStride = filterStride;
+			this.strategy = strategy;
+			// The first filterStride bytes of each array are zero padding
+			previousRow = new byte[Math.addExact(rowSize, filterStride)];
+			currentRow = new byte[previousRow.length];
+			if (strategy == EncodeOptions.FilterStrategy.ADAPTIVE || strategy == EncodeOptions.FilterStrategy.KEEP)
+				candidates = new byte[][]{currentRow, new byte[currentRow.length], new byte[currentRow.length], new byte[currentRow.length], new byte[currentRow.length]};
+		}
+		
+		
+		// Returns the array that the next raw row should be packed into, starting at index filterStride.
+		public byte[] getCurrentRow() {
+			return currentRow;
+		}
+		
+		
+		// Writes the filter type byte and filtered bytes of the current row into dest starting at off,
+		// then makes the current row the previous row. If independent is true, the chosen filter
+		// type does not use the previous row. The kept filter type is used only by KEEP.
+		public void filterRow(byte[] dest, int off, boolean independent, int keptFilter) {
+			int filter = switch (strategy) {
+				case NONE -> 0;
+				case ADAPTIVE -> chooseFilter(independent ? 2 : candidates.length);
+				case KEEP -> {
+					if (independent && keptFilter >= 2)
+						yield chooseFilter(2);
+					filterCandidate(keptFilter, Long.MAX_VALUE);
+					yield keptFilter;
+				}
+				case EXHAUSTIVE -> throw new AssertionError("Unreachable value");  // Handled by TrialFilterer
+			};
+			byte[] filtered = filter == 0 ? currentRow : candidates[filter];
+			dest[off] = (byte)filter;
+			System.arraycopy(filtered, filterStride, dest, off + 1, currentRow.length - filterStride);
+			
+			byte[] temp = currentRow;
+			currentRow = previousRow;
+			previousRow = temp;
+			if (candidates != null)
+				candidates[0] = currentRow;
+		}
+		
+		
+		// Computes the filtered candidates of types [0, numFilters) and returns the one with the smallest score,
+		// preferring the lower type on ties. The previous row's choice is tried first because it usually wins
+		// again, which lets the other candidates stop early.
+		private int chooseFilter(int numFilters) {
+			int first = lastFilter < numFilters ? lastFilter : 0;
+			long bestScore = filterCandidate(first, Long.MAX_VALUE);
+			int result = first;
+			for (int i = 0; i < numFilters; i++) {
+				if (i == first)
+					continue;
+				long score = filterCandidate(i, i < result ? bestScore + 1 : bestScore);
+				if (score < bestScore || score == bestScore && i < result) {
+					bestScore = score;
+					result = i;
+				}
+			}
+			lastFilter = result;
+			return result;
+		}
+		
+		
+		// Returns the score of the given filter type, or any value at least limit if it is at least limit.
+		private long filterCandidate(int filter, long limit) {
+			return switch (filter) {
+				case 0 -> EncodeKernels.scoreNone(currentRow, filterStride, limit);
+				case 1 -> EncodeKernels.filterSub(currentRow, filterStride, candidates[1], limit);
+				case 2 -> EncodeKernels.filterUp(currentRow, previousRow, filterStride, candidates[2], limit);
+				case 3 -> EncodeKernels.filterAverage(currentRow, previousRow, filterStride, candidates[3], limit);
+				case 4 -> EncodeKernels.filterPaeth(currentRow, previousRow, filterStride, candidates[4], limit);
+				default -> throw new AssertionError("Unreachable value");
+			};
+		}
+		
+	}
+	
+	
+	
+	// Chooses each row's filter type by compressing every candidate after the rows already chosen in the
+	// same band, and keeping the one with the shortest output. Bands do not depend on each other's choices.
+	// The trials always use java.util.zip, whatever codec compresses the final data.
+	private static final class TrialFilterer {
+		
+		// Filters rows[start, end) into dest, each row preceded by its filter type byte. Every row has
+		// filterStride bytes of zero padding at the front, and rows[start - 1] is the previous raw row.
+		// Image row startY corresponds to rows[start], and the rows that begin a band of compressed data
+		// (every restartInterval rows, if positive) only try the filters that ignore the previous row.
+		public static void filterBand(byte[][] rows, int start, int end, int filterStride, byte[] dest, int startY, int restartInterval) {
+			int rowSize = rows[start].length - filterStride;
+			var candidates = new byte[5][rows[start].length];
+			var scratch = new byte[rowSize + (rowSize >>> 3) + 64];
+			var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			try {
+				for (int y = start, off = 0; y < end; y++, off += rowSize + 1) {
+					byte[] cur = rows[y];
+					byte[] prev = rows[y - 1];
+					System.arraycopy(cur, filterStride, candidates[0], filterStride, rowSize);
+					EncodeKernels.filterSub(cur, filterStride, candidates[1], Long.MAX_VALUE);
+					EncodeKernels.filterUp(cur, prev, filterStride, candidates[2], Long.MAX_VALUE);
+					EncodeKernels.filterAverage(cur, prev, filterStride, candidates[3], Long.MAX_VALUE);
+					EncodeKernels.filterPaeth(cur, prev, filterStride, candidates[4], Long.MAX_VALUE);
+					
+					int dictStart = Math.max(off - WINDOW_SIZE, 0);
+					int bestFilter = -1;
+					long bestSize = Long.MAX_VALUE;
+					int rowY = startY + y - start;
+					int numFilters = restartInterval > 0 && rowY > 0 && rowY % restartInterval == 0 ? 2 : candidates.length;
+					for (int i = 0; i < numFilters; i++) {
+						byte[] cand = candidates[i];
+						cand[filterStride - 1] = (byte)i;  // The filter type byte goes in the last padding byte
+						deflater.reset();
+						if (off > dictStart)
+							deflater.setDictionary(dest, dictStart, off - dictStart);
+						deflater.setInput(cand, filterStride - 1, rowSize + 1);
+						deflater.finish();
+						long size = 0;
+						while (!deflater.finished())
+							size += deflater.deflate(scratch);
+						cand[filterStride - 1] = 0;
+						if (size < bestSize) {
+							bestFilter = i;
+							bestSize = size;
 						}
 					}
-					case 8 -> {
-						for (int x = 0; x < subwidth; x++, i++)
-							filtersAndSamples[i] = (byte)image.getPixel(xOffset + x * xStep, yOffset + y * yStep);
-					}
-					default -> throw new AssertionError("Unreachable value");
+					dest[off] = (byte)bestFilter;
+					System.arraycopy(candidates[bestFilter], filterStride, dest, off + 1, rowSize);
 				}
+			} finally {
+				deflater.end();
 			}
-			dout.write(filtersAndSamples);
 		}
 		
+		
+		private static final int WINDOW_SIZE = 32 * 1024;  // The DEFLATE sliding window
+		
+		
+		private TrialFilterer() {}
+		
 	}
 	
 	
@@ -453,7 +973,18 @@ public final class ImageEncoder {
 		
 		
 		@Override public long getPixel(int x, int y) {
-			long val = image.getPixel(x, y);
+			return convert(image.getPixel(x, y));
+		}
+		
+		
+		@Override public void getRow(int x, int y, long[] dest, int off, int len) {
+			image.getRow(x, y, dest, off, len);
+			for (int i = 0; i < len; i++)
+				dest[off + i] = convert(dest[off + i]);
+		}
+		
+		
+		private long convert(long val) {
 			// For each channel: out = floor(in / IN_MAX * OUT_MAX + 0.5)
 			long r = (((val >>> 48) & 0xFFFF) * mul + rDiv) / rDiv >>> 1;
 			long g = (((val >>> 32) & 0xFFFF) * mul + gDiv) / gDiv >>> 1;
@@ -526,7 +1057,18 @@ public final class ImageEncoder {
 		
 		
 		@Override public int getPixel(int x, int y) {
-			int val = image.getPixel(x, y);
+			return convert(image.getPixel(x, y));
+		}
+		
+		
+		@Override public void getRow(int x, int y, int[] dest, int off, int len) {
+			image.getRow(x, y, dest, off, len);
+			for (int i = 0; i < len; i++)
+				dest[off + i] = convert(dest[off + i]);
+		}
+		
+		
+		private int convert(int val) {
 			// For each channel: out = floor(in / IN_MAX * OUT_MAX + 0.5)
 			int w = (int)((((val >>> 16) & 0xFFFF) * mul + wDiv) / wDiv >>> 1);
 			int a = (int)((((val >>>  0) & 0xFFFF) * mul + aDiv) / aDiv >>> 1);
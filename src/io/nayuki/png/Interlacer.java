@@ -17,6 +17,9 @@ abstract class Interlacer {
 	
 	protected final Ihdr ihdr;
 	
+	// Set by a subclass to skip all remaining subimages.
+	protected boolean done = false;
+	
 	
 	protected Interlacer(Ihdr ihdr) {
 		this.ihdr = Objects.requireNonNull(ihdr);
@@ -46,7 +49,7 @@ abstract class Interlacer {
 	private void handleSubimage(int xOffset, int yOffset, int xStep, int yStep) throws IOException {
 		int subwidth  = Math.ceilDiv(ihdr.width () - xOffset, xStep);
 		int subheight = Math.ceilDiv(ihdr.height() - yOffset, yStep);
-		if (subwidth > 0 && subheight > 0)
+		if (!done && subwidth > 0 && subheight > 0)
 			handleSubimage(xOffset, yOffset, xStep, yStep, subwidth, subheight);
 	}
 	
@@ -0,0 +1,203 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+
+
+/**
+ * An amount of memory shared by concurrent decoding and encoding calls, for admission control.
+ * Each call reserves its predicted peak memory use (see {@link ImageDecoder#estimateMemory(PngImage,
+ * DecodeOptions)} and {@link ImageEncoder#estimateMemory(io.nayuki.png.chunk.Ihdr, EncodeOptions)})
+ * before it allocates anything, and releases it when it returns. So the budget limits the memory of the
+ * work in progress, not of the images that the caller keeps afterward. Reservations are granted in
+ * the order they were requested, so that a large request is not starved by a stream of small ones.
+ * Instances are thread-safe.
+ * @see DecodeOptions#withMemoryBudget(MemoryBudget, boolean)
+ * @see EncodeOptions#withMemoryBudget(MemoryBudget, boolean)
+ */
+public final class MemoryBudget {
+	
+	/*---- Fields ----*/
+	
+	private final long capacity;
+	private long available;
+	
+	// Tickets of waiting requests, to grant them in order
+	private long nextTicket = 0;
+	private long nowServing = 0;
+	private final Set<Long> abandonedTickets = new HashSet<>();  // Given up by interrupted threads, not yet served
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	/**
+	 * Constructs a budget with the specified capacity, all of it available.
+	 * @param capacity the total number of bytes that can be reserved at once, a positive number
+	 * @throws IllegalArgumentException if {@code capacity} is not positive
+	 */
+	public MemoryBudget(long capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Non-positive capacity");
+		this.capacity = capacity;
+		available = capacity;
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	/**
+	 * Returns the total number of bytes that can be reserved at once.
+	 * @return the capacity of this budget
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+	
+	
+	/**
+	 * Returns the number of bytes not currently reserved.
+	 * @return the available amount of this budget
+	 */
+	public synchronized long getAvailable() {
+		return available;
+	}
+	
+	
+	/**
+	 * Reserves the specified number of bytes, waiting until they are available
+	 * and all earlier waiting requests have been granted.
+	 * @param bytes the number of bytes to reserve, in the range [0, capacity]
+	 * @return a reservation to close when the memory is no longer used (not {@code null})
+	 * @throws IllegalArgumentException if {@code bytes} is out of range
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public synchronized Reservation acquire(long bytes) throws InterruptedException {
+		checkRequest(bytes);
+		long ticket = nextTicket;
+		nextTicket++;
+		try {
+			while (ticket != nowServing || available < bytes)
+				wait();
+		} catch (InterruptedException e) {
+			if (ticket == nowServing)
+				advance();
+			else
+				abandonedTickets.add(ticket);
+			notifyAll();
+			throw e;
+		}
+		available -= bytes;
+		advance();
+		notifyAll();
+		return new Reservation(bytes);
+	}
+	
+	
+	/**
+	 * Reserves the specified number of bytes if they are available now
+	 * and no other request is waiting, otherwise returns empty.
+	 * @param bytes the number of bytes to reserve, in the range [0, capacity]
+	 * @return a reservation to close when the memory is no longer used, or empty (not {@code null})
+	 * @throws IllegalArgumentException if {@code bytes} is out of range
+	 */
+	public synchronized Optional<Reservation> tryAcquire(long bytes) {
+		checkRequest(bytes);
+		if (nextTicket != nowServing || available < bytes)
+			return Optional.empty();
+		available -= bytes;
+		return Optional.of(new Reservation(bytes));
+	}
+	
+	
+	// Reserves memory for a decoding or encoding call, either waiting or failing fast.
+	Reservation reserve(long bytes, boolean wait) {
+		if (bytes > capacity)
+			throw new IllegalArgumentException("Estimated memory use exceeds budget capacity");
+		if (!wait)
+			return tryAcquire(bytes).orElseThrow(() -> new IllegalStateException("Memory budget exhausted"));
+		try {
+			return acquire(bytes);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for memory", e);
+		}
+	}
+	
+	
+	private void checkRequest(long bytes) {
+		if (!(0 <= bytes && bytes <= capacity))
+			throw new IllegalArgumentException("Invalid number of bytes");
+	}
+	
+	
+	// Moves to the next ticket that is still waiting, if any.
+	private void advance() {
+		do nowServing++;
+		while (abandonedTickets.remove(nowServing));
+	}
+	
+	
+	private synchronized void release(long bytes) {
+		available += bytes;
+		notifyAll();
+	}
+	
+	
+	@Override public String toString() {
+		return String.format("MemoryBudget(capacity=%d, available=%d)", capacity, getAvailable());
+	}
+	
+	
+	
+	/*---- Helper class ----*/
+	
+	/**
+	 * An amount of memory reserved from a budget, which is returned by closing this object.
+	 * Closing more than once has no further effect. Instances are thread-safe.
+	 */
+	public final class Reservation implements AutoCloseable {
+		
+		private final long bytes;
+		private boolean closed = false;
+		
+		
+		private Reservation(long bytes) {
+			this.bytes = bytes;
+		}
+		
+		
+		/**
+		 * Returns the number of bytes reserved.
+		 * @return the size of this reservation
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+		
+		
+		/**
+		 * Returns the memory to the budget, if not already done.
+		 */
+		@Override public void close() {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+			}
+			release(bytes);
+		}
+		
+	}
+	
+}
@@ -10,12 +10,15 @@ package io.nayuki.png;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -23,11 +26,14 @@ import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.zip.CRC32;
 import io.nayuki.png.chunk.Chunk;
 import io.nayuki.png.chunk.Idat;
 import io.nayuki.png.chunk.Iend;
 import io.nayuki.png.chunk.Ihdr;
 import io.nayuki.png.chunk.Plte;
+import io.nayuki.png.chunk.Rspt;
+import io.nayuki.png.chunk.ZlibCodec;
 
 
 /**
@@ -148,7 +154,7 @@ public final class PngImage {
 	public PngImage() {}
 	
 	
-	private PngImage(List<Chunk> chunks) {
+	PngImage(List<Chunk> chunks) {
 		enum State {
 			BEFORE_IHDR,
 			AFTER_IHDR,
@@ -263,6 +269,192 @@ public final class PngImage {
 		"tRNS"));
 	
 	
+	/**
+	 * Decompresses the data of the IDAT chunks and compresses it again with the specified codec, replacing
+	 * them with a single IDAT chunk. The filtered rows are unchanged, so the pixels are not decoded. Any
+	 * rsPT chunk (see {@link Rspt}) is removed, because its offsets would no longer match the compressed data.
+	 * This is a shorthand for taking the IDAT chunks from {@link ImageEncoder#recompress(PngImage, EncodeOptions)}
+	 * with the filter strategy {@link EncodeOptions.FilterStrategy#KEEP} and the codec, which also decompresses.
+	 * @param codec the codec to decompress and compress with (not {@code null})
+	 * @throws NullPointerException if {@code codec} is {@code null}
+	 * @throws IllegalArgumentException if the IHDR chunk is missing, or the
+	 * IDAT chunks do not contain a valid zlib stream of the image's rows
+	 */
+	public void recompressIdats(ZlibCodec codec) {
+		PngImage result = ImageEncoder.recompress(this, EncodeOptions.DEFAULT
+			.withFilterStrategy(EncodeOptions.FilterStrategy.KEEP).withZlibCodec(codec));
+		idats = result.idats;
+		afterIhdr.removeIf(chk -> chk.getType().equals("rsPT"));
+		afterIdats.removeIf(chk -> chk.getType().equals("rsPT"));
+	}
+	
+	
+	/**
+	 * Regroups the data of the IDAT chunks into chunks of the specified size, except that the last one may be
+	 * shorter, without decompressing it. An existing IDAT chunk is kept as is if it already has the right size and
+	 * position, and otherwise the data is copied. Any rsPT chunk (see {@link Rspt}) is removed, because its bands would no
+	 * longer start at IDAT boundaries.
+	 * @param targetSize the number of data bytes in each IDAT chunk, which is positive
+	 * @throws IllegalArgumentException if {@code targetSize} is not positive
+	 */
+	public void rechunkIdats(int targetSize) {
+		if (targetSize <= 0)
+			throw new IllegalArgumentException("Non-positive chunk size");
+		long remaining = 0;
+		for (Idat idat : idats)
+			remaining += idat.data().length;
+		List<Idat> result = new ArrayList<>();
+		byte[] buffer = null;
+		int bufferLen = 0;
+		for (Idat idat : idats) {
+			byte[] data = idat.data();
+			if (bufferLen == 0 && data.length > 0 && (data.length == targetSize || data.length == remaining && data.length < targetSize)) {
+				result.add(idat);
+				remaining -= data.length;
+				continue;
+			}
+			for (int off = 0; off < data.length; ) {
+				if (buffer == null)
+					buffer = new byte[(int)Math.min(targetSize, remaining)];
+				int n = Math.min(data.length - off, buffer.length - bufferLen);
+				System.arraycopy(data, off, buffer, bufferLen, n);
+				off += n;
+				bufferLen += n;
+				remaining -= n;
+				if (bufferLen == buffer.length) {
+					result.add(new Idat(buffer));
+					buffer = null;
+					bufferLen = 0;
+				}
+			}
+		}
+		if (result.isEmpty() && !idats.isEmpty())
+			result.add(new Idat(new byte[0]));
+		idats = result;
+		afterIhdr.removeIf(chk -> chk.getType().equals("rsPT"));
+		afterIdats.removeIf(chk -> chk.getType().equals("rsPT"));
+	}
+	
+	
+	/**
+	 * Copies a PNG file from the specified input stream to the specified output stream, regrouping the data of each
+	 * run of consecutive IDAT chunks into chunks of the specified size, except that the last one may be shorter. This
+	 * works like {@link #rechunkIdats(int)}, but in one pass over the stream, holding at most one output chunk in
+	 * memory. Other chunks are copied byte for byte without being parsed, except that rsPT chunks are removed.
+	 * Each CRC-32 is checked as the chunk is read and computed as the new chunk is written. This does not close
+	 * either stream, and reads until the end of the input stream.
+	 * @param in the input stream to read a PNG file from (not {@code null})
+	 * @param out the output stream to write the PNG file to (not {@code null})
+	 * @param targetSize the number of data bytes in each IDAT chunk, which is positive
+	 * @throws NullPointerException if {@code in} or {@code out} is {@code null}
+	 * @throws IllegalArgumentException if {@code targetSize} is not positive, or the input has an invalid
+	 * signature, chunk length, chunk type, or CRC-32
+	 * @throws IOException if an I/O exception occurs
+	 */
+	public static void rechunkIdats(InputStream in, OutputStream out, int targetSize) throws IOException {
+		Objects.requireNonNull(in);
+		Objects.requireNonNull(out);
+		if (targetSize <= 0)
+			throw new IllegalArgumentException("Non-positive chunk size");
+		var din = new DataInputStream(in);
+		byte[] signature = XngFile.Type.PNG.getSignature();
+		var sig = new byte[signature.length];
+		din.readFully(sig);
+		if (!Arrays.equals(sig, signature))
+			throw new IllegalArgumentException("File signature is not PNG");
+		out.write(sig);
+		
+		var header = new byte[8];
+		var inCrc = new CRC32();
+		var outCrc = new CRC32();
+		byte[] buffer = new byte[0];  // Data of the next IDAT chunk to write
+		int bufferLen = 0;
+		boolean inIdats = false;  // Whether the previous chunk was an IDAT
+		boolean wroteIdat = false;  // Whether the current run of IDATs has written a chunk
+		for (int b; (b = din.read()) != -1; ) {
+			header[0] = (byte)b;
+			din.readFully(header, 1, header.length - 1);
+			int length = ByteBuffer.wrap(header).getInt(0);
+			if (length < 0)
+				throw new IllegalArgumentException("Chunk data length out of range");
+			String type = new String(header, 4, 4, StandardCharsets.US_ASCII);
+			Chunk.checkType(type);
+			inCrc.reset();
+			inCrc.update(header, 4, 4);
+			
+			if (type.equals("IDAT")) {
+				for (int remain = length; remain > 0; ) {
+					if (bufferLen == buffer.length) {
+						if (buffer.length < targetSize)  // Grow gradually, in case the data is much smaller than the target
+							buffer = Arrays.copyOf(buffer, (int)Math.min(Math.max(bufferLen + (long)remain, buffer.length * 2L), targetSize));
+						else {
+							writeIdat(buffer, bufferLen, outCrc, out);
+							wroteIdat = true;
+							bufferLen = 0;
+						}
+					}
+					int n = Math.min(remain, buffer.length - bufferLen);
+					din.readFully(buffer, bufferLen, n);
+					inCrc.update(buffer, bufferLen, n);
+					bufferLen += n;
+					remain -= n;
+				}
+				checkCrc(din, inCrc);
+				inIdats = true;
+				continue;
+			}
+			
+			if (inIdats) {
+				if (bufferLen > 0 || !wroteIdat)
+					writeIdat(buffer, bufferLen, outCrc, out);
+				bufferLen = 0;
+				inIdats = false;
+				wroteIdat = false;
+			}
+			boolean keep = !type.equals("rsPT");
+			if (keep)
+				out.write(header);
+			var temp = new byte[Math.min(length, 1 << 13)];
+			for (int remain = length; remain > 0; ) {
+				int n = Math.min(remain, temp.length);
+				din.readFully(temp, 0, n);
+				inCrc.update(temp, 0, n);
+				if (keep)
+					out.write(temp, 0, n);
+				remain -= n;
+			}
+			checkCrc(din, inCrc);
+			if (keep)
+				writeInt32((int)inCrc.getValue(), out);
+		}
+		if (inIdats && (bufferLen > 0 || !wroteIdat))
+			writeIdat(buffer, bufferLen, outCrc, out);
+	}
+	
+	
+	private static void checkCrc(DataInputStream in, CRC32 crc) throws IOException {
+		if (in.readInt() != (int)crc.getValue())
+			throw new IllegalArgumentException("Chunk CRC-32 mismatch");
+	}
+	
+	
+	private static void writeIdat(byte[] data, int len, CRC32 crc, OutputStream out) throws IOException {
+		writeInt32(len, out);
+		byte[] type = "IDAT".getBytes(StandardCharsets.US_ASCII);
+		out.write(type);
+		out.write(data, 0, len);
+		crc.reset();
+		crc.update(type);
+		crc.update(data, 0, len);
+		writeInt32((int)crc.getValue(), out);
+	}
+	
+	
+	private static void writeInt32(int val, OutputStream out) throws IOException {
+		out.write(new byte[]{(byte)(val >>> 24), (byte)(val >>> 16), (byte)(val >>> 8), (byte)val});
+	}
+	
+	
 	/**
 	 * Writes the signature and chunks of this PNG file to the specified output file.
 	 * @throws NullPointerException if {@code outFile}
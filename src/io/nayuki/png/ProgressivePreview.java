@@ -0,0 +1,127 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import java.util.Objects;
+import io.nayuki.png.image.GrayImage;
+import io.nayuki.png.image.PaletteImage;
+import io.nayuki.png.image.RgbaImage;
+
+
+/**
+ * Creates read-only views of a partially decoded image, where pixel (x, y) of the view is
+ * pixel (xMap[x], yMap[y]) of the image. Used for {@link DecodeListener} previews. Not instantiable.
+ */
+final class ProgressivePreview {
+	
+	// Returns a view of the given image, which is an RgbaImage, GrayImage, or PaletteImage.
+	public static Object of(Object img, int[] xMap, int[] yMap) {
+		Objects.requireNonNull(img);
+		if (img instanceof RgbaImage rgba) {
+			return new RgbaImage() {
+				@Override public int getWidth() {
+					return xMap.length;
+				}
+				
+				@Override public int getHeight() {
+					return yMap.length;
+				}
+				
+				@Override public int[] getBitDepths() {
+					return rgba.getBitDepths();
+				}
+				
+				@Override public long getPixel(int x, int y) {
+					return rgba.getPixel(xMap[x], yMap[y]);
+				}
+				
+				@Override public void getRow(int x, int y, long[] dest, int off, int len) {
+					Objects.checkFromIndexSize(x, len, xMap.length);
+					Objects.checkFromIndexSize(off, len, dest.length);
+					for (int i = 0; i < len; i++)
+						dest[off + i] = rgba.getPixel(xMap[x + i], yMap[y]);
+				}
+			};
+		} else if (img instanceof GrayImage gray) {
+			return new GrayImage() {
+				@Override public int getWidth() {
+					return xMap.length;
+				}
+				
+				@Override public int getHeight() {
+					return yMap.length;
+				}
+				
+				@Override public int[] getBitDepths() {
+					return gray.getBitDepths();
+				}
+				
+				@Override public int getPixel(int x, int y) {
+					return gray.getPixel(xMap[x], yMap[y]);
+				}
+				
+				@Override public void getRow(int x, int y, int[] dest, int off, int len) {
+					Objects.checkFromIndexSize(x, len, xMap.length);
+					Objects.checkFromIndexSize(off, len, dest.length);
+					for (int i = 0; i < len; i++)
+						dest[off + i] = gray.getPixel(xMap[x + i], yMap[y]);
+				}
+			};
+		} else if (img instanceof PaletteImage pal) {
+			return new PaletteImage() {
+				@Override public int getWidth() {
+					return xMap.length;
+				}
+				
+				@Override public int getHeight() {
+					return yMap.length;
+				}
+				
+				@Override public int[] getBitDepths() {
+					return pal.getBitDepths();
+				}
+				
+				@Override public long[] getPalette() {
+					return pal.getPalette();
+				}
+				
+				@Override public int getPixel(int x, int y) {
+					return pal.getPixel(xMap[x], yMap[y]);
+				}
+				
+				@Override public void getRow(int x, int y, int[] dest, int off, int len) {
+					Objects.checkFromIndexSize(x, len, xMap.length);
+					Objects.checkFromIndexSize(off, len, dest.length);
+					for (int i = 0; i < len; i++)
+						dest[off + i] = pal.getPixel(xMap[x + i], yMap[y]);
+				}
+			};
+		} else
+			throw new IllegalArgumentException("Unsupported image type");
+	}
+	
+	
+	// Returns, for each output coordinate, the nearest output coordinate at or before it (or else
+	// after it) whose source position origin + o * scale is a multiple of the given spacing.
+	public static int[] nearestDecoded(int length, int origin, int scale, int spacing) {
+		var result = new int[length];
+		for (int o = 0; o < length; o++) {
+			int pos = origin + o * scale;
+			int known = pos / spacing * spacing;
+			if (known < origin)
+				known += spacing;
+			result[o] = known < origin + length * scale ? (known - origin) / scale : o;
+		}
+		return result;
+	}
+	
+	
+	private ProgressivePreview() {}
+	
+}
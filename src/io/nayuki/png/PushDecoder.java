@@ -0,0 +1,391 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import io.nayuki.png.chunk.Chunk;
+import io.nayuki.png.chunk.Custom;
+import io.nayuki.png.chunk.Idat;
+import io.nayuki.png.chunk.Iend;
+import io.nayuki.png.chunk.Ihdr;
+
+
+/**
+ * Decodes a PNG file whose bytes arrive in pieces, without blocking a thread. The caller
+ * passes each piece to {@link #feed(ByteBuffer)} as it arrives; chunks may be split across
+ * pieces arbitrarily. Image data is decompressed and decoded as soon as it is fed, so the
+ * {@link DecodeListener} in the options is told about rows and passes as they complete, and
+ * {@link #getImage()} shows the partially decoded image at any time (for example, after the
+ * input turns out to be truncated). Call {@link #finish()} after the last piece to get the
+ * result. Non-IDAT chunks are buffered whole before being parsed; IDAT chunks are streamed.
+ * The image data is always decompressed with {@link java.util.zip.Inflater}, which accepts input
+ * in pieces, so the zlib codec in the options is not used.
+ * <p>The result is the same as {@link ImageDecoder#toImage(PngImage, DecodeOptions)} on the
+ * same file. After any method throws {@code IllegalArgumentException} due to invalid data,
+ * this object is unusable. Instances are not thread-safe.</p>
+ */
+public final class PushDecoder {
+	
+	/*---- Fields ----*/
+	
+	private final DecodeOptions options;
+	
+	private State state = State.SIGNATURE;
+	private byte[] buffer = new byte[SIGNATURE.length];  // Holds the signature, a chunk header, a whole chunk, or a CRC
+	private int bufferFill = 0;
+	
+	private Optional<Ihdr> ihdr = Optional.empty();
+	private List<Chunk> chunks = new ArrayList<>();  // All chunks so far, with empty placeholders for IDATs
+	private boolean afterIdats = false;
+	
+	// Image data state, created at the first IDAT chunk
+	private long idatRemaining;
+	private CRC32 idatCrc;
+	private Inflater inflater = null;
+	private ImageDecoder.Decoder decoder = null;
+	private List<int[]> subimages;  // Each is {xOffset, yOffset, xStep, yStep, subwidth, subheight}
+	private int subimageIndex;
+	private byte[] row;  // Filtered row being filled, or null if all pixels are done
+	private int rowFill;
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	/**
+	 * Constructs a push decoder with the default options.
+	 */
+	public PushDecoder() {
+		this(DecodeOptions.DEFAULT);
+	}
+	
+	
+	/**
+	 * Constructs a push decoder with the specified options.
+	 * @param options the settings for decoding (not {@code null})
+	 * @throws NullPointerException if {@code options} is {@code null}
+	 */
+	public PushDecoder(DecodeOptions options) {
+		this.options = Objects.requireNonNull(options);
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	/**
+	 * Consumes all the remaining bytes of the specified buffer, advancing its position to its limit.
+	 * The buffer is not retained after this method returns.
+	 * @param buf the next piece of the PNG file (not {@code null})
+	 * @throws NullPointerException if {@code buf} is {@code null}
+	 * @throws IllegalArgumentException if the data is invalid
+	 * (in which case this decoder becomes unusable)
+	 * @throws IllegalStateException if this decoder previously failed
+	 */
+	public void feed(ByteBuffer buf) {
+		Objects.requireNonNull(buf);
+		if (state == State.FAILED)
+			throw new IllegalStateException("Decoder previously failed");
+		try {
+			while (buf.hasRemaining()) {
+				if (state == State.IDAT_DATA)
+					feedIdatData(buf);
+				else if (state == State.AFTER_IEND)
+					throw new IllegalArgumentException("Unexpected data after IEND chunk");
+				else {
+					int n = Math.min(buf.remaining(), buffer.length - bufferFill);
+					buf.get(buffer, bufferFill, n);
+					bufferFill += n;
+					if (bufferFill == buffer.length)
+						handleBuffer();
+				}
+			}
+		} catch (RuntimeException e) {
+			state = State.FAILED;
+			if (inflater != null)
+				inflater.end();  // Free the native memory now, because this object is unusable
+			throw e;
+		}
+	}
+	
+	
+	/**
+	 * Tests whether the IEND chunk has been received, so that {@link #finish()} will succeed.
+	 * @return whether the whole file has been fed
+	 */
+	public boolean isComplete() {
+		return state == State.AFTER_IEND;
+	}
+	
+	
+	/**
+	 * Returns the image being decoded, or empty if no IDAT chunk has been received yet. The image has
+	 * the type described in {@link ImageDecoder#toImage(PngImage, DecodeOptions)}. Rows that have not
+	 * been decoded yet are all zero. The same object is returned each time and by {@link #finish()}.
+	 * @return the possibly partially decoded image, or empty
+	 */
+	public Optional<Object> getImage() {
+		return Optional.ofNullable(decoder).map(dec -> dec.getResult());
+	}
+	
+	
+	/**
+	 * Returns the decoded image after checking that the whole file has been fed.
+	 * @return the decoded image (not {@code null})
+	 * @throws IllegalArgumentException if the file is incomplete, in which case
+	 * the rows decoded so far can still be retrieved by {@link #getImage()}
+	 * @throws IllegalStateException if this decoder previously failed
+	 */
+	public Object finish() {
+		if (state == State.FAILED)
+			throw new IllegalStateException("Decoder previously failed");
+		if (state != State.AFTER_IEND)
+			throw new IllegalArgumentException("Truncated PNG data");
+		return decoder.getResult();
+	}
+	
+	
+	// Called when the buffer has been completely filled in a non-IDAT_DATA state.
+	private void handleBuffer() {
+		switch (state) {
+			case SIGNATURE -> {
+				if (!Arrays.equals(buffer, SIGNATURE))
+					throw new IllegalArgumentException("File signature is not PNG");
+				startChunkHeader();
+			}
+			
+			case CHUNK_HEADER -> {
+				int length = (buffer[0] & 0xFF) << 24 | (buffer[1] & 0xFF) << 16 | (buffer[2] & 0xFF) << 8 | (buffer[3] & 0xFF);
+				if (length < 0)
+					throw new IllegalArgumentException("Chunk data length out of range");
+				String type = new String(buffer, 4, 4, StandardCharsets.US_ASCII);
+				if (type.equals("IDAT")) {
+					beginIdat(length);
+					if (length == 0)
+						startIdatCrc();
+				} else {
+					if (length > Integer.MAX_VALUE - 12)
+						throw new IllegalArgumentException("Chunk too large to buffer");
+					byte[] header = buffer;
+					buffer = Arrays.copyOf(header, length + 12);
+					state = State.CHUNK_BODY;
+				}
+			}
+			
+			case CHUNK_BODY -> {
+				Chunk chk;
+				try {
+					chk = Chunk.read(new ByteArrayInputStream(buffer)).get();
+				} catch (IOException e) {
+					throw new IllegalArgumentException(e);
+				}
+				handleChunk(chk);
+				if (chk instanceof Iend) {
+					state = State.AFTER_IEND;
+					buffer = null;
+				} else
+					startChunkHeader();
+			}
+			
+			case IDAT_CRC -> {
+				int expect = (buffer[0] & 0xFF) << 24 | (buffer[1] & 0xFF) << 16 | (buffer[2] & 0xFF) << 8 | (buffer[3] & 0xFF);
+				if ((int)idatCrc.getValue() != expect)
+					throw new IllegalArgumentException("CRC-32 mismatch");
+				startChunkHeader();
+			}
+			
+			default -> throw new AssertionError("Unreachable value");
+		}
+	}
+	
+	
+	private void startChunkHeader() {
+		state = State.CHUNK_HEADER;
+		buffer = new byte[8];
+		bufferFill = 0;
+	}
+	
+	
+	private void startIdatCrc() {
+		state = State.IDAT_CRC;
+		buffer = new byte[4];
+		bufferFill = 0;
+	}
+	
+	
+	// Records a non-IDAT chunk and checks its position.
+	private void handleChunk(Chunk chk) {
+		if (chunks.isEmpty()) {
+			if (!(chk instanceof Ihdr h))
+				throw new IllegalArgumentException("Expected IHDR chunk");
+			ihdr = Optional.of(h);
+		} else if (chk instanceof Custom && chk.isCritical())
+			throw new IllegalArgumentException("Unrecognized critical chunk: " + chk.getType());
+		
+		if (inflater != null && !afterIdats) {  // First chunk after the IDATs
+			afterIdats = true;
+			finishImageData();
+		}
+		chunks.add(chk);
+		if (chk instanceof Iend) {
+			new PngImage(chunks);  // Check all the constraints between chunks
+			if (inflater == null)
+				throw new IllegalArgumentException("Missing IDAT chunk");
+		}
+	}
+	
+	
+	private void beginIdat(int length) {
+		if (chunks.isEmpty())
+			throw new IllegalArgumentException("Expected IHDR chunk");
+		if (afterIdats)
+			throw new IllegalArgumentException("Non-consecutive IDAT chunk");
+		if (inflater == null)
+			beginImageData();
+		chunks.add(new Idat(new byte[0]));
+		idatRemaining = length;
+		idatCrc = new CRC32();
+		idatCrc.update(buffer, 4, 4);
+		state = State.IDAT_DATA;
+	}
+	
+	
+	// Creates the decoder from the chunks before the first IDAT.
+	private void beginImageData() {
+		var png = new PngImage();
+		png.ihdr = ihdr;
+		png.afterIhdr.addAll(chunks.subList(1, chunks.size()));
+		decoder = ImageDecoder.newDecoder(png, options);
+		
+		subimages = new ArrayList<>();
+		try {
+			new Interlacer(ihdr.get()) {
+				@Override protected void handleSubimage(int xOffset, int yOffset, int xStep, int yStep, int subwidth, int subheight) {
+					subimages.add(new int[]{xOffset, yOffset, xStep, yStep, subwidth, subheight});
+				}
+			}.doInterlace();
+		} catch (IOException e) {
+			throw new AssertionError("Unreachable exception", e);
+		}
+		subimageIndex = -1;
+		row = new byte[0];
+		nextSubimage();
+		inflater = new Inflater();
+	}
+	
+	
+	private void feedIdatData(ByteBuffer buf) {
+		int n = (int)Math.min(buf.remaining(), idatRemaining);
+		ByteBuffer slice = buf.slice(buf.position(), n);
+		buf.position(buf.position() + n);
+		idatRemaining -= n;
+		idatCrc.update(slice.duplicate());
+		
+		if (row != null || options.strictTrailingData) {
+			inflater.setInput(slice);
+			try {
+				inflate();
+			} catch (DataFormatException e) {
+				throw new IllegalArgumentException("Invalid compressed data", e);
+			}
+		}
+		if (idatRemaining == 0)
+			startIdatCrc();
+	}
+	
+	
+	// Decompresses as much as possible of the current input into rows.
+	private void inflate() throws DataFormatException {
+		while (!inflater.finished()) {
+			if (row == null) {  // All pixels done, so any more data is extra
+				if (inflater.inflate(new byte[1]) > 0)
+					throw new IllegalArgumentException("Extra decompressed data after all pixels");
+			} else {
+				rowFill += inflater.inflate(row, rowFill, row.length - rowFill);
+				if (rowFill == row.length) {
+					decoder.acceptRow(row);
+					rowFill = 0;
+					if (decoder.nextRowSize() == 0) {
+						decoder.endSubimage();
+						nextSubimage();
+					}
+					continue;
+				}
+			}
+			if (inflater.needsDictionary())
+				throw new IllegalArgumentException("Invalid compressed data");
+			if (inflater.needsInput())
+				break;
+		}
+	}
+	
+	
+	// Advances to the next subimage that needs rows, or sets row to null if there is none.
+	private void nextSubimage() {
+		while (true) {
+			subimageIndex++;
+			if (subimageIndex >= subimages.size()) {
+				row = null;
+				return;
+			}
+			int[] sub = subimages.get(subimageIndex);
+			if (!decoder.beginSubimage(sub[0], sub[1], sub[2], sub[3], sub[4], sub[5])) {
+				row = null;
+				return;
+			}
+			int size = decoder.nextRowSize();
+			if (size > 0) {
+				if (row == null || row.length != size)
+					row = new byte[size];
+				rowFill = 0;
+				return;
+			}
+			decoder.endSubimage();
+		}
+	}
+	
+	
+	// Checks the state of the image data after the last IDAT chunk.
+	private void finishImageData() {
+		if (row != null)
+			throw new IllegalArgumentException("Missing pixel data");
+		if (options.strictTrailingData && !inflater.finished())
+			throw new IllegalArgumentException("Incomplete compressed data");
+		inflater.end();
+	}
+	
+	
+	
+	/*---- Helper members ----*/
+	
+	private enum State {
+		SIGNATURE,
+		CHUNK_HEADER,
+		CHUNK_BODY,
+		IDAT_DATA,
+		IDAT_CRC,
+		AFTER_IEND,
+		FAILED,
+	}
+	
+	
+	private static final byte[] SIGNATURE = XngFile.Type.PNG.getSignature();
+	
+}
@@ -0,0 +1,39 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import java.util.Objects;
+import io.nayuki.png.image.BufferedGrayImage;
+import io.nayuki.png.image.BufferedPaletteImage;
+import io.nayuki.png.image.BufferedRgbaImage;
+
+
+/**
+ * A group of consecutive full-width rows of a decoded image, as published by {@link
+ * ImageDecoder#toRows(PngImage, DecodeOptions, int)}. The rows are held in a buffered image whose
+ * width is that of the decoded image, whose height is the number of rows in this batch, and whose
+ * type is chosen by the PNG's color type in the same way as {@link ImageDecoder#toImage(PngImage)}.
+ * The subscriber owns the buffered image, and may modify it or keep it.
+ * @param y the <var>y</var> coordinate in the decoded image of the first row of this batch, a non-negative number
+ * @param rows a {@link BufferedRgbaImage}, {@link BufferedGrayImage}, or {@link BufferedPaletteImage} holding the rows (not {@code null})
+ */
+public record RowBatch(
+		int y,
+		Object rows) {
+	
+	
+	public RowBatch {
+		if (y < 0)
+			throw new IllegalArgumentException("Negative y coordinate");
+		Objects.requireNonNull(rows);
+		if (!(rows instanceof BufferedRgbaImage || rows instanceof BufferedGrayImage || rows instanceof BufferedPaletteImage))
+			throw new IllegalArgumentException("Unsupported image type");
+	}
+	
+}
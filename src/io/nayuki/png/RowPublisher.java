@@ -0,0 +1,200 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Flow;
+import java.util.function.BooleanSupplier;
+import io.nayuki.png.image.BufferedGrayImage;
+import io.nayuki.png.image.BufferedPaletteImage;
+import io.nayuki.png.image.BufferedRgbaImage;
+import io.nayuki.png.image.GrayImage;
+import io.nayuki.png.image.PaletteImage;
+import io.nayuki.png.image.RgbaImage;
+
+
+/**
+ * Publishes the rows of a decoded image in batches, as described in {@link ImageDecoder#toRows(PngImage,
+ * DecodeOptions, int)}. Each subscription runs the decoder on its own virtual thread, which hands each
+ * finished row to the subscription instead of storing it in an image. The subscription copies the rows into
+ * batches, and that thread waits before publishing a batch while the subscriber has no outstanding demand.
+ */
+final class RowPublisher implements Flow.Publisher<RowBatch> {
+	
+	/*---- Fields ----*/
+	
+	private final PngImage png;
+	private final DecodeOptions options;
+	private final int batchHeight;
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	public RowPublisher(PngImage png, DecodeOptions options, int batchHeight) {
+		this.png = Objects.requireNonNull(png);
+		this.options = Objects.requireNonNull(options);
+		if (batchHeight <= 0)
+			throw new IllegalArgumentException("Non-positive batch height");
+		this.batchHeight = batchHeight;
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	@Override public void subscribe(Flow.Subscriber<? super RowBatch> subscriber) {
+		Objects.requireNonNull(subscriber);
+		var subscription = new RowSubscription(subscriber);
+		Thread.ofVirtual().name("PNG row publisher").start(subscription::run);
+	}
+	
+	
+	
+	/*---- Helper class ----*/
+	
+	private final class RowSubscription implements Flow.Subscription, ImageDecoder.RowSink {
+		
+		private final Flow.Subscriber<? super RowBatch> subscriber;
+		
+		// Guarded by this
+		private long demand = 0;
+		private boolean cancelled = false;
+		private IllegalArgumentException badRequest = null;
+		
+		// Used only by the decoding thread
+		private Object format = null;  // A 1*1 image with the decoded image's type, bit depths, and palette
+		private int width = 0;
+		private int height = 0;
+		private int nextY = 0;  // The row that the decoder must send next
+		private int batchY = 0;  // The first row of the batch being filled
+		private Object batch = null;  // A buffered image, or null before the first row of a batch
+		
+		
+		public RowSubscription(Flow.Subscriber<? super RowBatch> subscriber) {
+			this.subscriber = subscriber;
+		}
+		
+		
+		@Override public synchronized void request(long n) {
+			if (n <= 0) {
+				if (badRequest == null)
+					badRequest = new IllegalArgumentException("Non-positive request");
+			} else
+				demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;  // Saturate on overflow
+			notifyAll();
+		}
+		
+		
+		@Override public synchronized void cancel() {
+			cancelled = true;
+			notifyAll();
+		}
+		
+		
+		private synchronized boolean isStopped() {
+			return cancelled || badRequest != null;
+		}
+		
+		
+		// Decodes the image, then signals completion or an error, unless the subscription was cancelled.
+		public void run() {
+			try {
+				subscriber.onSubscribe(this);
+			} catch (Throwable e) {
+				return;  // The subscription is considered cancelled
+			}
+			
+			Throwable error = null;
+			try {
+				BooleanSupplier other = options.cancellation;
+				BooleanSupplier stop = other == null ? this::isStopped : () -> isStopped() || other.getAsBoolean();
+				ImageDecoder.decode(png, options.withCancellation(stop), this);
+			} catch (Throwable e) {
+				error = e;
+			}
+			synchronized (this) {
+				if (cancelled)
+					return;
+				if (badRequest != null)
+					error = badRequest;
+			}
+			try {
+				if (error == null)
+					subscriber.onComplete();
+				else
+					subscriber.onError(error);
+			} catch (Throwable e) {}  // Nothing more is signaled either way
+		}
+		
+		
+		@Override public void begin(Object format, int width, int height) {
+			this.format = format;
+			this.width = width;
+			this.height = height;
+		}
+		
+		
+		// Copies the given row into the batch being filled, and publishes the batch if it is full.
+		@Override public void acceptRow(int y, Object pixels) {
+			if (y != nextY)
+				throw new AssertionError("Rows out of order");
+			if (batch == null) {
+				batchY = y;
+				int h = Math.min(batchHeight, height - y);
+				if (format instanceof RgbaImage img)
+					batch = new BufferedRgbaImage(width, h, img.getBitDepths());
+				else if (format instanceof GrayImage img)
+					batch = new BufferedGrayImage(width, h, img.getBitDepths());
+				else if (format instanceof PaletteImage img)
+					batch = new BufferedPaletteImage(width, h, img.getBitDepths(), img.getPalette());
+				else
+					throw new AssertionError("Unreachable value");
+			}
+			if (batch instanceof BufferedRgbaImage b)
+				b.setRow(0, y - batchY, (long[])pixels, 0, width);
+			else if (batch instanceof BufferedGrayImage b)
+				b.setRow(0, y - batchY, (int[])pixels, 0, width);
+			else
+				((BufferedPaletteImage)batch).setRow(0, y - batchY, (int[])pixels, 0, width);
+			nextY = y + 1;
+			if (nextY == height || nextY - batchY == batchHeight) {
+				publish(new RowBatch(batchY, batch));
+				batch = null;
+			}
+		}
+		
+		
+		// Waits for demand, then sends the given batch to the subscriber.
+		private void publish(RowBatch item) {
+			synchronized (this) {
+				try {
+					while (demand == 0 && !isStopped())
+						wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					cancelled = true;
+				}
+				if (isStopped())
+					throw new CancellationException("Decoding cancelled");
+				if (demand != Long.MAX_VALUE)  // Otherwise unbounded
+					demand--;
+			}
+			try {
+				subscriber.onNext(item);
+			} catch (Throwable e) {
+				cancel();
+				throw new CancellationException("Subscriber failed");
+			}
+		}
+		
+	}
+	
+}
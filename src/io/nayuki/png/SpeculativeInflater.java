@@ -0,0 +1,504 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+
+
+/**
+ * An experimental pure-Java decompressor that inflates one large zlib stream on several threads, although the
+ * stream was compressed serially. The compressed data is cut into chunks of about equal size. The worker for each
+ * chunk after the first guesses where the first DEFLATE block in its chunk begins, by checking each bit position
+ * for a plausible block header and trying to decode from it. Because the 32 KiB of data before that position are
+ * not known yet, back-references into them are recorded as markers, which are replaced with the real bytes after
+ * the preceding chunk is done. A guess is only used if the preceding chunk really ended at the guessed position;
+ * otherwise the chunk is decoded again from the right position. So the result always equals a serial decode,
+ * and it is also checked against the Adler-32 in the zlib trailer. Not instantiable.
+ */
+final class SpeculativeInflater {
+	
+	/*---- Entry point ----*/
+	
+	// Decompresses the whole given zlib stream, cutting it into chunks of about chunkSize bytes. Returns the
+	// decompressed data, or null if the stream is invalid or decompresses to more than maxOutput bytes. The
+	// caller should then decompress the data serially, which reports any problem in the usual way.
+	public static byte[] inflate(byte[] data, int chunkSize, int maxOutput) {
+		if (chunkSize <= 0 || maxOutput < 0)
+			throw new IllegalArgumentException();
+		if (data.length < 2)
+			return null;
+		int cmf = data[0] & 0xFF;
+		int flg = data[1] & 0xFF;
+		if ((cmf & 0x0F) != 8 || cmf >>> 4 > 7 || (cmf << 8 | flg) % 31 != 0 || (flg & 0x20) != 0)
+			return null;
+		
+		int numChunks = Math.ceilDiv(data.length, chunkSize);
+		int groupSize = ForkJoinPool.getCommonPoolParallelism() * 2;
+		var out = new byte[Math.min(maxOutput, Math.max(data.length, 1 << 16))];
+		int outLen = 0;
+		long pos = 16;  // Bit position of the next block to decode
+		boolean finished = false;
+		for (int groupStart = 0; groupStart < numChunks && !finished; groupStart += groupSize) {
+			int start = groupStart;
+			int end = Math.min(start + groupSize, numChunks);
+			var guesses = new Chunk[end - start];
+			IntStream.range(start, end).parallel().forEach(k -> {
+				long stopBit = stopBit(k, numChunks, chunkSize);
+				guesses[k - start] = k == 0 ? decode(data, 16, stopBit, maxOutput) : guess(data, k * (long)chunkSize * 8, stopBit, maxOutput);
+			});
+			
+			for (int k = start; k < end && !finished; k++) {
+				Chunk chk = guesses[k - start];
+				if (chk == null || chk.startBit() != pos)
+					chk = decode(data, pos, stopBit(k, numChunks, chunkSize), maxOutput);
+				if (chk == null || chk.length() > maxOutput - outLen)
+					return null;
+				if (chk.length() > out.length - outLen)
+					out = Arrays.copyOf(out, (int)Math.min(Math.max((long)out.length * 2, (long)outLen + chk.length()), maxOutput));
+				
+				// Copy the chunk's data, replacing each marker with the byte it refers to
+				int chunkStart = outLen;
+				char[] vals = chk.data();
+				for (int i = 0; i < chk.length(); i++, outLen++) {
+					int val = vals[i];
+					if (val >= 256) {
+						int src = chunkStart - WINDOW_SIZE + (val - 256);
+						if (src < 0)
+							return null;  // Refers to before the start of the stream
+						out[outLen] = out[src];
+					} else
+						out[outLen] = (byte)val;
+				}
+				pos = chk.endBit();
+				finished = chk.isFinal();
+			}
+		}
+		if (!finished)
+			return null;
+		
+		int trailer = (int)Math.ceilDiv(pos, 8);
+		if (data.length - trailer < 4)
+			return null;
+		long stored = 0;
+		for (int i = trailer; i < trailer + 4; i++)
+			stored = stored << 8 | (data[i] & 0xFF);
+		var adler = new Adler32();
+		adler.update(out, 0, outLen);
+		if (adler.getValue() != stored)
+			return null;
+		return outLen == out.length ? out : Arrays.copyOf(out, outLen);
+	}
+	
+	
+	// Returns the bit position at or after which the decoding of the given chunk stops at a block boundary.
+	private static long stopBit(int index, int numChunks, int chunkSize) {
+		return index < numChunks - 1 ? (index + 1L) * chunkSize * 8 : Long.MAX_VALUE;
+	}
+	
+	
+	
+	/*---- Speculative decoding ----*/
+	
+	// Returns the decoding from the first bit position in [startBit, stopBit) where decoding
+	// succeeds, or null if there is none. The result may start at a wrong position.
+	static Chunk guess(byte[] data, long startBit, long stopBit, int maxOutput) {
+		for (long p = startBit, end = Math.min(stopBit, data.length * 8L); p < end; p++) {
+			if (isPlausibleBlockStart(data, p)) {
+				Chunk result = decode(data, p, stopBit, maxOutput);
+				if (result != null)
+					return result;
+			}
+		}
+		return null;
+	}
+	
+	
+	// Tests whether a stored block or a dynamic Huffman block could start at the given bit position,
+	// without decoding the code lengths. Blocks with fixed codes are not recognized, because they are hard to
+	// tell from random data, and if a chunk has only such blocks then it is decoded serially.
+	static boolean isPlausibleBlockStart(byte[] data, long pos) {
+		long bits = peekBits(data, pos);
+		int type = (int)(bits >>> 1) & 3;
+		if (type == 0) {
+			int pad = (int)(-(pos + 3) & 7);
+			if ((bits >>> 3 & ((1 << pad) - 1)) != 0)
+				return false;
+			int len = (int)(bits >>> (3 + pad)) & 0xFFFF;
+			int nlen = (int)(bits >>> (19 + pad)) & 0xFFFF;
+			return len == (~nlen & 0xFFFF);
+		} else if (type == 2) {
+			if ((bits >>> 3 & 31) > 29 || (bits >>> 8 & 31) > 29)
+				return false;
+			int numCodeLens = (int)(bits >>> 13 & 15) + 4;
+			long codeLens = peekBits(data, pos + 17);
+			int kraftSum = 0;  // In units of 2^-7
+			for (int i = 0; i < numCodeLens; i++) {
+				int len = (int)(codeLens >>> (i * 3)) & 7;
+				if (len > 0)
+					kraftSum += 128 >>> len;
+			}
+			return kraftSum == 128;
+		} else
+			return false;
+	}
+	
+	
+	// Returns the 64 bits starting at the given bit position, in DEFLATE bit order,
+	// treating bytes past the end of the data as zero.
+	private static long peekBits(byte[] data, long pos) {
+		int i = (int)(pos >>> 3);
+		int shift = (int)pos & 7;
+		long result = 0;
+		for (int j = Math.min(i + 8, data.length) - 1; j >= i; j--)
+			result = result << 8 | (data[j] & 0xFF);
+		if (shift > 0 && i + 8 < data.length)
+			result = result >>> shift | (long)data[i + 8] << (64 - shift);
+		else
+			result >>>= shift;
+		return result;
+	}
+	
+	
+	// Decodes whole blocks from the given bit position, until a block ends at or after stopBit or
+	// the final block ends. Returns the decoded data with markers, or null if the data is invalid.
+	private static Chunk decode(byte[] data, long startBit, long stopBit, int maxOutput) {
+		try {
+			var dec = new BlockDecoder(data, startBit, maxOutput);
+			boolean isFinal = dec.decodeBlocks(stopBit);
+			return new Chunk(startBit, dec.bitPosition(), dec.out, dec.outLen, isFinal);
+		} catch (DataFormatException e) {
+			return null;
+		}
+	}
+	
+	
+	// The decoding of a range of blocks. The values in data are bytes, or 256 + i for the byte
+	// at index i of the 32 KiB window that precedes the chunk, which was not known yet.
+	record Chunk(long startBit, long endBit, char[] data, int length, boolean isFinal) {}
+	
+	
+	private static final int WINDOW_SIZE = 32 * 1024;
+	
+	
+	
+	/*---- Helper class ----*/
+	
+	// Decodes DEFLATE blocks from a bit position in a byte array.
+	private static final class BlockDecoder {
+		
+		private final byte[] data;
+		private final int maxOutput;
+		
+		// Bits not consumed yet, in the low bitCount bits of bitBuffer, and the index of the next byte to load
+		private long bitBuffer = 0;
+		private int bitCount = 0;
+		private int dataIndex;
+		
+		public char[] out = new char[1 << 12];
+		public int outLen = 0;
+		
+		
+		public BlockDecoder(byte[] data, long startBit, int maxOutput) throws DataFormatException {
+			this.data = data;
+			this.maxOutput = maxOutput;
+			dataIndex = (int)(startBit >>> 3);
+			readBits((int)startBit & 7);
+		}
+		
+		
+		public long bitPosition() {
+			return dataIndex * 8L - bitCount;
+		}
+		
+		
+		// Returns whether the final block was decoded.
+		public boolean decodeBlocks(long stopBit) throws DataFormatException {
+			while (true) {
+				boolean isFinal = readBits(1) != 0;
+				switch (readBits(2)) {
+					case 0 -> decodeStoredBlock();
+					case 1 -> decodeHuffmanBlock(FIXED_LITERAL_LENGTH_CODE, FIXED_DISTANCE_CODE);
+					case 2 -> decodeDynamicBlock();
+					default -> throw new DataFormatException("Reserved block type");
+				}
+				if (bitPosition() > data.length * 8L)
+					throw new DataFormatException("Unexpected end of data");
+				if (isFinal)
+					return true;
+				if (bitPosition() >= stopBit)
+					return false;
+			}
+		}
+		
+		
+		private void decodeStoredBlock() throws DataFormatException {
+			readBits(bitCount & 7);
+			int len = readBits(16);
+			if (len != (~readBits(16) & 0xFFFF))
+				throw new DataFormatException("Invalid stored block length");
+			dataIndex -= bitCount >>> 3;
+			bitBuffer = 0;
+			bitCount = 0;
+			if (len > data.length - dataIndex)
+				throw new DataFormatException("Unexpected end of data");
+			ensureCapacity(len);
+			for (int i = 0; i < len; i++, dataIndex++, outLen++)
+				out[outLen] = (char)(data[dataIndex] & 0xFF);
+		}
+		
+		
+		private void decodeDynamicBlock() throws DataFormatException {
+			int numLitLen = readBits(5) + 257;
+			int numDist = readBits(5) + 1;
+			if (numLitLen > 286 || numDist > 30)
+				throw new DataFormatException("Too many codes");
+			var codeLenLens = new byte[19];
+			for (int i = 0, n = readBits(4) + 4; i < n; i++)
+				codeLenLens[CODE_LENGTH_ORDER[i]] = (byte)readBits(3);
+			var codeLenCode = new HuffmanCode(codeLenLens, 0, codeLenLens.length, false);
+			
+			var lens = new byte[numLitLen + numDist];
+			for (int i = 0; i < lens.length; ) {
+				int sym = decodeSymbol(codeLenCode);
+				if (sym < 16) {
+					lens[i] = (byte)sym;
+					i++;
+					continue;
+				}
+				int val = 0;
+				int run = switch (sym) {
+					case 16 -> {
+						if (i == 0)
+							throw new DataFormatException("No code length to repeat");
+						val = lens[i - 1];
+						yield readBits(2) + 3;
+					}
+					case 17 -> readBits(3) + 3;
+					case 18 -> readBits(7) + 11;
+					default -> throw new DataFormatException("Invalid code length symbol");
+				};
+				if (run > lens.length - i)
+					throw new DataFormatException("Too many code lengths");
+				Arrays.fill(lens, i, i + run, (byte)val);
+				i += run;
+			}
+			if (lens[256] == 0)
+				throw new DataFormatException("Missing end-of-block code");
+			decodeHuffmanBlock(
+				new HuffmanCode(lens, 0, numLitLen, true),
+				new HuffmanCode(lens, numLitLen, numDist, true));
+		}
+		
+		
+		private void decodeHuffmanBlock(HuffmanCode litLenCode, HuffmanCode distCode) throws DataFormatException {
+			while (true) {
+				if (bitCount < 48)  // Enough for the longest length and distance pair
+					refill();
+				int sym = decodeSymbol(litLenCode);
+				if (sym < 256) {
+					if (outLen == out.length)
+						ensureCapacity(1);
+					out[outLen] = (char)sym;
+					outLen++;
+				} else if (sym == 256)
+					break;
+				else {
+					sym -= 257;
+					if (sym >= LENGTH_BASE.length)
+						throw new DataFormatException("Invalid length symbol");
+					int len = LENGTH_BASE[sym] + takeBits(LENGTH_EXTRA_BITS[sym]);
+					int distSym = decodeSymbol(distCode);
+					if (distSym >= DISTANCE_BASE.length)
+						throw new DataFormatException("Invalid distance symbol");
+					int dist = DISTANCE_BASE[distSym] + takeBits(DISTANCE_EXTRA_BITS[distSym]);
+					if (dist > outLen + WINDOW_SIZE)
+						throw new DataFormatException("Distance too far back");
+					ensureCapacity(len);
+					char[] out = this.out;
+					int src = outLen - dist;
+					int dest = outLen;
+					for (int end = dest + len; dest < end; dest++, src++)
+						out[dest] = src >= 0 ? out[src] : (char)(256 + WINDOW_SIZE + src);
+					outLen = dest;
+				}
+			}
+		}
+		
+		
+		private int decodeSymbol(HuffmanCode code) throws DataFormatException {
+			if (bitCount < HuffmanCode.MAX_LENGTH)
+				refill();
+			int entry = code.table[(int)bitBuffer & ((1 << HuffmanCode.TABLE_BITS) - 1)];
+			if (entry != 0) {
+				takeBits(entry & 15);
+				return entry >>> 4;
+			}
+			
+			// Slow path for long codes, one bit at a time in canonical order
+			int bits = (int)bitBuffer;
+			int first = 0;  // First code of the current length
+			int index = 0;  // Index in symbols of that code
+			int val = 0;
+			for (int len = 1; len <= HuffmanCode.MAX_LENGTH; len++) {
+				val |= (bits >>> (len - 1)) & 1;
+				int count = code.counts[len];
+				if (val - first < count) {
+					takeBits(len);
+					return code.symbols[index + val - first];
+				}
+				index += count;
+				first = (first + count) << 1;
+				val <<= 1;
+			}
+			throw new DataFormatException("Invalid code");
+		}
+		
+		
+		private int readBits(int n) throws DataFormatException {
+			if (bitCount < n)
+				refill();
+			return takeBits(n);
+		}
+		
+		
+		// Requires bitCount >= n.
+		private int takeBits(int n) {
+			int result = (int)bitBuffer & ((1 << n) - 1);
+			bitBuffer >>>= n;
+			bitCount -= n;
+			return result;
+		}
+		
+		
+		// Loads bytes until at least 57 bits are available. Past the end of the data, up to 8 zero bytes are
+		// loaded so that lookahead works; decoding that really uses them is detected after each block.
+		private void refill() throws DataFormatException {
+			while (bitCount <= 56) {
+				int b;
+				if (dataIndex < data.length)
+					b = data[dataIndex] & 0xFF;
+				else if (dataIndex < data.length + 8)
+					b = 0;
+				else
+					throw new DataFormatException("Unexpected end of data");
+				bitBuffer |= (long)b << bitCount;
+				bitCount += 8;
+				dataIndex++;
+			}
+		}
+		
+		
+		private void ensureCapacity(int n) throws DataFormatException {
+			if (n > maxOutput - outLen)
+				throw new DataFormatException("Too much decompressed data");
+			if (n > out.length - outLen)
+				out = Arrays.copyOf(out, (int)Math.min(Math.max((long)out.length * 2, (long)outLen + n), maxOutput));
+		}
+		
+		
+		private static final int[] CODE_LENGTH_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+		
+		private static final int[] LENGTH_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+		private static final int[] LENGTH_EXTRA_BITS = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+		
+		private static final int[] DISTANCE_BASE = {1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+		private static final int[] DISTANCE_EXTRA_BITS = {0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+		
+		private static final HuffmanCode FIXED_LITERAL_LENGTH_CODE;
+		private static final HuffmanCode FIXED_DISTANCE_CODE;
+		
+		static {
+			var lens = new byte[288];
+			Arrays.fill(lens, 0, 144, (byte)8);
+			Arrays.fill(lens, 144, 256, (byte)9);
+			Arrays.fill(lens, 256, 280, (byte)7);
+			Arrays.fill(lens, 280, 288, (byte)8);
+			var distLens = new byte[32];
+			Arrays.fill(distLens, (byte)5);
+			try {
+				FIXED_LITERAL_LENGTH_CODE = new HuffmanCode(lens, 0, lens.length, false);
+				FIXED_DISTANCE_CODE = new HuffmanCode(distLens, 0, distLens.length, false);
+			} catch (DataFormatException e) {
+				throw new AssertionError("Unreachable exception", e);
+			}
+		}
+		
+	}
+	
+	
+	
+	/*---- Helper class ----*/
+	
+	// A canonical Huffman code, with a lookup table for short codes and a sorted symbol list for long ones.
+	private static final class HuffmanCode {
+		
+		public static final int MAX_LENGTH = 15;
+		public static final int TABLE_BITS = 10;
+		
+		// Indexed by the next TABLE_BITS bits; each entry is symbol << 4 | code length, or 0 for a longer code
+		public final int[] table = new int[1 << TABLE_BITS];
+		
+		public final int[] counts = new int[MAX_LENGTH + 1];  // Number of codes of each length
+		public final int[] symbols;  // Sorted by code length and then by value
+		
+		
+		// Builds the code from the given code lengths of symbols 0 to n - 1. As in zlib, the code must be complete,
+		// except that a code with a single symbol of length 1 is allowed if allowSingle is true.
+		public HuffmanCode(byte[] lens, int off, int n, boolean allowSingle) throws DataFormatException {
+			for (int i = 0; i < n; i++)
+				counts[lens[off + i]]++;
+			counts[0] = 0;
+			int left = 1;
+			int total = 0;
+			for (int len = 1; len <= MAX_LENGTH; len++) {
+				left = (left << 1) - counts[len];
+				if (left < 0)
+					throw new DataFormatException("Over-subscribed code");
+				total += counts[len];
+			}
+			if (left > 0 && !(allowSingle && total == 1 && counts[1] == 1) && total > 0)
+				throw new DataFormatException("Incomplete code");
+			
+			var offsets = new int[MAX_LENGTH + 2];
+			for (int len = 1; len <= MAX_LENGTH; len++)
+				offsets[len + 1] = offsets[len] + counts[len];
+			symbols = new int[total];
+			var nextCode = new int[MAX_LENGTH + 1];
+			for (int len = 1, code = 0; len <= MAX_LENGTH; len++) {
+				code = (code + counts[len - 1]) << 1;
+				nextCode[len] = code;
+			}
+			for (int sym = 0; sym < n; sym++) {
+				int len = lens[off + sym];
+				if (len == 0)
+					continue;
+				symbols[offsets[len]] = sym;
+				offsets[len]++;
+				int code = nextCode[len];
+				nextCode[len]++;
+				if (len <= TABLE_BITS) {
+					for (int i = Integer.reverse(code) >>> (32 - len); i < table.length; i += 1 << len)
+						table[i] = sym << 4 | len;
+				}
+			}
+		}
+		
+	}
+	
+	
+	
+	/*---- Miscellaneous ----*/
+	
+	private SpeculativeInflater() {}
+	
+}
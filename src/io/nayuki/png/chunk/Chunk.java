@@ -8,14 +8,11 @@
 
 package io.nayuki.png.chunk;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterOutputStream;
 
 
 /**
@@ -71,6 +68,7 @@ public interface Chunk {
 				case Pcal.TYPE -> Pcal.read(cin);
 				case Phys.TYPE -> Phys.read(cin);
 				case Plte.TYPE -> Plte.read(cin);
+				case Rspt.TYPE -> Rspt.read(cin);
 				case Sbit.TYPE -> Sbit.read(cin);
 				case Scal.TYPE -> Scal.read(cin);
 				case Splt.TYPE -> Splt.read(cin);
@@ -172,29 +170,19 @@ public interface Chunk {
 	
 	/**
 	 * The list of defined compression methods. This is used in several chunk types.
+	 * Data is compressed and decompressed with {@link ZlibCodec#getDefault()}, and
+	 * decompression is limited by {@link ZlibCodec#setFieldDecompressionLimit(int)}.
 	 */
 	public enum CompressionMethod {
 		
 		/** The DEFLATE compressed format (specified in RFC 1951) wrapped in a ZLIB container (RFC 1950). */
 		ZLIB_DEFLATE {
 			public byte[] compress(byte[] data) {
-				var bout = new ByteArrayOutputStream();
-				try (var dout = new DeflaterOutputStream(bout)) {
-					dout.write(data);
-				} catch (IOException e) {
-					throw new AssertionError("Unreachable exception", e);
-				}
-				return bout.toByteArray();
+				return ZlibCodec.getDefault().compress(data);
 			}
 			
 			public byte[] decompress(byte[] data) {
-				var bout = new ByteArrayOutputStream(data.length);
-				try (var iout = new InflaterOutputStream(bout)) {
-					iout.write(data);
-				} catch (IOException e) {
-					throw new IllegalArgumentException("Invalid compressed data", e);
-				}
-				return bout.toByteArray();
+				return ZlibCodec.getDefault().decompress(data, ZlibCodec.getFieldDecompressionLimit());
 			}
 		};
 		
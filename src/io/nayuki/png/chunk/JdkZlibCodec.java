@@ -0,0 +1,116 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png.chunk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ServiceLoader;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * The zlib codec based on {@code java.util.zip}, which also holds the program-wide default codec and field limit.
+ */
+final class JdkZlibCodec implements ZlibCodec {
+	
+	/*---- Default codec ----*/
+	
+	private static volatile ZlibCodec defaultCodec = null;
+	
+	
+	static ZlibCodec getDefault() {
+		ZlibCodec result = defaultCodec;
+		if (result == null) {
+			synchronized (JdkZlibCodec.class) {
+				result = defaultCodec;
+				if (result == null) {
+					result = ServiceLoader.load(ZlibCodec.class).findFirst().orElse(JAVA_UTIL_ZIP);
+					defaultCodec = result;
+				}
+			}
+		}
+		return result;
+	}
+	
+	
+	static void setDefault(ZlibCodec codec) {
+		defaultCodec = codec;
+	}
+	
+	
+	private static volatile int fieldDecompressionLimit = Integer.MAX_VALUE;
+	
+	
+	static int getFieldDecompressionLimit() {
+		return fieldDecompressionLimit;
+	}
+	
+	
+	static void setFieldDecompressionLimit(int maxBytes) {
+		fieldDecompressionLimit = maxBytes;
+	}
+	
+	
+	
+	/*---- Codec ----*/
+	
+	private final int level;
+	
+	
+	JdkZlibCodec(int level) {
+		this.level = level;
+	}
+	
+	
+	@Override public OutputStream newCompressor(OutputStream out) {
+		return new DeflaterOutputStream(out, new Deflater(level)) {
+			@Override public void flush() throws IOException {
+				if (!def.finished()) {
+					int n;
+					do {
+						n = def.deflate(buf, 0, buf.length, Deflater.FULL_FLUSH);
+						out.write(buf, 0, n);
+					} while (n == buf.length);
+				}
+				out.flush();
+			}
+			
+			@Override public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					def.end();
+				}
+			}
+		};
+	}
+	
+	
+	@Override public InputStream newDecompressor(InputStream in) {
+		return new InflaterInputStream(in, new Inflater()) {
+			@Override public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inf.end();
+				}
+			}
+		};
+	}
+	
+	
+	@Override public String toString() {
+		return "ZlibCodec.javaUtilZip(" + level + ")";
+	}
+	
+}
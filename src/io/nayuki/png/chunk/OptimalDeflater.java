@@ -0,0 +1,774 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png.chunk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * A pure-Java DEFLATE compressor that spends far more time than zlib to find a smaller encoding, in the manner
+ * of Zopfli. For each range of data, it finds the best distance for every match length at every position, splits
+ * a first greedy parse into blocks where the statistics change, and then parses each block again several times
+ * by shortest path, with symbol costs from the previous parse. Each block is written with length-limited optimal
+ * Huffman codes (by the package-merge algorithm), or as a fixed-code or stored block if that is smaller. Ranges
+ * only depend on the input data before them, so they can be compressed in parallel. Not instantiable.
+ */
+final class OptimalDeflater {
+	
+	/*---- Range compression ----*/
+	
+	// Compresses data[start : end) as a sequence of DEFLATE blocks into out, where data[histStart : start) is the
+	// preceding data that back-references may refer to. The last block is marked final if isFinal is true; an
+	// empty range produces nothing unless it is final.
+	public static void compress(byte[] data, int histStart, int start, int end, boolean isFinal, int iterations, BitWriter out) {
+		if (start == end) {
+			if (isFinal)
+				out.writeBits(0b0000000_01_1, 10);  // Final block with fixed codes, containing only end-of-block
+			return;
+		}
+		var matches = new MatchFinder(data, Math.max(histStart, start - WINDOW_SIZE), start, end);
+		Lz77 greedy = parseGreedily(matches, start, end);
+		int[] bounds = splitBlocks(greedy);
+		for (int i = 0; i + 1 < bounds.length; i++) {
+			int blockStart = greedy.position(bounds[i]);
+			int blockEnd = bounds[i + 1] < greedy.size ? greedy.position(bounds[i + 1]) : end;
+			Lz77 best = greedy.slice(bounds[i], bounds[i + 1]);
+			long bestBits = blockBits(best.histogram(), null);
+			Lz77 cur = best;
+			for (int j = 0; j < iterations; j++) {
+				cur = parseOptimally(matches, blockStart, blockEnd, cur.histogram());
+				long bits = blockBits(cur.histogram(), null);
+				if (bits < bestBits) {
+					best = cur;
+					bestBits = bits;
+				}
+			}
+			writeBlock(best, data, blockStart, blockEnd, isFinal && i + 2 == bounds.length, out);
+		}
+	}
+	
+	
+	static final int WINDOW_SIZE = 32 * 1024;
+	private static final int MIN_MATCH = 3;
+	private static final int MAX_MATCH = 258;
+	
+	
+	
+	/*---- Parsing ----*/
+	
+	// Chooses the longest match at each position, unless the next position has a longer one.
+	private static Lz77 parseGreedily(MatchFinder matches, int start, int end) {
+		var result = new Lz77();
+		for (int i = start; i < end; ) {
+			int pair = matches.longest(i);
+			int len = pair >>> 16;
+			if (len >= MIN_MATCH && (i + 1 >= end || matches.longest(i + 1) >>> 16 <= len)) {
+				result.add(i, len, pair & 0xFFFF);
+				i += len;
+			} else {
+				result.add(i, 0, matches.data[i] & 0xFF);
+				i++;
+			}
+		}
+		return result;
+	}
+	
+	
+	// Finds the parse of data[start : end) with the lowest cost, where the cost of each symbol comes from the given
+	// histogram of a previous parse. Positions inside a maximum-length match are not expanded, which keeps long
+	// repetitions fast at a tiny cost in compression.
+	private static Lz77 parseOptimally(MatchFinder matches, int start, int end, int[] hist) {
+		float[] symCosts = symbolCosts(hist);
+		var lenCosts = new float[MAX_MATCH + 1];
+		for (int len = MIN_MATCH; len <= MAX_MATCH; len++) {
+			int sym = LENGTH_SYMBOL[len];
+			lenCosts[len] = symCosts[257 + sym] + LENGTH_EXTRA_BITS[sym];
+		}
+		
+		int n = end - start;
+		var costs = new float[n + 1];
+		Arrays.fill(costs, Float.POSITIVE_INFINITY);
+		costs[0] = 0;
+		var choices = new int[n + 1];  // Length << 16 | distance of the step that reaches each position, or 0 for a literal
+		for (int i = 0; i < n; ) {
+			float base = costs[i];
+			float c = base + symCosts[matches.data[start + i] & 0xFF];
+			if (c < costs[i + 1]) {
+				costs[i + 1] = c;
+				choices[i + 1] = 0;
+			}
+			int prevLen = MIN_MATCH - 1;
+			int longest = 0;
+			for (int k = matches.pairStart(start + i), kEnd = matches.pairStart(start + i + 1); k < kEnd; k++) {
+				int pair = matches.pairs[k];
+				int dist = pair & 0xFFFF;
+				int maxLen = Math.min(pair >>> 16, n - i);
+				int distSym = distanceSymbol(dist);
+				float distCost = symCosts[DIST_OFFSET + distSym] + DISTANCE_EXTRA_BITS[distSym];
+				for (int len = prevLen + 1; len <= maxLen; len++) {
+					c = base + lenCosts[len] + distCost;
+					if (c < costs[i + len]) {
+						costs[i + len] = c;
+						choices[i + len] = len << 16 | dist;
+					}
+				}
+				prevLen = Math.max(prevLen, maxLen);
+				longest = maxLen;
+			}
+			i += longest == MAX_MATCH ? MAX_MATCH : 1;
+		}
+		
+		// Trace the chosen steps backward, then emit them forward
+		int count = 0;
+		var steps = new int[n];
+		for (int i = n; i > 0; count++) {
+			int choice = choices[i];
+			steps[count] = choice;
+			i -= choice == 0 ? 1 : choice >>> 16;
+		}
+		var result = new Lz77();
+		for (int i = count - 1, pos = start; i >= 0; i--) {
+			int choice = steps[i];
+			if (choice == 0) {
+				result.add(pos, 0, matches.data[pos] & 0xFF);
+				pos++;
+			} else {
+				result.add(pos, choice >>> 16, choice & 0xFFFF);
+				pos += choice >>> 16;
+			}
+		}
+		return result;
+	}
+	
+	
+	// Returns the estimated bit cost of each literal/length symbol, followed by each distance symbol.
+	private static float[] symbolCosts(int[] hist) {
+		var result = new float[NUM_SYMBOLS];
+		symbolCosts(hist, 0, DIST_OFFSET, result);
+		symbolCosts(hist, DIST_OFFSET, NUM_SYMBOLS, result);
+		return result;
+	}
+	
+	
+	// Symbols that did not occur cost one bit more than a symbol that occurred once.
+	private static void symbolCosts(int[] hist, int start, int end, float[] result) {
+		long total = 0;
+		for (int i = start; i < end; i++)
+			total += hist[i];
+		double log2Total = total > 0 ? log2(total) : 0;
+		for (int i = start; i < end; i++)
+			result[i] = (float)(hist[i] > 0 ? log2Total - log2(hist[i]) : log2Total + 1);
+	}
+	
+	
+	private static double log2(double x) {
+		return Math.log(x) / Math.log(2);
+	}
+	
+	
+	
+	/*---- Block splitting ----*/
+	
+	// Returns the indexes of symbols in the given parse that start blocks, beginning with 0
+	// and ending with the number of symbols, choosing splits that reduce the estimated size.
+	private static int[] splitBlocks(Lz77 lz) {
+		int step = Math.max(lz.size / 128, 1024);
+		int numCands = Math.ceilDiv(lz.size, step);
+		// Cumulative histograms at each candidate point
+		var prefix = new int[numCands + 1][];
+		prefix[0] = new int[NUM_SYMBOLS];
+		for (int i = 1; i <= numCands; i++) {
+			prefix[i] = prefix[i - 1].clone();
+			for (int j = (i - 1) * step, end = Math.min(i * step, lz.size); j < end; j++)
+				lz.countSymbol(j, prefix[i]);
+		}
+		var bounds = new ArrayList<Integer>();
+		bounds.add(0);
+		splitRecursively(prefix, 0, numCands, bounds);
+		var result = new int[bounds.size() + 1];
+		for (int i = 0; i < bounds.size(); i++)
+			result[i] = bounds.get(i) * step;
+		result[result.length - 1] = lz.size;
+		return result;
+	}
+	
+	
+	private static void splitRecursively(int[][] prefix, int start, int end, List<Integer> bounds) {
+		if (end - start < 2)
+			return;
+		long best = rangeBits(prefix, start, end);
+		int bestSplit = -1;
+		for (int i = start + 1; i < end; i++) {
+			long bits = rangeBits(prefix, start, i) + rangeBits(prefix, i, end);
+			if (bits < best) {
+				best = bits;
+				bestSplit = i;
+			}
+		}
+		if (bestSplit == -1)
+			return;
+		splitRecursively(prefix, start, bestSplit, bounds);
+		bounds.add(bestSplit);
+		splitRecursively(prefix, bestSplit, end, bounds);
+	}
+	
+	
+	private static long rangeBits(int[][] prefix, int start, int end) {
+		var hist = new int[NUM_SYMBOLS];
+		for (int i = 0; i < hist.length; i++)
+			hist[i] = prefix[end][i] - prefix[start][i];
+		hist[256] = 1;
+		return blockBits(hist, null);
+	}
+	
+	
+	
+	/*---- Block writing ----*/
+	
+	// Writes the given parse of data[start : end) as one block with the best Huffman codes,
+	// or as a block with fixed codes or stored blocks if that is smaller.
+	private static void writeBlock(Lz77 lz, byte[] data, int start, int end, boolean isFinal, BitWriter out) {
+		int[] hist = lz.histogram();
+		var header = new DynamicHeader[1];
+		long dynamicBits = blockBits(hist, header);
+		long fixedBits = 3;
+		for (int i = 0; i < NUM_SYMBOLS; i++)
+			fixedBits += (long)hist[i] * (FIXED_LENGTHS[i] + EXTRA_BITS[i]);
+		long storedBits = (end - start) * 8L + Math.ceilDiv(end - start, 65535) * (3 + 7 + 32L);
+		
+		if (storedBits < dynamicBits && storedBits < fixedBits) {
+			for (int i = start; i < end; ) {
+				int len = Math.min(end - i, 65535);
+				out.writeBits(isFinal && i + len == end ? 1 : 0, 3);
+				out.alignToByte();
+				out.writeBits(len, 16);
+				out.writeBits(~len & 0xFFFF, 16);
+				for (int j = 0; j < len; j++)
+					out.writeBits(data[i + j] & 0xFF, 8);
+				i += len;
+			}
+			return;
+		}
+		
+		int[] lengths;
+		if (dynamicBits <= fixedBits) {
+			out.writeBits((isFinal ? 1 : 0) | 2 << 1, 3);
+			header[0].write(out);
+			lengths = header[0].lengths;
+		} else {
+			out.writeBits((isFinal ? 1 : 0) | 1 << 1, 3);
+			lengths = FIXED_LENGTHS;
+		}
+		var codes = new int[NUM_SYMBOLS];
+		canonicalCodes(lengths, 0, DIST_OFFSET, codes);
+		canonicalCodes(lengths, DIST_OFFSET, NUM_SYMBOLS, codes);
+		for (int i = 0; i < lz.size; i++) {
+			int len = lz.lengths[i];
+			int val = lz.values[i];
+			if (len == 0)
+				out.writeBits(codes[val], lengths[val]);
+			else {
+				int sym = LENGTH_SYMBOL[len];
+				out.writeBits(codes[257 + sym], lengths[257 + sym]);
+				out.writeBits(len - LENGTH_BASE[sym], LENGTH_EXTRA_BITS[sym]);
+				int distSym = distanceSymbol(val);
+				out.writeBits(codes[DIST_OFFSET + distSym], lengths[DIST_OFFSET + distSym]);
+				out.writeBits(val - DISTANCE_BASE[distSym], DISTANCE_EXTRA_BITS[distSym]);
+			}
+		}
+		out.writeBits(codes[256], lengths[256]);
+	}
+	
+	
+	// Returns the number of bits of a block with dynamic codes for the given histogram, or with fixed
+	// codes if that is smaller. If header is not null, then its first element is set to the dynamic header.
+	private static long blockBits(int[] hist, DynamicHeader[] header) {
+		var lengths = new int[NUM_SYMBOLS];
+		int[] litLens = huffmanLengths(hist, 0, DIST_OFFSET, 15);
+		int[] distLens = huffmanLengths(hist, DIST_OFFSET, NUM_SYMBOLS, 15);
+		System.arraycopy(litLens, 0, lengths, 0, litLens.length);
+		System.arraycopy(distLens, 0, lengths, DIST_OFFSET, distLens.length);
+		var head = new DynamicHeader(lengths);
+		long dynamicBits = 3 + head.bits;
+		long fixedBits = 3;
+		for (int i = 0; i < NUM_SYMBOLS; i++) {
+			dynamicBits += (long)hist[i] * (lengths[i] + EXTRA_BITS[i]);
+			fixedBits += (long)hist[i] * (FIXED_LENGTHS[i] + EXTRA_BITS[i]);
+		}
+		if (header != null)
+			header[0] = head;
+		return Math.min(dynamicBits, fixedBits);
+	}
+	
+	
+	// The code lengths of a dynamic block and their encoding, choosing the combination
+	// of run-length symbols 16, 17, and 18 that gives the fewest bits.
+	private static final class DynamicHeader {
+		
+		public final int[] lengths;  // Literal/length symbols, then distance symbols
+		private final int numLitLen;
+		private final int numDist;
+		private int[] runs;  // Code length symbol << 8 | extra bits value
+		private int[] codeLenLengths;
+		private int numCodeLenLengths;
+		public long bits;
+		
+		
+		public DynamicHeader(int[] lengths) {
+			this.lengths = lengths;
+			int nl = 286;
+			while (nl > 257 && lengths[nl - 1] == 0)
+				nl--;
+			int nd = 30;
+			while (nd > 1 && lengths[DIST_OFFSET + nd - 1] == 0)
+				nd--;
+			numLitLen = nl;
+			numDist = nd;
+			var all = new int[nl + nd];
+			System.arraycopy(lengths, 0, all, 0, nl);
+			System.arraycopy(lengths, DIST_OFFSET, all, nl, nd);
+			
+			bits = Long.MAX_VALUE;
+			for (int flags = 0; flags < 8; flags++) {
+				int[] rle = runLengthEncode(all, (flags & 1) != 0, (flags & 2) != 0, (flags & 4) != 0);
+				var hist = new int[19];
+				for (int r : rle)
+					hist[r >>> 8]++;
+				int[] clLens = huffmanLengths(hist, 0, 19, 7);
+				int n = 19;
+				while (n > 4 && clLens[CODE_LENGTH_ORDER[n - 1]] == 0)
+					n--;
+				long b = 14 + 3L * n;
+				for (int i = 0; i < 19; i++)
+					b += (long)hist[i] * (clLens[i] + (i == 16 ? 2 : i == 17 ? 3 : i == 18 ? 7 : 0));
+				if (b < bits) {
+					bits = b;
+					runs = rle;
+					codeLenLengths = clLens;
+					numCodeLenLengths = n;
+				}
+			}
+		}
+		
+		
+		public void write(BitWriter out) {
+			out.writeBits(numLitLen - 257, 5);
+			out.writeBits(numDist - 1, 5);
+			out.writeBits(numCodeLenLengths - 4, 4);
+			for (int i = 0; i < numCodeLenLengths; i++)
+				out.writeBits(codeLenLengths[CODE_LENGTH_ORDER[i]], 3);
+			var codes = new int[19];
+			canonicalCodes(codeLenLengths, 0, 19, codes);
+			for (int r : runs) {
+				int sym = r >>> 8;
+				out.writeBits(codes[sym], codeLenLengths[sym]);
+				if (sym >= 16)
+					out.writeBits(r & 0xFF, sym == 16 ? 2 : sym == 17 ? 3 : 7);
+			}
+		}
+		
+		
+		private static int[] runLengthEncode(int[] lens, boolean use16, boolean use17, boolean use18) {
+			var result = new int[lens.length];
+			int n = 0;
+			for (int i = 0; i < lens.length; ) {
+				int val = lens[i];
+				int run = 1;
+				while (i + run < lens.length && lens[i + run] == val)
+					run++;
+				i += run;
+				if (val == 0 && (use17 || use18)) {
+					while (run >= 11 && use18) {
+						int k = Math.min(run, 138);
+						result[n++] = 18 << 8 | (k - 11);
+						run -= k;
+					}
+					while (run >= 3 && use17) {
+						int k = Math.min(run, 10);
+						result[n++] = 17 << 8 | (k - 3);
+						run -= k;
+					}
+				} else if (use16 && run >= 4) {
+					result[n++] = val << 8;
+					run--;
+					while (run >= 3) {
+						int k = Math.min(run, 6);
+						result[n++] = 16 << 8 | (k - 3);
+						run -= k;
+					}
+				}
+				for (; run > 0; run--)
+					result[n++] = val << 8;
+			}
+			return Arrays.copyOf(result, n);
+		}
+		
+	}
+	
+	
+	
+	/*---- Huffman codes ----*/
+	
+	// Returns optimal code lengths of at most maxBits for the symbols hist[start : end), by the package-merge
+	// algorithm. If fewer than two symbols occur, then two symbols get length 1, as some decoders require (so n >= 2).
+	static int[] huffmanLengths(int[] hist, int start, int end, int maxBits) {
+		int n = end - start;
+		var result = new int[n];
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (hist[start + i] > 0)
+				count++;
+		}
+		if (count < 2) {
+			for (int i = 0; i < n; i++) {
+				if (hist[start + i] > 0)
+					result[i] = 1;
+			}
+			for (int i = 0; count < 2; i++) {
+				if (result[i] == 0) {
+					result[i] = 1;
+					count++;
+				}
+			}
+			return result;
+		}
+		
+		// Leaves sorted by weight, then by symbol
+		var leaves = new long[count];
+		for (int i = 0, k = 0; i < n; i++) {
+			if (hist[start + i] > 0) {
+				leaves[k] = (long)hist[start + i] << 16 | i;
+				k++;
+			}
+		}
+		Arrays.sort(leaves);
+		
+		// Nodes: leaf i (in sorted order) is node i; packages are added after
+		int maxNodes = count * (maxBits + 1) * 2;
+		var weights = new long[maxNodes];
+		var left = new int[maxNodes];
+		var right = new int[maxNodes];
+		for (int i = 0; i < count; i++) {
+			weights[i] = leaves[i] >>> 16;
+			left[i] = -1;
+		}
+		int numNodes = count;
+		int[] list = new int[count];
+		for (int i = 0; i < count; i++)
+			list[i] = i;
+		for (int level = 1; level < maxBits; level++) {
+			int numPackages = list.length / 2;
+			var merged = new int[count + numPackages];
+			int a = 0;
+			int b = 0;
+			int k = 0;
+			int firstPackage = numNodes;
+			for (int i = 0; i < numPackages; i++) {
+				weights[numNodes] = weights[list[i * 2]] + weights[list[i * 2 + 1]];
+				left[numNodes] = list[i * 2];
+				right[numNodes] = list[i * 2 + 1];
+				numNodes++;
+			}
+			while (a < count || b < numPackages) {
+				if (b >= numPackages || a < count && weights[a] <= weights[firstPackage + b]) {
+					merged[k] = a;
+					a++;
+				} else {
+					merged[k] = firstPackage + b;
+					b++;
+				}
+				k++;
+			}
+			list = merged;
+		}
+		
+		var stack = new int[maxNodes];
+		for (int i = 0; i < 2 * count - 2; i++) {
+			int sp = 0;
+			stack[sp++] = list[i];
+			while (sp > 0) {
+				int node = stack[--sp];
+				if (left[node] == -1)
+					result[(int)(leaves[node] & 0xFFFF)]++;
+				else {
+					stack[sp++] = left[node];
+					stack[sp++] = right[node];
+				}
+			}
+		}
+		return result;
+	}
+	
+	
+	// Sets the canonical code of each symbol in lengths[start : end) into the same range of result,
+	// with its bits reversed for writing in DEFLATE bit order.
+	private static void canonicalCodes(int[] lengths, int start, int end, int[] result) {
+		var counts = new int[16];
+		for (int i = start; i < end; i++)
+			counts[lengths[i]]++;
+		counts[0] = 0;
+		var next = new int[16];
+		for (int len = 1, code = 0; len < 16; len++) {
+			code = (code + counts[len - 1]) << 1;
+			next[len] = code;
+		}
+		for (int i = start; i < end; i++) {
+			int len = lengths[i];
+			if (len > 0) {
+				result[i] = Integer.reverse(next[len]) >>> (32 - len);
+				next[len]++;
+			}
+		}
+	}
+	
+	
+	
+	/*---- Symbol tables ----*/
+	
+	// Histograms and code lengths cover literal/length symbols [0, 288), then distance symbols [288, 320)
+	private static final int DIST_OFFSET = 288;
+	private static final int NUM_SYMBOLS = DIST_OFFSET + 32;
+	
+	private static final int[] LENGTH_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+	private static final int[] LENGTH_EXTRA_BITS = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+	private static final int[] DISTANCE_BASE = {1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+	private static final int[] DISTANCE_EXTRA_BITS = {0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+	private static final int[] CODE_LENGTH_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+	
+	private static final int[] LENGTH_SYMBOL = new int[MAX_MATCH + 1];  // Minus 257
+	private static final int[] EXTRA_BITS = new int[NUM_SYMBOLS];
+	private static final int[] FIXED_LENGTHS = new int[NUM_SYMBOLS];
+	
+	static {
+		for (int sym = 0; sym < LENGTH_BASE.length; sym++) {
+			for (int len = LENGTH_BASE[sym]; len < LENGTH_BASE[sym] + (1 << LENGTH_EXTRA_BITS[sym]) && len <= MAX_MATCH; len++)
+				LENGTH_SYMBOL[len] = sym;
+			EXTRA_BITS[257 + sym] = LENGTH_EXTRA_BITS[sym];
+		}
+		LENGTH_SYMBOL[MAX_MATCH] = 28;
+		for (int sym = 0; sym < DISTANCE_BASE.length; sym++)
+			EXTRA_BITS[DIST_OFFSET + sym] = DISTANCE_EXTRA_BITS[sym];
+		Arrays.fill(FIXED_LENGTHS, 0, 144, 8);
+		Arrays.fill(FIXED_LENGTHS, 144, 256, 9);
+		Arrays.fill(FIXED_LENGTHS, 256, 280, 7);
+		Arrays.fill(FIXED_LENGTHS, 280, 288, 8);
+		Arrays.fill(FIXED_LENGTHS, DIST_OFFSET, NUM_SYMBOLS, 5);
+	}
+	
+	
+	static int distanceSymbol(int dist) {
+		if (dist <= 4)
+			return dist - 1;
+		int log = 31 - Integer.numberOfLeadingZeros(dist - 1);
+		return log * 2 + ((dist - 1) >>> (log - 1) & 1);
+	}
+	
+	
+	
+	/*---- Helper classes ----*/
+	
+	// A parse of a range of data into literals and matches.
+	private static final class Lz77 {
+		
+		public int size = 0;
+		public int[] positions = new int[1024];  // Where each symbol starts in the data
+		public int[] lengths = new int[1024];  // 0 for a literal, otherwise the match length
+		public int[] values = new int[1024];  // The literal byte or the match distance
+		
+		
+		public void add(int pos, int len, int val) {
+			if (size == positions.length) {
+				positions = Arrays.copyOf(positions, size * 2);
+				lengths = Arrays.copyOf(lengths, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			positions[size] = pos;
+			lengths[size] = len;
+			values[size] = val;
+			size++;
+		}
+		
+		
+		public int position(int index) {
+			return positions[index];
+		}
+		
+		
+		public Lz77 slice(int start, int end) {
+			var result = new Lz77();
+			result.size = end - start;
+			result.positions = Arrays.copyOfRange(positions, start, end);
+			result.lengths = Arrays.copyOfRange(lengths, start, end);
+			result.values = Arrays.copyOfRange(values, start, end);
+			return result;
+		}
+		
+		
+		public void countSymbol(int index, int[] hist) {
+			if (lengths[index] == 0)
+				hist[values[index]]++;
+			else {
+				hist[257 + LENGTH_SYMBOL[lengths[index]]]++;
+				hist[DIST_OFFSET + distanceSymbol(values[index])]++;
+			}
+		}
+		
+		
+		// Returns the symbol counts, including one end-of-block symbol.
+		public int[] histogram() {
+			var result = new int[NUM_SYMBOLS];
+			for (int i = 0; i < size; i++)
+				countSymbol(i, result);
+			result[256]++;
+			return result;
+		}
+		
+	}
+	
+	
+	
+	// For every position in a range, finds the shortest distance that gives each match length,
+	// as a list of pairs with increasing length and distance. Searches hash chains of 3-byte prefixes.
+	private static final class MatchFinder {
+		
+		public final byte[] data;
+		private final int start;
+		private int[] pairStarts;  // Indexed by position - start
+		public int[] pairs = new int[1 << 16];  // Length << 16 | distance
+		private int numPairs = 0;
+		
+		
+		public MatchFinder(byte[] data, int histStart, int start, int end) {
+			this.data = data;
+			this.start = start;
+			pairStarts = new int[end - start + 1];
+			var head = new int[1 << HASH_BITS];
+			Arrays.fill(head, -1);
+			var prev = new int[WINDOW_SIZE];
+			for (int i = histStart; i < end; i++) {
+				int hash = i + MIN_MATCH <= end ? hash(i) : -1;
+				if (i >= start) {
+					pairStarts[i - start] = numPairs;
+					if (hash != -1)
+						findMatches(i, end, head[hash], prev);
+				}
+				if (hash != -1) {
+					prev[i & (WINDOW_SIZE - 1)] = head[hash];
+					head[hash] = i;
+				}
+			}
+			pairStarts[end - start] = numPairs;
+		}
+		
+		
+		private void findMatches(int pos, int end, int cand, int[] prev) {
+			int limit = Math.min(MAX_MATCH, end - pos);
+			int bestLen = MIN_MATCH - 1;
+			for (int chain = MAX_CHAIN; cand >= 0 && pos - cand <= WINDOW_SIZE && chain > 0; chain--) {
+				if (data[cand + bestLen] == data[pos + bestLen]) {
+					int len = 0;
+					while (len < limit && data[cand + len] == data[pos + len])
+						len++;
+					if (len > bestLen) {
+						bestLen = len;
+						if (numPairs == pairs.length)
+							pairs = Arrays.copyOf(pairs, numPairs * 2);
+						pairs[numPairs] = len << 16 | (pos - cand);
+						numPairs++;
+						if (len == limit)
+							break;
+					}
+				}
+				int next = prev[cand & (WINDOW_SIZE - 1)];
+				if (next >= cand)
+					break;
+				cand = next;
+			}
+		}
+		
+		
+		private int hash(int i) {
+			int x = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+			return (x * 0x9E3779B1) >>> (32 - HASH_BITS);
+		}
+		
+		
+		public int pairStart(int pos) {
+			return pairStarts[pos - start];
+		}
+		
+		
+		// Returns the longest match at the given position as length << 16 | distance, or 0 if none.
+		public int longest(int pos) {
+			int k = pairStarts[pos - start + 1];
+			return k > pairStarts[pos - start] ? pairs[k - 1] : 0;
+		}
+		
+		
+		private static final int HASH_BITS = 16;
+		private static final int MAX_CHAIN = 1024;
+		
+	}
+	
+	
+	
+	// Accumulates bits in DEFLATE order, least significant bit first.
+	static final class BitWriter {
+		
+		private byte[] bytes = new byte[1 << 12];
+		private int length = 0;  // Number of complete bytes
+		private long buffer = 0;
+		private int bufferBits = 0;
+		
+		
+		// Requires 0 <= n <= 32.
+		public void writeBits(int value, int n) {
+			buffer |= (value & ((1L << n) - 1)) << bufferBits;
+			bufferBits += n;
+			while (bufferBits >= 8) {
+				if (length == bytes.length)
+					bytes = Arrays.copyOf(bytes, length * 2);
+				bytes[length] = (byte)buffer;
+				length++;
+				buffer >>>= 8;
+				bufferBits -= 8;
+			}
+		}
+		
+		
+		public void alignToByte() {
+			writeBits(0, -bufferBits & 7);
+		}
+		
+		
+		public void append(BitWriter other) {
+			for (int i = 0; i < other.length; i++)
+				writeBits(other.bytes[i], 8);
+			writeBits((int)other.buffer, other.bufferBits);
+		}
+		
+		
+		// Removes and returns the complete bytes written so far.
+		public byte[] takeBytes() {
+			byte[] result = Arrays.copyOf(bytes, length);
+			length = 0;
+			return result;
+		}
+		
+	}
+	
+	
+	
+	/*---- Miscellaneous ----*/
+	
+	private OptimalDeflater() {}
+	
+}
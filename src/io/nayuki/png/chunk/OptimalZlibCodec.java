@@ -0,0 +1,159 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png.chunk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+
+
+/**
+ * The zlib codec that compresses with {@link OptimalDeflater} and decompresses with {@code java.util.zip}.
+ * The input is cut into ranges of fixed size that are compressed in parallel on the common fork-join pool,
+ * each one able to refer back to the data before it, and their bits are joined in order.
+ */
+final class OptimalZlibCodec implements ZlibCodec {
+	
+	private final int iterations;
+	
+	
+	OptimalZlibCodec(int iterations) {
+		this.iterations = iterations;
+	}
+	
+	
+	@Override public OutputStream newCompressor(OutputStream out) {
+		return new Compressor(Objects.requireNonNull(out));
+	}
+	
+	
+	@Override public InputStream newDecompressor(InputStream in) {
+		return JAVA_UTIL_ZIP.newDecompressor(in);
+	}
+	
+	
+	@Override public String toString() {
+		return "ZlibCodec.optimal(" + iterations + ")";
+	}
+	
+	
+	private static final int RANGE_SIZE = 256 * 1024;
+	
+	
+	
+	private final class Compressor extends OutputStream {
+		
+		private final OutputStream output;
+		private final Adler32 checksum = new Adler32();
+		private final OptimalDeflater.BitWriter bits = new OptimalDeflater.BitWriter();
+		private final int batchSize = RANGE_SIZE * Math.max(ForkJoinPool.getCommonPoolParallelism(), 2);
+		
+		// buffer[historyStart : pendingStart) is data already compressed that later data may refer to,
+		// and buffer[pendingStart : length) is data not yet compressed
+		private byte[] buffer = new byte[OptimalDeflater.WINDOW_SIZE + RANGE_SIZE];
+		private int historyStart = 0;
+		private int pendingStart = 0;
+		private int length = 0;
+		private boolean closed = false;
+		
+		
+		public Compressor(OutputStream out) {
+			output = out;
+			bits.writeBits(0x78, 8);
+			bits.writeBits(0xDA, 8);
+		}
+		
+		
+		@Override public void write(int b) throws IOException {
+			write(new byte[]{(byte)b});
+		}
+		
+		
+		@Override public void write(byte[] b, int off, int len) throws IOException {
+			Objects.checkFromIndexSize(off, len, b.length);
+			if (closed)
+				throw new IOException("Stream closed");
+			checksum.update(b, off, len);
+			while (len > 0) {
+				if (length == buffer.length)
+					buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, OptimalDeflater.WINDOW_SIZE + batchSize));
+				int n = Math.min(Math.min(len, buffer.length - length), batchSize - (length - pendingStart));
+				System.arraycopy(b, off, buffer, length, n);
+				length += n;
+				off += n;
+				len -= n;
+				if (length - pendingStart == batchSize)
+					compressPending(false, false);
+			}
+		}
+		
+		
+		@Override public void flush() throws IOException {
+			if (closed)
+				throw new IOException("Stream closed");
+			compressPending(true, false);
+			bits.writeBits(0, 3);  // Empty stored block
+			bits.alignToByte();
+			bits.writeBits(0x0000, 16);
+			bits.writeBits(0xFFFF, 16);
+			historyStart = pendingStart;
+			output.write(bits.takeBytes());
+			output.flush();
+		}
+		
+		
+		@Override public void close() throws IOException {
+			if (closed)
+				return;
+			compressPending(true, true);
+			bits.alignToByte();
+			bits.writeBits(Integer.reverseBytes((int)checksum.getValue()), 32);
+			closed = true;
+			try (output) {
+				output.write(bits.takeBytes());
+			}
+		}
+		
+		
+		// Compresses the pending data in ranges, either all of it or only the whole ranges, then keeps the last
+		// window of data as history. Setting isFinal (requiring all) marks the last block as the end of the stream.
+		private void compressPending(boolean all, boolean isFinal) throws IOException {
+			int numRanges = all ? Math.ceilDiv(length - pendingStart, RANGE_SIZE) : (length - pendingStart) / RANGE_SIZE;
+			var outs = new OptimalDeflater.BitWriter[numRanges];
+			int base = pendingStart;
+			IntStream.range(0, numRanges).parallel().forEach(i -> {
+				int start = base + i * RANGE_SIZE;
+				int end = Math.min(start + RANGE_SIZE, length);
+				var out = new OptimalDeflater.BitWriter();
+				OptimalDeflater.compress(buffer, historyStart, start, end, isFinal && end == length, iterations, out);
+				outs[i] = out;
+			});
+			for (OptimalDeflater.BitWriter out : outs)
+				bits.append(out);
+			if (isFinal && numRanges == 0)
+				OptimalDeflater.compress(buffer, historyStart, length, length, true, iterations, bits);
+			pendingStart = Math.min(base + numRanges * RANGE_SIZE, length);
+			output.write(bits.takeBytes());
+			
+			// Discard data older than one window
+			int keep = Math.max(Math.max(pendingStart - OptimalDeflater.WINDOW_SIZE, historyStart), 0);
+			System.arraycopy(buffer, keep, buffer, 0, length - keep);
+			historyStart -= keep;
+			pendingStart -= keep;
+			length -= keep;
+		}
+		
+	}
+	
+}
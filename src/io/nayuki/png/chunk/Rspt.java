@@ -0,0 +1,83 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png.chunk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+
+/**
+ * A restart points (rsPT) chunk, which is private to this library. Like Apple's iDOT chunk,
+ * this divides a non-interlaced image into bands of rows that can be decoded in parallel.
+ * Each band starts at the given row, whose filter ignores the previous row, and at an IDAT
+ * chunk that begins right after a full flush of the zlib stream. Each offset is the number
+ * of bytes from the start of this chunk to the start of that IDAT chunk. When reading, an rsPT
+ * chunk whose data does not fit this layout becomes a {@link Custom} chunk instead of an error.
+ * Instances should be treated as immutable, but arrays are not copied defensively.
+ */
+public record Rspt(int[] rows, int[] offsets) implements SmallDataChunk {
+	
+	static final String TYPE = "rsPT";
+	
+	
+	/*---- Constructor and factory ----*/
+	
+	public Rspt {
+		Objects.requireNonNull(rows);
+		Objects.requireNonNull(offsets);
+		if (rows.length != offsets.length)
+			throw new IllegalArgumentException("Array lengths differ");
+		if (!(1 <= rows.length && rows.length <= Integer.MAX_VALUE / 8))
+			throw new IllegalArgumentException("Data length out of range");
+		for (int i = 0; i < rows.length; i++) {
+			if (rows[i] < 0 || offsets[i] < 0)
+				throw new IllegalArgumentException("Value out of range");
+			if (i > 0 && (rows[i] <= rows[i - 1] || offsets[i] <= offsets[i - 1]))
+				throw new IllegalArgumentException("Values not strictly increasing");
+		}
+	}
+	
+	
+	// Returns a Custom chunk instead if the data doesn't have this chunk's layout,
+	// because other software is free to use the same private chunk type differently.
+	static Chunk read(ChunkReader in) throws IOException {
+		Objects.requireNonNull(in);
+		byte[] data = in.readRemainingBytes();
+		if (data.length % 8 == 0) {
+			var buf = ByteBuffer.wrap(data);
+			var rows = new int[data.length / 8];
+			var offsets = new int[rows.length];
+			for (int i = 0; i < rows.length; i++) {
+				rows[i] = buf.getInt();
+				offsets[i] = buf.getInt();
+			}
+			try {
+				return new Rspt(rows, offsets);
+			} catch (IllegalArgumentException e) {}  // Fall through
+		}
+		return new Custom(TYPE, data);
+	}
+	
+	
+	/*---- Methods ----*/
+	
+	@Override public String getType() {
+		return TYPE;
+	}
+	
+	
+	@Override public void writeData(ChunkWriter out) throws IOException {
+		for (int i = 0; i < rows.length; i++) {
+			out.writeInt32(rows[i]);
+			out.writeInt32(offsets[i]);
+		}
+	}
+	
+}
@@ -0,0 +1,187 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png.chunk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Objects;
+
+
+/**
+ * An implementation of the zlib format (RFC 1950) with DEFLATE compression (RFC 1951), which is
+ * the only {@link Chunk.CompressionMethod}. This is used for IDAT data by {@code ImageEncoder} and
+ * {@code ImageDecoder}, and for the compressed fields of other chunks. A codec can be chosen for one
+ * call through the encode and decode options, or for the whole program with {@link #setDefault(ZlibCodec)}.
+ * If the default has not been set, then it is the first implementation found by {@link java.util.ServiceLoader},
+ * or else {@link #JAVA_UTIL_ZIP}. Implementations must be safe to use from several threads at once.
+ */
+public interface ZlibCodec {
+	
+	/*---- Constants and factories ----*/
+	
+	/** The codec that uses {@link java.util.zip.Deflater} at the default level and {@link java.util.zip.Inflater}. */
+	public static final ZlibCodec JAVA_UTIL_ZIP = new JdkZlibCodec(-1);
+	
+	
+	/**
+	 * Returns a codec that uses {@link java.util.zip.Deflater} at the specified level and {@link java.util.zip.Inflater}.
+	 * Level 1 is the fastest, level 9 gives the smallest output, and level 0 stores the data uncompressed.
+	 * @param level the compression level, in the range [0, 9], or &minus;1 for the default (currently 6)
+	 * @return a codec (not {@code null})
+	 * @throws IllegalArgumentException if {@code level} is out of range
+	 */
+	public static ZlibCodec javaUtilZip(int level) {
+		if (!(-1 <= level && level <= 9))
+			throw new IllegalArgumentException("Invalid compression level");
+		return level == -1 ? JAVA_UTIL_ZIP : new JdkZlibCodec(level);
+	}
+	
+	
+	/**
+	 * Returns a codec that compresses with a pure-Java DEFLATE implementation that searches for
+	 * the smallest output, in the manner of Zopfli, and decompresses with {@link java.util.zip.Inflater}.
+	 * Its output is typically a few percent smaller than level 9 of {@code java.util.zip}, but it is several times
+	 * slower than even that level, so it is meant for optimizing files offline. Each 256 KiB of input is compressed as an independent
+	 * task on the common fork-join pool, which gives a little less compression than a single range would.
+	 * @param iterations the number of times each block is parsed again with refined costs, such as 15
+	 * @return a codec (not {@code null})
+	 * @throws IllegalArgumentException if {@code iterations} is negative
+	 */
+	public static ZlibCodec optimal(int iterations) {
+		if (iterations < 0)
+			throw new IllegalArgumentException("Negative iterations");
+		return new OptimalZlibCodec(iterations);
+	}
+	
+	
+	/**
+	 * Returns the codec that is used when none is specified.
+	 * @return the default codec (not {@code null})
+	 */
+	public static ZlibCodec getDefault() {
+		return JdkZlibCodec.getDefault();
+	}
+	
+	
+	/**
+	 * Sets the codec that is used when none is specified, for the whole program.
+	 * @param codec the new default codec (not {@code null})
+	 * @throws NullPointerException if {@code codec} is {@code null}
+	 */
+	public static void setDefault(ZlibCodec codec) {
+		JdkZlibCodec.setDefault(Objects.requireNonNull(codec));
+	}
+	
+	
+	/**
+	 * Returns the maximum decompressed length of a compressed chunk field (in zTXt, iTXt, and iCCP chunks).
+	 * @return the program-wide limit on decompressed field lengths, a non-negative number
+	 * @see #setFieldDecompressionLimit(int)
+	 */
+	public static int getFieldDecompressionLimit() {
+		return JdkZlibCodec.getFieldDecompressionLimit();
+	}
+	
+	
+	/**
+	 * Sets the maximum decompressed length of a compressed chunk field (in zTXt, iTXt, and iCCP chunks),
+	 * for the whole program. Such fields are decompressed to be checked when a chunk is constructed or
+	 * read, so a small file could otherwise expand to an unbounded amount of memory (a decompression bomb).
+	 * A field that decompresses to more bytes makes {@link Chunk.CompressionMethod#decompress(byte[])}
+	 * throw {@code IllegalArgumentException}, without holding more than the limit in memory.
+	 * @param maxBytes the new limit, a non-negative number, or {@code Integer.MAX_VALUE} for no limit (the default)
+	 * @throws IllegalArgumentException if {@code maxBytes} is negative
+	 */
+	public static void setFieldDecompressionLimit(int maxBytes) {
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("Negative limit");
+		JdkZlibCodec.setFieldDecompressionLimit(maxBytes);
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	/**
+	 * Returns a new stream that compresses the bytes written to it into one zlib stream, which it writes
+	 * to the specified stream. Calling {@code flush()} ends the compressed data so far at a full flush point,
+	 * like {@link java.util.zip.Deflater#FULL_FLUSH}: on a byte boundary, after an empty stored block, with no
+	 * later data referring to earlier data. Calling {@code close()} finishes the zlib stream and closes the output.
+	 * @param out the stream to write compressed data to (not {@code null})
+	 * @return a new compressing stream (not {@code null})
+	 */
+	public OutputStream newCompressor(OutputStream out);
+	
+	
+	/**
+	 * Returns a new stream that reads one zlib stream from the specified stream and returns the decompressed
+	 * bytes, followed by end of stream. Reading throws an {@code IOException} if the compressed data is invalid.
+	 * @param in the stream to read compressed data from (not {@code null})
+	 * @return a new decompressing stream (not {@code null})
+	 */
+	public InputStream newDecompressor(InputStream in);
+	
+	
+	/**
+	 * Returns the specified data compressed as one zlib stream.
+	 * @param data the data to compress (not {@code null})
+	 * @return the compressed data (not {@code null})
+	 */
+	public default byte[] compress(byte[] data) {
+		var bout = new ByteArrayOutputStream();
+		try (OutputStream out = newCompressor(bout)) {
+			out.write(data);
+		} catch (IOException e) {
+			throw new AssertionError("Unreachable exception", e);
+		}
+		return bout.toByteArray();
+	}
+	
+	
+	/**
+	 * Returns the decompressed data of the specified zlib stream.
+	 * @param data the zlib stream to decompress (not {@code null})
+	 * @return the decompressed data (not {@code null})
+	 * @throws IllegalArgumentException if the compressed data is invalid
+	 */
+	public default byte[] decompress(byte[] data) {
+		try (InputStream in = newDecompressor(new ByteArrayInputStream(data))) {
+			return in.readAllBytes();
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invalid compressed data", e);
+		}
+	}
+	
+	
+	/**
+	 * Returns the decompressed data of the specified zlib stream, which must not be longer than the specified length.
+	 * Decompression stops as soon as the limit is exceeded, so that a small input cannot make a huge output.
+	 * @param data the zlib stream to decompress (not {@code null})
+	 * @param maxLength the maximum length of the decompressed data, a non-negative number
+	 * @return the decompressed data (not {@code null})
+	 * @throws IllegalArgumentException if the compressed data is invalid,
+	 * the decompressed data is too long, or {@code maxLength} is negative
+	 */
+	public default byte[] decompress(byte[] data, int maxLength) {
+		if (maxLength < 0)
+			throw new IllegalArgumentException("Negative length");
+		try (InputStream in = newDecompressor(new ByteArrayInputStream(data))) {
+			byte[] result = in.readNBytes(maxLength);
+			if (in.read() != -1)
+				throw new IllegalArgumentException("Decompressed data exceeds limit");
+			return result;
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invalid compressed data", e);
+		}
+	}
+	
+}
@@ -14,7 +14,7 @@ import java.util.Objects;
 /**
  * A mutable paletted image where all pixels are stored in memory.
  */
-public final class BufferedPaletteImage implements PaletteImage, Cloneable {
+public final class BufferedPaletteImage implements WritablePaletteImage, Cloneable {
 	
 	/*---- Fields ----*/
 	
@@ -24,6 +24,7 @@ public final class BufferedPaletteImage implements PaletteImage, Cloneable {
 	private final long illegalOnes;
 	private long[] palette;
 	private byte[] pixels;
+	private boolean pixelsShared;  // Whether the array might be referenced by another image
 	
 	
 	
@@ -50,6 +51,11 @@ public final class BufferedPaletteImage implements PaletteImage, Cloneable {
 	 * @throws ArithmeticException if {@code width * height > Integer.MAX_VALUE}
 	 */
 	public BufferedPaletteImage(int width, int height, int[] bitDepths, long[] pal) {
+		this(width, height, bitDepths, pal, null);
+	}
+	
+	
+	private BufferedPaletteImage(int width, int height, int[] bitDepths, long[] pal, byte[] sharedPixels) {
 		if (width <= 0 || height <= 0)
 			throw new IllegalArgumentException("Non-positive dimensions");
 		this.width = width;
@@ -75,21 +81,34 @@ public final class BufferedPaletteImage implements PaletteImage, Cloneable {
 		illegalOnes = temp;
 		
 		setPalette(pal);
-		pixels = new byte[Math.multiplyExact(width, height)];
+		if (sharedPixels == null)
+			pixels = new byte[Math.multiplyExact(width, height)];
+		else {
+			pixels = sharedPixels;
+			pixelsShared = true;
+		}
 	}
 	
 	
 	/**
 	 * Constructs an image by copying pixel values and bit depths from the specified image.
+	 * If {@code img} is also a {@code BufferedPaletteImage}, then the two images share one pixel array
+	 * until either of them is modified, at which point the modified image makes a private copy.
+	 * Otherwise pixels are read row by row using {@link PaletteImage#getRow getRow()}.
 	 * @param img the image to copy from (not {@code null})
 	 * @throws NullPointerException if {@code img} is {@code null}
 	 * @throws ArithmeticException if {@code width * height > Integer.MAX_VALUE}
 	 */
 	public BufferedPaletteImage(PaletteImage img) {
-		this(img.getWidth(), img.getHeight(), img.getBitDepths(), img.getPalette());
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++)
-				pixels[y * width + x] = (byte)img.getPixel(x, y);
+		this(img.getWidth(), img.getHeight(), img.getBitDepths(), img.getPalette(),
+			img instanceof BufferedPaletteImage other ? other.sharePixels() : null);
+		if (!(img instanceof BufferedPaletteImage)) {
+			var row = new int[width];
+			for (int y = 0; y < height; y++) {
+				img.getRow(0, y, row, 0, width);
+				for (int x = 0; x < width; x++)
+					pixels[y * width + x] = (byte)row[x];
+			}
 		}
 	}
 	
@@ -153,6 +172,14 @@ public final class BufferedPaletteImage implements PaletteImage, Cloneable {
 	}
 	
 	
+	@Override public void getRow(int x, int y, int[] dest, int off, int len) {
+		Objects.checkFromIndexSize(off, len, dest.length);
+		int start = getRowIndex(x, y, len);
+		for (int i = 0; i < len; i++)
+			dest[off + i] = pixels[start + i] & 0xFF;
+	}
+	
+	
 	/**
 	 * Sets the pixel at the specified coordinates to the specified value.
 	 * @param x x the <var>x</var> coordinate of the pixel to set, in the range [0, {@code getWidth()})
@@ -161,13 +188,27 @@ public final class BufferedPaletteImage implements PaletteImage, Cloneable {
 	 * @throws IndexOutOfBoundsException if the (<var>x</var>, <var>y</var>) coordinates are out
 	 * of bounds, or the new palette index is not in the range [0, {@code getPalette().length})
 	 */
-	public void setPixel(int x, int y, int val) {
+	@Override public void setPixel(int x, int y, int val) {
 		if (!(0 <= val && val < palette.length))
 			throw new IllegalArgumentException("Invalid sample value");
+		unsharePixels();
 		pixels[getIndex(x, y)] = (byte)val;
 	}
 	
 	
+	@Override public void setRow(int x, int y, int[] src, int off, int len) {
+		Objects.checkFromIndexSize(off, len, src.length);
+		int start = getRowIndex(x, y, len);
+		unsharePixels();
+		for (int i = 0; i < len; i++) {
+			int val = src[off + i];
+			if (!(0 <= val && val < palette.length))
+				throw new IllegalArgumentException("Invalid sample value");
+			pixels[start + i] = (byte)val;
+		}
+	}
+	
+	
 	private int getIndex(int x, int y) {
 		if (0 <= x && x < width && 0 <= y && y < height)
 			return y * width + x;
@@ -178,11 +219,42 @@ public final class BufferedPaletteImage implements PaletteImage, Cloneable {
 	}
 	
 	
+	private int getRowIndex(int x, int y, int len) {
+		if (0 <= x && x <= width && 0 <= len && len <= width - x && 0 <= y && y < height)
+			return y * width + x;
+		else {
+			throw new IndexOutOfBoundsException(String.format(
+				"(x,y,len) = (%d,%d,%d); (width,height) = (%d,%d)", x, y, len, width, height));
+		}
+	}
+	
+	
+	// Marks this image's pixel array as shared and returns it.
+	private byte[] sharePixels() {
+		pixelsShared = true;
+		return pixels;
+	}
+	
+	
+	// Gives this image a private copy of the pixel array if it might be shared.
+	private void unsharePixels() {
+		if (pixelsShared) {
+			pixels = pixels.clone();
+			pixelsShared = false;
+		}
+	}
+	
+	
+	/**
+	 * Returns a copy of this image. The pixel array is shared copy-on-write, so this
+	 * takes constant time; the first modification to either image copies the array.
+	 * @return a copy of this image (not {@code null})
+	 */
 	@Override public BufferedPaletteImage clone() {
 		try {
+			pixelsShared = true;
 			var result = (BufferedPaletteImage)super.clone();
 			result.palette = result.palette.clone();
-			result.pixels = result.pixels.clone();
 			return result;
 		} catch (CloneNotSupportedException e) {
 			throw new AssertionError("Unreachable exception", e);
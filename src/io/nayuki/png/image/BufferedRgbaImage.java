@@ -14,7 +14,7 @@ import java.util.Objects;
 /**
  * A mutable RGBA image where all pixels are stored in memory.
  */
-public final class BufferedRgbaImage implements RgbaImage, Cloneable {
+public final class BufferedRgbaImage implements WritableRgbaImage, Cloneable {
 	
 	/*---- Fields ----*/
 	
@@ -23,6 +23,7 @@ public final class BufferedRgbaImage implements RgbaImage, Cloneable {
 	private int[] bitDepths;
 	private final long illegalOnes;
 	private long[] pixels;
+	private boolean pixelsShared;  // Whether the array might be referenced by another image
 	
 	
 	
@@ -47,6 +48,11 @@ public final class BufferedRgbaImage implements RgbaImage, Cloneable {
 	 * @throws ArithmeticException if {@code width * height > Integer.MAX_VALUE}
 	 */
 	public BufferedRgbaImage(int width, int height, int[] bitDepths) {
+		this(width, height, bitDepths, null);
+	}
+	
+	
+	private BufferedRgbaImage(int width, int height, int[] bitDepths, long[] sharedPixels) {
 		if (width <= 0 || height <= 0)
 			throw new IllegalArgumentException("Non-positive dimensions");
 		this.width = width;
@@ -69,21 +75,30 @@ public final class BufferedRgbaImage implements RgbaImage, Cloneable {
 		}
 		illegalOnes = temp;
 		
-		pixels = new long[Math.multiplyExact(width, height)];
+		if (sharedPixels == null)
+			pixels = new long[Math.multiplyExact(width, height)];
+		else {
+			pixels = sharedPixels;
+			pixelsShared = true;
+		}
 	}
 	
 	
 	/**
 	 * Constructs an image by copying pixel values and bit depths from the specified image.
+	 * If {@code img} is also a {@code BufferedRgbaImage}, then the two images share one pixel array
+	 * until either of them is modified, at which point the modified image makes a private copy.
+	 * Otherwise pixels are read row by row using {@link RgbaImage#getRow getRow()}.
 	 * @param img the image to copy from (not {@code null})
 	 * @throws NullPointerException if {@code img} is {@code null}
 	 * @throws ArithmeticException if {@code width * height > Integer.MAX_VALUE}
 	 */
 	public BufferedRgbaImage(RgbaImage img) {
-		this(img.getWidth(), img.getHeight(), img.getBitDepths());
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++)
-				pixels[y * width + x] = img.getPixel(x, y);
+		this(img.getWidth(), img.getHeight(), img.getBitDepths(),
+			img instanceof BufferedRgbaImage other ? other.sharePixels() : null);
+		if (!(img instanceof BufferedRgbaImage)) {
+			for (int y = 0; y < height; y++)
+				img.getRow(0, y, pixels, y * width, width);
 		}
 	}
 	
@@ -111,6 +126,11 @@ public final class BufferedRgbaImage implements RgbaImage, Cloneable {
 	}
 	
 	
+	@Override public void getRow(int x, int y, long[] dest, int off, int len) {
+		System.arraycopy(pixels, getRowIndex(x, y, len), dest, off, len);
+	}
+	
+	
 	/**
 	 * Sets the pixel at the specified coordinates to the specified value.
 	 * @param x x the <var>x</var> coordinate of the pixel to set, in the range [0, {@code getWidth()})
@@ -119,13 +139,26 @@ public final class BufferedRgbaImage implements RgbaImage, Cloneable {
 	 * @throws IndexOutOfBoundsException if the (<var>x</var>, <var>y</var>) coordinates are out of bounds
 	 * @throws IllegalArgumentException if any of the channel sample values are outside of their bit depth
 	 */
-	public void setPixel(int x, int y, long val) {
+	@Override public void setPixel(int x, int y, long val) {
 		if ((val & illegalOnes) != 0)
 			throw new IllegalArgumentException("Invalid sample value");
+		unsharePixels();
 		pixels[getIndex(x, y)] = val;
 	}
 	
 	
+	@Override public void setRow(int x, int y, long[] src, int off, int len) {
+		Objects.checkFromIndexSize(off, len, src.length);
+		int start = getRowIndex(x, y, len);
+		for (int i = 0; i < len; i++) {
+			if ((src[off + i] & illegalOnes) != 0)
+				throw new IllegalArgumentException("Invalid sample value");
+		}
+		unsharePixels();
+		System.arraycopy(src, off, pixels, start, len);
+	}
+	
+	
 	private int getIndex(int x, int y) {
 		if (0 <= x && x < width && 0 <= y && y < height)
 			return y * width + x;
@@ -136,11 +169,42 @@ public final class BufferedRgbaImage implements RgbaImage, Cloneable {
 	}
 	
 	
+	private int getRowIndex(int x, int y, int len) {
+		if (0 <= x && x <= width && 0 <= len && len <= width - x && 0 <= y && y < height)
+			return y * width + x;
+		else {
+			throw new IndexOutOfBoundsException(String.format(
+				"(x,y,len) = (%d,%d,%d); (width,height) = (%d,%d)", x, y, len, width, height));
+		}
+	}
+	
+	
+	// Marks this image's pixel array as shared and returns it.
+	private long[] sharePixels() {
+		pixelsShared = true;
+		return pixels;
+	}
+	
+	
+	// Gives this image a private copy of the pixel array if it might be shared.
+	private void unsharePixels() {
+		if (pixelsShared) {
+			pixels = pixels.clone();
+			pixelsShared = false;
+		}
+	}
+	
+	
+	/**
+	 * Returns a copy of this image. The pixel array is shared copy-on-write, so this
+	 * takes constant time; the first modification to either image copies the array.
+	 * @return a copy of this image (not {@code null})
+	 */
 	@Override public BufferedRgbaImage clone() {
 		try {
+			pixelsShared = true;
 			var result = (BufferedRgbaImage)super.clone();
 			result.bitDepths = result.bitDepths.clone();
-			result.pixels = result.pixels.clone();
 			return result;
 		} catch (CloneNotSupportedException e) {
 			throw new AssertionError("Unreachable exception", e);
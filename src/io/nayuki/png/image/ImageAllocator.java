@@ -0,0 +1,105 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png.image;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Objects;
+
+
+/**
+ * Creates the images that a decoder writes pixels into. The default methods create
+ * in-memory buffered images; implementations can override any of them to choose a
+ * different storage. Every returned image must be all-zero and have exactly the
+ * requested dimensions, bit depths, and palette.
+ */
+public interface ImageAllocator {
+	
+	/*---- Constants and factories ----*/
+	
+	/** An allocator that creates {@link BufferedRgbaImage}, {@link BufferedGrayImage}, and {@link BufferedPaletteImage} objects. */
+	public static final ImageAllocator BUFFERED = new ImageAllocator() {};
+	
+	
+	/**
+	 * Returns an allocator that creates {@link TiledRgbaImage} and {@link TiledGrayImage} objects
+	 * backed by scratch files in the specified directory. Paletted images are still buffered in
+	 * memory, because they use only one byte per pixel. The caller is responsible for closing the
+	 * tiled images that are returned; if decoding fails, the decoder closes its partial image itself.
+	 * If a scratch file cannot be created, then the allocator throws an {@code UncheckedIOException}.
+	 * @param directory the directory to create scratch files in (not {@code null})
+	 * @return an allocator of tiled images (not {@code null})
+	 * @throws NullPointerException if {@code directory} is {@code null}
+	 */
+	public static ImageAllocator tiled(Path directory) {
+		Objects.requireNonNull(directory);
+		return new ImageAllocator() {
+			@Override public WritableRgbaImage newRgbaImage(int width, int height, int[] bitDepths) {
+				try {
+					return new TiledRgbaImage(width, height, bitDepths, directory);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			
+			@Override public WritableGrayImage newGrayImage(int width, int height, int[] bitDepths) {
+				try {
+					return new TiledGrayImage(width, height, bitDepths, directory);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	/**
+	 * Returns a new all-zero RGBA image with the specified dimensions and bit depths,
+	 * which have the same constraints as in {@link BufferedRgbaImage#BufferedRgbaImage(int, int, int[])}.
+	 * @param width the width of the image, a positive number
+	 * @param height the height of the image, a positive number
+	 * @param bitDepths the bit depths of the channels of the image (not {@code null})
+	 * @return a new writable image (not {@code null})
+	 */
+	public default WritableRgbaImage newRgbaImage(int width, int height, int[] bitDepths) {
+		return new BufferedRgbaImage(width, height, bitDepths);
+	}
+	
+	
+	/**
+	 * Returns a new all-zero grayscale image with the specified dimensions and bit depths,
+	 * which have the same constraints as in {@link BufferedGrayImage#BufferedGrayImage(int, int, int[])}.
+	 * @param width the width of the image, a positive number
+	 * @param height the height of the image, a positive number
+	 * @param bitDepths the bit depths of the channels of the image (not {@code null})
+	 * @return a new writable image (not {@code null})
+	 */
+	public default WritableGrayImage newGrayImage(int width, int height, int[] bitDepths) {
+		return new BufferedGrayImage(width, height, bitDepths);
+	}
+	
+	
+	/**
+	 * Returns a new all-zero paletted image with the specified dimensions, bit depths, and palette, which
+	 * have the same constraints as in {@link BufferedPaletteImage#BufferedPaletteImage(int, int, int[], long[])}.
+	 * @param width the width of the image, a positive number
+	 * @param height the height of the image, a positive number
+	 * @param bitDepths the bit depths of the channels of the palette (not {@code null})
+	 * @param palette the palette of the image (not {@code null})
+	 * @return a new writable image (not {@code null})
+	 */
+	public default WritablePaletteImage newPaletteImage(int width, int height, int[] bitDepths, long[] palette) {
+		return new BufferedPaletteImage(width, height, bitDepths, palette);
+	}
+	
+}
@@ -0,0 +1,637 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png.image;
+
+import java.util.Objects;
+import java.util.function.UnaryOperator;
+
+
+/**
+ * Creates read-only views of images that crop, flip, rotate, or reorder channels without
+ * copying any pixels. Each view reads through to the underlying image, so later changes to
+ * that image are visible in the view. Applying a geometric view to another geometric view
+ * yields a single view over the original image, so chains of operations stay cheap. Where
+ * a row of the view is a row of the underlying image (possibly reversed), {@code getRow()}
+ * reads it in bulk; rotated views fall back to reading one pixel at a time. Not instantiable.
+ */
+public final class ImageViews {
+	
+	/*---- Cropping ----*/
+	
+	/**
+	 * Returns a view of the specified rectangle of the specified image.
+	 * Pixel (0, 0) of the view is pixel (<var>x</var>, <var>y</var>) of the image.
+	 * @param img the image to view (not {@code null})
+	 * @param x the left edge of the rectangle, in the range [0, {@code img.getWidth()})
+	 * @param y the top edge of the rectangle, in the range [0, {@code img.getHeight()})
+	 * @param width the width of the rectangle, a positive number
+	 * @param height the height of the rectangle, a positive number
+	 * @return a view of the rectangle (not {@code null})
+	 * @throws NullPointerException if {@code img} is {@code null}
+	 * @throws IndexOutOfBoundsException if the rectangle is empty or not entirely within the image
+	 */
+	public static RgbaImage crop(RgbaImage img, int x, int y, int width, int height) {
+		return transform(img, t -> t.crop(x, y, width, height));
+	}
+	
+	
+	/**
+	 * Returns a view of the specified rectangle of the specified image.
+	 * Pixel (0, 0) of the view is pixel (<var>x</var>, <var>y</var>) of the image.
+	 * @param img the image to view (not {@code null})
+	 * @param x the left edge of the rectangle, in the range [0, {@code img.getWidth()})
+	 * @param y the top edge of the rectangle, in the range [0, {@code img.getHeight()})
+	 * @param width the width of the rectangle, a positive number
+	 * @param height the height of the rectangle, a positive number
+	 * @return a view of the rectangle (not {@code null})
+	 * @throws NullPointerException if {@code img} is {@code null}
+	 * @throws IndexOutOfBoundsException if the rectangle is empty or not entirely within the image
+	 */
+	public static GrayImage crop(GrayImage img, int x, int y, int width, int height) {
+		return transform(img, t -> t.crop(x, y, width, height));
+	}
+	
+	
+	/**
+	 * Returns a view of the specified rectangle of the specified image.
+	 * Pixel (0, 0) of the view is pixel (<var>x</var>, <var>y</var>) of the image.
+	 * @param img the image to view (not {@code null})
+	 * @param x the left edge of the rectangle, in the range [0, {@code img.getWidth()})
+	 * @param y the top edge of the rectangle, in the range [0, {@code img.getHeight()})
+	 * @param width the width of the rectangle, a positive number
+	 * @param height the height of the rectangle, a positive number
+	 * @return a view of the rectangle (not {@code null})
+	 * @throws NullPointerException if {@code img} is {@code null}
+	 * @throws IndexOutOfBoundsException if the rectangle is empty or not entirely within the image
+	 */
+	public static PaletteImage crop(PaletteImage img, int x, int y, int width, int height) {
+		return transform(img, t -> t.crop(x, y, width, height));
+	}
+	
+	
+	
+	/*---- Flipping and rotation ----*/
+	
+	/**
+	 * Returns a view of the specified image mirrored left to right.
+	 * @param img the image to view (not {@code null})
+	 * @return a mirrored view (not {@code null})
+	 * @throws NullPointerException if {@code img} is {@code null}
+	 */
+	public static RgbaImage flipHorizontal(RgbaImage img) {
+		return transform(img, Transform::flipHorizontal);
+	}
+	
+	
+	/**
+	 * Returns a view of the specified image mirrored left to right.
+	 * @param img the image to view (not {@code null})
+	 * @return a mirrored view (not {@code null})
+	 * @throws NullPointerException if {@code img} is {@code null}
+	 */
+	public static GrayImage flipHorizontal(GrayImage img) {
+		return transform(img, Transform::flipHorizontal);
+	}
+	
+	
+	/**
+	 * Returns a view of the specified image mirrored left to right.
+	 * @param img the image to view (not {@code null})
+	 * @return a mirrored view (not {@code null})
+	 * @throws NullPointerException if {@code img} is {@code null}
+	 */
+	public static PaletteImage flipHorizontal(PaletteImage img) {
+		return transform(img, Transform::flipHorizontal);
+	}
+	
+	
+	/**
+	 * Returns a view of the specified image mirrored top to bottom.
+	 * @param img the image to view (not {@code null})
+	 * @return a mirrored view (not {@code null})
+	 * @throws NullPointerException if {@code img} is {@code null}
+	 */
+	public static RgbaImage flipVertical(RgbaImage img) {
+		return transform(img, Transform::flipVertical);
+	}
+	
+	
+	/**
+	 * Returns a view of the specified image mirrored top to bottom.
+	 * @param img the image to view (not {@code null})
+	 * @return a mirrored view (not {@code null})
+	 * @throws NullPointerException if {@code img} is {@code null}
+	 */
+	public static GrayImage flipVertical(GrayImage img) {
+		return transform(img, Transform::flipVertical);
+	}
+	
+	
+	/**
+	 * Returns a view of the specified image mirrored top to bottom.
+	 * @param img the image to view (not {@code null})
+	 * @return a mirrored view (not {@code null})
+	 * @throws NullPointerException if {@code img} is {@code null}
+	 */
+	public static PaletteImage flipVertical(PaletteImage img) {
+		return transform(img, Transform::flipVertical);
+	}
+	
+	
+	/**
+	 * Returns a view of the specified image rotated clockwise by the specified number of
+	 * quarter turns. The view's width and height are swapped when the number is odd.
+	 * @param img the image to view (not {@code null})
+	 * @param quarterTurns the number of 90&deg; clockwise turns, any value (negative means counterclockwise)
+	 * @return a rotated view (not {@code null})
+	 * @throws NullPointerException if {@code img} is {@code null}
+	 */
+	public static RgbaImage rotate(RgbaImage img, int quarterTurns) {
+		return transform(img, t -> t.rotate(quarterTurns));
+	}
+	
+	
+	/**
+	 * Returns a view of the specified image rotated clockwise by the specified number of
+	 * quarter turns. The view's width and height are swapped when the number is odd.
+	 * @param img the image to view (not {@code null})
+	 * @param quarterTurns the number of 90&deg; clockwise turns, any value (negative means counterclockwise)
+	 * @return a rotated view (not {@code null})
+	 * @throws NullPointerException if {@code img} is {@code null}
+	 */
+	public static GrayImage rotate(GrayImage img, int quarterTurns) {
+		return transform(img, t -> t.rotate(quarterTurns));
+	}
+	
+	
+	/**
+	 * Returns a view of the specified image rotated clockwise by the specified number of
+	 * quarter turns. The view's width and height are swapped when the number is odd.
+	 * @param img the image to view (not {@code null})
+	 * @param quarterTurns the number of 90&deg; clockwise turns, any value (negative means counterclockwise)
+	 * @return a rotated view (not {@code null})
+	 * @throws NullPointerException if {@code img} is {@code null}
+	 */
+	public static PaletteImage rotate(PaletteImage img, int quarterTurns) {
+		return transform(img, t -> t.rotate(quarterTurns));
+	}
+	
+	
+	private static RgbaImage transform(RgbaImage img, UnaryOperator<Transform> op) {
+		var v = TransformedRgbaImage.of(img);
+		return new TransformedRgbaImage(v.image, op.apply(v.transform));
+	}
+	
+	
+	private static GrayImage transform(GrayImage img, UnaryOperator<Transform> op) {
+		var v = TransformedGrayImage.of(img);
+		return new TransformedGrayImage(v.image, op.apply(v.transform));
+	}
+	
+	
+	private static PaletteImage transform(PaletteImage img, UnaryOperator<Transform> op) {
+		var v = TransformedPaletteImage.of(img);
+		return new TransformedPaletteImage(v.image, op.apply(v.transform));
+	}
+	
+	
+	
+	/*---- Channel reordering ----*/
+	
+	/**
+	 * Returns a view of the specified image where each channel is taken from a channel of
+	 * the image. {@code sources} is a length-4 array where each element is in the range
+	 * [0, 3] and names the channel of {@code img} (0 = red, 1 = green, 2 = blue, 3 = alpha)
+	 * that supplies the view's red, green, blue, and alpha channel respectively. Channels
+	 * may be repeated or omitted; for example {2, 1, 0, 3} swaps red and blue. The bit
+	 * depths are permuted along with the samples.
+	 * @param img the image to view (not {@code null})
+	 * @param sources the source channel of each view channel (not {@code null})
+	 * @return a view with reordered channels (not {@code null})
+	 * @throws NullPointerException if {@code img} or {@code sources} is {@code null}
+	 * @throws IllegalArgumentException if {@code sources} has the wrong length or an out-of-range
+	 * element, or a red/green/blue channel would come from an alpha channel of bit depth 0
+	 */
+	public static RgbaImage swizzle(RgbaImage img, int[] sources) {
+		return new SwizzledRgbaImage(img, sources);
+	}
+	
+	
+	/**
+	 * Returns a view of the specified paletted image where the channels of each palette entry
+	 * are reordered, as described in {@link #swizzle(RgbaImage, int[])}. The pixel indexes are
+	 * unchanged. Because paletted images restrict bit depths, the resulting palette must have
+	 * red/green/blue bit depths in [1, 8] and an alpha bit depth of 0 or 8.
+	 * @param img the image to view (not {@code null})
+	 * @param sources the source channel of each view channel (not {@code null})
+	 * @return a view with reordered palette channels (not {@code null})
+	 * @throws NullPointerException if {@code img} or {@code sources} is {@code null}
+	 * @throws IllegalArgumentException if {@code sources} is invalid or yields invalid bit depths
+	 */
+	public static PaletteImage swizzle(PaletteImage img, int[] sources) {
+		Objects.requireNonNull(img);
+		int[] bitDepths = swizzleBitDepths(img.getBitDepths(), sources);
+		if (!(bitDepths[3] == 0 || bitDepths[3] == 8))
+			throw new IllegalArgumentException("Invalid alpha bit depth for palette");
+		long[] palette = img.getPalette();
+		for (int i = 0; i < palette.length; i++)
+			palette[i] = swizzlePixel(palette[i], sources);
+		
+		return new PaletteImage() {
+			@Override public int getWidth() {
+				return img.getWidth();
+			}
+			
+			@Override public int getHeight() {
+				return img.getHeight();
+			}
+			
+			@Override public int[] getBitDepths() {
+				return bitDepths.clone();
+			}
+			
+			@Override public long[] getPalette() {
+				return palette.clone();
+			}
+			
+			@Override public int getPixel(int x, int y) {
+				return img.getPixel(x, y);
+			}
+			
+			@Override public void getRow(int x, int y, int[] dest, int off, int len) {
+				img.getRow(x, y, dest, off, len);
+			}
+		};
+	}
+	
+	
+	private static int[] swizzleBitDepths(int[] bitDepths, int[] sources) {
+		Objects.requireNonNull(sources);
+		if (sources.length != 4)
+			throw new IllegalArgumentException("Invalid sources array length");
+		var result = new int[4];
+		for (int i = 0; i < result.length; i++) {
+			if (!(0 <= sources[i] && sources[i] < 4))
+				throw new IllegalArgumentException("Invalid source channel");
+			result[i] = bitDepths[sources[i]];
+			if (i < 3 && result[i] == 0)
+				throw new IllegalArgumentException("Color channel cannot come from absent alpha channel");
+		}
+		return result;
+	}
+	
+	
+	private static long swizzlePixel(long val, int[] sources) {
+		long result = 0;
+		for (int src : sources)
+			result = result << 16 | (val >>> ((3 - src) * 16) & 0xFFFF);
+		return result;
+	}
+	
+	
+	
+	private ImageViews() {}
+	
+	
+	
+	/*---- Helper classes ----*/
+	
+	/*
+	 * Maps view coordinates to coordinates in the underlying image:
+	 * srcX = x0 + xx*x + xy*y, srcY = y0 + yx*x + yy*y. The coefficients
+	 * form a signed permutation matrix. Instances are immutable.
+	 */
+	private record Transform(int width, int height, int x0, int y0, int xx, int xy, int yx, int yy) {
+		
+		public static Transform identity(int width, int height) {
+			return new Transform(width, height, 0, 0, 1, 0, 0, 1);
+		}
+		
+		
+		// Returns the transform whose view pixel (x, y) is this transform's view pixel (ox + a*x + b*y, oy + c*x + d*y).
+		private Transform compose(int ox, int oy, int a, int b, int c, int d, int newWidth, int newHeight) {
+			return new Transform(newWidth, newHeight,
+				x0 + xx * ox + xy * oy,
+				y0 + yx * ox + yy * oy,
+				xx * a + xy * c, xx * b + xy * d,
+				yx * a + yy * c, yx * b + yy * d);
+		}
+		
+		
+		public Transform crop(int x, int y, int w, int h) {
+			if (w <= 0 || h <= 0)
+				throw new IndexOutOfBoundsException("Non-positive dimensions");
+			Objects.checkFromIndexSize(x, w, width);
+			Objects.checkFromIndexSize(y, h, height);
+			return compose(x, y, 1, 0, 0, 1, w, h);
+		}
+		
+		
+		public Transform flipHorizontal() {
+			return compose(width - 1, 0, -1, 0, 0, 1, width, height);
+		}
+		
+		
+		public Transform flipVertical() {
+			return compose(0, height - 1, 1, 0, 0, -1, width, height);
+		}
+		
+		
+		public Transform rotate(int quarterTurns) {
+			return switch (Math.floorMod(quarterTurns, 4)) {
+				case 0 -> this;
+				case 1 -> compose(0, height - 1, 0, 1, -1, 0, height, width);  // (x, y) <- (y, h-1-x)
+				case 2 -> compose(width - 1, height - 1, -1, 0, 0, -1, width, height);
+				case 3 -> compose(width - 1, 0, 0, -1, 1, 0, height, width);  // (x, y) <- (w-1-y, x)
+				default -> throw new AssertionError("Unreachable value");
+			};
+		}
+		
+		
+		public void checkPixel(int x, int y) {
+			if (!(0 <= x && x < width && 0 <= y && y < height)) {
+				throw new IndexOutOfBoundsException(String.format(
+					"(x,y) = (%d,%d); (width,height) = (%d,%d)", x, y, width, height));
+			}
+		}
+		
+		
+		public void checkRow(int x, int y, int len) {
+			if (!(0 <= x && x <= width && 0 <= len && len <= width - x && 0 <= y && y < height)) {
+				throw new IndexOutOfBoundsException(String.format(
+					"(x,y,len) = (%d,%d,%d); (width,height) = (%d,%d)", x, y, len, width, height));
+			}
+		}
+		
+		
+		public int sourceX(int x, int y) {
+			return x0 + xx * x + xy * y;
+		}
+		
+		
+		public int sourceY(int x, int y) {
+			return y0 + yx * x + yy * y;
+		}
+		
+		
+		// Tests whether each view row lies within one row of the underlying image.
+		public boolean isRowPreserving() {
+			return xy == 0 && yx == 0;
+		}
+		
+	}
+	
+	
+	
+	private static final class TransformedRgbaImage implements RgbaImage {
+		
+		public static TransformedRgbaImage of(RgbaImage img) {
+			if (img instanceof TransformedRgbaImage v)
+				return v;
+			return new TransformedRgbaImage(img, Transform.identity(img.getWidth(), img.getHeight()));
+		}
+		
+		
+		public final RgbaImage image;
+		public final Transform transform;
+		
+		
+		public TransformedRgbaImage(RgbaImage img, Transform trans) {
+			image = img;
+			transform = trans;
+		}
+		
+		
+		@Override public int getWidth() {
+			return transform.width();
+		}
+		
+		@Override public int getHeight() {
+			return transform.height();
+		}
+		
+		@Override public int[] getBitDepths() {
+			return image.getBitDepths();
+		}
+		
+		
+		@Override public long getPixel(int x, int y) {
+			transform.checkPixel(x, y);
+			return image.getPixel(transform.sourceX(x, y), transform.sourceY(x, y));
+		}
+		
+		
+		@Override public void getRow(int x, int y, long[] dest, int off, int len) {
+			Objects.checkFromIndexSize(off, len, dest.length);
+			transform.checkRow(x, y, len);
+			if (len == 0)
+				return;
+			if (transform.isRowPreserving()) {
+				int sy = transform.sourceY(x, y);
+				if (transform.xx() == 1)
+					image.getRow(transform.sourceX(x, y), sy, dest, off, len);
+				else {
+					image.getRow(transform.sourceX(x + len - 1, y), sy, dest, off, len);
+					reverse(dest, off, len);
+				}
+			} else {
+				for (int i = 0; i < len; i++)
+					dest[off + i] = image.getPixel(transform.sourceX(x + i, y), transform.sourceY(x + i, y));
+			}
+		}
+		
+	}
+	
+	
+	
+	private static final class TransformedGrayImage implements GrayImage {
+		
+		public static TransformedGrayImage of(GrayImage img) {
+			if (img instanceof TransformedGrayImage v)
+				return v;
+			return new TransformedGrayImage(img, Transform.identity(img.getWidth(), img.getHeight()));
+		}
+		
+		
+		public final GrayImage image;
+		public final Transform transform;
+		
+		
+		public TransformedGrayImage(GrayImage img, Transform trans) {
+			image = img;
+			transform = trans;
+		}
+		
+		
+		@Override public int getWidth() {
+			return transform.width();
+		}
+		
+		@Override public int getHeight() {
+			return transform.height();
+		}
+		
+		@Override public int[] getBitDepths() {
+			return image.getBitDepths();
+		}
+		
+		
+		@Override public int getPixel(int x, int y) {
+			transform.checkPixel(x, y);
+			return image.getPixel(transform.sourceX(x, y), transform.sourceY(x, y));
+		}
+		
+		
+		@Override public void getRow(int x, int y, int[] dest, int off, int len) {
+			Objects.checkFromIndexSize(off, len, dest.length);
+			transform.checkRow(x, y, len);
+			if (len == 0)
+				return;
+			if (transform.isRowPreserving()) {
+				int sy = transform.sourceY(x, y);
+				if (transform.xx() == 1)
+					image.getRow(transform.sourceX(x, y), sy, dest, off, len);
+				else {
+					image.getRow(transform.sourceX(x + len - 1, y), sy, dest, off, len);
+					reverse(dest, off, len);
+				}
+			} else {
+				for (int i = 0; i < len; i++)
+					dest[off + i] = image.getPixel(transform.sourceX(x + i, y), transform.sourceY(x + i, y));
+			}
+		}
+		
+	}
+	
+	
+	
+	private static final class TransformedPaletteImage implements PaletteImage {
+		
+		public static TransformedPaletteImage of(PaletteImage img) {
+			if (img instanceof TransformedPaletteImage v)
+				return v;
+			return new TransformedPaletteImage(img, Transform.identity(img.getWidth(), img.getHeight()));
+		}
+		
+		
+		public final PaletteImage image;
+		public final Transform transform;
+		
+		
+		public TransformedPaletteImage(PaletteImage img, Transform trans) {
+			image = img;
+			transform = trans;
+		}
+		
+		
+		@Override public int getWidth() {
+			return transform.width();
+		}
+		
+		@Override public int getHeight() {
+			return transform.height();
+		}
+		
+		@Override public int[] getBitDepths() {
+			return image.getBitDepths();
+		}
+		
+		@Override public long[] getPalette() {
+			return image.getPalette();
+		}
+		
+		
+		@Override public int getPixel(int x, int y) {
+			transform.checkPixel(x, y);
+			return image.getPixel(transform.sourceX(x, y), transform.sourceY(x, y));
+		}
+		
+		
+		@Override public void getRow(int x, int y, int[] dest, int off, int len) {
+			Objects.checkFromIndexSize(off, len, dest.length);
+			transform.checkRow(x, y, len);
+			if (len == 0)
+				return;
+			if (transform.isRowPreserving()) {
+				int sy = transform.sourceY(x, y);
+				if (transform.xx() == 1)
+					image.getRow(transform.sourceX(x, y), sy, dest, off, len);
+				else {
+					image.getRow(transform.sourceX(x + len - 1, y), sy, dest, off, len);
+					reverse(dest, off, len);
+				}
+			} else {
+				for (int i = 0; i < len; i++)
+					dest[off + i] = image.getPixel(transform.sourceX(x + i, y), transform.sourceY(x + i, y));
+			}
+		}
+		
+	}
+	
+	
+	private static void reverse(long[] arr, int off, int len) {
+		for (int i = off, j = off + len - 1; i < j; i++, j--) {
+			long temp = arr[i];
+			arr[i] = arr[j];
+			arr[j] = temp;
+		}
+	}
+	
+	
+	private static void reverse(int[] arr, int off, int len) {
+		for (int i = off, j = off + len - 1; i < j; i++, j--) {
+			int temp = arr[i];
+			arr[i] = arr[j];
+			arr[j] = temp;
+		}
+	}
+	
+	
+	
+	private static final class SwizzledRgbaImage implements RgbaImage {
+		
+		private final RgbaImage image;
+		private final int[] sources;
+		private final int[] bitDepths;
+		
+		
+		public SwizzledRgbaImage(RgbaImage img, int[] sources) {
+			image = Objects.requireNonNull(img);
+			bitDepths = swizzleBitDepths(img.getBitDepths(), sources);
+			this.sources = sources.clone();
+		}
+		
+		
+		@Override public int getWidth() {
+			return image.getWidth();
+		}
+		
+		@Override public int getHeight() {
+			return image.getHeight();
+		}
+		
+		@Override public int[] getBitDepths() {
+			return bitDepths.clone();
+		}
+		
+		
+		@Override public long getPixel(int x, int y) {
+			return swizzlePixel(image.getPixel(x, y), sources);
+		}
+		
+		
+		@Override public void getRow(int x, int y, long[] dest, int off, int len) {
+			image.getRow(x, y, dest, off, len);
+			for (int i = 0; i < len; i++)
+				dest[off + i] = swizzlePixel(dest[off + i], sources);
+		}
+		
+	}
+	
+}
@@ -8,6 +8,8 @@
 
 package io.nayuki.png.image;
 
+import java.util.Objects;
+
 
 /**
  * A red-green-blue-alpha image that can be read. Implementations can be mutable or immutable.
@@ -54,4 +56,25 @@ public interface RgbaImage {
 	 */
 	public long getPixel(int x, int y);
 	
+	
+	/**
+	 * Copies the channel sample values of a horizontal run of pixels into the specified array. Element
+	 * {@code dest[off + i]} receives the value of {@code getPixel(x + i, y)}, for each <var>i</var>
+	 * in the range [0, {@code len}). The default implementation calls {@link #getPixel(int, int)}
+	 * once per pixel; implementations that store pixels in memory should override this.
+	 * @param x the <var>x</var> coordinate of the first pixel to get
+	 * @param y the <var>y</var> coordinate of the pixels to get, in the range [0, {@code getHeight()})
+	 * @param dest the array to store the values into (not {@code null})
+	 * @param off the index in {@code dest} to store the first value at
+	 * @param len the number of pixels to get
+	 * @throws NullPointerException if {@code dest} is {@code null}
+	 * @throws IndexOutOfBoundsException if the run of pixels or the array range is out of bounds
+	 */
+	public default void getRow(int x, int y, long[] dest, int off, int len) {
+		Objects.checkFromIndexSize(off, len, dest.length);
+		Objects.checkFromIndexSize(x, len, getWidth());
+		for (int i = 0; i < len; i++)
+			dest[off + i] = getPixel(x + i, y);
+	}
+	
 }
@@ -0,0 +1,148 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png.image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+
+/**
+ * A scratch file that is memory-mapped and laid out as square tiles of fixed-size pixel
+ * elements. Tile <var>t</var> (in row-major order of tiles) occupies a contiguous range
+ * of elements, and within a tile the pixels are in row-major order. The file is mapped
+ * in segments of 2<sup>26</sup> elements, each of which holds a whole number of tiles.
+ */
+final class TileStorage implements AutoCloseable {
+	
+	/*---- Constants ----*/
+	
+	// The width and height of each tile is 2^TILE_BITS pixels.
+	public static final int TILE_BITS = 8;
+	
+	public static final int TILE_SIZE = 1 << TILE_BITS;
+	
+	private static final int TILE_MASK = TILE_SIZE - 1;
+	
+	// Each mapped segment has 2^SEGMENT_BITS elements.
+	private static final int SEGMENT_BITS = 26;
+	
+	private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+	
+	
+	
+	/*---- Fields ----*/
+	
+	public final int width;
+	public final int height;
+	private final int tilesAcross;
+	private FileChannel channel;
+	private ByteBuffer[] segments;
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	public TileStorage(int width, int height, int bytesPerElement, Path directory) throws IOException {
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Non-positive dimensions");
+		Objects.requireNonNull(directory);
+		this.width = width;
+		this.height = height;
+		tilesAcross = Math.ceilDiv(width, TILE_SIZE);
+		int tilesDown = Math.ceilDiv(height, TILE_SIZE);
+		long numElems = Math.multiplyExact((long)tilesAcross * tilesDown, (long)TILE_SIZE * TILE_SIZE);
+		Math.multiplyExact(numElems, bytesPerElement);
+		
+		Path file = Files.createTempFile(directory, "png-tiles-", ".tmp");
+		channel = FileChannel.open(file, StandardOpenOption.READ,
+			StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+		try {
+			segments = new ByteBuffer[Math.toIntExact(Math.ceilDiv(numElems, SEGMENT_MASK + 1))];
+			for (int i = 0; i < segments.length; i++) {
+				long start = (long)i << SEGMENT_BITS;
+				long len = Math.min(numElems - start, SEGMENT_MASK + 1);
+				segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+					start * bytesPerElement, len * bytesPerElement).order(ByteOrder.nativeOrder());
+			}
+		} catch (IOException|RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	// Returns the mapped segments of the file. The caller must not change their positions or limits.
+	public ByteBuffer[] getSegments() {
+		if (segments == null)
+			throw new IllegalStateException("Image already closed");
+		return segments;
+	}
+	
+	
+	// Returns the global element index of the given pixel, after checking bounds.
+	public long getIndex(int x, int y) {
+		if (0 <= x && x < width && 0 <= y && y < height)
+			return toIndex(x, y);
+		else {
+			throw new IndexOutOfBoundsException(String.format(
+				"(x,y) = (%d,%d); (width,height) = (%d,%d)", x, y, width, height));
+		}
+	}
+	
+	
+	// Checks that the given horizontal run of pixels is in bounds.
+	public void checkRow(int x, int y, int len) {
+		if (!(0 <= x && x <= width && 0 <= len && len <= width - x && 0 <= y && y < height)) {
+			throw new IndexOutOfBoundsException(String.format(
+				"(x,y,len) = (%d,%d,%d); (width,height) = (%d,%d)", x, y, len, width, height));
+		}
+	}
+	
+	
+	// Returns the global element index of the given pixel without checking bounds.
+	public long toIndex(int x, int y) {
+		long tile = (long)(y >>> TILE_BITS) * tilesAcross + (x >>> TILE_BITS);
+		return tile << (TILE_BITS * 2) | (y & TILE_MASK) << TILE_BITS | (x & TILE_MASK);
+	}
+	
+	
+	// Returns the number of pixels from x to the right edge of its tile, or the image's right edge.
+	public int runLength(int x) {
+		return Math.min(TILE_SIZE - (x & TILE_MASK), width - x);
+	}
+	
+	
+	public static int segmentOf(long index) {
+		return (int)(index >>> SEGMENT_BITS);
+	}
+	
+	
+	public static int offsetOf(long index) {
+		return (int)(index & SEGMENT_MASK);
+	}
+	
+	
+	@Override public void close() throws IOException {
+		if (segments == null)
+			return;
+		segments = null;
+		channel.close();
+		channel = null;
+	}
+	
+}
@@ -0,0 +1,217 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png.image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.file.Path;
+import java.util.Objects;
+
+
+/**
+ * A mutable RGBA image where all pixels are stored in a memory-mapped scratch file
+ * instead of the Java heap. This allows images with more than 2<sup>31</sup> pixels,
+ * and the working set is bounded by the operating system's page cache. Pixels are
+ * laid out in square tiles of {@link #TILE_SIZE} &times; {@link #TILE_SIZE}, so
+ * that accessing a small rectangle or a column touches few pages.
+ * <p>The scratch file is deleted when the image is closed. After closing, all pixel
+ * accesses throw {@code IllegalStateException}. Instances are not thread-safe.</p>
+ */
+public final class TiledRgbaImage implements WritableRgbaImage, AutoCloseable {
+	
+	/*---- Constants ----*/
+	
+	/** The width and height of each tile, in pixels. */
+	public static final int TILE_SIZE = TileStorage.TILE_SIZE;
+	
+	
+	
+	/*---- Fields ----*/
+	
+	private final int[] bitDepths;
+	private final long illegalOnes;
+	private final TileStorage storage;
+	private LongBuffer[] segments;
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	/**
+	 * Constructs an all-zero image with the specified dimensions and channel bit depths,
+	 * backed by a new scratch file in the default temporary-file directory. The bit
+	 * depths have the same meaning and constraints as in {@link BufferedRgbaImage}.
+	 * @param width the width of the image, a positive number
+	 * @param height the height of the image, a positive number
+	 * @param bitDepths the bit depths of the channels of the image (not {@code null})
+	 * @throws NullPointerException if {@code bitDepths} is {@code null}
+	 * @throws IllegalArgumentException if the width, height, or bit depths are out of range
+	 * @throws IOException if the scratch file cannot be created or mapped
+	 */
+	public TiledRgbaImage(int width, int height, int[] bitDepths) throws IOException {
+		this(width, height, bitDepths, Path.of(System.getProperty("java.io.tmpdir")));
+	}
+	
+	
+	/**
+	 * Constructs an all-zero image with the specified dimensions and channel bit
+	 * depths, backed by a new scratch file in the specified directory. The bit
+	 * depths have the same meaning and constraints as in {@link BufferedRgbaImage}.
+	 * @param width the width of the image, a positive number
+	 * @param height the height of the image, a positive number
+	 * @param bitDepths the bit depths of the channels of the image (not {@code null})
+	 * @param directory the directory to create the scratch file in (not {@code null})
+	 * @throws NullPointerException if {@code bitDepths} or {@code directory} is {@code null}
+	 * @throws IllegalArgumentException if the width, height, or bit depths are out of range
+	 * @throws IOException if the scratch file cannot be created or mapped
+	 */
+	public TiledRgbaImage(int width, int height, int[] bitDepths, Path directory) throws IOException {
+		Objects.requireNonNull(bitDepths);
+		bitDepths = bitDepths.clone();
+		if (bitDepths.length != 4)
+			throw new IllegalArgumentException("Invalid bit depth array length");
+		for (int i = 0; i < bitDepths.length; i++) {
+			if (!((i == bitDepths.length - 1 ? 0 : 1) <= bitDepths[i] && bitDepths[i] <= 16))
+				throw new IllegalArgumentException("Invalid bit depths");
+		}
+		this.bitDepths = bitDepths;
+		
+		long temp = 0;
+		for (int numBits : bitDepths) {
+			temp <<= 16;
+			temp |= 0x10000 - (1 << numBits);
+		}
+		illegalOnes = temp;
+		
+		storage = new TileStorage(width, height, Long.BYTES, directory);
+		ByteBuffer[] bufs = storage.getSegments();
+		segments = new LongBuffer[bufs.length];
+		for (int i = 0; i < bufs.length; i++)
+			segments[i] = bufs[i].asLongBuffer();
+	}
+	
+	
+	
+	/**
+	 * Constructs an image by copying pixel values and bit depths from the specified image,
+	 * backed by a new scratch file in the specified directory. If {@code img} is also a
+	 * {@code TiledRgbaImage}, then the scratch file contents are copied in bulk; otherwise pixels
+	 * are read row by row using {@link RgbaImage#getRow getRow()}.
+	 * @param img the image to copy from (not {@code null})
+	 * @param directory the directory to create the scratch file in (not {@code null})
+	 * @throws NullPointerException if {@code img} or {@code directory} is {@code null}
+	 * @throws IllegalArgumentException if a pixel of {@code img} exceeds its bit depths
+	 * @throws IllegalStateException if {@code img} is a closed tiled image
+	 * @throws IOException if the scratch file cannot be created or mapped
+	 */
+	public TiledRgbaImage(RgbaImage img, Path directory) throws IOException {
+		this(img.getWidth(), img.getHeight(), img.getBitDepths(), directory);
+		try {
+			if (img instanceof TiledRgbaImage other) {
+				LongBuffer[] src = other.getSegments();
+				for (int i = 0; i < segments.length; i++)
+					segments[i].put(0, src[i], 0, src[i].limit());
+			} else {
+				int width = storage.width;
+				var row = new long[width];
+				for (int y = 0; y < storage.height; y++) {
+					img.getRow(0, y, row, 0, width);
+					setRow(0, y, row, 0, width);
+				}
+			}
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	@Override public int[] getBitDepths() {
+		return bitDepths.clone();
+	}
+	
+	
+	@Override public int getWidth() {
+		return storage.width;
+	}
+	
+	
+	@Override public int getHeight() {
+		return storage.height;
+	}
+	
+	
+	@Override public long getPixel(int x, int y) {
+		long i = storage.getIndex(x, y);
+		return getSegments()[TileStorage.segmentOf(i)].get(TileStorage.offsetOf(i));
+	}
+	
+	
+	@Override public void getRow(int x, int y, long[] dest, int off, int len) {
+		Objects.checkFromIndexSize(off, len, dest.length);
+		storage.checkRow(x, y, len);
+		LongBuffer[] segs = getSegments();
+		for (int end = x + len; x < end; ) {
+			int n = Math.min(storage.runLength(x), end - x);
+			long i = storage.toIndex(x, y);
+			segs[TileStorage.segmentOf(i)].get(TileStorage.offsetOf(i), dest, off, n);
+			x += n;
+			off += n;
+		}
+	}
+	
+	
+	@Override public void setPixel(int x, int y, long val) {
+		if ((val & illegalOnes) != 0)
+			throw new IllegalArgumentException("Invalid sample value");
+		long i = storage.getIndex(x, y);
+		getSegments()[TileStorage.segmentOf(i)].put(TileStorage.offsetOf(i), val);
+	}
+	
+	
+	@Override public void setRow(int x, int y, long[] src, int off, int len) {
+		Objects.checkFromIndexSize(off, len, src.length);
+		storage.checkRow(x, y, len);
+		for (int i = 0; i < len; i++) {
+			if ((src[off + i] & illegalOnes) != 0)
+				throw new IllegalArgumentException("Invalid sample value");
+		}
+		LongBuffer[] segs = getSegments();
+		for (int end = x + len; x < end; ) {
+			int n = Math.min(storage.runLength(x), end - x);
+			long i = storage.toIndex(x, y);
+			segs[TileStorage.segmentOf(i)].put(TileStorage.offsetOf(i), src, off, n);
+			x += n;
+			off += n;
+		}
+	}
+	
+	
+	private LongBuffer[] getSegments() {
+		if (segments == null)
+			throw new IllegalStateException("Image already closed");
+		return segments;
+	}
+	
+	
+	/**
+	 * Releases the scratch file backing this image. Subsequent pixel
+	 * accesses will throw an exception. Closing more than once has no effect.
+	 * @throws IOException if an I/O exception occurs
+	 */
+	@Override public void close() throws IOException {
+		segments = null;
+		storage.close();
+	}
+	
+}
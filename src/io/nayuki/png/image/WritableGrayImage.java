@@ -0,0 +1,54 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png.image;
+
+import java.util.Objects;
+
+
+/**
+ * A grayscale-alpha image whose pixels can be read and written. The dimensions
+ * and bit depths are fixed; only the pixel values can be modified. This is the
+ * type of image that {@code ImageDecoder} writes grayscale pixels into.
+ */
+public interface WritableGrayImage extends GrayImage {
+	
+	/**
+	 * Sets the pixel at the specified coordinates to the specified value.
+	 * @param x the <var>x</var> coordinate of the pixel to set, in the range [0, {@code getWidth()})
+	 * @param y the <var>y</var> coordinate of the pixel to set, in the range [0, {@code getHeight()})
+	 * @param val the new channel sample values of the pixel
+	 * @throws IndexOutOfBoundsException if the (<var>x</var>, <var>y</var>) coordinates are out of bounds
+	 * @throws IllegalArgumentException if the value is invalid for this image
+	 */
+	public void setPixel(int x, int y, int val);
+	
+	
+	/**
+	 * Sets the pixels of a horizontal run to the values in the specified array. Pixel (<var>x</var>
+	 * + <var>i</var>, <var>y</var>) is set to {@code src[off + i]}, for each <var>i</var> in the range
+	 * [0, {@code len}). The default implementation calls {@link #setPixel(int, int, int)} once
+	 * per pixel; implementations that store pixels in memory should override this. If an exception
+	 * is thrown due to an invalid value, then some of the pixels might have been modified.
+	 * @param x the <var>x</var> coordinate of the first pixel to set
+	 * @param y the <var>y</var> coordinate of the pixels to set, in the range [0, {@code getHeight()})
+	 * @param src the array to read the values from (not {@code null})
+	 * @param off the index in {@code src} of the first value
+	 * @param len the number of pixels to set
+	 * @throws NullPointerException if {@code src} is {@code null}
+	 * @throws IndexOutOfBoundsException if the run of pixels or the array range is out of bounds
+	 * @throws IllegalArgumentException if any of the values is invalid for this image
+	 */
+	public default void setRow(int x, int y, int[] src, int off, int len) {
+		Objects.checkFromIndexSize(off, len, src.length);
+		Objects.checkFromIndexSize(x, len, getWidth());
+		for (int i = 0; i < len; i++)
+			setPixel(x + i, y, src[off + i]);
+	}
+	
+}
@@ -0,0 +1,125 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import static io.nayuki.png.TestUtil.rand;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+import io.nayuki.png.chunk.Ihdr;
+import io.nayuki.png.image.BufferedGrayImage;
+import io.nayuki.png.image.GrayImage;
+
+
+public final class AsyncCodecTest {
+	
+	@Test public void testRoundTrip() throws Exception {
+		var img = new BufferedGrayImage(100, 70, new int[]{8, 0});
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++)
+				img.setPixel(x, y, rand.nextInt(256) << 16);
+		}
+		Path file = Files.createTempFile("asynctest", ".png");
+		try (var codec = new AsyncCodec(2)) {
+			CompletableFuture<Object> result = codec.encodeAsync(img, Ihdr.InterlaceMethod.ADAM7, EncodeOptions.DEFAULT)
+				.thenCompose(png -> codec.writeAsync(png, file))
+				.thenCompose(v -> codec.decodeAsync(file, DecodeOptions.DEFAULT));
+			var decoded = (GrayImage)result.get(10, TimeUnit.SECONDS);
+			for (int y = 0; y < img.getHeight(); y++) {
+				for (int x = 0; x < img.getWidth(); x++)
+					Assert.assertEquals(img.getPixel(x, y), decoded.getPixel(x, y));
+			}
+			PngImage png = codec.readAsync(file).get(10, TimeUnit.SECONDS);
+			Assert.assertTrue(codec.decodeAsync(png, DecodeOptions.DEFAULT).get(10, TimeUnit.SECONDS) instanceof GrayImage);
+		} finally {
+			Files.delete(file);
+		}
+	}
+	
+	
+	@Test public void testFailures() throws Exception {
+		Path file = Files.createTempFile("asynctest", ".png");
+		try (var codec = new AsyncCodec(1)) {
+			Files.write(file, new byte[]{1, 2, 3});
+			assertFailsWith(IllegalArgumentException.class, codec.readAsync(file));
+			Files.delete(file);
+			assertFailsWith(UncheckedIOException.class, codec.decodeAsync(file, DecodeOptions.DEFAULT));
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+	
+	
+	@Test public void testCancelStopsWork() throws Exception {
+		GrayImage big = new BufferedGrayImage(3000, 3000, new int[]{8, 0});
+		var rowsChecked = new AtomicInteger();
+		var options = EncodeOptions.DEFAULT
+			.withFilterStrategy(EncodeOptions.FilterStrategy.EXHAUSTIVE)
+			.withCancellation(() -> rowsChecked.incrementAndGet() < 0);
+		try (var codec = new AsyncCodec(1)) {
+			CompletableFuture<PngImage> slow = codec.encodeAsync(big, Ihdr.InterlaceMethod.NONE, options);
+			while (rowsChecked.get() == 0)
+				Thread.sleep(1);
+			slow.cancel(false);
+			// The single worker thread must become free long before the encoding could have finished
+			GrayImage small = new BufferedGrayImage(1, 1, new int[]{8, 0});
+			codec.encodeAsync(small, Ihdr.InterlaceMethod.NONE, EncodeOptions.DEFAULT).get(10, TimeUnit.SECONDS);
+			Assert.assertTrue(rowsChecked.get() < big.getHeight());
+		}
+	}
+	
+	
+	@Test public void testDeadline() throws Exception {
+		GrayImage big = new BufferedGrayImage(3000, 3000, new int[]{8, 0});
+		try (var codec = new AsyncCodec(1)) {
+			PngImage png = ImageEncoder.toPng(big, Ihdr.InterlaceMethod.NONE);
+			var rowsChecked = new AtomicInteger();
+			CompletableFuture<Object> slow = codec.decodeAsync(png,
+				DecodeOptions.DEFAULT.withCancellation(() -> rowsChecked.incrementAndGet() < 0)).orTimeout(1, TimeUnit.MILLISECONDS);
+			assertFailsWith(TimeoutException.class, slow);
+			codec.decodeAsync(ImageEncoder.toPng(new BufferedGrayImage(1, 1, new int[]{8, 0}), Ihdr.InterlaceMethod.NONE), DecodeOptions.DEFAULT)
+				.get(10, TimeUnit.SECONDS);
+			Assert.assertTrue(rowsChecked.get() < big.getHeight());
+		}
+	}
+	
+	
+	@Test public void testOwnCancellationCondition() throws Exception {
+		GrayImage img = new BufferedGrayImage(10, 10, new int[]{8, 0});
+		try (var codec = new AsyncCodec(1)) {
+			CompletableFuture<PngImage> future = codec.encodeAsync(img, Ihdr.InterlaceMethod.NONE,
+				EncodeOptions.DEFAULT.withCancellation(() -> true));
+			try {
+				future.get(10, TimeUnit.SECONDS);
+				Assert.fail();
+			} catch (CancellationException e) {}  // Pass
+			Assert.assertTrue(future.isCancelled());
+		}
+		TestUtil.runExpect(IllegalArgumentException.class, () -> new AsyncCodec(0));
+	}
+	
+	
+	private static void assertFailsWith(Class<? extends Throwable> type, CompletableFuture<?> future) throws InterruptedException, TimeoutException {
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause().toString(), type.isInstance(e.getCause()));
+		}
+	}
+	
+}
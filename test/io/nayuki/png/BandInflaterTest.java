@@ -0,0 +1,122 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import static io.nayuki.png.TestUtil.rand;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public final class BandInflaterTest {
+	
+	@Test public void testCombineAdler32() {
+		final int TRIALS = 1000;
+		for (int i = 0; i < TRIALS; i++) {
+			var data = new byte[rand.nextInt(300000)];
+			for (int j = 0; j < data.length; j++)
+				data[j] = (byte)(rand.nextInt(4) == 0 ? rand.nextInt(256) : 0xFF);
+			int split = rand.nextInt(data.length + 1);
+			var whole = new Adler32();
+			whole.update(data);
+			var first = new Adler32();
+			first.update(data, 0, split);
+			var second = new Adler32();
+			second.update(data, split, data.length - split);
+			Assert.assertEquals((int)whole.getValue(), BandInflater.combineAdler32((int)first.getValue(), (int)second.getValue(), data.length - split));
+		}
+	}
+	
+	
+	@Test public void testBands() {
+		final int TRIALS = 100;
+		for (int i = 0; i < TRIALS; i++) {
+			var parts = new byte[rand.nextInt(5) + 1][];
+			for (int j = 0; j < parts.length; j++) {
+				parts[j] = new byte[rand.nextInt(1000) + 1];
+				for (int k = 0; k < parts[j].length; k++)
+					parts[j][k] = (byte)rand.nextInt(j + 2);
+			}
+			byte[][] bands = compressBands(parts);
+			var adler = new Adler32();
+			for (int j = 0; j < parts.length; j++) {
+				adler.update(parts[j]);
+				var out = new byte[parts[j].length];
+				long result = BandInflater.inflate(bands[j], j == 0, j == parts.length - 1, out);
+				Assert.assertArrayEquals(parts[j], out);
+				if (j == parts.length - 1)
+					Assert.assertEquals(adler.getValue(), result >>> 32);
+				
+				// Wrong decompressed length
+				byte[] band = bands[j];
+				boolean isFirst = j == 0;
+				boolean isLast = j == parts.length - 1;
+				TestUtil.runExpect(IllegalArgumentException.class, () -> BandInflater.inflate(band, isFirst, isLast, new byte[out.length + 1]));
+				if (out.length > 1)
+					TestUtil.runExpect(IllegalArgumentException.class, () -> BandInflater.inflate(band, isFirst, isLast, new byte[out.length - 1]));
+			}
+		}
+	}
+	
+	
+	@Test public void testNotAtFlushPoint() {
+		// A stream without full flushes, split where the decompressed data happens to be divided
+		var data = new byte[5000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte)(i % 97);
+		byte[][] whole = compressBands(new byte[][]{data});
+		for (int split = 1; split < whole[0].length - 6; split += 7) {
+			byte[] head = Arrays.copyOf(whole[0], split);
+			TestUtil.runExpect(IllegalArgumentException.class, () -> BandInflater.inflate(head, true, false, new byte[data.length]));
+		}
+		
+		// A later band that refers to data before it
+		byte[][] bands = compressBands(new byte[][]{data, data});
+		var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(data);
+		deflater.deflate(new byte[data.length * 2], 0, data.length * 2, Deflater.SYNC_FLUSH);
+		deflater.setInput(data);
+		deflater.finish();
+		var buf = new byte[data.length * 2];
+		int n = deflater.deflate(buf);
+		deflater.end();
+		byte[] dependent = Arrays.copyOf(buf, n);
+		Assert.assertTrue(dependent.length < bands[1].length);
+		TestUtil.runExpect(IllegalArgumentException.class, () -> BandInflater.inflate(dependent, false, true, new byte[data.length]));
+	}
+	
+	
+	// Compresses the given parts as one zlib stream with a full flush after each part except the last,
+	// and returns the compressed bytes split at the flush points.
+	private static byte[][] compressBands(byte[][] parts) {
+		var result = new byte[parts.length][];
+		var deflater = new Deflater();
+		var buf = new byte[1000];
+		for (int i = 0; i < parts.length; i++) {
+			var bout = new ByteArrayOutputStream();
+			deflater.setInput(parts[i]);
+			if (i == parts.length - 1)
+				deflater.finish();
+			int mode = i == parts.length - 1 ? Deflater.NO_FLUSH : Deflater.FULL_FLUSH;
+			while (true) {
+				int n = deflater.deflate(buf, 0, buf.length, mode);
+				bout.write(buf, 0, n);
+				if (i == parts.length - 1 ? deflater.finished() : n < buf.length)
+					break;
+			}
+			result[i] = bout.toByteArray();
+		}
+		deflater.end();
+		return result;
+	}
+	
+}
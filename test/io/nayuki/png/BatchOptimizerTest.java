@@ -0,0 +1,168 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import static io.nayuki.png.TestUtil.rand;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import io.nayuki.png.chunk.Ihdr;
+import io.nayuki.png.chunk.Time;
+import io.nayuki.png.image.BufferedGrayImage;
+import io.nayuki.png.image.GrayImage;
+
+
+public final class BatchOptimizerTest {
+	
+	private Path dir;
+	private Path input;
+	private Path output;
+	
+	
+	@Before public void setUp() throws IOException {
+		dir = Files.createTempDirectory("batchtest");
+		input = dir.resolve("in");
+		output = dir.resolve("out");
+		Files.createDirectories(input.resolve("sub"));
+		for (int i = 0; i < 5; i++) {
+			PngImage png = ImageEncoder.toPng(randomImage(), Ihdr.InterlaceMethod.NONE);
+			png.afterIdats.add(new Time(2024, 5, 6, 7, 8, 9));
+			png.write(input.resolve((i % 2 == 0 ? "" : "sub/") + "img" + i + ".png").toFile());
+		}
+		Files.write(input.resolve("bad.png"), new byte[]{1, 2, 3});
+		Files.write(input.resolve("notes.txt"), new byte[]{4, 5, 6});
+	}
+	
+	
+	@After public void tearDown() throws IOException {
+		try (Stream<Path> walk = Files.walk(dir)) {
+			for (Path p : walk.sorted(Comparator.reverseOrder()).toList())
+				Files.delete(p);
+		}
+	}
+	
+	
+	@Test public void testValidate() {
+		var out = new ByteArrayOutputStream();
+		var err = new ByteArrayOutputStream();
+		Assert.assertEquals(1, run(out, err, "--threads", "3", "validate", input.toString()));
+		Assert.assertTrue(out.toString(StandardCharsets.UTF_8).contains("5 succeeded, 1 failed, 0 skipped"));
+		Assert.assertTrue(err.toString(StandardCharsets.UTF_8).contains("bad.png"));
+		Assert.assertFalse(Files.exists(output));
+	}
+	
+	
+	@Test public void testStrip() throws IOException {
+		Files.delete(input.resolve("bad.png"));
+		Assert.assertEquals(0, run(new ByteArrayOutputStream(), new ByteArrayOutputStream(), "strip", input.toString(), output.toString()));
+		for (String name : List.of("img0.png", "sub/img1.png", "img4.png")) {
+			PngImage png = PngImage.read(output.resolve(name).toFile());
+			Assert.assertTrue(png.afterIdats.isEmpty());
+			Assert.assertTrue(Files.size(output.resolve(name)) < Files.size(input.resolve(name)));
+		}
+		Assert.assertFalse(Files.exists(output.resolve("notes.txt")));
+	}
+	
+	
+	@Test public void testConvertKeepsPixels() throws IOException {
+		Files.delete(input.resolve("bad.png"));
+		Assert.assertEquals(0, run(new ByteArrayOutputStream(), new ByteArrayOutputStream(),
+			"--interlace", "adam7", "--filter", "exhaustive", "--level", "6", "convert", input.toString(), output.toString()));
+		for (String name : List.of("img0.png", "sub/img3.png")) {
+			PngImage before = PngImage.read(input.resolve(name).toFile());
+			PngImage after = PngImage.read(output.resolve(name).toFile());
+			Assert.assertEquals(Ihdr.InterlaceMethod.ADAM7, after.ihdr.get().interlaceMethod());
+			Assert.assertEquals(1, PngImage.getChunks(Time.class, after.afterIdats).size());
+			var expect = (GrayImage)ImageDecoder.toImage(before);
+			var actual = (GrayImage)ImageDecoder.toImage(after);
+			for (int y = 0; y < expect.getHeight(); y++) {
+				for (int x = 0; x < expect.getWidth(); x++)
+					Assert.assertEquals(expect.getPixel(x, y), actual.getPixel(x, y));
+			}
+		}
+	}
+	
+	
+	@Test public void testResume() throws IOException {
+		Path journal = dir.resolve("journal.txt");
+		Files.writeString(journal, Path.of("sub", "img1.png") + "\n");
+		var out = new ByteArrayOutputStream();
+		Assert.assertEquals(1, run(out, new ByteArrayOutputStream(),
+			"--journal", journal.toString(), "--memory", "1", "recompress", input.toString(), output.toString()));
+		Assert.assertTrue(out.toString(StandardCharsets.UTF_8).contains("4 succeeded, 1 failed, 1 skipped"));
+		Assert.assertFalse(Files.exists(output.resolve("sub/img1.png")));
+		Assert.assertTrue(Files.exists(output.resolve("sub/img3.png")));
+		Assert.assertEquals(5, Files.readAllLines(journal).size());
+		
+		// Only the failed file remains
+		out.reset();
+		Assert.assertEquals(1, run(out, new ByteArrayOutputStream(),
+			"--journal", journal.toString(), "recompress", input.toString(), output.toString()));
+		Assert.assertTrue(out.toString(StandardCharsets.UTF_8).contains("0 succeeded, 1 failed, 5 skipped"));
+	}
+	
+	
+	@Test public void testMemoryBudget() throws IOException {
+		// The huge file takes the whole budget, so the small files must wait for it without blocking the workers
+		Files.delete(input.resolve("bad.png"));
+		ImageEncoder.toPng(new BufferedGrayImage(1500, 1000, new int[]{8, 0}), Ihdr.InterlaceMethod.NONE)
+			.write(input.resolve("huge.png").toFile());
+		var out = new ByteArrayOutputStream();
+		Assert.assertEquals(0, run(out, new ByteArrayOutputStream(),
+			"--threads", "2", "--memory", "1", "convert", input.toString(), output.toString()));
+		Assert.assertTrue(out.toString(StandardCharsets.UTF_8).contains("6 succeeded, 0 failed, 0 skipped"));
+		Assert.assertTrue(Files.exists(output.resolve("huge.png")));
+	}
+	
+	
+	@Test public void testInvalidArguments() {
+		String[][] cases = {
+			{},
+			{"validate"},
+			{"optimize", "a", "b"},
+			{"strip", "a"},
+			{"validate", "a", "b"},
+			{"--threads", "0", "validate", "a"},
+			{"--level", "10", "strip", "a", "b"},
+			{"--filter", "best", "strip", "a", "b"},
+			{"--bogus", "1", "validate", "a"},
+			{"validate", "a", "--threads"},
+		};
+		for (String[] args : cases)
+			Assert.assertEquals(2, run(new ByteArrayOutputStream(), new ByteArrayOutputStream(), args));
+	}
+	
+	
+	private static int run(ByteArrayOutputStream out, ByteArrayOutputStream err, String... args) {
+		return BatchOptimizer.run(args, new PrintStream(out, true, StandardCharsets.UTF_8), new PrintStream(err, true, StandardCharsets.UTF_8));
+	}
+	
+	
+	private static GrayImage randomImage() {
+		int width  = rand.nextInt(50) + 1;
+		int height = rand.nextInt(50) + 1;
+		var img = new BufferedGrayImage(width, height, new int[]{8, 0});
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				img.setPixel(x, y, ((x + y) & 0xFF) << 16);
+		}
+		return img;
+	}
+	
+}
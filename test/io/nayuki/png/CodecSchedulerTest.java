@@ -0,0 +1,151 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import static io.nayuki.png.TestUtil.rand;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import io.nayuki.png.chunk.Ihdr;
+import io.nayuki.png.image.BufferedGrayImage;
+import io.nayuki.png.image.BufferedPaletteImage;
+import io.nayuki.png.image.BufferedRgbaImage;
+import io.nayuki.png.image.GrayImage;
+
+
+public final class CodecSchedulerTest {
+	
+	@Test public void testCostEstimates() {
+		Ihdr small = new Ihdr(10, 10, 8, Ihdr.ColorType.GRAYSCALE,
+			Ihdr.CompressionMethod.ZLIB_DEFLATE, Ihdr.FilterMethod.ADAPTIVE, Ihdr.InterlaceMethod.NONE);
+		Ihdr big = new Ihdr(1000, 1000, 8, Ihdr.ColorType.GRAYSCALE,
+			Ihdr.CompressionMethod.ZLIB_DEFLATE, Ihdr.FilterMethod.ADAPTIVE, Ihdr.InterlaceMethod.NONE);
+		Ihdr deep = new Ihdr(1000, 1000, 16, Ihdr.ColorType.TRUE_COLOR_WITH_ALPHA,
+			Ihdr.CompressionMethod.ZLIB_DEFLATE, Ihdr.FilterMethod.ADAPTIVE, Ihdr.InterlaceMethod.NONE);
+		Ihdr interlaced = new Ihdr(1000, 1000, 8, Ihdr.ColorType.GRAYSCALE,
+			Ihdr.CompressionMethod.ZLIB_DEFLATE, Ihdr.FilterMethod.ADAPTIVE, Ihdr.InterlaceMethod.ADAM7);
+		long cost = CodecScheduler.estimateDecodeCost(big, 0);
+		Assert.assertTrue(CodecScheduler.estimateDecodeCost(small, 0) * 1000 < cost);
+		Assert.assertTrue(cost < CodecScheduler.estimateDecodeCost(big, 100_000));
+		Assert.assertTrue(cost < CodecScheduler.estimateDecodeCost(deep, 0));
+		Assert.assertTrue(cost < CodecScheduler.estimateDecodeCost(interlaced, 0));
+		Assert.assertTrue(cost < CodecScheduler.estimateEncodeCost(big, EncodeOptions.DEFAULT));
+		Assert.assertTrue(CodecScheduler.estimateEncodeCost(big, EncodeOptions.DEFAULT)
+			< CodecScheduler.estimateEncodeCost(big, EncodeOptions.DEFAULT.withFilterStrategy(EncodeOptions.FilterStrategy.EXHAUSTIVE)));
+		PngImage png = ImageEncoder.toPng(new BufferedGrayImage(10, 10, new int[]{8, 0}), Ihdr.InterlaceMethod.NONE);
+		Assert.assertTrue(CodecScheduler.estimateDecodeCost(png) > CodecScheduler.estimateDecodeCost(small, 0));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> CodecScheduler.estimateDecodeCost(small, -1));
+	}
+	
+	
+	@Test public void testShortestJobFirst() throws Exception {
+		try (var sched = new CodecScheduler(1, CodecScheduler.Policy.SHORTEST_JOB_FIRST)) {
+			CountDownLatch release = block(sched, "x");
+			var order = Collections.synchronizedList(new ArrayList<Integer>());
+			var futures = new ArrayList<CompletableFuture<?>>();
+			int[] sizes = {300, 10, 100, 30, 10};
+			for (int i = 0; i < sizes.length; i++) {
+				int id = i;
+				PngImage png = ImageEncoder.toPng(new BufferedGrayImage(sizes[i], sizes[i], new int[]{8, 0}), Ihdr.InterlaceMethod.NONE);
+				futures.add(sched.submitDecode("x", png, DecodeOptions.DEFAULT).thenRun(() -> order.add(id)));
+			}
+			release.countDown();
+			CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+			Assert.assertEquals(List.of(1, 4, 3, 2, 0), order);
+		}
+	}
+	
+	
+	@Test public void testWeightedFair() throws Exception {
+		try (var sched = new CodecScheduler(1, CodecScheduler.Policy.WEIGHTED_FAIR)) {
+			sched.setWeight("a", 2);
+			CountDownLatch release = block(sched, "c");
+			var order = Collections.synchronizedList(new ArrayList<String>());
+			var futures = new ArrayList<CompletableFuture<?>>();
+			var img = new BufferedGrayImage(50, 50, new int[]{8, 0});
+			for (String tenant : List.of("a", "b")) {
+				for (int i = 0; i < 4; i++)
+					futures.add(sched.submitEncode(tenant, img, Ihdr.InterlaceMethod.NONE, EncodeOptions.DEFAULT).thenRun(() -> order.add(tenant)));
+			}
+			release.countDown();
+			CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+			Assert.assertEquals(List.of("a", "a", "b", "a", "a", "b", "b", "b"), order);
+		}
+		TestUtil.runExpect(IllegalArgumentException.class, () -> new CodecScheduler(1, CodecScheduler.Policy.WEIGHTED_FAIR).setWeight("a", 0));
+	}
+	
+	
+	@Test public void testHugeJobs() throws Exception {
+		var rgba = new BufferedRgbaImage(300, 200, new int[]{8, 8, 8, 8});
+		for (int y = 0; y < rgba.getHeight(); y++) {
+			for (int x = 0; x < rgba.getWidth(); x++)
+				rgba.setPixel(x, y, rand.nextLong() & 0x00FF_00FF_00FF_00FFL);
+		}
+		var pal = new BufferedPaletteImage(40, 30, new int[]{8, 8, 8, 0}, new long[]{0, 1L << 48, 2L << 32});
+		try (var sched = new CodecScheduler(2, CodecScheduler.Policy.SHORTEST_JOB_FIRST, 0)) {
+			PngImage png = sched.submitEncode("x", rgba, Ihdr.InterlaceMethod.NONE, EncodeOptions.DEFAULT).get(10, TimeUnit.SECONDS);
+			var decoded = (BufferedRgbaImage)sched.submitDecode("x", png, DecodeOptions.DEFAULT).get(10, TimeUnit.SECONDS);
+			for (int y = 0; y < rgba.getHeight(); y++) {
+				for (int x = 0; x < rgba.getWidth(); x++)
+					Assert.assertEquals(rgba.getPixel(x, y), decoded.getPixel(x, y));
+			}
+			png = sched.submitEncode("x", pal, Ihdr.InterlaceMethod.ADAM7, EncodeOptions.DEFAULT).get(10, TimeUnit.SECONDS);
+			Assert.assertEquals(2, png.ihdr.get().bitDepth());
+		}
+	}
+	
+	
+	@Test public void testCancelAndClose() throws Exception {
+		var sched = new CodecScheduler(1, CodecScheduler.Policy.SHORTEST_JOB_FIRST);
+		CountDownLatch release = block(sched, "x");
+		var ran = new boolean[1];
+		PngImage png = ImageEncoder.toPng(new BufferedGrayImage(10, 10, new int[]{8, 0}), Ihdr.InterlaceMethod.NONE);
+		CompletableFuture<Object> waiting = sched.submitDecode("x", png,
+			DecodeOptions.DEFAULT.withCancellation(() -> ran[0] = true));
+		Assert.assertTrue(waiting.cancel(false));
+		CompletableFuture<Object> queued = sched.submitDecode("x", png, DecodeOptions.DEFAULT);
+		sched.close();
+		try {
+			sched.submitDecode("x", png, DecodeOptions.DEFAULT).get(10, TimeUnit.SECONDS);
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		release.countDown();
+		Assert.assertTrue(queued.get(10, TimeUnit.SECONDS) instanceof GrayImage);
+		Assert.assertFalse(ran[0]);
+	}
+	
+	
+	// Submits a job that occupies one worker thread until the returned latch is released.
+	private static CountDownLatch block(CodecScheduler sched, String tenant) throws InterruptedException {
+		var started = new CountDownLatch(1);
+		var release = new CountDownLatch(1);
+		PngImage png = ImageEncoder.toPng(new BufferedGrayImage(1, 1, new int[]{8, 0}), Ihdr.InterlaceMethod.NONE);
+		sched.submitDecode(tenant, png, DecodeOptions.DEFAULT.withCancellation(() -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new AssertionError(e);
+			}
+			return false;
+		}));
+		started.await();
+		return release;
+	}
+	
+}
@@ -0,0 +1,90 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+
+/**
+ * Measures each specialized decode kernel against the generic per-pixel loop that it replaced.
+ * Run the main method with no arguments; it prints nanoseconds per pixel for both. The numbers
+ * are indicative only, because this uses simple timing loops rather than a benchmark harness.
+ */
+public final class DecodeKernelsBenchmark {
+	
+	public static void main(String[] args) {
+		System.out.printf("%-16s %10s %10s%n", "Kernel", "Generic", "Kernel");
+		// Name, bit depth, alpha, tRNS, sBIT
+		runRgba("RGB8"      ,  8, false, false, false);
+		runRgba("RGB8 tRNS" ,  8, false, true , false);
+		runRgba("RGB8 sBIT" ,  8, false, false, true );
+		runRgba("RGBA8"     ,  8, true , false, false);
+		runRgba("RGBA8 sBIT",  8, true , false, true );
+		runRgba("RGB16"     , 16, false, false, false);
+		runRgba("RGB16 tRNS", 16, false, true , false);
+		runRgba("RGBA16"    , 16, true , false, false);
+		runGray("G1"        ,  1, false, false, false);
+		runGray("G4 tRNS"   ,  4, false, true , false);
+		runGray("G8"        ,  8, false, false, false);
+		runGray("G8 tRNS"   ,  8, false, true , false);
+		runGray("GA8"       ,  8, true , false, false);
+		runGray("G16"       , 16, false, false, false);
+		runGray("G16 sBIT"  , 16, false, false, true );
+		runGray("GA16"      , 16, true , false, false);
+	}
+	
+	
+	private static void runRgba(String name, int bitDepth, boolean hasAlpha, boolean hasTrns, boolean hasSbit) {
+		int filterStride = bitDepth / 8 * (hasAlpha ? 4 : 3);
+		byte[] row = DecodeKernelsTest.randomRow(filterStride, WIDTH * filterStride);
+		long transparentColor = hasTrns ? 0x1234_5678_9ABC_0000L & (bitDepth == 8 ? 0x00FF_00FF_00FF_0000L : -1) : -1;
+		int outBits = hasSbit ? bitDepth - 3 : bitDepth;
+		int aBits = hasAlpha ? outBits : hasTrns ? (hasSbit ? 1 : bitDepth) : 0;
+		int[] shifts = {bitDepth - outBits, bitDepth - outBits, bitDepth - outBits, bitDepth - aBits};
+		var pixels = new long[WIDTH];
+		DecodeKernels.RgbaKernel kernel = DecodeKernels.forRgba(bitDepth, hasAlpha, transparentColor, shifts[0], shifts[1], shifts[2], shifts[3]);
+		double generic = time(() -> DecodeKernelsTest.genericRgba(row, 0, WIDTH, filterStride, bitDepth, hasAlpha, transparentColor, shifts, pixels));
+		double special = time(() -> kernel.convert(row, 0, pixels, WIDTH));
+		System.out.printf("%-16s %10.3f %10.3f%n", name, generic, special);
+	}
+	
+	
+	private static void runGray(String name, int bitDepth, boolean hasAlpha, boolean hasTrns, boolean hasSbit) {
+		int filterStride = Math.ceilDiv(bitDepth * (hasAlpha ? 2 : 1), 8);
+		byte[] row = DecodeKernelsTest.randomRow(filterStride, Math.ceilDiv(WIDTH * bitDepth * (hasAlpha ? 2 : 1), 8));
+		int transparentColor = hasTrns ? 1 << 16 : -1;
+		int outBits = hasSbit ? bitDepth - 3 : bitDepth;
+		int wShift = bitDepth - outBits;
+		int aShift = bitDepth - (hasAlpha ? outBits : hasTrns ? (hasSbit ? 1 : bitDepth) : 0);
+		var pixels = new int[WIDTH];
+		DecodeKernels.IntKernel kernel = DecodeKernels.forGray(bitDepth, hasAlpha, transparentColor, wShift, aShift);
+		double generic = time(() -> DecodeKernelsTest.genericGray(row, 0, WIDTH, filterStride, bitDepth, hasAlpha, transparentColor, wShift, aShift, pixels));
+		double special = time(() -> kernel.convert(row, 0, pixels, WIDTH));
+		System.out.printf("%-16s %10.3f %10.3f%n", name, generic, special);
+	}
+	
+	
+	// Returns the fastest of several measurements, in nanoseconds per pixel.
+	private static double time(Runnable func) {
+		for (int i = 0; i < WARMUP_ROWS; i++)
+			func.run();
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < 10; i++) {
+			long start = System.nanoTime();
+			for (int j = 0; j < MEASURED_ROWS; j++)
+				func.run();
+			best = Math.min(System.nanoTime() - start, best);
+		}
+		return (double)best / MEASURED_ROWS / WIDTH;
+	}
+	
+	
+	private static final int WIDTH = 4096;
+	private static final int WARMUP_ROWS = 20000;
+	private static final int MEASURED_ROWS = 2000;
+	
+}
@@ -0,0 +1,221 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import static io.nayuki.png.TestUtil.rand;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public final class DecodeKernelsTest {
+	
+	@Test public void testRgbaRandomly() {
+		final int TRIALS = 3000;
+		for (int i = 0; i < TRIALS; i++) {
+			int bitDepth = rand.nextBoolean() ? 8 : 16;
+			boolean hasAlpha = rand.nextBoolean();
+			int[] outBits = new int[4];
+			for (int j = 0; j < outBits.length; j++)
+				outBits[j] = rand.nextDouble() < 0.5 ? bitDepth : rand.nextInt(bitDepth) + 1;
+			long transparentColor = -1;
+			if (!hasAlpha && rand.nextBoolean()) {
+				transparentColor = 0;
+				for (int j = 0; j < 3; j++)
+					transparentColor = (transparentColor << 16) | rand.nextInt(1 << bitDepth);
+				transparentColor <<= 16;
+				outBits[3] = outBits[0] == bitDepth && outBits[1] == bitDepth && outBits[2] == bitDepth ? bitDepth : 1;
+			} else if (!hasAlpha)
+				outBits[3] = 0;
+			int[] shifts = new int[4];
+			for (int j = 0; j < shifts.length; j++)
+				shifts[j] = bitDepth - outBits[j];
+			
+			int filterStride = bitDepth / 8 * (hasAlpha ? 4 : 3);
+			int width = rand.nextInt(50) + 1;
+			byte[] row = randomRow(filterStride, width * filterStride);
+			if (transparentColor != -1 && width > 1)  // Make some pixels match
+				setTransparent(row, filterStride, 1, transparentColor, bitDepth);
+			int xStart = rand.nextInt(width);
+			int count = rand.nextInt(width - xStart) + 1;
+			
+			var expect = new long[count];
+			genericRgba(row, xStart, xStart + count, filterStride, bitDepth, hasAlpha, transparentColor, shifts, expect);
+			var actual = new long[count];
+			DecodeKernels.forRgba(bitDepth, hasAlpha, transparentColor, shifts[0], shifts[1], shifts[2], shifts[3])
+				.convert(row, xStart, actual, count);
+			Assert.assertArrayEquals(expect, actual);
+		}
+	}
+	
+	
+	@Test public void testGrayRandomly() {
+		final int TRIALS = 3000;
+		for (int i = 0; i < TRIALS; i++) {
+			int bitDepth = new int[]{1, 2, 4, 8, 16}[rand.nextInt(5)];
+			boolean hasAlpha = bitDepth >= 8 && rand.nextBoolean();
+			int outWBits = rand.nextBoolean() ? bitDepth : rand.nextInt(bitDepth) + 1;
+			int outABits = hasAlpha ? (rand.nextBoolean() ? bitDepth : rand.nextInt(bitDepth) + 1) : 0;
+			int transparentColor = -1;
+			if (!hasAlpha && rand.nextBoolean()) {
+				transparentColor = rand.nextInt(1 << bitDepth) << 16;
+				outABits = outWBits == bitDepth ? bitDepth : 1;
+			}
+			int wShift = bitDepth - outWBits;
+			int aShift = bitDepth - outABits;
+			
+			int width = rand.nextInt(50) + 1;
+			int filterStride = Math.ceilDiv(bitDepth * (hasAlpha ? 2 : 1), 8);
+			byte[] row = randomRow(filterStride, Math.ceilDiv(width * bitDepth * (hasAlpha ? 2 : 1), 8));
+			int xStart = rand.nextInt(width);
+			int count = rand.nextInt(width - xStart) + 1;
+			
+			var expect = new int[count];
+			genericGray(row, xStart, xStart + count, filterStride, bitDepth, hasAlpha, transparentColor, wShift, aShift, expect);
+			var actual = new int[count];
+			DecodeKernels.forGray(bitDepth, hasAlpha, transparentColor, wShift, aShift).convert(row, xStart, actual, count);
+			Assert.assertArrayEquals(expect, actual);
+		}
+	}
+	
+	
+	@Test public void testPalette() {
+		byte[] row = {0, (byte)0b1011_0010, (byte)0xE4};
+		var pixels = new int[6];
+		DecodeKernels.forPalette(2).convert(row, 2, pixels, 6);
+		Assert.assertArrayEquals(new int[]{0, 2, 3, 2, 1, 0}, pixels);
+		DecodeKernels.forPalette(1).convert(row, 3, pixels, 6);
+		Assert.assertArrayEquals(new int[]{1, 0, 0, 1, 0, 1}, pixels);
+		DecodeKernels.forPalette(8).convert(row, 1, pixels, 1);
+		Assert.assertEquals(0xE4, pixels[0]);
+	}
+	
+	
+	
+	/*---- Reference implementations ----*/
+	
+	// The per-pixel loop that ImageDecoder used before the kernels, with a switch on the format in the inner loop.
+	static void genericRgba(byte[] row, int xStart, int xEnd, int filterStride, int bitDepth, boolean hasAlpha,
+			long transparentColor, int[] shifts, long[] pixels) {
+		int mode = (bitDepth / 8 - 1) * 2 + (hasAlpha ? 1 : 0);
+		for (int x = xStart, i = filterStride * (xStart + 1); x < xEnd; x++, i += filterStride) {
+			int r, g, b, a;
+			long temp;
+			switch (mode) {
+				case 0 -> {
+					r = row[i + 0] & 0xFF;
+					g = row[i + 1] & 0xFF;
+					b = row[i + 2] & 0xFF;
+					temp = (long)r << 48 | (long)g << 32 | (long)b << 16;
+					a = temp != transparentColor ? 0xFF : 0x00;
+				}
+				case 1 -> {
+					r = row[i + 0] & 0xFF;
+					g = row[i + 1] & 0xFF;
+					b = row[i + 2] & 0xFF;
+					a = row[i + 3] & 0xFF;
+				}
+				case 2 -> {
+					r = (row[i + 0] & 0xFF) << 8 | (row[i + 1] & 0xFF) << 0;
+					g = (row[i + 2] & 0xFF) << 8 | (row[i + 3] & 0xFF) << 0;
+					b = (row[i + 4] & 0xFF) << 8 | (row[i + 5] & 0xFF) << 0;
+					temp = (long)r << 48 | (long)g << 32 | (long)b << 16;
+					a = temp != transparentColor ? 0xFFFF : 0x00;
+				}
+				case 3 -> {
+					r = (row[i + 0] & 0xFF) << 8 | (row[i + 1] & 0xFF) << 0;
+					g = (row[i + 2] & 0xFF) << 8 | (row[i + 3] & 0xFF) << 0;
+					b = (row[i + 4] & 0xFF) << 8 | (row[i + 5] & 0xFF) << 0;
+					a = (row[i + 6] & 0xFF) << 8 | (row[i + 7] & 0xFF) << 0;
+				}
+				default -> throw new AssertionError("Unreachable value");
+			}
+			r >>>= shifts[0];
+			g >>>= shifts[1];
+			b >>>= shifts[2];
+			a >>>= shifts[3];
+			pixels[x - xStart] = (long)r << 48 | (long)g << 32 | (long)b << 16 | (long)a << 0;
+		}
+	}
+	
+	
+	static void genericGray(byte[] row, int xStart, int xEnd, int filterStride, int bitDepth, boolean hasAlpha,
+			int transparentColor, int wShift, int aShift, int[] pixels) {
+		int mode = bitDepth >= 8 ? (bitDepth / 8 - 1) * 2 + (hasAlpha ? 1 : 0) : 4;
+		if (mode < 4) {
+			for (int x = xStart, i = filterStride * (xStart + 1); x < xEnd; x++, i += filterStride) {
+				int w, a, temp;
+				switch (mode) {
+					case 0 -> {
+						w = row[i + 0] & 0xFF;
+						temp = w << 16;
+						a = temp != transparentColor ? 0xFF : 0x00;
+					}
+					case 1 -> {
+						w = row[i + 0] & 0xFF;
+						a = row[i + 1] & 0xFF;
+					}
+					case 2 -> {
+						w = (row[i + 0] & 0xFF) << 8 | (row[i + 1] & 0xFF) << 0;
+						temp = w << 16;
+						a = temp != transparentColor ? 0xFFFF : 0x00;
+					}
+					case 3 -> {
+						w = (row[i + 0] & 0xFF) << 8 | (row[i + 1] & 0xFF) << 0;
+						a = (row[i + 2] & 0xFF) << 8 | (row[i + 3] & 0xFF) << 0;
+					}
+					default -> throw new AssertionError("Unreachable value");
+				}
+				w >>>= wShift;
+				a >>>= aShift;
+				pixels[x - xStart] = w << 16 | a << 0;
+			}
+		} else {
+			int xMask = 8 / bitDepth - 1;
+			int shift = 8 - bitDepth;
+			int opaque = (1 << bitDepth) - 1;
+			int i = filterStride + xStart / (xMask + 1);
+			int b = 0;
+			if ((xStart & xMask) != 0) {
+				b = (row[i] << ((xStart & xMask) * bitDepth)) & 0xFF;
+				i++;
+			}
+			for (int x = xStart; x < xEnd; x++, b = (b << bitDepth) & 0xFF) {
+				if ((x & xMask) == 0) {
+					b = row[i] & 0xFF;
+					i++;
+				}
+				int w = b >>> shift;
+				int temp = w << 16;
+				int a = (temp != transparentColor ? opaque : 0) >>> aShift;
+				w >>>= wShift;
+				pixels[x - xStart] = w << 16 | a << 0;
+			}
+		}
+	}
+	
+	
+	// Returns a row of random bytes after filterStride zero bytes of padding.
+	static byte[] randomRow(int filterStride, int length) {
+		var result = new byte[filterStride + length];
+		for (int i = filterStride; i < result.length; i++)
+			result[i] = (byte)rand.nextInt(256);
+		return result;
+	}
+	
+	
+	private static void setTransparent(byte[] row, int filterStride, int x, long transparentColor, int bitDepth) {
+		int bytes = bitDepth / 8;
+		for (int c = 0; c < 3; c++) {
+			int val = (int)(transparentColor >>> (48 - c * 16)) & 0xFFFF;
+			for (int k = 0; k < bytes; k++)
+				row[filterStride * (x + 1) + c * bytes + k] = (byte)(val >>> ((bytes - 1 - k) * 8));
+		}
+	}
+	
+}
@@ -0,0 +1,140 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import static io.nayuki.png.TestUtil.rand;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import io.nayuki.png.chunk.Ihdr;
+import io.nayuki.png.image.BufferedGrayImage;
+import io.nayuki.png.image.GrayImage;
+
+
+public final class DecodePipelineTest {
+	
+	private Path dir;
+	private List<Path> files;
+	private List<GrayImage> images;
+	
+	
+	@Before public void setUp() throws IOException {
+		dir = Files.createTempDirectory("pipelinetest");
+		files = new ArrayList<>();
+		images = new ArrayList<>();
+		for (int i = 0; i < 30; i++) {
+			var img = new BufferedGrayImage(rand.nextInt(40) + 1, rand.nextInt(40) + 1, new int[]{8, 0});
+			for (int y = 0; y < img.getHeight(); y++) {
+				for (int x = 0; x < img.getWidth(); x++)
+					img.setPixel(x, y, rand.nextInt(256) << 16);
+			}
+			Path file = dir.resolve("img" + i + ".png");
+			ImageEncoder.toPng(img, i % 3 == 0 ? Ihdr.InterlaceMethod.ADAM7 : Ihdr.InterlaceMethod.NONE).write(file.toFile());
+			files.add(file);
+			images.add(img);
+		}
+	}
+	
+	
+	@After public void tearDown() throws IOException {
+		try (Stream<Path> walk = Files.walk(dir)) {
+			for (Path p : walk.sorted(Comparator.reverseOrder()).toList())
+				Files.delete(p);
+		}
+	}
+	
+	
+	@Test public void testOrdered() throws Exception {
+		Files.write(files.get(7), new byte[]{1, 2, 3});
+		Files.delete(files.get(12));
+		var results = new ArrayList<DecodePipeline.Result>();
+		DecodePipeline.Metrics metrics = DecodePipeline.DEFAULT
+			.withThreads(3, 2).withQueueLimits(1, 3).withOrderedResults(true)
+			.decodeAll(files.stream(), results::add);
+		
+		Assert.assertEquals(files.size(), results.size());
+		for (int i = 0; i < results.size(); i++) {
+			DecodePipeline.Result res = results.get(i);
+			Assert.assertEquals(i, res.index());
+			Assert.assertEquals(files.get(i), res.file());
+			if (i == 7)
+				Assert.assertTrue(res.error() instanceof IllegalArgumentException);
+			else if (i == 12)
+				Assert.assertTrue(res.error() instanceof UncheckedIOException);
+			else
+				assertSameImage(images.get(i), (GrayImage)res.image());
+		}
+		Assert.assertEquals(files.size(), metrics.read().items());
+		Assert.assertEquals(files.size() - 1, metrics.decode().items());
+		Assert.assertEquals(files.size(), metrics.deliver().items());
+		Assert.assertTrue(metrics.read().maxQueued() <= 3);
+		Assert.assertTrue(metrics.decode().maxQueued() <= 1);
+		Assert.assertTrue(metrics.deliver().maxQueued() <= 3);
+		Assert.assertTrue(metrics.bytesRead() > 0);
+		Assert.assertEquals(2, metrics.decode().threads());
+	}
+	
+	
+	@Test public void testUnorderedMapped() throws Exception {
+		var seen = new boolean[files.size()];
+		DecodePipeline.DEFAULT.withMapThreshold(0).decodeAll(files.stream(), res -> {
+			int i = (int)res.index();
+			Assert.assertFalse(seen[i]);
+			seen[i] = true;
+			assertSameImage(images.get(i), (GrayImage)res.image());
+		});
+		for (boolean b : seen)
+			Assert.assertTrue(b);
+		Assert.assertEquals(0, DecodePipeline.DEFAULT.decodeAll(Stream.empty(), res -> Assert.fail()).deliver().items());
+	}
+	
+	
+	@Test public void testFailures() throws InterruptedException {
+		var stop = new IllegalStateException();
+		try {
+			DecodePipeline.DEFAULT.withQueueLimits(2, 2).decodeAll(files.stream(), res -> { throw stop; });
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			Assert.assertSame(stop, e);
+		}
+		
+		var bad = new UncheckedIOException(new IOException());
+		Stream<Path> input = Stream.concat(files.stream().limit(3), Stream.generate(() -> { throw bad; }));
+		try {
+			DecodePipeline.DEFAULT.decodeAll(input, res -> {});
+			Assert.fail();
+		} catch (UncheckedIOException e) {
+			Assert.assertSame(bad, e);
+		}
+		
+		TestUtil.runExpect(IllegalArgumentException.class, () -> DecodePipeline.DEFAULT.withThreads(0, 1));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> DecodePipeline.DEFAULT.withQueueLimits(1, 0));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> DecodePipeline.DEFAULT.withMapThreshold(-1));
+	}
+	
+	
+	private static void assertSameImage(GrayImage expect, GrayImage actual) {
+		Assert.assertEquals(expect.getWidth(), actual.getWidth());
+		Assert.assertEquals(expect.getHeight(), actual.getHeight());
+		for (int y = 0; y < expect.getHeight(); y++) {
+			for (int x = 0; x < expect.getWidth(); x++)
+				Assert.assertEquals(expect.getPixel(x, y), actual.getPixel(x, y));
+		}
+	}
+	
+}
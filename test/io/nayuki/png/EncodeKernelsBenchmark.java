@@ -0,0 +1,67 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import io.nayuki.png.chunk.Ihdr.InterlaceMethod;
+import io.nayuki.png.image.BufferedRgbaImage;
+
+
+/**
+ * Measures whole-image encoding with each filter strategy, with and without pipelining, and the filter
+ * kernels by themselves. Run the main method with no arguments. The numbers are indicative only, because
+ * this uses simple timing loops rather than a benchmark harness.
+ */
+public final class EncodeKernelsBenchmark {
+	
+	public static void main(String[] args) {
+		var img = new BufferedRgbaImage(1024, 1024, new int[]{8, 8, 8, 8});
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++)
+				img.setPixel(x, y, (long)(x & 0xFF) << 48 | (long)(y & 0xFF) << 32 | (long)((x ^ y) & 0xFF) << 16 | 0xFF);
+		}
+		for (boolean pipe : new boolean[]{false, true}) {
+			for (EncodeOptions.FilterStrategy strat : EncodeOptions.FilterStrategy.values()) {
+				if (strat == EncodeOptions.FilterStrategy.KEEP)
+					continue;  // Needs an existing PNG image
+				EncodeOptions opts = EncodeOptions.DEFAULT.withFilterStrategy(strat).withPipelining(pipe);
+				var size = new long[1];
+				double ms = time(() -> size[0] = ImageEncoder.toPng(img, InterlaceMethod.NONE, opts).idats.get(0).data().length, 5) / 1e6;
+				System.out.printf("%-10s %-5s %8.1f ms %10d bytes%n", strat, pipe ? "pipe" : "", ms, size[0]);
+			}
+		}
+		
+		byte[] cur = DecodeKernelsTest.randomRow(4, 16384);
+		byte[] prev = DecodeKernelsTest.randomRow(4, 16384);
+		var out = new byte[cur.length];
+		System.out.printf("%-10s %8.3f ns/byte%n", "None", time(() -> sink += EncodeKernels.scoreNone(cur, 4, Long.MAX_VALUE), 10000) / cur.length);
+		System.out.printf("%-10s %8.3f ns/byte%n", "Sub", time(() -> sink += EncodeKernels.filterSub(cur, 4, out, Long.MAX_VALUE), 10000) / cur.length);
+		System.out.printf("%-10s %8.3f ns/byte%n", "Up", time(() -> sink += EncodeKernels.filterUp(cur, prev, 4, out, Long.MAX_VALUE), 10000) / cur.length);
+		System.out.printf("%-10s %8.3f ns/byte%n", "Average", time(() -> sink += EncodeKernels.filterAverage(cur, prev, 4, out, Long.MAX_VALUE), 10000) / cur.length);
+		System.out.printf("%-10s %8.3f ns/byte%n", "Paeth", time(() -> sink += EncodeKernels.filterPaeth(cur, prev, 4, out, Long.MAX_VALUE), 10000) / cur.length);
+	}
+	
+	
+	// Returns the fastest of several measurements of running the function the given number of times, in nanoseconds per run.
+	private static double time(Runnable func, int runs) {
+		for (int i = 0; i < runs; i++)
+			func.run();
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			long start = System.nanoTime();
+			for (int j = 0; j < runs; j++)
+				func.run();
+			best = Math.min(System.nanoTime() - start, best);
+		}
+		return (double)best / runs;
+	}
+	
+	
+	private static long sink;  // Keeps results alive
+	
+}
@@ -0,0 +1,141 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import static io.nayuki.png.TestUtil.rand;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public final class EncodeKernelsTest {
+	
+	@Test public void testFiltersRandomly() {
+		final int TRIALS = 1000;
+		for (int i = 0; i < TRIALS; i++) {
+			int stride = rand.nextInt(8) + 1;
+			int length = stride + rand.nextInt(100);
+			byte[] cur = DecodeKernelsTest.randomRow(stride, length - stride);
+			byte[] prev = DecodeKernelsTest.randomRow(stride, length - stride);
+			var out = new byte[length];
+			
+			long score = EncodeKernels.scoreNone(cur, stride, Long.MAX_VALUE);
+			Assert.assertEquals(sumAbs(cur, stride), score);
+			for (int filter = 1; filter <= 4; filter++) {
+				score = filter(filter, cur, prev, stride, out, Long.MAX_VALUE);
+				Assert.assertEquals(sumAbs(out, stride), score);
+				for (int j = stride; j < length; j++) {
+					int a = cur[j - stride] & 0xFF;
+					int b = prev[j] & 0xFF;
+					int c = prev[j - stride] & 0xFF;
+					int pred = switch (filter) {
+						case 1 -> a;
+						case 2 -> b;
+						case 3 -> (a + b) / 2;
+						case 4 -> paeth(a, b, c);
+						default -> throw new AssertionError("Unreachable value");
+					};
+					Assert.assertEquals((byte)(cur[j] - pred), out[j]);
+				}
+			}
+		}
+	}
+	
+	
+	@Test public void testFilterLimit() {
+		final int TRIALS = 300;
+		for (int i = 0; i < TRIALS; i++) {
+			int stride = rand.nextInt(8) + 1;
+			int length = stride + rand.nextInt(5000);
+			byte[] cur = DecodeKernelsTest.randomRow(stride, length - stride);
+			byte[] prev = DecodeKernelsTest.randomRow(stride, length - stride);
+			var out = new byte[length];
+			for (int filter = 0; filter <= 4; filter++) {
+				long full = filter(filter, cur, prev, stride, out, Long.MAX_VALUE);
+				long limit = rand.nextLong(full * 2 + 2);
+				long score = filter(filter, cur, prev, stride, out, limit);
+				if (full < limit)
+					Assert.assertEquals(full, score);
+				else
+					Assert.assertTrue(score >= limit);
+			}
+		}
+	}
+	
+	
+	@Test public void testPackingInvertsDecoding() {
+		final int TRIALS = 1000;
+		for (int i = 0; i < TRIALS; i++) {
+			int count = rand.nextInt(40) + 1;
+			boolean hasAlpha = rand.nextBoolean();
+			{
+				int bitDepth = rand.nextBoolean() ? 8 : 16;
+				var pixels = new long[count];
+				for (int x = 0; x < count; x++) {
+					for (int c = 0; c < 4; c++)
+						pixels[x] = (pixels[x] << 16) | (c < 3 || hasAlpha ? rand.nextInt(1 << bitDepth) : 0);
+				}
+				int stride = bitDepth / 8 * (hasAlpha ? 4 : 3);
+				var row = new byte[stride * (count + 1)];
+				EncodeKernels.forRgba(bitDepth, hasAlpha).pack(pixels, count, row, stride);
+				var actual = new long[count];
+				DecodeKernels.forRgba(bitDepth, hasAlpha, -1, 0, 0, 0, hasAlpha ? 0 : bitDepth).convert(row, 0, actual, count);
+				Assert.assertArrayEquals(pixels, actual);
+			}
+			{
+				int bitDepth = new int[]{1, 2, 4, 8, 16}[rand.nextInt(5)];
+				boolean alpha = hasAlpha && bitDepth >= 8;
+				var pixels = new int[count];
+				for (int x = 0; x < count; x++)
+					pixels[x] = rand.nextInt(1 << bitDepth) << 16 | (alpha ? rand.nextInt(1 << bitDepth) : 0);
+				int stride = Math.ceilDiv(bitDepth * (alpha ? 2 : 1), 8);
+				var row = new byte[stride + Math.ceilDiv(count * bitDepth * (alpha ? 2 : 1), 8)];
+				EncodeKernels.forGray(bitDepth, alpha).pack(pixels, count, row, stride);
+				var actual = new int[count];
+				DecodeKernels.forGray(bitDepth, alpha, -1, 0, alpha ? 0 : bitDepth).convert(row, 0, actual, count);
+				Assert.assertArrayEquals(pixels, actual);
+			}
+		}
+	}
+	
+	
+	private static long filter(int type, byte[] cur, byte[] prev, int stride, byte[] out, long limit) {
+		return switch (type) {
+			case 0 -> EncodeKernels.scoreNone(cur, stride, limit);
+			case 1 -> EncodeKernels.filterSub(cur, stride, out, limit);
+			case 2 -> EncodeKernels.filterUp(cur, prev, stride, out, limit);
+			case 3 -> EncodeKernels.filterAverage(cur, prev, stride, out, limit);
+			case 4 -> EncodeKernels.filterPaeth(cur, prev, stride, out, limit);
+			default -> throw new AssertionError("Unreachable value");
+		};
+	}
+	
+	
+	private static long sumAbs(byte[] b, int start) {
+		long result = 0;
+		for (int i = start; i < b.length; i++)
+			result += Math.abs(b[i]);
+		return result;
+	}
+	
+	
+	// The predictor as written in the PNG specification.
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc)
+			return a;
+		else if (pb <= pc)
+			return b;
+		else
+			return c;
+	}
+	
+}
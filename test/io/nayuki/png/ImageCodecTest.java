@@ -12,12 +12,36 @@ import static io.nayuki.png.TestUtil.rand;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 import org.junit.Assert;
 import org.junit.Test;
+import io.nayuki.png.chunk.Chunk;
+import io.nayuki.png.chunk.Idat;
+import io.nayuki.png.chunk.Ihdr;
 import io.nayuki.png.chunk.Ihdr.InterlaceMethod;
+import io.nayuki.png.chunk.Rspt;
+import io.nayuki.png.chunk.Text;
+import io.nayuki.png.chunk.Time;
+import io.nayuki.png.chunk.ZlibCodec;
 import io.nayuki.png.image.BufferedGrayImage;
 import io.nayuki.png.image.BufferedPaletteImage;
 import io.nayuki.png.image.BufferedRgbaImage;
+import io.nayuki.png.image.ImageAllocator;
+import io.nayuki.png.image.ImageViews;
+import io.nayuki.png.image.RgbaImage;
+import io.nayuki.png.image.TiledGrayImage;
+import io.nayuki.png.image.TiledRgbaImage;
+import io.nayuki.png.image.WritableGrayImage;
+import io.nayuki.png.image.WritableRgbaImage;
 
 
 public final class ImageCodecTest {
@@ -161,4 +185,850 @@ public final class ImageCodecTest {
 		}
 	}
 	
+	
+	@Test public void testTiledAllocator() throws IOException {
+		ImageAllocator alloc = ImageAllocator.tiled(Path.of(System.getProperty("java.io.tmpdir")));
+		final int TRIALS = 30;
+		for (int i = 0; i < TRIALS; i++) {
+			int width  = rand.nextInt(600) + 1;
+			int height = rand.nextInt(300) + 1;
+			InterlaceMethod interMeth = rand.nextBoolean() ? InterlaceMethod.NONE : InterlaceMethod.ADAM7;
+			
+			var rgb0 = new BufferedRgbaImage(width, height, new int[]{8, 8, 8, 8});
+			var gray0 = new BufferedGrayImage(width, height, new int[]{16, 0});
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					rgb0.setPixel(x, y, rand.nextLong() & 0x00FF_00FF_00FF_00FFL);
+					gray0.setPixel(x, y, rand.nextInt() & 0xFFFF_0000);
+				}
+			}
+			
+			try (var rgb1 = (TiledRgbaImage)ImageDecoder.toImage(ImageEncoder.toPng(rgb0, interMeth), alloc);
+					var gray1 = (TiledGrayImage)ImageDecoder.toImage(ImageEncoder.toPng(gray0, interMeth), alloc)) {
+				Assert.assertArrayEquals(rgb0.getBitDepths(), rgb1.getBitDepths());
+				Assert.assertArrayEquals(gray0.getBitDepths(), gray1.getBitDepths());
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						Assert.assertEquals(rgb0.getPixel(x, y), rgb1.getPixel(x, y));
+						Assert.assertEquals(gray0.getPixel(x, y), gray1.getPixel(x, y));
+					}
+				}
+				
+				// Re-encode by streaming rows out of the tiled images
+				var rgb2 = (BufferedRgbaImage)ImageDecoder.toImage(ImageEncoder.toPng(rgb1, interMeth));
+				var gray2 = (BufferedGrayImage)ImageDecoder.toImage(ImageEncoder.toPng(gray1, interMeth));
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						Assert.assertEquals(rgb0.getPixel(x, y), rgb2.getPixel(x, y));
+						Assert.assertEquals(gray0.getPixel(x, y), gray2.getPixel(x, y));
+					}
+				}
+			}
+		}
+	}
+	
+	
+	@Test public void testTiledAllocatorFailure() throws IOException {
+		Path dir = Files.createTempDirectory("tiledtest");
+		try {
+			ImageAllocator tiled = ImageAllocator.tiled(dir);
+			var created = new ArrayList<TiledRgbaImage>();
+			ImageAllocator alloc = new ImageAllocator() {
+				@Override public WritableRgbaImage newRgbaImage(int width, int height, int[] bitDepths) {
+					var result = (TiledRgbaImage)tiled.newRgbaImage(width, height, bitDepths);
+					created.add(result);
+					return result;
+				}
+			};
+			var rgb = new BufferedRgbaImage(300, 200, new int[]{8, 8, 8, 8});
+			for (int y = 0; y < rgb.getHeight(); y++) {
+				for (int x = 0; x < rgb.getWidth(); x++)
+					rgb.setPixel(x, y, rand.nextLong() & 0x00FF_00FF_00FF_00FFL);
+			}
+			for (InterlaceMethod interMeth : InterlaceMethod.values()) {
+				PngImage png = ImageEncoder.toPng(rgb, interMeth);
+				byte[] data = png.idats.get(0).data();
+				png.idats.clear();
+				png.idats.add(new Idat(Arrays.copyOf(data, data.length / 2)));  // Truncated
+				TestUtil.runExpect(IllegalArgumentException.class, () -> ImageDecoder.toImage(png, alloc));
+				try (Stream<Path> files = Files.list(dir)) {
+					Assert.assertEquals(0, files.count());
+				}
+				TiledRgbaImage img = created.get(created.size() - 1);
+				TestUtil.runExpect(IllegalStateException.class, () -> img.getPixel(0, 0));  // Closed
+			}
+		} finally {
+			Files.delete(dir);
+		}
+	}
+	
+	
+	@Test public void testEncodeView() {
+		final int TRIALS = 100;
+		for (int i = 0; i < TRIALS; i++) {
+			int width  = rand.nextInt(50) + 1;
+			int height = rand.nextInt(50) + 1;
+			var img = new BufferedRgbaImage(width, height, new int[]{8, 8, 8, 0});
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++)
+					img.setPixel(x, y, rand.nextLong() & 0x00FF_00FF_00FF_0000L);
+			}
+			int x0 = rand.nextInt(width), y0 = rand.nextInt(height);
+			RgbaImage view = ImageViews.crop(img, x0, y0, rand.nextInt(width - x0) + 1, rand.nextInt(height - y0) + 1);
+			if (rand.nextBoolean())
+				view = ImageViews.rotate(view, rand.nextInt(4));
+			if (rand.nextBoolean())
+				view = ImageViews.flipHorizontal(view);
+			
+			InterlaceMethod interMeth = rand.nextBoolean() ? InterlaceMethod.NONE : InterlaceMethod.ADAM7;
+			var dec = (BufferedRgbaImage)ImageDecoder.toImage(ImageEncoder.toPng(view, interMeth));
+			Assert.assertEquals(view.getWidth(), dec.getWidth());
+			Assert.assertEquals(view.getHeight(), dec.getHeight());
+			for (int y = 0; y < view.getHeight(); y++) {
+				for (int x = 0; x < view.getWidth(); x++)
+					Assert.assertEquals(view.getPixel(x, y), dec.getPixel(x, y));
+			}
+		}
+	}
+	
+	
+	@Test public void testDecodeRegion() {
+		final int TRIALS = 1000;
+		for (int i = 0; i < TRIALS; i++) {
+			int width  = rand.nextInt(40) + 1;
+			int height = rand.nextInt(40) + 1;
+			int x0 = rand.nextInt(width), y0 = rand.nextInt(height);
+			int w = rand.nextInt(width - x0) + 1, h = rand.nextInt(height - y0) + 1;
+			var opts = DecodeOptions.DEFAULT.withRegion(x0, y0, w, h).withStrictTrailingData(rand.nextBoolean());
+			InterlaceMethod interMeth = rand.nextBoolean() ? InterlaceMethod.NONE : InterlaceMethod.ADAM7;
+			
+			switch (rand.nextInt(3)) {
+				case 0 -> {
+					var img0 = new BufferedRgbaImage(width, height, new int[]{16, 16, 16, 16});
+					for (int y = 0; y < height; y++) {
+						for (int x = 0; x < width; x++)
+							img0.setPixel(x, y, rand.nextLong());
+					}
+					var img1 = (BufferedRgbaImage)ImageDecoder.toImage(ImageEncoder.toPng(img0, interMeth), opts);
+					Assert.assertEquals(w, img1.getWidth());
+					Assert.assertEquals(h, img1.getHeight());
+					for (int y = 0; y < h; y++) {
+						for (int x = 0; x < w; x++)
+							Assert.assertEquals(img0.getPixel(x0 + x, y0 + y), img1.getPixel(x, y));
+					}
+				}
+				case 1 -> {
+					int bits = 1 << rand.nextInt(5);
+					var img0 = new BufferedGrayImage(width, height, new int[]{bits, 0});
+					for (int y = 0; y < height; y++) {
+						for (int x = 0; x < width; x++)
+							img0.setPixel(x, y, rand.nextInt(1 << bits) << 16);
+					}
+					var img1 = (BufferedGrayImage)ImageDecoder.toImage(ImageEncoder.toPng(img0, interMeth), opts);
+					Assert.assertEquals(w, img1.getWidth());
+					Assert.assertEquals(h, img1.getHeight());
+					for (int y = 0; y < h; y++) {
+						for (int x = 0; x < w; x++)
+							Assert.assertEquals(img0.getPixel(x0 + x, y0 + y), img1.getPixel(x, y));
+					}
+				}
+				case 2 -> {
+					var img0 = new BufferedPaletteImage(width, height, new int[]{8, 8, 8, 0}, new long[rand.nextInt(256) + 1]);
+					int n = img0.getPalette().length;
+					for (int y = 0; y < height; y++) {
+						for (int x = 0; x < width; x++)
+							img0.setPixel(x, y, rand.nextInt(n));
+					}
+					var img1 = (BufferedPaletteImage)ImageDecoder.toImage(ImageEncoder.toPng(img0, interMeth), opts);
+					Assert.assertEquals(w, img1.getWidth());
+					Assert.assertEquals(h, img1.getHeight());
+					for (int y = 0; y < h; y++) {
+						for (int x = 0; x < w; x++)
+							Assert.assertEquals(img0.getPixel(x0 + x, y0 + y), img1.getPixel(x, y));
+					}
+				}
+				default -> throw new AssertionError("Unreachable value");
+			}
+		}
+	}
+	
+	
+	
+	@Test public void testDecodeScaled() {
+		final int TRIALS = 300;
+		for (int i = 0; i < TRIALS; i++) {
+			int width  = rand.nextInt(60) + 1;
+			int height = rand.nextInt(60) + 1;
+			int scale = 1 << rand.nextInt(4);
+			int x0 = rand.nextInt(width) / scale * scale, y0 = rand.nextInt(height) / scale * scale;
+			int w = rand.nextInt(width - x0) + 1, h = rand.nextInt(height - y0) + 1;
+			var opts = DecodeOptions.DEFAULT.withRegion(x0, y0, w, h).withScale(scale)
+				.withStrictTrailingData(rand.nextBoolean());
+			InterlaceMethod interMeth = rand.nextBoolean() ? InterlaceMethod.NONE : InterlaceMethod.ADAM7;
+			int outW = Math.ceilDiv(w, scale), outH = Math.ceilDiv(h, scale);
+			
+			var rgb0 = new BufferedRgbaImage(width, height, new int[]{8, 8, 8, 8});
+			var gray0 = new BufferedGrayImage(width, height, new int[]{16, 0});
+			var pal0 = new BufferedPaletteImage(width, height, new int[]{8, 8, 8, 0}, new long[16]);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					rgb0.setPixel(x, y, rand.nextLong() & 0x00FF_00FF_00FF_00FFL);
+					gray0.setPixel(x, y, rand.nextInt() & 0xFFFF_0000);
+					pal0.setPixel(x, y, rand.nextInt(16));
+				}
+			}
+			var rgb1 = (BufferedRgbaImage)ImageDecoder.toImage(ImageEncoder.toPng(rgb0, interMeth), opts);
+			var gray1 = (BufferedGrayImage)ImageDecoder.toImage(ImageEncoder.toPng(gray0, interMeth), opts);
+			var pal1 = (BufferedPaletteImage)ImageDecoder.toImage(ImageEncoder.toPng(pal0, interMeth), opts);
+			Assert.assertEquals(outW, rgb1.getWidth());
+			Assert.assertEquals(outH, rgb1.getHeight());
+			Assert.assertEquals(outW, gray1.getWidth());
+			Assert.assertEquals(outH, pal1.getHeight());
+			
+			for (int oy = 0; oy < outH; oy++) {
+				for (int ox = 0; ox < outW; ox++) {
+					int bx = x0 + ox * scale, by = y0 + oy * scale;
+					Assert.assertEquals(pal0.getPixel(bx, by), pal1.getPixel(ox, oy));
+					if (interMeth == InterlaceMethod.ADAM7) {
+						Assert.assertEquals(rgb0.getPixel(bx, by), rgb1.getPixel(ox, oy));
+						Assert.assertEquals(gray0.getPixel(bx, by), gray1.getPixel(ox, oy));
+						continue;
+					}
+					long[] rgbSums = new long[4];
+					long graySum = 0;
+					int count = 0;
+					for (int y = by; y < Math.min(by + scale, y0 + h); y++) {
+						for (int x = bx; x < Math.min(bx + scale, x0 + w); x++, count++) {
+							long val = rgb0.getPixel(x, y);
+							for (int c = 0; c < 4; c++)
+								rgbSums[c] += (val >>> (48 - c * 16)) & 0xFFFF;
+							graySum += gray0.getPixel(x, y) >>> 16;
+						}
+					}
+					long rgbExpect = 0;
+					for (int c = 0; c < 4; c++)
+						rgbExpect |= (rgbSums[c] + count / 2) / count << (48 - c * 16);
+					Assert.assertEquals(rgbExpect, rgb1.getPixel(ox, oy));
+					Assert.assertEquals((int)((graySum + count / 2) / count << 16), gray1.getPixel(ox, oy));
+				}
+			}
+		}
+		
+		var img = new BufferedGrayImage(9, 9, new int[]{8, 0});
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ImageDecoder.toImage(ImageEncoder.toPng(img,
+			InterlaceMethod.ADAM7), DecodeOptions.DEFAULT.withRegion(1, 0, 4, 4).withScale(2)));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> DecodeOptions.DEFAULT.withScale(3));
+	}
+	
+	
+	
+	@Test public void testDecodeListener() {
+		final int TRIALS = 100;
+		for (int i = 0; i < TRIALS; i++) {
+			int width  = rand.nextInt(40) + 1;
+			int height = rand.nextInt(40) + 1;
+			var img = new BufferedRgbaImage(width, height, new int[]{8, 8, 8, 0});
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++)
+					img.setPixel(x, y, rand.nextLong() & 0x00FF_00FF_00FF_0000L);
+			}
+			boolean interlaced = rand.nextBoolean();
+			PngImage png = ImageEncoder.toPng(img, interlaced ? InterlaceMethod.ADAM7 : InterlaceMethod.NONE);
+			
+			// Spacing of the decoded grid after each Adam7 pass
+			int[] xSpacings = {8, 4, 4, 2, 2, 1, 1};
+			int[] ySpacings = {8, 8, 4, 4, 2, 2, 1};
+			var lastPass = new int[]{0};
+			ImageDecoder.toImage(png, DecodeOptions.DEFAULT.withListener((pass, numPasses, preview) -> {
+				Assert.assertEquals(interlaced ? 7 : 1, numPasses);
+				Assert.assertTrue(pass > lastPass[0]);
+				lastPass[0] = pass;
+				var view = (RgbaImage)preview;
+				Assert.assertEquals(width, view.getWidth());
+				Assert.assertEquals(height, view.getHeight());
+				int xs = interlaced ? xSpacings[pass - 1] : 1;
+				int ys = interlaced ? ySpacings[pass - 1] : 1;
+				var row = new long[width];
+				for (int y = 0; y < height; y++) {
+					view.getRow(0, y, row, 0, width);
+					for (int x = 0; x < width; x++) {
+						long expect = img.getPixel(x / xs * xs, y / ys * ys);
+						Assert.assertEquals(expect, view.getPixel(x, y));
+						Assert.assertEquals(expect, row[x]);
+					}
+				}
+			}));
+			Assert.assertEquals(!interlaced ? 1 : height > 1 ? 7 : width > 1 ? 6 : 1, lastPass[0]);
+		}
+	}
+	
+	
+	@Test public void testInterlacedSizes() {
+		for (int width = 1; width <= 18; width++) {
+			for (int height = 1; height <= 18; height++) {
+				var img0 = new BufferedPaletteImage(width, height, new int[]{8, 8, 8, 0}, new long[200]);
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++)
+						img0.setPixel(x, y, rand.nextInt(200));
+				}
+				PngImage png = ImageEncoder.toPng(img0, InterlaceMethod.ADAM7);
+				var img1 = (BufferedPaletteImage)ImageDecoder.toImage(png);
+				var img2 = (BufferedPaletteImage)ImageDecoder.toImage(png, DecodeOptions.DEFAULT.withListener((pass, numPasses, preview) -> {}));
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						Assert.assertEquals(img0.getPixel(x, y), img1.getPixel(x, y));
+						Assert.assertEquals(img0.getPixel(x, y), img2.getPixel(x, y));
+					}
+				}
+			}
+		}
+	}
+	
+	
+	@Test public void testInterlacedWide() {
+		// Rows this wide make each band of merged passes only a few rows tall
+		var img0 = new BufferedRgbaImage(4001, 37, new int[]{16, 16, 16, 16});
+		for (int y = 0; y < img0.getHeight(); y++) {
+			for (int x = 0; x < img0.getWidth(); x++)
+				img0.setPixel(x, y, rand.nextLong());
+		}
+		PngImage png = ImageEncoder.toPng(img0, InterlaceMethod.ADAM7);
+		var img1 = (BufferedRgbaImage)ImageDecoder.toImage(png);
+		for (int y = 0; y < img0.getHeight(); y++) {
+			for (int x = 0; x < img0.getWidth(); x++)
+				Assert.assertEquals(img0.getPixel(x, y), img1.getPixel(x, y));
+		}
+		var img2 = (BufferedRgbaImage)ImageDecoder.toImage(png, DecodeOptions.DEFAULT.withRegion(3, 5, 3990, 29));
+		for (int y = 0; y < img2.getHeight(); y++) {
+			for (int x = 0; x < img2.getWidth(); x++)
+				Assert.assertEquals(img0.getPixel(x + 3, y + 5), img2.getPixel(x, y));
+		}
+	}
+	
+	
+	@Test public void testInterlacedInPlace() {
+		var img0 = new BufferedGrayImage(37, 29, new int[]{16, 0});
+		for (int y = 0; y < img0.getHeight(); y++) {
+			for (int x = 0; x < img0.getWidth(); x++)
+				img0.setPixel(x, y, rand.nextInt() & 0xFFFF_0000);
+		}
+		// Images from other allocators are merged into with bulk row operations, not staged
+		var images = new CountingGrayImage[1];
+		var alloc = new ImageAllocator() {
+			@Override public WritableGrayImage newGrayImage(int width, int height, int[] bitDepths) {
+				return images[0] = new CountingGrayImage(new BufferedGrayImage(width, height, bitDepths));
+			}
+		};
+		var img1 = (CountingGrayImage)ImageDecoder.toImage(ImageEncoder.toPng(img0, InterlaceMethod.ADAM7), alloc);
+		Assert.assertSame(images[0], img1);
+		Assert.assertEquals(0, img1.pixelWrites);
+		Assert.assertTrue(img1.rowWrites > img1.getHeight());
+		
+		// Encoding a source that is not a buffered image reads spans of rows
+		var img2 = (BufferedGrayImage)ImageDecoder.toImage(ImageEncoder.toPng(img1, InterlaceMethod.ADAM7));
+		for (int y = 0; y < img0.getHeight(); y++) {
+			for (int x = 0; x < img0.getWidth(); x++)
+				Assert.assertEquals(img0.getPixel(x, y), img2.getPixel(x, y));
+		}
+	}
+	
+	
+	// Forwards to a buffered image, counting the writes of single pixels and of rows.
+	private static final class CountingGrayImage implements WritableGrayImage {
+		
+		private final BufferedGrayImage image;
+		public int pixelWrites = 0;
+		public int rowWrites = 0;
+		
+		
+		public CountingGrayImage(BufferedGrayImage image) {
+			this.image = image;
+		}
+		
+		
+		@Override public int getWidth() {
+			return image.getWidth();
+		}
+		
+		
+		@Override public int getHeight() {
+			return image.getHeight();
+		}
+		
+		
+		@Override public int[] getBitDepths() {
+			return image.getBitDepths();
+		}
+		
+		
+		@Override public int getPixel(int x, int y) {
+			return image.getPixel(x, y);
+		}
+		
+		
+		@Override public void getRow(int x, int y, int[] dest, int off, int len) {
+			image.getRow(x, y, dest, off, len);
+		}
+		
+		
+		@Override public void setPixel(int x, int y, int val) {
+			pixelWrites++;
+			image.setPixel(x, y, val);
+		}
+		
+		
+		@Override public void setRow(int x, int y, int[] src, int off, int len) {
+			rowWrites++;
+			image.setRow(x, y, src, off, len);
+		}
+		
+	}
+	
+	
+	@Test public void testAdaptiveFilter() {
+		EncodeOptions opts = EncodeOptions.DEFAULT.withFilterStrategy(EncodeOptions.FilterStrategy.ADAPTIVE);
+		final int TRIALS = 300;
+		for (int i = 0; i < TRIALS; i++) {
+			int width  = rand.nextInt(40) + 1;
+			int height = rand.nextInt(40) + 1;
+			InterlaceMethod interMeth = rand.nextBoolean() ? InterlaceMethod.NONE : InterlaceMethod.ADAM7;
+			int bitDepth = rand.nextBoolean() ? 8 : 16;
+			var rgb0 = new BufferedRgbaImage(width, height, new int[]{bitDepth, bitDepth, bitDepth, bitDepth});
+			var gray0 = new BufferedGrayImage(width, height, new int[]{bitDepth, 0});
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					long val = 0;
+					for (int c = 0; c < 4; c++)  // Smooth gradients plus noise
+						val = (val << 16) | ((x * (c + 1) + y * 3 + rand.nextInt(3)) & ((1 << bitDepth) - 1));
+					rgb0.setPixel(x, y, val);
+					gray0.setPixel(x, y, (int)(val >>> 48) << 16);
+				}
+			}
+			var rgb1 = (BufferedRgbaImage)ImageDecoder.toImage(ImageEncoder.toPng(rgb0, interMeth, opts));
+			var gray1 = (BufferedGrayImage)ImageDecoder.toImage(ImageEncoder.toPng(gray0, interMeth, opts));
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					Assert.assertEquals(rgb0.getPixel(x, y), rgb1.getPixel(x, y));
+					Assert.assertEquals(gray0.getPixel(x, y), gray1.getPixel(x, y));
+				}
+			}
+		}
+	}
+	
+	
+	@Test public void testPipelining() {
+		final int TRIALS = 10;
+		for (int i = 0; i < TRIALS; i++) {
+			int width  = rand.nextInt(300) + 200;
+			int height = rand.nextInt(300) + 200;
+			var img = new BufferedRgbaImage(width, height, new int[]{8, 8, 8, 8});
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++)
+					img.setPixel(x, y, (long)(x & 0xFF) << 48 | (long)(y & 0xFF) << 32 | (rand.nextLong() & 0x0003_00FFL));
+			}
+			InterlaceMethod interMeth = rand.nextBoolean() ? InterlaceMethod.NONE : InterlaceMethod.ADAM7;
+			EncodeOptions opts = EncodeOptions.DEFAULT.withFilterStrategy(rand.nextBoolean() ? EncodeOptions.FilterStrategy.NONE : EncodeOptions.FilterStrategy.ADAPTIVE);
+			byte[] expect = ImageEncoder.toPng(img, interMeth, opts).idats.get(0).data();
+			byte[] actual = ImageEncoder.toPng(img, interMeth, opts.withPipelining(true)).idats.get(0).data();
+			Assert.assertArrayEquals(expect, actual);
+		}
+		
+		var img = new BufferedRgbaImage(1000, 1000, new int[]{8, 8, 8, 0});
+		RgbaImage bad = new RgbaImage() {
+			@Override public int getWidth() {
+				return img.getWidth();
+			}
+			@Override public int getHeight() {
+				return img.getHeight();
+			}
+			@Override public int[] getBitDepths() {
+				return img.getBitDepths();
+			}
+			@Override public long getPixel(int x, int y) {
+				if (y == 900)
+					throw new UnsupportedOperationException();
+				return img.getPixel(x, y);
+			}
+		};
+		TestUtil.runExpect(UnsupportedOperationException.class, () -> ImageEncoder.toPng(bad, InterlaceMethod.NONE, EncodeOptions.DEFAULT.withPipelining(true)));
+	}
+	
+	
+	@Test public void testExhaustiveFilter() {
+		EncodeOptions adaptive = EncodeOptions.DEFAULT.withFilterStrategy(EncodeOptions.FilterStrategy.ADAPTIVE);
+		EncodeOptions exhaustive = EncodeOptions.DEFAULT.withFilterStrategy(EncodeOptions.FilterStrategy.EXHAUSTIVE);
+		final int TRIALS = 30;
+		for (int i = 0; i < TRIALS; i++) {
+			int width  = rand.nextInt(200) + 1;
+			int height = rand.nextInt(200) + 1;
+			InterlaceMethod interMeth = rand.nextBoolean() ? InterlaceMethod.NONE : InterlaceMethod.ADAM7;
+			var rgb0 = new BufferedRgbaImage(width, height, new int[]{8, 8, 8, 0});
+			var pal0 = new BufferedPaletteImage(width, height, new int[]{8, 8, 8, 0}, new long[16]);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					rgb0.setPixel(x, y, (long)((x + y) & 0xFF) << 48 | (long)(x * y & 0xFF) << 32 | (long)rand.nextInt(4) << 16);
+					pal0.setPixel(x, y, (x / 3 + y) % 16);
+				}
+			}
+			PngImage png = ImageEncoder.toPng(rgb0, interMeth, exhaustive);
+			var rgb1 = (BufferedRgbaImage)ImageDecoder.toImage(png);
+			var pal1 = (BufferedPaletteImage)ImageDecoder.toImage(ImageEncoder.toPng(pal0, interMeth, exhaustive));
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					Assert.assertEquals(rgb0.getPixel(x, y), rgb1.getPixel(x, y));
+					Assert.assertEquals(pal0.getPixel(x, y), pal1.getPixel(x, y));
+				}
+			}
+			if (width * height >= 10000)
+				Assert.assertTrue(png.idats.get(0).data().length <= ImageEncoder.toPng(rgb0, interMeth, adaptive).idats.get(0).data().length * 1.05);
+		}
+	}
+	
+	
+	@Test public void testRestartPoints() throws IOException {
+		final int TRIALS = 100;
+		for (int i = 0; i < TRIALS; i++) {
+			int width  = rand.nextInt(100) + 1;
+			int height = rand.nextInt(200) + 1;
+			int interval = rand.nextInt(30) + 1;
+			EncodeOptions.FilterStrategy[] strategies = {EncodeOptions.FilterStrategy.NONE, EncodeOptions.FilterStrategy.ADAPTIVE, EncodeOptions.FilterStrategy.EXHAUSTIVE};
+			EncodeOptions opts = EncodeOptions.DEFAULT
+				.withFilterStrategy(strategies[rand.nextInt(strategies.length)])
+				.withPipelining(rand.nextBoolean())
+				.withRestartInterval(interval);
+			var img = new BufferedRgbaImage(width, height, new int[]{8, 8, 8, 0});
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++)
+					img.setPixel(x, y, (long)((x + y) & 0xFF) << 48 | (long)(x * y & 0xFF) << 32 | (long)rand.nextInt(4) << 16);
+			}
+			
+			PngImage png = ImageEncoder.toPng(img, InterlaceMethod.NONE, opts);
+			Assert.assertEquals(Math.ceilDiv(height, interval), png.idats.size());
+			Optional<Rspt> rspt = PngImage.getChunk(Rspt.class, png.afterIhdr);
+			Assert.assertEquals(png.idats.size() > 1, rspt.isPresent());  // A single band needs no chunk
+			var bout = new ByteArrayOutputStream();
+			png.write(bout);
+			byte[] file = bout.toByteArray();
+			if (rspt.isPresent()) {
+				int start = 0;
+				while (!new String(file, start + 4, 4, StandardCharsets.US_ASCII).equals("rsPT"))
+					start++;
+				for (int offset : rspt.get().offsets())
+					Assert.assertEquals("IDAT", new String(file, start + offset + 4, 4, StandardCharsets.US_ASCII));
+			}
+			
+			PngImage reread = PngImage.read(new ByteArrayInputStream(file));
+			var dec0 = (BufferedRgbaImage)ImageDecoder.toImage(reread);  // In parallel
+			reread.afterIhdr.removeIf(chk -> chk instanceof Rspt);
+			var dec1 = (BufferedRgbaImage)ImageDecoder.toImage(reread);  // Serially
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					Assert.assertEquals(img.getPixel(x, y), dec0.getPixel(x, y));
+					Assert.assertEquals(img.getPixel(x, y), dec1.getPixel(x, y));
+				}
+			}
+		}
+	}
+	
+	
+	@Test public void testRestartPointsNotIndependent() {
+		// Every row is a band, so that rows are converted before the bad band is reached
+		final int width = 16, height = 64;
+		for (int bad : new int[]{1, height / 2, height - 1}) {
+			for (boolean syncFlush : new boolean[]{false, true}) {
+				var rows = new byte[height][width + 1];
+				var expect = new int[height][width];
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						// A sync flush lets the bad band refer back to the identical row before it
+						rows[y][x + 1] = (byte)(syncFlush && y >= bad - 1 ? x * 7 : rand.nextInt(256));
+						expect[y][x] = rows[y][x + 1] & 0xFF;
+					}
+				}
+				if (!syncFlush) {
+					rows[bad][0] = 2;  // Up filter, which refers to the previous row
+					for (int x = 0; x < width; x++)
+						expect[bad][x] = (expect[bad - 1][x] + expect[bad][x]) & 0xFF;
+				}
+				
+				var png = new PngImage();
+				png.ihdr = Optional.of(new Ihdr(width, height, 8, Ihdr.ColorType.GRAYSCALE,
+					Ihdr.CompressionMethod.ZLIB_DEFLATE, Ihdr.FilterMethod.ADAPTIVE, InterlaceMethod.NONE));
+				var deflater = new Deflater();
+				var buf = new byte[1024];
+				var bandRows = new int[height];
+				var offsets = new int[height];
+				int offset = 12 + height * 8;  // The rsPT chunk itself
+				for (int y = 0; y < height; y++) {
+					deflater.setInput(rows[y]);
+					var bout = new ByteArrayOutputStream();
+					if (y < height - 1) {
+						int n;
+						do {
+							n = deflater.deflate(buf, 0, buf.length, syncFlush && y == bad - 1 ? Deflater.SYNC_FLUSH : Deflater.FULL_FLUSH);
+							bout.write(buf, 0, n);
+						} while (n == buf.length);
+					} else {
+						deflater.finish();
+						while (!deflater.finished())
+							bout.write(buf, 0, deflater.deflate(buf));
+					}
+					png.idats.add(new Idat(bout.toByteArray()));
+					bandRows[y] = y;
+					offsets[y] = offset;
+					offset += 12 + bout.size();
+				}
+				deflater.end();
+				png.afterIhdr.add(new Rspt(bandRows, offsets));
+				
+				var reported = new int[height];
+				var dec = (BufferedGrayImage)ImageDecoder.toImage(png, DecodeOptions.DEFAULT.withListener(new DecodeListener() {
+					public void passCompleted(int pass, int numPasses, Object preview) {}
+					
+					public void rowDecoded(int pass, int y) {
+						reported[y]++;
+					}
+				}));
+				for (int y = 0; y < height; y++) {
+					Assert.assertEquals(1, reported[y]);
+					for (int x = 0; x < width; x++)
+						Assert.assertEquals(expect[y][x] << 16, dec.getPixel(x, y));
+				}
+			}
+		}
+	}
+	
+	
+	@Test public void testSpeculativeInflation() {
+		final int TRIALS = 10;
+		for (int i = 0; i < TRIALS; i++) {
+			int width  = rand.nextInt(300) + 1;
+			int height = rand.nextInt(600) + 1;
+			var img = new BufferedRgbaImage(width, height, new int[]{8, 8, 8, 0});
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++)
+					img.setPixel(x, y, (long)((x + y) & 0xFF) << 48 | (long)(x * y & 0xFF) << 32 | (long)rand.nextInt(1 << rand.nextInt(9)) << 16);
+			}
+			InterlaceMethod interlace = rand.nextBoolean() ? InterlaceMethod.NONE : InterlaceMethod.ADAM7;
+			PngImage png = ImageEncoder.toPng(img, interlace, EncodeOptions.DEFAULT.withFilterStrategy(EncodeOptions.FilterStrategy.ADAPTIVE));
+			var dec = (BufferedRgbaImage)ImageDecoder.toImage(png, DecodeOptions.DEFAULT.withSpeculativeInflation(0));
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++)
+					Assert.assertEquals(img.getPixel(x, y), dec.getPixel(x, y));
+			}
+		}
+	}
+	
+	
+	@Test public void testZlibCodec() {
+		var calls = new int[2];
+		ZlibCodec codec = new ZlibCodec() {
+			public OutputStream newCompressor(OutputStream out) {
+				calls[0]++;
+				return ZlibCodec.javaUtilZip(1).newCompressor(out);
+			}
+			
+			public InputStream newDecompressor(InputStream in) {
+				calls[1]++;
+				return ZlibCodec.JAVA_UTIL_ZIP.newDecompressor(in);
+			}
+		};
+		var img = new BufferedGrayImage(100, 100, new int[]{8, 0});
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++)
+				img.setPixel(x, y, (x * y & 0xFF) << 16);
+		}
+		for (int interval : new int[]{0, 7}) {
+			PngImage png = ImageEncoder.toPng(img, InterlaceMethod.NONE, EncodeOptions.DEFAULT.withZlibCodec(codec).withRestartInterval(interval));
+			Assert.assertEquals(interval == 0 ? 1 : 15, png.idats.size());
+			png.afterIhdr.removeIf(chk -> chk instanceof Rspt);
+			var dec = (BufferedGrayImage)ImageDecoder.toImage(png, DecodeOptions.DEFAULT.withZlibCodec(codec));
+			for (int y = 0; y < img.getHeight(); y++) {
+				for (int x = 0; x < img.getWidth(); x++)
+					Assert.assertEquals(img.getPixel(x, y), dec.getPixel(x, y));
+			}
+		}
+		Assert.assertArrayEquals(new int[]{2, 2}, calls);
+	}
+	
+	
+	
+	@Test public void testRecompressIdats() {
+		var img = new BufferedGrayImage(64, 64, new int[]{8, 0});
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++)
+				img.setPixel(x, y, (x ^ y) << 16);
+		}
+		PngImage png = ImageEncoder.toPng(img, InterlaceMethod.NONE, EncodeOptions.DEFAULT
+			.withFilterStrategy(EncodeOptions.FilterStrategy.ADAPTIVE).withRestartInterval(8));
+		int before = png.idats.stream().mapToInt(idat -> idat.data().length).sum();
+		byte[] raw = ZlibCodec.JAVA_UTIL_ZIP.decompress(concatIdats(png));
+		var calls = new int[1];
+		png.recompressIdats(new ZlibCodec() {
+			public OutputStream newCompressor(OutputStream out) {
+				return ZlibCodec.optimal(3).newCompressor(out);
+			}
+			
+			public InputStream newDecompressor(InputStream in) {
+				calls[0]++;
+				return ZlibCodec.JAVA_UTIL_ZIP.newDecompressor(in);
+			}
+		});
+		Assert.assertEquals(1, calls[0]);
+		Assert.assertEquals(1, png.idats.size());
+		Assert.assertTrue(png.idats.get(0).data().length < before);
+		Assert.assertArrayEquals(raw, ZlibCodec.JAVA_UTIL_ZIP.decompress(png.idats.get(0).data()));
+		Assert.assertTrue(PngImage.getChunk(Rspt.class, png.afterIhdr).isEmpty());
+		var dec = (BufferedGrayImage)ImageDecoder.toImage(png);
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++)
+				Assert.assertEquals(img.getPixel(x, y), dec.getPixel(x, y));
+		}
+		
+		// Rows that start a band must not keep a filter type that uses the previous row
+		PngImage banded = ImageEncoder.recompress(png, EncodeOptions.DEFAULT
+			.withFilterStrategy(EncodeOptions.FilterStrategy.KEEP).withRestartInterval(5));
+		byte[] rebanded = ZlibCodec.JAVA_UTIL_ZIP.decompress(concatIdats(banded));
+		Assert.assertEquals(raw.length, rebanded.length);
+		for (int y = 0; y < img.getHeight(); y++) {
+			int filter = rebanded[y * (img.getWidth() + 1)];
+			if (y % 5 == 0)
+				Assert.assertTrue(filter < 2);
+			else
+				Assert.assertEquals(raw[y * (img.getWidth() + 1)], filter);
+		}
+		dec = (BufferedGrayImage)ImageDecoder.toImage(banded);
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++)
+				Assert.assertEquals(img.getPixel(x, y), dec.getPixel(x, y));
+		}
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ImageEncoder.toPng(img, InterlaceMethod.NONE,
+			EncodeOptions.DEFAULT.withFilterStrategy(EncodeOptions.FilterStrategy.KEEP)));
+		
+		png.idats.set(0, new Idat(new byte[]{1, 2, 3}));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> png.recompressIdats(ZlibCodec.JAVA_UTIL_ZIP));
+	}
+	
+	
+	
+	@Test public void testRecompress() {
+		EncodeOptions[] options = {
+			EncodeOptions.DEFAULT,
+			EncodeOptions.DEFAULT.withFilterStrategy(EncodeOptions.FilterStrategy.ADAPTIVE),
+			EncodeOptions.DEFAULT.withFilterStrategy(EncodeOptions.FilterStrategy.EXHAUSTIVE).withRestartInterval(5),
+			EncodeOptions.DEFAULT.withFilterStrategy(EncodeOptions.FilterStrategy.ADAPTIVE).withPipelining(true).withZlibCodec(ZlibCodec.javaUtilZip(1)),
+		};
+		final int TRIALS = 100;
+		for (int i = 0; i < TRIALS; i++) {
+			int width  = rand.nextInt(60) + 1;
+			int height = rand.nextInt(60) + 1;
+			InterlaceMethod interMeth = rand.nextBoolean() ? InterlaceMethod.NONE : InterlaceMethod.ADAM7;
+			int grayDepth = new int[]{1, 2, 4, 8, 16}[rand.nextInt(5)];
+			var rgb = new BufferedRgbaImage(width, height, new int[]{8, 8, 8, 8});
+			var gray = new BufferedGrayImage(width, height, new int[]{grayDepth, 0});
+			var pal = new BufferedPaletteImage(width, height, new int[]{8, 8, 8, 0}, new long[5]);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					rgb.setPixel(x, y, (long)(x * 3 + y & 0xFF) << 48 | (long)((x ^ y) & 0xFF) << 32 | rand.nextInt(4) << 16 | rand.nextInt(256));
+					gray.setPixel(x, y, (x + y) % (1 << grayDepth) << 16);
+					pal.setPixel(x, y, (x / 2 + y) % 5);
+				}
+			}
+			EncodeOptions before = options[rand.nextInt(options.length)];
+			EncodeOptions after = options[rand.nextInt(options.length)];
+			for (PngImage expect : new PngImage[]{
+					ImageEncoder.toPng(rgb, interMeth, after),
+					ImageEncoder.toPng(gray, interMeth, after),
+					ImageEncoder.toPng(pal, interMeth, after)}) {
+				PngImage png = switch (expect.ihdr.get().colorType()) {
+					case TRUE_COLOR_WITH_ALPHA -> ImageEncoder.toPng(rgb, interMeth, before);
+					case GRAYSCALE -> ImageEncoder.toPng(gray, interMeth, before);
+					case INDEXED_COLOR -> ImageEncoder.toPng(pal, interMeth, before);
+					default -> throw new AssertionError("Unreachable value");
+				};
+				png.afterIdats.add(new Text("Comment", "Hello"));
+				PngImage actual = ImageEncoder.recompress(png, after);
+				Assert.assertEquals(expect.idats.size(), actual.idats.size());
+				for (int j = 0; j < expect.idats.size(); j++)
+					Assert.assertArrayEquals(expect.idats.get(j).data(), actual.idats.get(j).data());
+				Assert.assertEquals(expect.afterIhdr.stream().map(Chunk::getType).toList(), actual.afterIhdr.stream().map(Chunk::getType).toList());
+				Assert.assertEquals(png.afterIdats, actual.afterIdats);
+			}
+		}
+		
+		var img = new BufferedGrayImage(20, 20, new int[]{8, 0});
+		PngImage png = ImageEncoder.toPng(img, InterlaceMethod.NONE);
+		byte[] raw = ZlibCodec.JAVA_UTIL_ZIP.decompress(png.idats.get(0).data());
+		png.idats.set(0, new Idat(ZlibCodec.JAVA_UTIL_ZIP.compress(Arrays.copyOf(raw, raw.length - 1))));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ImageEncoder.recompress(png, EncodeOptions.DEFAULT));
+		png.idats.set(0, new Idat(ZlibCodec.JAVA_UTIL_ZIP.compress(Arrays.copyOf(raw, raw.length + 1))));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ImageEncoder.recompress(png, EncodeOptions.DEFAULT));
+		raw[21 * 3] = 5;
+		png.idats.set(0, new Idat(ZlibCodec.JAVA_UTIL_ZIP.compress(raw)));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ImageEncoder.recompress(png, EncodeOptions.DEFAULT));
+	}
+	
+	
+	
+	@Test public void testRechunkIdats() throws IOException {
+		final int TRIALS = 100;
+		for (int i = 0; i < TRIALS; i++) {
+			int width  = rand.nextInt(100) + 1;
+			int height = rand.nextInt(100) + 1;
+			var img = new BufferedGrayImage(width, height, new int[]{8, 0});
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++)
+					img.setPixel(x, y, rand.nextInt(1 << 8) << 16);
+			}
+			PngImage png = ImageEncoder.toPng(img, InterlaceMethod.NONE, EncodeOptions.DEFAULT.withRestartInterval(rand.nextInt(20)));
+			png.afterIdats.add(new Time(2024, 5, 6, 7, 8, 9));
+			var bout = new ByteArrayOutputStream();
+			png.write(bout);
+			byte[] file = bout.toByteArray();
+			byte[] data = concatIdats(png);
+			int targetSize = rand.nextInt(data.length + 100) + 1;
+			
+			png.rechunkIdats(targetSize);
+			Assert.assertArrayEquals(data, concatIdats(png));
+			Assert.assertEquals(Math.ceilDiv(data.length, targetSize), png.idats.size());
+			for (int j = 0; j < png.idats.size() - 1; j++)
+				Assert.assertEquals(targetSize, png.idats.get(j).data().length);
+			Assert.assertTrue(PngImage.getChunk(Rspt.class, png.afterIhdr).isEmpty());
+			
+			bout.reset();
+			PngImage.rechunkIdats(new ByteArrayInputStream(file), bout, targetSize);
+			PngImage streamed = PngImage.read(new ByteArrayInputStream(bout.toByteArray()));
+			Assert.assertEquals(png.idats.size(), streamed.idats.size());
+			for (int j = 0; j < png.idats.size(); j++)
+				Assert.assertArrayEquals(png.idats.get(j).data(), streamed.idats.get(j).data());
+			Assert.assertEquals(png.afterIhdr.size(), streamed.afterIhdr.size());
+			Assert.assertEquals(png.afterIdats, streamed.afterIdats);
+			
+			file[file.length - 13 - rand.nextInt(11)] ^= (byte)(1 << rand.nextInt(8));  // Corrupt the data or CRC of the tIME chunk
+			TestUtil.runExpect(IllegalArgumentException.class, () -> PngImage.rechunkIdats(new ByteArrayInputStream(file), new ByteArrayOutputStream(), targetSize));
+		}
+		
+		// Chunks that already fit are kept without copying
+		var png = new PngImage();
+		png.idats.add(new Idat(new byte[10]));
+		png.idats.add(new Idat(new byte[4]));
+		png.idats.add(new Idat(new byte[6]));
+		png.idats.add(new Idat(new byte[7]));
+		Idat first = png.idats.get(0);
+		Idat last = png.idats.get(3);
+		png.rechunkIdats(10);
+		Assert.assertEquals(3, png.idats.size());
+		Assert.assertSame(first, png.idats.get(0));
+		Assert.assertSame(last, png.idats.get(2));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> png.rechunkIdats(0));
+	}
+	
+	
+	private static byte[] concatIdats(PngImage png) {
+		var bout = new ByteArrayOutputStream();
+		for (Idat idat : png.idats)
+			bout.writeBytes(idat.data());
+		return bout.toByteArray();
+	}
+	
 }
@@ -11,12 +11,16 @@ package io.nayuki.png;
 import static org.junit.Assert.assertEquals;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.List;
 import java.util.Optional;
 import java.util.zip.DeflaterOutputStream;
 import org.junit.Test;
+import io.nayuki.png.chunk.Chunk;
 import io.nayuki.png.chunk.Idat;
 import io.nayuki.png.chunk.Ihdr;
 import io.nayuki.png.chunk.Plte;
+import io.nayuki.png.chunk.Sbit;
+import io.nayuki.png.chunk.Trns;
 import io.nayuki.png.image.GrayImage;
 import io.nayuki.png.image.PaletteImage;
 import io.nayuki.png.image.RgbaImage;
@@ -245,4 +249,120 @@ public final class ImageDecoderTest {
 		}
 	}
 	
+	
+	@Test public void testRegionEarlyStop() throws IOException {
+		var png = new PngImage();
+		png.ihdr = Optional.of(new Ihdr(4, 3, 8, Ihdr.ColorType.GRAYSCALE,
+			Ihdr.CompressionMethod.ZLIB_DEFLATE, Ihdr.FilterMethod.ADAPTIVE, Ihdr.InterlaceMethod.NONE));
+		var bout = new ByteArrayOutputStream();
+		try (var dout = new DeflaterOutputStream(bout)) {
+			dout.write(TestUtil.hexToBytes(
+				"00 10 11 12 13" +
+				"01 20 01 01 01" +
+				"00 30 31 32 33" +
+				"AB CD"));
+		}
+		png.idats.add(new Idat(bout.toByteArray()));
+		
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ImageDecoder.toImage(png));
+		var opts = DecodeOptions.DEFAULT.withRegion(1, 0, 2, 2);
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ImageDecoder.toImage(png, opts));
+		var img = (GrayImage)ImageDecoder.toImage(png, opts.withStrictTrailingData(false));
+		assertEquals(2, img.getWidth());
+		assertEquals(2, img.getHeight());
+		assertEquals(0x11 << 16, img.getPixel(0, 0));
+		assertEquals(0x12 << 16, img.getPixel(1, 0));
+		assertEquals(0x21 << 16, img.getPixel(0, 1));
+		assertEquals(0x22 << 16, img.getPixel(1, 1));
+		
+		TestUtil.runExpect(IndexOutOfBoundsException.class,
+			() -> ImageDecoder.toImage(png, DecodeOptions.DEFAULT.withRegion(3, 0, 2, 1)));
+		TestUtil.runExpect(IllegalArgumentException.class,
+			() -> DecodeOptions.DEFAULT.withRegion(0, 0, 0, 1));
+	}
+	
+	
+	@Test public void testTransparentGray() throws IOException {
+		var ihdr8 = new Ihdr(4, 1, 8, Ihdr.ColorType.GRAYSCALE,
+			Ihdr.CompressionMethod.ZLIB_DEFLATE, Ihdr.FilterMethod.ADAPTIVE, Ihdr.InterlaceMethod.NONE);
+		var img8 = (GrayImage)ImageDecoder.toImage(makePng(ihdr8, "00 05 06 05 FF", new Trns(new short[]{0x05})));
+		assertEquals(8, img8.getBitDepths()[1]);
+		assertEquals(0x05_0000, img8.getPixel(0, 0));
+		assertEquals(0x06_00FF, img8.getPixel(1, 0));
+		assertEquals(0x05_0000, img8.getPixel(2, 0));
+		assertEquals(0xFF_00FF, img8.getPixel(3, 0));
+		
+		var ihdr16 = new Ihdr(3, 2, 16, Ihdr.ColorType.GRAYSCALE,
+			Ihdr.CompressionMethod.ZLIB_DEFLATE, Ihdr.FilterMethod.ADAPTIVE, Ihdr.InterlaceMethod.NONE);
+		var img16 = (GrayImage)ImageDecoder.toImage(makePng(ihdr16,
+			"00 1234 1235 1234" +
+			"00 0034 1234 3412",
+			new Trns(new short[]{0x1234})));
+		assertEquals(16, img16.getBitDepths()[1]);
+		assertEquals(0x1234_0000, img16.getPixel(0, 0));
+		assertEquals(0x1235_FFFF, img16.getPixel(1, 0));
+		assertEquals(0x1234_0000, img16.getPixel(2, 0));
+		assertEquals(0x0034_FFFF, img16.getPixel(0, 1));
+		assertEquals(0x1234_0000, img16.getPixel(1, 1));
+		assertEquals(0x3412_FFFF, img16.getPixel(2, 1));
+	}
+	
+	
+	@Test public void testValidate() throws IOException {
+		var gray = new Ihdr(4, 2, 8, Ihdr.ColorType.GRAYSCALE,
+			Ihdr.CompressionMethod.ZLIB_DEFLATE, Ihdr.FilterMethod.ADAPTIVE, Ihdr.InterlaceMethod.NONE);
+		var grayAdam7 = new Ihdr(4, 2, 8, Ihdr.ColorType.GRAYSCALE,
+			Ihdr.CompressionMethod.ZLIB_DEFLATE, Ihdr.FilterMethod.ADAPTIVE, Ihdr.InterlaceMethod.ADAM7);
+		var grayAlpha = new Ihdr(2, 2, 8, Ihdr.ColorType.GRAYSCALE_WITH_ALPHA,
+			Ihdr.CompressionMethod.ZLIB_DEFLATE, Ihdr.FilterMethod.ADAPTIVE, Ihdr.InterlaceMethod.NONE);
+		var palette = new Ihdr(5, 1, 2, Ihdr.ColorType.INDEXED_COLOR,
+			Ihdr.CompressionMethod.ZLIB_DEFLATE, Ihdr.FilterMethod.ADAPTIVE, Ihdr.InterlaceMethod.NONE);
+		var threeColors = new Plte(new byte[3 * 3]);
+		
+		// Each case is valid if and only if its expected result is true
+		assertValidation(true , gray, "00 01 02 03 04  04 05 06 07 08");
+		assertValidation(false, gray, "00 01 02 03 04  05 05 06 07 08");  // Bad filter type
+		assertValidation(false, gray, "00 01 02 03 04  04 05 06 07");  // Truncated
+		assertValidation(false, gray, "00 01 02 03 04  04 05 06 07 08  00");  // Extra data
+		assertValidation(true , grayAdam7, "00 01  00 02  00 03 04  00 05 06 07 08");
+		assertValidation(false, grayAdam7, "00 01  00 02  00 03 04  00 05 06 07");
+		assertValidation(true , grayAlpha, "00 01 02 03 04  00 05 06 07 08");
+		assertValidation(false, grayAlpha, "00 01 02 03 04  00 05 06 07 08", new Trns(new byte[2]));
+		assertValidation(true , gray, "00 01 02 03 04  00 05 06 07 08", new Sbit(new byte[]{5}));
+		assertValidation(false, gray, "00 01 02 03 04  00 05 06 07 08", new Sbit(new byte[]{9}));
+		assertValidation(false, gray, "00 01 02 03 04  00 05 06 07 08", new Sbit(new byte[]{5, 5}));
+		assertValidation(true , palette, "00 18 80", threeColors);
+		assertValidation(false, palette, "00 18 C0", threeColors);  // Index 3 is not in the palette
+		assertValidation(false, palette, "00 18 80");  // Missing palette
+		assertValidation(false, palette, "00 18 80", threeColors, new Trns(new byte[4]));
+		assertValidation(true , palette, "00 FF C0", new Plte(new byte[4 * 3]));
+	}
+	
+	
+	// Checks that validating and fully decoding the given image both succeed or both fail as expected.
+	private static void assertValidation(boolean valid, Ihdr ihdr, String rawHex, Chunk... afterIhdr) throws IOException {
+		PngImage png = makePng(ihdr, rawHex, afterIhdr);
+		if (valid) {
+			ImageDecoder.validate(png);
+			ImageDecoder.toImage(png);
+		} else {
+			TestUtil.runExpect(IllegalArgumentException.class, () -> ImageDecoder.validate(png));
+			TestUtil.runExpect(IllegalArgumentException.class, () -> ImageDecoder.toImage(png));
+		}
+	}
+	
+	
+	// Returns a PNG image with the given header, chunks, and raw (filtered but uncompressed) data.
+	private static PngImage makePng(Ihdr ihdr, String rawHex, Chunk... afterIhdr) throws IOException {
+		var png = new PngImage();
+		png.ihdr = Optional.of(ihdr);
+		png.afterIhdr.addAll(List.of(afterIhdr));
+		var bout = new ByteArrayOutputStream();
+		try (var dout = new DeflaterOutputStream(bout)) {
+			dout.write(TestUtil.hexToBytes(rawHex));
+		}
+		png.idats.add(new Idat(bout.toByteArray()));
+		return png;
+	}
+	
 }
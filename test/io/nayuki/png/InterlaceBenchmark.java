@@ -0,0 +1,76 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import java.util.function.Function;
+import io.nayuki.png.chunk.Ihdr.InterlaceMethod;
+import io.nayuki.png.chunk.ZlibCodec;
+import io.nayuki.png.image.BufferedGrayImage;
+import io.nayuki.png.image.BufferedRgbaImage;
+
+
+/**
+ * Compares encoding and decoding Adam7-interlaced images against non-interlaced ones of the same pixels, for images
+ * of the same area but increasing width, where splitting rows into passes and merging them back used to fall out of
+ * the cache. Run the main method with no arguments; it prints nanoseconds per pixel. The numbers are indicative only,
+ * because this uses simple timing loops rather than a benchmark harness.
+ */
+public final class InterlaceBenchmark {
+	
+	public static void main(String[] args) {
+		System.out.printf("%-6s %8s %8s %10s %10s %10s %10s%n", "Type", "Width", "Height", "Enc none", "Enc Adam7", "Dec none", "Dec Adam7");
+		for (int width : new int[]{1 << 10, 1 << 13, 1 << 16}) {
+			int height = (1 << 22) / width;
+			var rgba = new BufferedRgbaImage(width, height, new int[]{8, 8, 8, 8});
+			var gray = new BufferedGrayImage(width, height, new int[]{8, 0});
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					rgba.setPixel(x, y, (long)(x & 0xFF) << 48 | (long)(y & 0xFF) << 32 | (long)((x ^ y) & 0xFF) << 16 | 0xFF);
+					gray.setPixel(x, y, (x + y & 0xFF) << 16);
+				}
+			}
+			run("RGBA8", width, height, interMeth -> ImageEncoder.toPng(rgba, interMeth, OPTIONS));
+			run("Gray8", width, height, interMeth -> ImageEncoder.toPng(gray, interMeth, OPTIONS));
+		}
+	}
+	
+	
+	private static void run(String name, int width, int height, Function<InterlaceMethod,PngImage> encoder) {
+		PngImage plain = encoder.apply(InterlaceMethod.NONE);
+		PngImage adam7 = encoder.apply(InterlaceMethod.ADAM7);
+		double pixels = (double)width * height;
+		double encPlainNs = time(() -> sink += encoder.apply(InterlaceMethod.NONE).hashCode()) / pixels;
+		double encAdam7Ns = time(() -> sink += encoder.apply(InterlaceMethod.ADAM7).hashCode()) / pixels;
+		double decPlainNs = time(() -> sink += ImageDecoder.toImage(plain).hashCode()) / pixels;
+		double decAdam7Ns = time(() -> sink += ImageDecoder.toImage(adam7).hashCode()) / pixels;
+		System.out.printf("%-6s %8d %8d %10.3f %10.3f %10.3f %10.3f%n", name, width, height, encPlainNs, encAdam7Ns, decPlainNs, decAdam7Ns);
+	}
+	
+	
+	// Fast compression keeps the time spent in zlib from hiding the time spent placing pixels.
+	private static final EncodeOptions OPTIONS = EncodeOptions.DEFAULT.withZlibCodec(ZlibCodec.javaUtilZip(1));
+	
+	
+	// Returns the fastest of several measurements of running the function, in nanoseconds.
+	private static double time(Runnable func) {
+		for (int i = 0; i < 2; i++)
+			func.run();
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			long start = System.nanoTime();
+			func.run();
+			best = Math.min(System.nanoTime() - start, best);
+		}
+		return best;
+	}
+	
+	
+	private static long sink;  // Keeps results alive
+	
+}
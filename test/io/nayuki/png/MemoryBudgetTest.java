@@ -0,0 +1,184 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Test;
+import io.nayuki.png.chunk.Chunk;
+import io.nayuki.png.chunk.Ihdr;
+import io.nayuki.png.chunk.ZlibCodec;
+import io.nayuki.png.chunk.Ztxt;
+import io.nayuki.png.image.BufferedRgbaImage;
+import io.nayuki.png.image.ImageAllocator;
+
+
+public final class MemoryBudgetTest {
+	
+	@Test public void testAcquireRelease() throws InterruptedException {
+		var budget = new MemoryBudget(100);
+		var r0 = budget.acquire(60);
+		Assert.assertEquals(40, budget.getAvailable());
+		Assert.assertTrue(budget.tryAcquire(41).isEmpty());
+		Optional<MemoryBudget.Reservation> r1 = budget.tryAcquire(40);
+		Assert.assertTrue(r1.isPresent());
+		Assert.assertEquals(0, budget.getAvailable());
+		r0.close();
+		r0.close();
+		Assert.assertEquals(60, budget.getAvailable());
+		r1.get().close();
+		Assert.assertEquals(100, budget.getAvailable());
+		TestUtil.runExpect(IllegalArgumentException.class, () -> budget.acquire(101));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> budget.tryAcquire(-1));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> new MemoryBudget(0));
+	}
+	
+	
+	@Test public void testWaitersInOrder() throws InterruptedException {
+		var budget = new MemoryBudget(100);
+		var held = budget.acquire(90);
+		var bigStarted = new CountDownLatch(1);
+		var big = new AtomicReference<MemoryBudget.Reservation>();
+		var thread = new Thread(() -> {
+			try {
+				bigStarted.countDown();
+				big.set(budget.acquire(80));
+			} catch (InterruptedException e) {}
+		});
+		thread.start();
+		bigStarted.await();
+		while (thread.getState() != Thread.State.WAITING)
+			Thread.sleep(1);
+		// A small request must not overtake the waiting big one
+		Assert.assertTrue(budget.tryAcquire(5).isEmpty());
+		held.close();
+		thread.join();
+		Assert.assertEquals(20, budget.getAvailable());
+		big.get().close();
+	}
+	
+	
+	@Test public void testInterruptedWaiter() throws InterruptedException {
+		var budget = new MemoryBudget(100);
+		var held = budget.acquire(100);
+		var threads = new Thread[3];
+		var results = new AtomicReference<?>[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			var result = new AtomicReference<Object>();
+			results[i] = result;
+			threads[i] = new Thread(() -> {
+				try (var r = budget.acquire(50)) {
+					result.set(r);
+				} catch (InterruptedException e) {
+					result.set(e);
+				}
+			});
+			threads[i].start();
+			while (threads[i].getState() != Thread.State.WAITING)
+				Thread.sleep(1);
+		}
+		threads[1].interrupt();  // In the middle of the queue
+		threads[1].join();
+		held.close();
+		threads[0].join();
+		threads[2].join();
+		Assert.assertTrue(results[0].get() instanceof MemoryBudget.Reservation);
+		Assert.assertTrue(results[1].get() instanceof InterruptedException);
+		Assert.assertTrue(results[2].get() instanceof MemoryBudget.Reservation);
+		Assert.assertEquals(100, budget.getAvailable());
+	}
+	
+	
+	@Test public void testDecodeWithBudget() {
+		var img = new BufferedRgbaImage(300, 200, new int[]{8, 8, 8, 8});
+		PngImage png = ImageEncoder.toPng(img, Ihdr.InterlaceMethod.NONE);
+		long estimate = ImageDecoder.estimateMemory(png, DecodeOptions.DEFAULT);
+		Assert.assertTrue(estimate >= 300L * 200 * 8);
+		Assert.assertEquals(estimate, ImageDecoder.estimateMemory(png.ihdr.get(), DecodeOptions.DEFAULT));
+		Assert.assertTrue(ImageDecoder.estimateMemory(png, DecodeOptions.DEFAULT.withScale(4)) < estimate / 4);
+		Assert.assertTrue(ImageDecoder.estimateMemory(png, DecodeOptions.DEFAULT.withAllocator(new ImageAllocator() {})) < estimate / 4);
+		
+		var budget = new MemoryBudget(estimate * 3 / 2);
+		ImageDecoder.toImage(png, DecodeOptions.DEFAULT.withMemoryBudget(budget, false));
+		Assert.assertEquals(budget.getCapacity(), budget.getAvailable());
+		try (var held = budget.tryAcquire(estimate).get()) {
+			Assert.assertEquals(estimate, held.getBytes());
+			TestUtil.runExpect(IllegalStateException.class,
+				() -> ImageDecoder.toImage(png, DecodeOptions.DEFAULT.withMemoryBudget(budget, false)));
+		}
+		TestUtil.runExpect(IllegalArgumentException.class,
+			() -> ImageDecoder.toImage(png, DecodeOptions.DEFAULT.withMemoryBudget(new MemoryBudget(estimate - 1), true)));
+		Assert.assertEquals(budget.getCapacity(), budget.getAvailable());
+	}
+	
+	
+	@Test public void testEncodeWithBudget() {
+		var img = new BufferedRgbaImage(300, 200, new int[]{8, 8, 8, 0});
+		var ihdr = new Ihdr(300, 200, 8, Ihdr.ColorType.TRUE_COLOR,
+			Ihdr.CompressionMethod.ZLIB_DEFLATE, Ihdr.FilterMethod.ADAPTIVE, Ihdr.InterlaceMethod.NONE);
+		long estimate = ImageEncoder.estimateMemory(ihdr, EncodeOptions.DEFAULT);
+		Assert.assertTrue(estimate >= (300L * 3 + 1) * 200);
+		var budget = new MemoryBudget(estimate);
+		ImageEncoder.toPng(img, Ihdr.InterlaceMethod.NONE, EncodeOptions.DEFAULT.withMemoryBudget(budget, false));
+		Assert.assertEquals(budget.getCapacity(), budget.getAvailable());
+		try (var held = budget.tryAcquire(1).get()) {
+			Assert.assertEquals(1, held.getBytes());
+			TestUtil.runExpect(IllegalStateException.class,
+				() -> ImageEncoder.toPng(img, Ihdr.InterlaceMethod.NONE, EncodeOptions.DEFAULT.withMemoryBudget(budget, false)));
+		}
+		Assert.assertTrue(ImageEncoder.estimateMemory(ihdr, EncodeOptions.DEFAULT.withRestartInterval(10)) < estimate);
+	}
+	
+	
+	@Test public void testMaxPixels() {
+		var img = new BufferedRgbaImage(30, 20, new int[]{8, 8, 8, 8});
+		PngImage png = ImageEncoder.toPng(img, Ihdr.InterlaceMethod.NONE);
+		ImageDecoder.toImage(png, DecodeOptions.DEFAULT.withMaxPixels(600));
+		TestUtil.runExpect(IllegalArgumentException.class,
+			() -> ImageDecoder.toImage(png, DecodeOptions.DEFAULT.withMaxPixels(599)));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> DecodeOptions.DEFAULT.withMaxPixels(0));
+		
+		// The limit is checked before the budget is consulted
+		var budget = new MemoryBudget(1 << 20);
+		budget.tryAcquire(budget.getCapacity()).get();
+		for (var options : new DecodeOptions[]{
+				DecodeOptions.DEFAULT.withMemoryBudget(budget, false),
+				DecodeOptions.DEFAULT.withMemoryBudget(new MemoryBudget(100), false)}) {
+			try {
+				ImageDecoder.toImage(png, options.withMaxPixels(599));
+				Assert.fail();
+			} catch (IllegalArgumentException e) {
+				Assert.assertEquals("Image exceeds pixel limit", e.getMessage());
+			}
+		}
+	}
+	
+	
+	@Test public void testFieldDecompressionLimit() {
+		byte[] bomb = ZlibCodec.JAVA_UTIL_ZIP.compress(new byte[1 << 20]);
+		Assert.assertEquals(1 << 20, ZlibCodec.JAVA_UTIL_ZIP.decompress(bomb, 1 << 20).length);
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ZlibCodec.JAVA_UTIL_ZIP.decompress(bomb, (1 << 20) - 1));
+		
+		byte[] text = ZlibCodec.JAVA_UTIL_ZIP.compress("a".repeat(1000).getBytes());
+		int saved = ZlibCodec.getFieldDecompressionLimit();
+		try {
+			ZlibCodec.setFieldDecompressionLimit(1000);
+			new Ztxt("Comment", Chunk.CompressionMethod.ZLIB_DEFLATE, text);
+			ZlibCodec.setFieldDecompressionLimit(999);
+			TestUtil.runExpect(IllegalArgumentException.class,
+				() -> new Ztxt("Comment", Chunk.CompressionMethod.ZLIB_DEFLATE, text));
+		} finally {
+			ZlibCodec.setFieldDecompressionLimit(saved);
+		}
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ZlibCodec.setFieldDecompressionLimit(-1));
+	}
+	
+}
@@ -0,0 +1,146 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import static io.nayuki.png.TestUtil.rand;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+import io.nayuki.png.chunk.Idat;
+import io.nayuki.png.chunk.Ihdr.InterlaceMethod;
+import io.nayuki.png.image.BufferedGrayImage;
+import io.nayuki.png.image.BufferedPaletteImage;
+import io.nayuki.png.image.BufferedRgbaImage;
+
+
+public final class PushDecoderTest {
+	
+	@Test public void testRandomPieces() throws IOException {
+		final int TRIALS = 300;
+		for (int i = 0; i < TRIALS; i++) {
+			int width  = rand.nextInt(30) + 1;
+			int height = rand.nextInt(30) + 1;
+			var img = new BufferedRgbaImage(width, height, new int[]{8, 8, 8, 8});
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++)
+					img.setPixel(x, y, rand.nextLong() & 0x00FF_00FF_00FF_00FFL);
+			}
+			InterlaceMethod interMeth = rand.nextBoolean() ? InterlaceMethod.NONE : InterlaceMethod.ADAM7;
+			byte[] file = toBytes(ImageEncoder.toPng(img, interMeth), rand.nextInt(4) + 1);
+			
+			var dec = new PushDecoder();
+			for (int off = 0; off < file.length; ) {
+				Assert.assertFalse(dec.isComplete());
+				int n = Math.min(rand.nextInt(50), file.length - off);
+				dec.feed(ByteBuffer.wrap(file, off, n));
+				off += n;
+			}
+			Assert.assertTrue(dec.isComplete());
+			var result = (BufferedRgbaImage)dec.finish();
+			Assert.assertSame(result, dec.getImage().get());
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++)
+					Assert.assertEquals(img.getPixel(x, y), result.getPixel(x, y));
+			}
+		}
+	}
+	
+	
+	@Test public void testGrayAndPalette() throws IOException {
+		var gray = new BufferedGrayImage(9, 7, new int[]{4, 0});
+		var pal = new BufferedPaletteImage(9, 7, new int[]{8, 8, 8, 0}, new long[]{0, 1L << 32, 2L << 32});
+		for (int y = 0; y < 7; y++) {
+			for (int x = 0; x < 9; x++) {
+				gray.setPixel(x, y, rand.nextInt(16) << 16);
+				pal.setPixel(x, y, rand.nextInt(3));
+			}
+		}
+		for (InterlaceMethod interMeth : InterlaceMethod.values()) {
+			var grayDec = new PushDecoder();
+			grayDec.feed(ByteBuffer.wrap(toBytes(ImageEncoder.toPng(gray, interMeth), 2)));
+			var palDec = new PushDecoder();
+			palDec.feed(ByteBuffer.wrap(toBytes(ImageEncoder.toPng(pal, interMeth), 1)));
+			var gray1 = (BufferedGrayImage)grayDec.finish();
+			var pal1 = (BufferedPaletteImage)palDec.finish();
+			for (int y = 0; y < 7; y++) {
+				for (int x = 0; x < 9; x++) {
+					Assert.assertEquals(gray.getPixel(x, y), gray1.getPixel(x, y));
+					Assert.assertEquals(pal.getPixel(x, y), pal1.getPixel(x, y));
+				}
+			}
+		}
+	}
+	
+	
+	@Test public void testTruncated() throws IOException {
+		int width = 10, height = 40;
+		var img = new BufferedRgbaImage(width, height, new int[]{8, 8, 8, 0});
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				img.setPixel(x, y, rand.nextLong() & 0x00FF_00FF_00FF_0000L | 0x0001_0000_0000_0000L);
+		}
+		byte[] file = toBytes(ImageEncoder.toPng(img, InterlaceMethod.NONE), 1);
+		
+		var rows = new int[]{0};
+		var dec = new PushDecoder(DecodeOptions.DEFAULT.withListener(new DecodeListener() {
+			@Override public void passCompleted(int pass, int numPasses, Object preview) {
+				Assert.fail();
+			}
+			@Override public void rowDecoded(int pass, int y) {
+				Assert.assertEquals(rows[0], y);
+				rows[0]++;
+			}
+		}));
+		Assert.assertTrue(dec.getImage().isEmpty());
+		dec.feed(ByteBuffer.wrap(file, 0, file.length / 2));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> dec.finish());
+		
+		var partial = (BufferedRgbaImage)dec.getImage().get();
+		Assert.assertTrue(0 < rows[0] && rows[0] < height);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				Assert.assertEquals(y < rows[0] ? img.getPixel(x, y) : 0, partial.getPixel(x, y));
+		}
+	}
+	
+	
+	@Test public void testInvalid() throws IOException {
+		var img = new BufferedGrayImage(3, 2, new int[]{8, 0});
+		byte[] file = toBytes(ImageEncoder.toPng(img, InterlaceMethod.NONE), 1);
+		
+		byte[] badSig = file.clone();
+		badSig[1] ^= 1;
+		var dec0 = new PushDecoder();
+		TestUtil.runExpect(IllegalArgumentException.class, () -> dec0.feed(ByteBuffer.wrap(badSig)));
+		TestUtil.runExpect(IllegalStateException.class, () -> dec0.feed(ByteBuffer.wrap(file)));
+		
+		byte[] badCrc = file.clone();
+		badCrc[29] ^= 1;  // Last byte of the IHDR chunk
+		TestUtil.runExpect(IllegalArgumentException.class, () -> new PushDecoder().feed(ByteBuffer.wrap(badCrc)));
+		
+		byte[] extra = Arrays.copyOf(file, file.length + 1);
+		TestUtil.runExpect(IllegalArgumentException.class, () -> new PushDecoder().feed(ByteBuffer.wrap(extra)));
+	}
+	
+	
+	// Serializes the PNG after splitting its image data into the specified number of IDAT chunks.
+	private static byte[] toBytes(PngImage png, int numIdats) throws IOException {
+		byte[] data = png.idats.get(0).data();
+		png.idats.clear();
+		for (int i = 0; i < numIdats; i++)
+			png.idats.add(new Idat(Arrays.copyOfRange(data, data.length * i / numIdats, data.length * (i + 1) / numIdats)));
+		var bout = new ByteArrayOutputStream();
+		png.write(bout);
+		return bout.toByteArray();
+	}
+	
+}
@@ -0,0 +1,205 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import static io.nayuki.png.TestUtil.rand;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+import io.nayuki.png.chunk.Idat;
+import io.nayuki.png.chunk.Ihdr;
+import io.nayuki.png.image.BufferedGrayImage;
+import io.nayuki.png.image.BufferedPaletteImage;
+import io.nayuki.png.image.BufferedRgbaImage;
+import io.nayuki.png.image.GrayImage;
+import io.nayuki.png.image.PaletteImage;
+import io.nayuki.png.image.RgbaImage;
+
+
+public final class RowPublisherTest {
+	
+	@Test public void testSameAsImage() throws InterruptedException {
+		var rgba = new BufferedRgbaImage(37, 29, new int[]{16, 16, 16, 16});
+		var gray = new BufferedGrayImage(41, 23, new int[]{4, 0});
+		var pal = new BufferedPaletteImage(19, 31, new int[]{8, 8, 8, 0}, new long[]{0, 1L << 48, 2L << 32, 3L << 16});
+		for (int y = 0; y < rgba.getHeight(); y++) {
+			for (int x = 0; x < rgba.getWidth(); x++)
+				rgba.setPixel(x, y, rand.nextLong());
+		}
+		for (int y = 0; y < gray.getHeight(); y++) {
+			for (int x = 0; x < gray.getWidth(); x++)
+				gray.setPixel(x, y, rand.nextInt(16) << 16);
+		}
+		for (int y = 0; y < pal.getHeight(); y++) {
+			for (int x = 0; x < pal.getWidth(); x++)
+				pal.setPixel(x, y, rand.nextInt(4));
+		}
+		for (Ihdr.InterlaceMethod meth : Ihdr.InterlaceMethod.values()) {
+			for (PngImage png : List.of(ImageEncoder.toPng(rgba, meth), ImageEncoder.toPng(gray, meth), ImageEncoder.toPng(pal, meth))) {
+				for (int batchHeight : new int[]{1, 4, 100})
+					assertSameAsImage(png, DecodeOptions.DEFAULT, batchHeight);
+				assertSameAsImage(png, DecodeOptions.DEFAULT.withRegion(3, 5, 10, 11), 3);
+				if (meth == Ihdr.InterlaceMethod.NONE)
+					assertSameAsImage(png, DecodeOptions.DEFAULT.withScale(2), 2);
+			}
+		}
+	}
+	
+	
+	private static void assertSameAsImage(PngImage png, DecodeOptions options, int batchHeight) throws InterruptedException {
+		Object expect = ImageDecoder.toImage(png, options);
+		var sub = new CollectingSubscriber(1);
+		ImageDecoder.toRows(png, options, batchHeight).subscribe(sub);
+		int y = 0;
+		for (Object item; (item = sub.take()) != END; ) {
+			var batch = (RowBatch)item;
+			Assert.assertEquals(y, batch.y());
+			if (expect instanceof RgbaImage exp) {
+				var rows = (BufferedRgbaImage)batch.rows();
+				Assert.assertEquals(exp.getWidth(), rows.getWidth());
+				for (int i = 0; i < rows.getHeight(); i++, y++) {
+					for (int x = 0; x < rows.getWidth(); x++)
+						Assert.assertEquals(exp.getPixel(x, y), rows.getPixel(x, i));
+				}
+			} else if (expect instanceof GrayImage exp) {
+				var rows = (BufferedGrayImage)batch.rows();
+				for (int i = 0; i < rows.getHeight(); i++, y++) {
+					for (int x = 0; x < rows.getWidth(); x++)
+						Assert.assertEquals(exp.getPixel(x, y), rows.getPixel(x, i));
+				}
+			} else {
+				var exp = (PaletteImage)expect;
+				var rows = (BufferedPaletteImage)batch.rows();
+				Assert.assertArrayEquals(exp.getPalette(), rows.getPalette());
+				for (int i = 0; i < rows.getHeight(); i++, y++) {
+					for (int x = 0; x < rows.getWidth(); x++)
+						Assert.assertEquals(exp.getPixel(x, y), rows.getPixel(x, i));
+				}
+			}
+			Assert.assertTrue(batch.y() + batchHeight >= y);
+			sub.subscription.request(1);
+		}
+		Assert.assertNull(sub.error);
+		if (expect instanceof RgbaImage exp)
+			Assert.assertEquals(exp.getHeight(), y);
+		else if (expect instanceof GrayImage exp)
+			Assert.assertEquals(exp.getHeight(), y);
+		else
+			Assert.assertEquals(((PaletteImage)expect).getHeight(), y);
+	}
+	
+	
+	@Test public void testBackpressure() throws InterruptedException {
+		var img = new BufferedGrayImage(100, 1000, new int[]{8, 0});
+		PngImage png = ImageEncoder.toPng(img, Ihdr.InterlaceMethod.NONE);
+		var rowsChecked = new AtomicInteger();
+		var rowLimit = new AtomicInteger(30);  // The decoder waits after filling the third batch
+		var overrun = new AtomicBoolean();
+		var options = DecodeOptions.DEFAULT.withCancellation(() -> {
+			if (rowsChecked.incrementAndGet() > rowLimit.get())
+				overrun.set(true);
+			return false;
+		});
+		var sub = new CollectingSubscriber(2);
+		ImageDecoder.toRows(png, options, 10).subscribe(sub);
+		Assert.assertEquals(0, ((RowBatch)sub.take()).y());
+		Assert.assertEquals(10, ((RowBatch)sub.take()).y());
+		rowLimit.set(40);
+		sub.subscription.request(1);
+		Assert.assertEquals(20, ((RowBatch)sub.take()).y());
+		sub.subscription.cancel();
+		sub.thread.join();  // The decoder stops without signaling anything more
+		Assert.assertFalse(overrun.get());
+		Assert.assertTrue(sub.items.isEmpty());
+		Assert.assertTrue(rowsChecked.get() <= 40);
+	}
+	
+	
+	@Test public void testErrors() throws InterruptedException {
+		var img = new BufferedGrayImage(10, 10, new int[]{8, 0});
+		PngImage png = ImageEncoder.toPng(img, Ihdr.InterlaceMethod.NONE);
+		var sub = new CollectingSubscriber(0);
+		ImageDecoder.toRows(png, DecodeOptions.DEFAULT, 1).subscribe(sub);
+		while (sub.subscription == null)
+			Thread.sleep(1);
+		sub.subscription.request(0);
+		Assert.assertEquals(END, sub.take());
+		Assert.assertTrue(sub.error instanceof IllegalArgumentException);
+		
+		png.idats.set(0, new Idat(new byte[]{0x78, (byte)0x9C, 1, 2, 3}));
+		sub = new CollectingSubscriber(Long.MAX_VALUE);
+		ImageDecoder.toRows(png, DecodeOptions.DEFAULT, 1).subscribe(sub);
+		Assert.assertEquals(END, sub.take());
+		Assert.assertTrue(sub.error instanceof IllegalArgumentException);
+		
+		PngImage interlaced = ImageEncoder.toPng(img, Ihdr.InterlaceMethod.ADAM7);
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ImageDecoder.toRows(png, DecodeOptions.DEFAULT, 0));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ImageDecoder.toRows(interlaced, DecodeOptions.DEFAULT.withScale(2), 1));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ImageDecoder.toRows(png,
+			DecodeOptions.DEFAULT.withListener((pass, numPasses, preview) -> {}), 1));
+	}
+	
+	
+	private static final Object END = new Object();
+	
+	
+	// Puts every batch into a queue, followed by END when the publisher completes or fails.
+	private static final class CollectingSubscriber implements Flow.Subscriber<RowBatch> {
+		
+		private final long initialRequest;
+		public volatile Flow.Subscription subscription = null;
+		public volatile Thread thread = null;  // The publisher's decoding thread
+		public final BlockingQueue<Object> items = new LinkedBlockingQueue<>();
+		public volatile Throwable error = null;
+		
+		
+		public CollectingSubscriber(long initialRequest) {
+			this.initialRequest = initialRequest;
+		}
+		
+		
+		@Override public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			thread = Thread.currentThread();
+			if (initialRequest > 0)
+				subscription.request(initialRequest);
+		}
+		
+		
+		@Override public void onNext(RowBatch item) {
+			items.add(item);
+		}
+		
+		
+		@Override public void onError(Throwable e) {
+			error = e;
+			items.add(END);
+		}
+		
+		
+		@Override public void onComplete() {
+			items.add(END);
+		}
+		
+		
+		public Object take() throws InterruptedException {
+			Object result = items.poll(10, TimeUnit.SECONDS);
+			Assert.assertNotNull(result);
+			return result;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,82 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import io.nayuki.png.chunk.Idat;
+import io.nayuki.png.chunk.Ihdr.InterlaceMethod;
+import io.nayuki.png.image.BufferedRgbaImage;
+
+
+/**
+ * Measures speculative parallel decompression against the serial zlib decompressor, for the image data of
+ * a large encoded image, and then whole-image decoding with and without it. Run the main method with no
+ * arguments. The numbers are indicative only, because this uses simple timing loops rather than a
+ * benchmark harness. The parallel path can only win on a machine with several processors.
+ */
+public final class SpeculativeInflaterBenchmark {
+	
+	public static void main(String[] args) {
+		var img = new BufferedRgbaImage(2048, 2048, new int[]{8, 8, 8, 8});
+		var rand = new java.util.Random(0);
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++)
+				img.setPixel(x, y, (long)(x & 0xFF) << 48 | (long)(y & 0xFF) << 32 | (long)((x ^ y) & 0xFF) << 16 | rand.nextInt(16));
+		}
+		PngImage png = ImageEncoder.toPng(img, InterlaceMethod.NONE, EncodeOptions.DEFAULT.withFilterStrategy(EncodeOptions.FilterStrategy.ADAPTIVE));
+		var bout = new ByteArrayOutputStream();
+		for (Idat idat : png.idats)
+			bout.writeBytes(idat.data());
+		byte[] data = bout.toByteArray();
+		int rawSize = img.getHeight() * (img.getWidth() * 4 + 1);
+		System.out.printf("Compressed %d bytes, decompressed %d bytes, %d processors%n", data.length, rawSize, Runtime.getRuntime().availableProcessors());
+		
+		System.out.printf("%-24s %8.1f ms%n", "Serial zlib", time(() -> sink += inflateSerially(data, rawSize)) / 1e6);
+		for (int chunkSize : new int[]{1 << 16, 1 << 18, 1 << 20}) {
+			System.out.printf("%-24s %8.1f ms%n", "Speculative " + (chunkSize >>> 10) + " KiB",
+				time(() -> sink += SpeculativeInflater.inflate(data, chunkSize, rawSize).length) / 1e6);
+		}
+		System.out.printf("%-24s %8.1f ms%n", "Decode, serial", time(() -> sink += ImageDecoder.toImage(png).hashCode()) / 1e6);
+		DecodeOptions opts = DecodeOptions.DEFAULT.withSpeculativeInflation(0);
+		System.out.printf("%-24s %8.1f ms%n", "Decode, speculative", time(() -> sink += ImageDecoder.toImage(png, opts).hashCode()) / 1e6);
+	}
+	
+	
+	private static int inflateSerially(byte[] data, int rawSize) {
+		var inf = new Inflater();
+		try {
+			inf.setInput(data);
+			return inf.inflate(new byte[rawSize]);
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException(e);
+		} finally {
+			inf.end();
+		}
+	}
+	
+	
+	// Returns the fastest of several measurements of running the function, in nanoseconds.
+	private static double time(Runnable func) {
+		for (int i = 0; i < 3; i++)
+			func.run();
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			long start = System.nanoTime();
+			func.run();
+			best = Math.min(System.nanoTime() - start, best);
+		}
+		return best;
+	}
+	
+	
+	private static long sink;  // Keeps results alive
+	
+}
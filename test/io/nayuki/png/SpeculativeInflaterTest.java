@@ -0,0 +1,162 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import static io.nayuki.png.TestUtil.rand;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public final class SpeculativeInflaterTest {
+	
+	@Test public void testMatchesSerial() {
+		final int TRIALS = 100;
+		for (int i = 0; i < TRIALS; i++) {
+			byte[] data = randomData(rand.nextInt(300000));
+			byte[] compressed = compress(data, rand.nextInt(10), new int[]{Deflater.DEFAULT_STRATEGY, Deflater.FILTERED, Deflater.HUFFMAN_ONLY}[rand.nextInt(3)]);
+			int chunkSize = rand.nextInt(20000) + 1;
+			Assert.assertArrayEquals(data, SpeculativeInflater.inflate(compressed, chunkSize, data.length));
+			Assert.assertArrayEquals(data, SpeculativeInflater.inflate(compressed, chunkSize, data.length + rand.nextInt(10)));
+			if (data.length > 0)
+				Assert.assertNull(SpeculativeInflater.inflate(compressed, chunkSize, rand.nextInt(data.length)));
+		}
+	}
+	
+	
+	@Test public void testCorruptData() {
+		final int TRIALS = 300;
+		for (int i = 0; i < TRIALS; i++) {
+			byte[] data = randomData(rand.nextInt(30000));
+			byte[] compressed = compress(data, rand.nextInt(10), Deflater.DEFAULT_STRATEGY);
+			switch (rand.nextInt(3)) {
+				case 0 -> compressed[rand.nextInt(compressed.length)] ^= (byte)(1 << rand.nextInt(8));
+				case 1 -> compressed = Arrays.copyOf(compressed, rand.nextInt(compressed.length));
+				case 2 -> compressed[rand.nextInt(compressed.length)] = (byte)rand.nextInt(256);
+				default -> throw new AssertionError("Unreachable value");
+			}
+			byte[] expect = inflateSerially(compressed, data.length * 2 + 100);
+			byte[] actual = SpeculativeInflater.inflate(compressed, rand.nextInt(3000) + 1, data.length * 2 + 100);
+			if (actual != null)
+				Assert.assertArrayEquals(expect, actual);
+		}
+	}
+	
+	
+	@Test public void testGuessAtFlushPoint() {
+		final int TRIALS = 30;
+		for (int i = 0; i < TRIALS; i++) {
+			var parts = new byte[rand.nextInt(4) + 2][];
+			for (int j = 0; j < parts.length; j++)
+				parts[j] = randomData(rand.nextInt(20000) + 5000);
+			var def = new Deflater();
+			var bout = new ByteArrayOutputStream();
+			var starts = new int[parts.length];
+			var buf = new byte[1000];
+			for (int j = 0; j < parts.length; j++) {
+				starts[j] = bout.size();
+				def.setInput(parts[j]);
+				if (j < parts.length - 1) {
+					int n;
+					do {
+						n = def.deflate(buf, 0, buf.length, Deflater.FULL_FLUSH);
+						bout.write(buf, 0, n);
+					} while (n == buf.length);
+				} else {
+					def.finish();
+					while (!def.finished())
+						bout.write(buf, 0, def.deflate(buf));
+				}
+			}
+			def.end();
+			byte[] compressed = bout.toByteArray();
+			
+			int j = rand.nextInt(parts.length - 1) + 1;
+			if ((compressed[starts[j]] >>> 1 & 3) == 1)
+				continue;  // Blocks with fixed codes are not recognized
+			SpeculativeInflater.Chunk chk = SpeculativeInflater.guess(compressed, starts[j] * 8L, Long.MAX_VALUE, Integer.MAX_VALUE);
+			Assert.assertEquals(starts[j] * 8L, chk.startBit());
+			Assert.assertTrue(chk.isFinal());
+			var rest = new ByteArrayOutputStream();
+			for (int k = j; k < parts.length; k++)
+				rest.writeBytes(parts[k]);
+			var decoded = new byte[chk.length()];
+			for (int k = 0; k < decoded.length; k++) {
+				Assert.assertTrue(chk.data()[k] < 256);
+				decoded[k] = (byte)chk.data()[k];
+			}
+			Assert.assertArrayEquals(rest.toByteArray(), decoded);
+		}
+	}
+	
+	
+	// Returns data that is a random mix of noise, runs, and repeated substrings.
+	private static byte[] randomData(int len) {
+		var result = new byte[len];
+		for (int i = 0; i < len; ) {
+			int n = Math.min(rand.nextInt(300) + 1, len - i);
+			switch (rand.nextInt(3)) {
+				case 0 -> {
+					for (int j = 0; j < n; j++)
+						result[i + j] = (byte)rand.nextInt(256);
+				}
+				case 1 -> Arrays.fill(result, i, i + n, (byte)rand.nextInt(256));
+				case 2 -> {
+					int dist = rand.nextInt(Math.min(i, 40000) + 1);
+					for (int j = 0; j < n; j++)
+						result[i + j] = dist > 0 ? result[i + j - dist] : 0;
+				}
+				default -> throw new AssertionError("Unreachable value");
+			}
+			i += n;
+		}
+		return result;
+	}
+	
+	
+	private static byte[] compress(byte[] data, int level, int strategy) {
+		var def = new Deflater(level);
+		def.setStrategy(strategy);
+		def.setInput(data);
+		def.finish();
+		var bout = new ByteArrayOutputStream();
+		var buf = new byte[10000];
+		while (!def.finished())
+			bout.write(buf, 0, def.deflate(buf));
+		def.end();
+		return bout.toByteArray();
+	}
+	
+	
+	// Returns the decompressed data, or null if it is invalid or longer than maxOutput.
+	private static byte[] inflateSerially(byte[] data, int maxOutput) {
+		var inf = new Inflater();
+		try {
+			inf.setInput(data);
+			var result = new byte[maxOutput + 1];
+			int n = 0;
+			while (!inf.finished() && n < result.length) {
+				int k = inf.inflate(result, n, result.length - n);
+				if (k == 0 && (inf.needsInput() || inf.needsDictionary()))
+					return null;
+				n += k;
+			}
+			return n <= maxOutput && inf.finished() ? Arrays.copyOf(result, n) : null;
+		} catch (DataFormatException e) {
+			return null;
+		} finally {
+			inf.end();
+		}
+	}
+	
+}
@@ -0,0 +1,67 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import io.nayuki.png.chunk.Ihdr.InterlaceMethod;
+import io.nayuki.png.chunk.ZlibCodec;
+import io.nayuki.png.image.BufferedRgbaImage;
+
+
+/**
+ * Compares the zlib codecs on whole-image encoding and decoding: time and compressed size. Run the main method
+ * with no arguments. The numbers are indicative only, because this uses simple timing loops rather than a
+ * benchmark harness.
+ */
+public final class ZlibCodecBenchmark {
+	
+	public static void main(String[] args) {
+		var img = new BufferedRgbaImage(1024, 1024, new int[]{8, 8, 8, 8});
+		var rand = new java.util.Random(0);
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++)
+				img.setPixel(x, y, (long)(x & 0xFF) << 48 | (long)(y & 0xFF) << 32 | (long)((x ^ y) & 0xFF) << 16 | rand.nextInt(4));
+		}
+		
+		Map<String,ZlibCodec> codecs = new LinkedHashMap<>();
+		codecs.put("java.util.zip 1", ZlibCodec.javaUtilZip(1));
+		codecs.put("java.util.zip 6", ZlibCodec.JAVA_UTIL_ZIP);
+		codecs.put("java.util.zip 9", ZlibCodec.javaUtilZip(9));
+		codecs.put("optimal 5", ZlibCodec.optimal(5));
+		System.out.printf("%-20s %10s %10s %12s%n", "Codec", "Encode", "Decode", "Size");
+		for (Map.Entry<String,ZlibCodec> entry : codecs.entrySet()) {
+			EncodeOptions opts = EncodeOptions.DEFAULT.withFilterStrategy(EncodeOptions.FilterStrategy.ADAPTIVE).withZlibCodec(entry.getValue());
+			var png = new PngImage[1];
+			double encMs = time(() -> png[0] = ImageEncoder.toPng(img, InterlaceMethod.NONE, opts)) / 1e6;
+			DecodeOptions decOpts = DecodeOptions.DEFAULT.withZlibCodec(entry.getValue());
+			double decMs = time(() -> sink += ImageDecoder.toImage(png[0], decOpts).hashCode()) / 1e6;
+			long size = png[0].idats.stream().mapToLong(idat -> idat.data().length).sum();
+			System.out.printf("%-20s %7.1f ms %7.1f ms %12d%n", entry.getKey(), encMs, decMs, size);
+		}
+	}
+	
+	
+	// Returns the fastest of several measurements of running the function, in nanoseconds.
+	private static double time(Runnable func) {
+		for (int i = 0; i < 2; i++)
+			func.run();
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			long start = System.nanoTime();
+			func.run();
+			best = Math.min(System.nanoTime() - start, best);
+		}
+		return best;
+	}
+	
+	
+	private static long sink;  // Keeps results alive
+	
+}
@@ -0,0 +1,155 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png.chunk;
+
+import static io.nayuki.png.TestUtil.rand;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.junit.Assert;
+import org.junit.Test;
+import io.nayuki.png.TestUtil;
+
+
+public final class OptimalZlibCodecTest {
+	
+	@Test public void testRoundTrip() {
+		final int TRIALS = 100;
+		for (int i = 0; i < TRIALS; i++) {
+			byte[] data = switch (rand.nextInt(4)) {
+				case 0 -> randomBytes(rand.nextInt(100));
+				case 1 -> randomBytes(rand.nextInt(30000));
+				case 2 -> repetitiveData(rand.nextInt(30000), rand.nextInt(300) + 1);
+				case 3 -> new byte[rand.nextInt(2000)];
+				default -> throw new AssertionError("Unreachable value");
+			};
+			byte[] comp = ZlibCodec.optimal(rand.nextInt(4)).compress(data);
+			Assert.assertArrayEquals(data, ZlibCodec.JAVA_UTIL_ZIP.decompress(comp));
+		}
+	}
+	
+	
+	@Test public void testLongInput() {
+		byte[] data = repetitiveData(1_500_000, 1000);
+		ZlibCodec codec = ZlibCodec.optimal(1);
+		byte[] comp = codec.compress(data);
+		Assert.assertArrayEquals(data, codec.decompress(comp));
+		
+		// Same result when written in small pieces
+		var bout = new ByteArrayOutputStream();
+		try (OutputStream out = codec.newCompressor(bout)) {
+			for (int i = 0; i < data.length; ) {
+				int n = Math.min(rand.nextInt(100000), data.length - i);
+				out.write(data, i, n);
+				i += n;
+			}
+		} catch (IOException e) {
+			throw new AssertionError("Unreachable exception", e);
+		}
+		Assert.assertArrayEquals(comp, bout.toByteArray());
+	}
+	
+	
+	@Test public void testSmallerThanJavaUtilZip() {
+		final int TRIALS = 10;
+		for (int i = 0; i < TRIALS; i++) {
+			byte[] data = repetitiveData(rand.nextInt(50000) + 10000, rand.nextInt(1000) + 1);
+			int optimal = ZlibCodec.optimal(5).compress(data).length;
+			int best = ZlibCodec.javaUtilZip(9).compress(data).length;
+			Assert.assertTrue(optimal <= best);
+		}
+	}
+	
+	
+	@Test public void testFlushIsFullFlushPoint() throws IOException, DataFormatException {
+		final int TRIALS = 10;
+		for (int i = 0; i < TRIALS; i++) {
+			byte[] first = repetitiveData(rand.nextInt(20000), 50);
+			byte[] second = repetitiveData(rand.nextInt(20000) + 1, 70);
+			var bout = new ByteArrayOutputStream();
+			int split;
+			try (OutputStream out = ZlibCodec.optimal(2).newCompressor(bout)) {
+				out.write(first);
+				out.flush();
+				split = bout.size();
+				out.write(first);
+				out.write(second);
+			}
+			byte[] comp = bout.toByteArray();
+			Assert.assertArrayEquals(new byte[]{0, 0, -1, -1}, Arrays.copyOfRange(comp, split - 4, split));
+			
+			var inf = new Inflater(true);
+			inf.setInput(comp, split, comp.length - split - 4);
+			var rest = new byte[first.length + second.length];
+			int n = 0;
+			while (!inf.finished())
+				n += inf.inflate(rest, n, rest.length - n);
+			inf.end();
+			Assert.assertEquals(rest.length, n);
+			Assert.assertArrayEquals(first, Arrays.copyOf(rest, first.length));
+		}
+	}
+	
+	
+	@Test public void testHuffmanLengths() {
+		final int TRIALS = 1000;
+		for (int i = 0; i < TRIALS; i++) {
+			int n = rand.nextInt(299) + 2;
+			var hist = new int[n];
+			for (int j = 0; j < n; j++)
+				hist[j] = rand.nextInt(3) == 0 ? 0 : rand.nextInt(1 << rand.nextInt(20));
+			int maxBits = rand.nextBoolean() ? 7 : 15;
+			if (n > 1 << maxBits)
+				continue;
+			int[] lens = OptimalDeflater.huffmanLengths(hist, 0, n, maxBits);
+			double kraft = 0;
+			int used = 0;
+			for (int j = 0; j < n; j++) {
+				Assert.assertTrue(0 <= lens[j] && lens[j] <= maxBits);
+				if (hist[j] > 0)
+					Assert.assertTrue(lens[j] > 0);
+				if (lens[j] > 0) {
+					kraft += Math.pow(2, -lens[j]);
+					used++;
+				}
+			}
+			Assert.assertTrue(used >= 2);
+			Assert.assertEquals(1.0, kraft, 0);
+		}
+	}
+	
+	
+	@Test public void testInvalidIterations() {
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ZlibCodec.optimal(-1));
+	}
+	
+	
+	private static byte[] randomBytes(int len) {
+		var result = new byte[len];
+		rand.nextBytes(result);
+		return result;
+	}
+	
+	
+	// Rows that mostly repeat the previous row, with a few changes, like filtered image data.
+	static byte[] repetitiveData(int len, int period) {
+		var result = new byte[len];
+		for (int i = 0; i < len; i++) {
+			if (i < period || rand.nextInt(10) == 0)
+				result[i] = (byte)rand.nextInt(rand.nextBoolean() ? 4 : 256);
+			else
+				result[i] = result[i - period];
+		}
+		return result;
+	}
+	
+}
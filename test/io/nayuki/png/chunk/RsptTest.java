@@ -0,0 +1,75 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png.chunk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Test;
+import io.nayuki.png.TestUtil;
+
+
+public final class RsptTest {
+	
+	@Test public void testCreateBad() {
+		int[][][] CASES = {
+			{{}, {}},
+			{{0}, {}},
+			{{0, 5}, {40}},
+			{{-1}, {40}},
+			{{0}, {-1}},
+			{{0, 0}, {40, 100}},
+			{{0, 5}, {40, 40}},
+			{{5, 0}, {40, 100}},
+			{{0, 5}, {100, 40}},
+			{{0, 5, 10}, {40, 100, Integer.MIN_VALUE}},
+		};
+		
+		for (int[][] cs : CASES)
+			TestUtil.runExpect(IllegalArgumentException.class, () -> new Rspt(cs[0], cs[1]));
+	}
+	
+	
+	@Test public void testReadForeignLayout() throws IOException {
+		byte[][] CASES = {
+			TestUtil.hexToBytes(""),
+			TestUtil.hexToBytes("00000000 00000014 00"),
+			TestUtil.hexToBytes("FFFFFFFF 00000014"),
+			TestUtil.hexToBytes("00000000 00000030 00000010 00000020"),
+		};
+		for (byte[] data : CASES) {
+			var bout = new ByteArrayOutputStream();
+			new Custom("rsPT", data).writeChunk(bout);
+			Chunk chk = Chunk.read(new ByteArrayInputStream(bout.toByteArray())).get();
+			Assert.assertTrue(chk instanceof Custom);
+			Assert.assertArrayEquals(data, ((Custom)chk).data());
+		}
+		
+		var bout = new ByteArrayOutputStream();
+		new Rspt(new int[]{0, 0x40}, new int[]{0x1C, 0x0A1B2C}).writeChunk(bout);
+		var chk = (Rspt)Chunk.read(new ByteArrayInputStream(bout.toByteArray())).get();
+		Assert.assertArrayEquals(new int[]{0, 0x40}, chk.rows());
+		Assert.assertArrayEquals(new int[]{0x1C, 0x0A1B2C}, chk.offsets());
+	}
+	
+	
+	@Test public void testWriteChunk() {
+		TestUtil.assertChunkBytesEqual("00000010 72735054 00000000 0000001C 00000040 000A1B2C F80EAD1B",
+			new Rspt(new int[]{0, 0x40}, new int[]{0x1C, 0x0A1B2C}));
+	}
+	
+	
+	@Test public void testWriteChunkData() {
+		TestUtil.assertDataEquals("00000000 00000014", new Rspt(new int[]{0}, new int[]{20}));
+		TestUtil.assertDataEquals("00000000 00000024 00000100 00012345 7FFFFFFF 7FFFFFFF",
+			new Rspt(new int[]{0, 256, Integer.MAX_VALUE}, new int[]{36, 0x12345, Integer.MAX_VALUE}));
+	}
+	
+}
@@ -0,0 +1,116 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png.chunk;
+
+import static io.nayuki.png.TestUtil.rand;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.junit.Assert;
+import org.junit.Test;
+import io.nayuki.png.TestUtil;
+
+
+public final class ZlibCodecTest {
+	
+	@Test public void testRoundTrip() {
+		final int TRIALS = 100;
+		for (int i = 0; i < TRIALS; i++) {
+			byte[] data = randomData(rand.nextInt(100000));
+			ZlibCodec codec = ZlibCodec.javaUtilZip(rand.nextInt(11) - 1);
+			byte[] comp = codec.compress(data);
+			Assert.assertArrayEquals(data, codec.decompress(comp));
+			Assert.assertArrayEquals(data, ZlibCodec.JAVA_UTIL_ZIP.decompress(comp));
+		}
+	}
+	
+	
+	@Test public void testDecompressBad() {
+		byte[] comp = ZlibCodec.JAVA_UTIL_ZIP.compress(randomData(1000));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ZlibCodec.JAVA_UTIL_ZIP.decompress(Arrays.copyOf(comp, comp.length - 10)));
+		comp[0] ^= 1;
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ZlibCodec.JAVA_UTIL_ZIP.decompress(comp));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ZlibCodec.javaUtilZip(10));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ZlibCodec.javaUtilZip(-2));
+	}
+	
+	
+	@Test public void testFlushIsFullFlushPoint() throws IOException, DataFormatException {
+		final int TRIALS = 30;
+		for (int i = 0; i < TRIALS; i++) {
+			byte[] first = randomData(rand.nextInt(50000));
+			byte[] second = randomData(rand.nextInt(50000) + 1);
+			var bout = new ByteArrayOutputStream();
+			int split;
+			try (OutputStream out = ZlibCodec.javaUtilZip(rand.nextInt(10)).newCompressor(bout)) {
+				out.write(first);
+				out.flush();
+				split = bout.size();
+				out.write(first);  // Would be compressed as back-references if the window were kept
+				out.write(second);
+			}
+			byte[] comp = bout.toByteArray();
+			Assert.assertArrayEquals(new byte[]{0, 0, -1, -1}, Arrays.copyOfRange(comp, split - 4, split));
+			
+			// Decompress the rest without knowing the earlier data
+			var inf = new Inflater(true);
+			inf.setInput(comp, split, comp.length - split - 4);
+			var rest = new byte[first.length + second.length];
+			int n = 0;
+			while (!inf.finished())
+				n += inf.inflate(rest, n, rest.length - n);
+			inf.end();
+			Assert.assertEquals(rest.length, n);
+			Assert.assertArrayEquals(first, Arrays.copyOf(rest, first.length));
+		}
+	}
+	
+	
+	@Test public void testDefault() {
+		Assert.assertSame(ZlibCodec.JAVA_UTIL_ZIP, ZlibCodec.getDefault());
+		var calls = new int[2];
+		ZlibCodec counting = new ZlibCodec() {
+			public OutputStream newCompressor(OutputStream out) {
+				calls[0]++;
+				return ZlibCodec.JAVA_UTIL_ZIP.newCompressor(out);
+			}
+			
+			public InputStream newDecompressor(InputStream in) {
+				calls[1]++;
+				return ZlibCodec.JAVA_UTIL_ZIP.newDecompressor(in);
+			}
+		};
+		ZlibCodec.setDefault(counting);
+		try {
+			Assert.assertSame(counting, ZlibCodec.getDefault());
+			byte[] comp = Chunk.CompressionMethod.ZLIB_DEFLATE.compress("Hello, world!".getBytes(StandardCharsets.ISO_8859_1));
+			var chk = new Ztxt("Comment", Chunk.CompressionMethod.ZLIB_DEFLATE, comp);
+			Assert.assertEquals("Hello, world!", chk.getText());
+			Assert.assertEquals(1, calls[0]);
+			Assert.assertEquals(2, calls[1]);
+		} finally {
+			ZlibCodec.setDefault(ZlibCodec.JAVA_UTIL_ZIP);
+		}
+		TestUtil.runExpect(NullPointerException.class, () -> ZlibCodec.setDefault(null));
+	}
+	
+	
+	private static byte[] randomData(int len) {
+		var result = new byte[len];
+		for (int i = 0; i < len; i++)
+			result[i] = (byte)(rand.nextInt(8) == 0 ? rand.nextInt(256) : i % 97);
+		return result;
+	}
+	
+}
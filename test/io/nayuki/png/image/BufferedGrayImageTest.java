@@ -302,6 +302,26 @@ public final class BufferedGrayImageTest {
 	}
 	
 	
+	@Test public void testCreateCopySharing() {
+		var img0 = new BufferedGrayImage(3, 2, DEFAULT_BIT_DEPTHS);
+		img0.setPixel(2, 1, 0x0011_0000);
+		var img1 = new BufferedGrayImage(img0);
+		var img2 = img1.clone();
+		assertEquals(0x0011_0000, img1.getPixel(2, 1));
+		assertEquals(0x0011_0000, img2.getPixel(2, 1));
+		
+		img1.setRow(1, 1, new int[]{0x0044_0000, 0}, 0, 2);
+		img0.setPixel(0, 0, 0x0055_0000);
+		assertEquals(0x0055_0000, img0.getPixel(0, 0));
+		assertEquals(0x0011_0000, img0.getPixel(2, 1));
+		assertEquals(0, img1.getPixel(0, 0));
+		assertEquals(0x0044_0000, img1.getPixel(1, 1));
+		assertEquals(0, img1.getPixel(2, 1));
+		assertEquals(0, img2.getPixel(0, 0));
+		assertEquals(0x0011_0000, img2.getPixel(2, 1));
+	}
+	
+	
 	private static final int[] DEFAULT_BIT_DEPTHS = new int[]{8, 0};
 	
 	private static Random rand = new Random();
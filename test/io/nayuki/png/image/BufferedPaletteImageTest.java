@@ -442,6 +442,26 @@ public final class BufferedPaletteImageTest {
 	}
 	
 	
+	@Test public void testCreateCopySharing() {
+		var img0 = new BufferedPaletteImage(3, 2, DEFAULT_BIT_DEPTHS, new long[4]);
+		img0.setPixel(2, 1, 1);
+		var img1 = new BufferedPaletteImage(img0);
+		var img2 = img1.clone();
+		assertEquals(1, img1.getPixel(2, 1));
+		assertEquals(1, img2.getPixel(2, 1));
+		
+		img1.setRow(1, 1, new int[]{3, 0}, 0, 2);
+		img0.setPixel(0, 0, 2);
+		assertEquals(2, img0.getPixel(0, 0));
+		assertEquals(1, img0.getPixel(2, 1));
+		assertEquals(0, img1.getPixel(0, 0));
+		assertEquals(3, img1.getPixel(1, 1));
+		assertEquals(0, img1.getPixel(2, 1));
+		assertEquals(0, img2.getPixel(0, 0));
+		assertEquals(1, img2.getPixel(2, 1));
+	}
+	
+	
 	private static final int[] DEFAULT_BIT_DEPTHS = new int[]{8, 8, 8, 0};
 	
 	private static Random rand = new Random();
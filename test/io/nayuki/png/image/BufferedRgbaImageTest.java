@@ -310,6 +310,26 @@ public final class BufferedRgbaImageTest {
 	}
 	
 	
+	@Test public void testCreateCopySharing() {
+		var img0 = new BufferedRgbaImage(3, 2, DEFAULT_BIT_DEPTHS);
+		img0.setPixel(2, 1, 0x0011_0022_0033_0000L);
+		var img1 = new BufferedRgbaImage(img0);
+		var img2 = img1.clone();
+		assertEquals(0x0011_0022_0033_0000L, img1.getPixel(2, 1));
+		assertEquals(0x0011_0022_0033_0000L, img2.getPixel(2, 1));
+		
+		img1.setRow(1, 1, new long[]{0x0044_0000_0000_0000L, 0}, 0, 2);
+		img0.setPixel(0, 0, 0x0055_0000_0000_0000L);
+		assertEquals(0x0055_0000_0000_0000L, img0.getPixel(0, 0));
+		assertEquals(0x0011_0022_0033_0000L, img0.getPixel(2, 1));
+		assertEquals(0, img1.getPixel(0, 0));
+		assertEquals(0x0044_0000_0000_0000L, img1.getPixel(1, 1));
+		assertEquals(0, img1.getPixel(2, 1));
+		assertEquals(0, img2.getPixel(0, 0));
+		assertEquals(0x0011_0022_0033_0000L, img2.getPixel(2, 1));
+	}
+	
+	
 	private static final int[] DEFAULT_BIT_DEPTHS = new int[]{8, 8, 8, 0};
 	
 	private static Random rand = new Random();
@@ -0,0 +1,181 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png.image;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import java.util.Random;
+import org.junit.Test;
+import io.nayuki.png.TestUtil;
+
+
+public final class ImageViewsTest {
+	
+	@Test public void testCrop() {
+		BufferedRgbaImage img = randomRgbaImage(7, 5);
+		RgbaImage view = ImageViews.crop(img, 2, 1, 4, 3);
+		assertEquals(4, view.getWidth());
+		assertEquals(3, view.getHeight());
+		for (int y = 0; y < 3; y++) {
+			for (int x = 0; x < 4; x++)
+				assertEquals(img.getPixel(x + 2, y + 1), view.getPixel(x, y));
+		}
+		TestUtil.runExpect(IndexOutOfBoundsException.class, () -> view.getPixel(4, 0));
+		TestUtil.runExpect(IndexOutOfBoundsException.class, () -> ImageViews.crop(img, 4, 0, 4, 1));
+		TestUtil.runExpect(IndexOutOfBoundsException.class, () -> ImageViews.crop(img, 0, 0, 0, 1));
+		TestUtil.runExpect(IndexOutOfBoundsException.class, () -> ImageViews.crop(img, -1, 0, 2, 1));
+	}
+	
+	
+	@Test public void testFlipAndRotate() {
+		BufferedRgbaImage img = randomRgbaImage(5, 3);
+		RgbaImage h = ImageViews.flipHorizontal(img);
+		RgbaImage v = ImageViews.flipVertical(img);
+		RgbaImage r90 = ImageViews.rotate(img, 1);
+		RgbaImage r180 = ImageViews.rotate(img, 2);
+		RgbaImage r270 = ImageViews.rotate(img, -1);
+		assertEquals(3, r90.getWidth());
+		assertEquals(5, r90.getHeight());
+		for (int y = 0; y < 3; y++) {
+			for (int x = 0; x < 5; x++) {
+				long val = img.getPixel(x, y);
+				assertEquals(val, h.getPixel(4 - x, y));
+				assertEquals(val, v.getPixel(x, 2 - y));
+				assertEquals(val, r90.getPixel(2 - y, x));
+				assertEquals(val, r180.getPixel(4 - x, 2 - y));
+				assertEquals(val, r270.getPixel(y, 4 - x));
+			}
+		}
+	}
+	
+	
+	@Test public void testComposeRandom() {
+		final int TRIALS = 1000;
+		for (int i = 0; i < TRIALS; i++) {
+			BufferedRgbaImage img = randomRgbaImage(rand.nextInt(20) + 1, rand.nextInt(20) + 1);
+			RgbaImage view = img;
+			BufferedRgbaImage expect = img;
+			for (int j = 0; j < 5; j++) {
+				switch (rand.nextInt(4)) {
+					case 0 -> {
+						int x = rand.nextInt(view.getWidth());
+						int y = rand.nextInt(view.getHeight());
+						int w = rand.nextInt(view.getWidth() - x) + 1;
+						int h = rand.nextInt(view.getHeight() - y) + 1;
+						view = ImageViews.crop(view, x, y, w, h);
+						var next = new BufferedRgbaImage(w, h, img.getBitDepths());
+						for (int yy = 0; yy < h; yy++) {
+							for (int xx = 0; xx < w; xx++)
+								next.setPixel(xx, yy, expect.getPixel(x + xx, y + yy));
+						}
+						expect = next;
+					}
+					case 1 -> {
+						view = ImageViews.flipHorizontal(view);
+						var next = new BufferedRgbaImage(expect.getWidth(), expect.getHeight(), img.getBitDepths());
+						for (int yy = 0; yy < next.getHeight(); yy++) {
+							for (int xx = 0; xx < next.getWidth(); xx++)
+								next.setPixel(xx, yy, expect.getPixel(next.getWidth() - 1 - xx, yy));
+						}
+						expect = next;
+					}
+					case 2 -> {
+						view = ImageViews.flipVertical(view);
+						var next = new BufferedRgbaImage(expect.getWidth(), expect.getHeight(), img.getBitDepths());
+						for (int yy = 0; yy < next.getHeight(); yy++) {
+							for (int xx = 0; xx < next.getWidth(); xx++)
+								next.setPixel(xx, yy, expect.getPixel(xx, next.getHeight() - 1 - yy));
+						}
+						expect = next;
+					}
+					case 3 -> {
+						view = ImageViews.rotate(view, 1);
+						var next = new BufferedRgbaImage(expect.getHeight(), expect.getWidth(), img.getBitDepths());
+						for (int yy = 0; yy < next.getHeight(); yy++) {
+							for (int xx = 0; xx < next.getWidth(); xx++)
+								next.setPixel(xx, yy, expect.getPixel(yy, expect.getHeight() - 1 - xx));
+						}
+						expect = next;
+					}
+					default -> throw new AssertionError("Unreachable value");
+				}
+			}
+			
+			assertEquals(expect.getWidth(), view.getWidth());
+			assertEquals(expect.getHeight(), view.getHeight());
+			var row = new long[view.getWidth() + 2];
+			for (int y = 0; y < view.getHeight(); y++) {
+				view.getRow(0, y, row, 1, view.getWidth());
+				for (int x = 0; x < view.getWidth(); x++) {
+					assertEquals(expect.getPixel(x, y), view.getPixel(x, y));
+					assertEquals(expect.getPixel(x, y), row[1 + x]);
+				}
+			}
+		}
+	}
+	
+	
+	@Test public void testGrayAndPalette() {
+		var gray = new BufferedGrayImage(4, 3, new int[]{8, 0});
+		var pal = new BufferedPaletteImage(4, 3, new int[]{8, 8, 8, 0}, new long[12]);
+		for (int y = 0, i = 0; y < 3; y++) {
+			for (int x = 0; x < 4; x++, i++) {
+				gray.setPixel(x, y, i << 16);
+				pal.setPixel(x, y, i);
+			}
+		}
+		GrayImage gv = ImageViews.rotate(ImageViews.crop(gray, 1, 0, 3, 2), 2);
+		PaletteImage pv = ImageViews.flipHorizontal(ImageViews.crop(pal, 1, 1, 3, 2));
+		assertEquals(3, gv.getWidth());
+		assertEquals(2, gv.getHeight());
+		var row = new int[3];
+		gv.getRow(0, 0, row, 0, 3);
+		assertArrayEquals(new int[]{7 << 16, 6 << 16, 5 << 16}, row);
+		pv.getRow(0, 1, row, 0, 3);
+		assertArrayEquals(new int[]{11, 10, 9}, row);
+		assertEquals(6, pv.getPixel(1, 0));
+		assertEquals(12, pv.getPalette().length);
+	}
+	
+	
+	@Test public void testSwizzle() {
+		var img = new BufferedRgbaImage(2, 1, new int[]{8, 4, 2, 0});
+		img.setPixel(0, 0, 0x00AB_0005_0003_0000L);
+		img.setPixel(1, 0, 0x0001_000F_0002_0000L);
+		RgbaImage view = ImageViews.swizzle(img, new int[]{2, 1, 0, 0});
+		assertArrayEquals(new int[]{2, 4, 8, 8}, view.getBitDepths());
+		assertEquals(0x0003_0005_00AB_00ABL, view.getPixel(0, 0));
+		var row = new long[2];
+		view.getRow(0, 0, row, 0, 2);
+		assertArrayEquals(new long[]{0x0003_0005_00AB_00ABL, 0x0002_000F_0001_0001L}, row);
+		
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ImageViews.swizzle(img, new int[]{3, 1, 0, 0}));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ImageViews.swizzle(img, new int[]{0, 1, 2}));
+		TestUtil.runExpect(IllegalArgumentException.class, () -> ImageViews.swizzle(img, new int[]{0, 1, 2, 4}));
+		
+		var pal = new BufferedPaletteImage(1, 1, new int[]{8, 8, 8, 8}, new long[]{0x0011_0022_0033_0044L});
+		PaletteImage pv = ImageViews.swizzle(pal, new int[]{2, 1, 0, 3});
+		assertArrayEquals(new long[]{0x0033_0022_0011_0044L}, pv.getPalette());
+		assertEquals(0, pv.getPixel(0, 0));
+	}
+	
+	
+	private static BufferedRgbaImage randomRgbaImage(int width, int height) {
+		var result = new BufferedRgbaImage(width, height, new int[]{16, 16, 16, 16});
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				result.setPixel(x, y, rand.nextLong());
+		}
+		return result;
+	}
+	
+	
+	private static Random rand = new Random();
+	
+}
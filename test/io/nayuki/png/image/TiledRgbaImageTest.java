@@ -0,0 +1,138 @@
+/* 
+ * PNG library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * MIT License. See readme file.
+ * https://www.nayuki.io/page/png-library
+ */
+
+package io.nayuki.png.image;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.Test;
+import io.nayuki.png.TestUtil;
+
+
+public final class TiledRgbaImageTest {
+	
+	@Test public void testCreate() throws IOException {
+		try (var img = new TiledRgbaImage(300, 2, DEFAULT_BIT_DEPTHS)) {
+			assertEquals(300, img.getWidth());
+			assertEquals(2, img.getHeight());
+			assertArrayEquals(DEFAULT_BIT_DEPTHS, img.getBitDepths());
+			assertEquals(0, img.getPixel(299, 1));
+		}
+	}
+	
+	
+	@Test public void testCreateBad() {
+		TestUtil.runExpect(IllegalArgumentException.class,
+			() -> new TiledRgbaImage(0, 1, DEFAULT_BIT_DEPTHS).close());
+		TestUtil.runExpect(IllegalArgumentException.class,
+			() -> new TiledRgbaImage(1, 1, new int[]{8, 8, 8}).close());
+		TestUtil.runExpect(IllegalArgumentException.class,
+			() -> new TiledRgbaImage(1, 1, new int[]{8, 8, 17, 0}).close());
+	}
+	
+	
+	@Test public void testSetPixelRandom() throws IOException {
+		final int TRIALS = 10;
+		for (int i = 0; i < TRIALS; i++) {
+			int width  = rand.nextInt(600) + 1;
+			int height = rand.nextInt(600) + 1;
+			var ref = new BufferedRgbaImage(width, height, new int[]{16, 16, 16, 16});
+			try (var img = new TiledRgbaImage(width, height, new int[]{16, 16, 16, 16})) {
+				for (int j = 0; j < 10_000; j++) {
+					int x = rand.nextInt(width);
+					int y = rand.nextInt(height);
+					long val = rand.nextLong();
+					ref.setPixel(x, y, val);
+					img.setPixel(x, y, val);
+				}
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++)
+						assertEquals(ref.getPixel(x, y), img.getPixel(x, y));
+				}
+			}
+		}
+	}
+	
+	
+	@Test public void testRowsAcrossTiles() throws IOException {
+		int width = 700, height = 3;
+		try (var img = new TiledRgbaImage(width, height, new int[]{16, 16, 16, 16})) {
+			var row = new long[width];
+			for (int x = 0; x < width; x++)
+				row[x] = rand.nextLong();
+			img.setRow(0, 1, row, 0, width);
+			for (int x = 0; x < width; x++)
+				assertEquals(row[x], img.getPixel(x, 1));
+			
+			var part = new long[500];
+			img.getRow(100, 1, part, 10, 490);
+			for (int i = 0; i < 490; i++)
+				assertEquals(row[100 + i], part[10 + i]);
+			assertEquals(0, part[0]);
+			
+			TestUtil.runExpect(IndexOutOfBoundsException.class,
+				() -> img.getRow(1, 1, new long[width], 0, width));
+			TestUtil.runExpect(IndexOutOfBoundsException.class,
+				() -> img.setRow(0, 3, row, 0, 1));
+		}
+	}
+	
+	
+	@Test public void testSetPixelBad() throws IOException {
+		try (var img = new TiledRgbaImage(3, 2, DEFAULT_BIT_DEPTHS)) {
+			TestUtil.runExpect(IndexOutOfBoundsException.class,
+				() -> img.setPixel(3, 0, 0));
+			TestUtil.runExpect(IndexOutOfBoundsException.class,
+				() -> img.getPixel(0, -1));
+			TestUtil.runExpect(IllegalArgumentException.class,
+				() -> img.setPixel(0, 0, 0x0100_0000_0000_0000L));
+			TestUtil.runExpect(IllegalArgumentException.class,
+				() -> img.setRow(0, 0, new long[]{0, 1}, 0, 2));
+		}
+	}
+	
+	
+	@Test public void testClose() throws IOException {
+		var img = new TiledRgbaImage(2, 2, DEFAULT_BIT_DEPTHS);
+		img.setPixel(1, 1, 0x00FF_0000_0000_0000L);
+		img.close();
+		img.close();
+		TestUtil.runExpect(IllegalStateException.class,
+			() -> img.getPixel(1, 1));
+	}
+	
+	
+	@Test public void testCreateCopy() throws IOException {
+		int width = 300, height = 260;
+		var ref = new BufferedRgbaImage(width, height, new int[]{16, 16, 16, 16});
+		for (int i = 0; i < 1000; i++)
+			ref.setPixel(rand.nextInt(width), rand.nextInt(height), rand.nextLong());
+		Path dir = Path.of(System.getProperty("java.io.tmpdir"));
+		try (var img0 = new TiledRgbaImage(ref, dir);
+				var img1 = new TiledRgbaImage(img0, dir)) {
+			img0.setPixel(0, 0, 0);
+			img1.setPixel(1, 0, 0);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					long val = ref.getPixel(x, y);
+					assertEquals(x == 0 && y == 0 ? 0 : val, img0.getPixel(x, y));
+					assertEquals(x == 1 && y == 0 ? 0 : val, img1.getPixel(x, y));
+				}
+			}
+		}
+	}
+	
+	
+	private static final int[] DEFAULT_BIT_DEPTHS = new int[]{8, 8, 8, 0};
+	
+	private static Random rand = new Random();
+	
+}